@@ -56,6 +56,65 @@ public interface Configuration {
 		return Collections.emptyList();
 	}
 
+	/**
+	 * The number of UDP sockets opened for each DHT with SO_REUSEPORT. Every
+	 * socket is served by its own network engine thread, so the inbound packets
+	 * are received in parallel. 1 means no socket sharding.
+	 */
+	default public int networkShards() {
+		return 1;
+	}
+
+	/**
+	 * The inbound requests that touch the data storage, and the other blocking
+	 * storage calls, run off the DHT event loops, so a slow storage query
+	 * doesn't stall the unrelated RPCs. If true they run on virtual threads,
+	 * otherwise on a pool of platform threads. Requires a Java runtime with
+	 * the virtual threads, otherwise falls back to the platform thread pool.
+	 * The timers always stay on the platform scheduler.
+	 */
+	default public boolean virtualThreads() {
+		return false;
+	}
+
+	/**
+	 * The data storage engine, "sqlite" or "mapped". The mapped engine keeps
+	 * the data in the memory mapped segments of the storage file, or in the
+	 * direct memory if no storage path.
+	 */
+	default public String storageEngine() {
+		return "sqlite";
+	}
+
+	/**
+	 * If true every write to the data storage returns after its batch is
+	 * committed. Otherwise the values and peers received from the network are
+	 * acknowledged once queued, and a crash may lose the last few milliseconds
+	 * of them. The persistent values and peers of the node always wait for
+	 * the commit.
+	 */
+	default public boolean durableWrites() {
+		return false;
+	}
+
+	/**
+	 * The time to live of the cached lookup results, in seconds. The misses
+	 * of findValue and findPeer, and the nodes found by findNode, are answered
+	 * from the cache within it for the ARBITRARY and OPTIMISTIC lookups, the
+	 * CONSERVATIVE lookups always go to the network. 0 disables the cache.
+	 */
+	default public int lookupCacheTTL() {
+		return 30;
+	}
+
+	/**
+	 * The tuning of the network lookups by their mode, overrides the presets
+	 * of {@link LookupOption}. The modes not in the map keep their presets.
+	 */
+	default public Map<LookupOption, LookupTuning> lookupTuning() {
+		return Collections.emptyMap();
+	}
+
 	default public  Map<String, Map<String, Object>> services() {
 		return Collections.emptyMap();
 	}
@@ -31,7 +31,9 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
@@ -49,10 +51,20 @@ public class DefaultConfiguration implements Configuration {
 	InetSocketAddress addr6;
 
 	private File storagePath;
+	private int networkShards;
+	private boolean virtualThreads;
+	private String storageEngine;
+	private boolean durableWrites;
+	private int lookupCacheTTL;
+	private Map<LookupOption, LookupTuning> lookupTuning;
 	private Set<NodeInfo> bootstraps;
 	private Map<String, Map<String, Object>> services;
 
 	private DefaultConfiguration() {
+		this.networkShards = 1;
+		this.storageEngine = "sqlite";
+		this.lookupCacheTTL = 30;
+		this.lookupTuning = new EnumMap<>(LookupOption.class);
 		this.bootstraps = new HashSet<>();
 		this.services = new LinkedHashMap<>();
 	}
@@ -72,6 +84,36 @@ public class DefaultConfiguration implements Configuration {
 		return storagePath;
 	}
 
+	@Override
+	public int networkShards() {
+		return networkShards;
+	}
+
+	@Override
+	public boolean virtualThreads() {
+		return virtualThreads;
+	}
+
+	@Override
+	public String storageEngine() {
+		return storageEngine;
+	}
+
+	@Override
+	public boolean durableWrites() {
+		return durableWrites;
+	}
+
+	@Override
+	public int lookupCacheTTL() {
+		return lookupCacheTTL;
+	}
+
+	@Override
+	public Map<LookupOption, LookupTuning> lookupTuning() {
+		return lookupTuning;
+	}
+
 	@Override
 	public Collection<NodeInfo> bootstrapNodes() {
 		return bootstraps;
@@ -167,6 +209,51 @@ public class DefaultConfiguration implements Configuration {
 			return this;
 		}
 
+		public Builder setNetworkShards(int shards) {
+			if (shards <= 0)
+				throw new IllegalArgumentException("Invalid network shards: " + shards);
+
+			getConfiguration().networkShards = shards;
+			return this;
+		}
+
+		public Builder setVirtualThreads(boolean enabled) {
+			getConfiguration().virtualThreads = enabled;
+			return this;
+		}
+
+		public Builder setStorageEngine(String engine) {
+			if (!"sqlite".equals(engine) && !"mapped".equals(engine))
+				throw new IllegalArgumentException("Invalid storage engine: " + engine);
+
+			getConfiguration().storageEngine = engine;
+			return this;
+		}
+
+		public Builder setDurableWrites(boolean enabled) {
+			getConfiguration().durableWrites = enabled;
+			return this;
+		}
+
+		public Builder setLookupCacheTTL(int seconds) {
+			if (seconds < 0)
+				throw new IllegalArgumentException("Invalid lookup cache TTL: " + seconds);
+
+			getConfiguration().lookupCacheTTL = seconds;
+			return this;
+		}
+
+		public Builder setLookupTuning(LookupOption option, LookupTuning tuning) {
+			if (option == null)
+				throw new IllegalArgumentException("Invalid lookup option: null");
+
+			if (tuning == null)
+				getConfiguration().lookupTuning.remove(option);
+			else
+				getConfiguration().lookupTuning.put(option, tuning);
+			return this;
+		}
+
 		public Builder addBootstrap(String id, String addr, int port) {
 			NodeInfo node = new NodeInfo(Id.of(id), addr, port);
 			getConfiguration().bootstraps.add(node);
@@ -232,6 +319,43 @@ public class DefaultConfiguration implements Configuration {
 				if (root.has("dataDir"))
 					setStoragePath(root.get("dataDir").asText());
 
+				if (root.has("networkShards"))
+					setNetworkShards(root.get("networkShards").asInt());
+
+				if (root.has("virtualThreads"))
+					setVirtualThreads(root.get("virtualThreads").asBoolean());
+
+				if (root.has("storageEngine"))
+					setStorageEngine(root.get("storageEngine").asText());
+
+				if (root.has("durableWrites"))
+					setDurableWrites(root.get("durableWrites").asBoolean());
+
+				if (root.has("lookupCacheTTL"))
+					setLookupCacheTTL(root.get("lookupCacheTTL").asInt());
+
+				if (root.has("lookupTuning")) {
+					JsonNode tunings = root.get("lookupTuning");
+					if (!tunings.isObject())
+						throw new IOException("Config file error: lookupTuning");
+
+					Iterator<Map.Entry<String, JsonNode>> it = tunings.fields();
+					while (it.hasNext()) {
+						Map.Entry<String, JsonNode> field = it.next();
+						JsonNode tuning = field.getValue();
+						if (!tuning.has("alpha") || !tuning.has("beta") || !tuning.has("paths"))
+							throw new IOException("Config file error: lookupTuning - " + field.getKey());
+
+						try {
+							LookupOption option = LookupOption.valueOf(field.getKey().toUpperCase());
+							setLookupTuning(option, LookupTuning.of(tuning.get("alpha").asInt(),
+									tuning.get("beta").asInt(), tuning.get("paths").asInt()));
+						} catch (IllegalArgumentException e) {
+							throw new IOException("Config file error: lookupTuning - " + field.getKey(), e);
+						}
+					}
+				}
+
 				if (root.has("bootstraps")) {
 					JsonNode bootstraps = root.get("bootstraps");
 					if (!bootstraps.isArray())
@@ -321,6 +445,10 @@ public class DefaultConfiguration implements Configuration {
 					(c.bootstraps == null || c.bootstraps.isEmpty()) ?
 					Collections.emptySet() : c.bootstraps);
 
+			c.lookupTuning = Collections.unmodifiableMap(
+					(c.lookupTuning == null || c.lookupTuning.isEmpty()) ?
+					Collections.emptyMap() : c.lookupTuning);
+
 			c.services = Collections.unmodifiableMap(
 					(c.services == null || c.services.isEmpty()) ?
 					Collections.emptyMap() : c.services);
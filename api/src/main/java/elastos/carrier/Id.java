@@ -22,7 +22,10 @@
 
 package elastos.carrier;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.math.BigInteger;
+import java.nio.ByteOrder;
 import java.security.SecureRandom;
 import java.util.Arrays;
 
@@ -36,12 +39,21 @@ public class Id implements Comparable<Id> {
 	public static final int SIZE = 256;
 	public static final int BYTES = SIZE / Byte.SIZE;
 
+	private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
 	public static final Id MIN_ID = Id.zero();
 	public static final Id MAX_ID = Id.ofHex("0xFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF");
 
 	// the performance for raw bytes is much better then BigInteger
 	private byte[] bytes;
 
+	// the same bits as four big-endian words, w0 is the most significant.
+	// the comparisons and the distances work on the words
+	private long w0;
+	private long w1;
+	private long w2;
+	private long w3;
+
 	/**
 	 * sorts the closest entries to the head, the furth est to the tail
 	 */
@@ -83,6 +95,30 @@ public class Id implements Comparable<Id> {
 	 */
 	protected Id(byte[] buf, int pos) {
 		this.bytes = Arrays.copyOfRange(buf, pos, pos + BYTES);
+		updateWords();
+	}
+
+	private Id(long w0, long w1, long w2, long w3) {
+		this.w0 = w0;
+		this.w1 = w1;
+		this.w2 = w2;
+		this.w3 = w3;
+
+		bytes = new byte[BYTES];
+		LONGS.set(bytes, 0, w0);
+		LONGS.set(bytes, 8, w1);
+		LONGS.set(bytes, 16, w2);
+		LONGS.set(bytes, 24, w3);
+	}
+
+	/**
+	 * Reloads the words after the bytes changed, only while constructing the id.
+	 */
+	void updateWords() {
+		w0 = (long)LONGS.get(bytes, 0);
+		w1 = (long)LONGS.get(bytes, 8);
+		w2 = (long)LONGS.get(bytes, 16);
+		w3 = (long)LONGS.get(bytes, 24);
 	}
 
 	/**
@@ -142,6 +178,7 @@ public class Id implements Comparable<Id> {
 	public static Id ofBit(int idx) {
 		Id id = new Id();
 		id.bytes[idx / 8] = (byte)(0x80 >>> (idx % 8));
+		id.updateWords();
 		return id;
 	}
 
@@ -152,6 +189,7 @@ public class Id implements Comparable<Id> {
 	public static Id random() {
 		Id id = new Id();
 		new SecureRandom().nextBytes(id.bytes);
+		id.updateWords();
 		return id;
 	}
 
@@ -159,10 +197,35 @@ public class Id implements Comparable<Id> {
 		return bytes.clone();
 	}
 
+	/**
+	 * @return the internal bytes of the id, must not be modified
+	 */
 	public byte[] bytes() {
 		return bytes;
 	}
 
+	/**
+	 * Get the 64 bits word of the id, the words are big-endian and the word 0
+	 * is the most significant one.
+	 *
+	 * @param index the word index, 0 to 3
+	 * @return the word
+	 */
+	public long getWord(int index) {
+		switch (index) {
+		case 0:
+			return w0;
+		case 1:
+			return w1;
+		case 2:
+			return w2;
+		case 3:
+			return w3;
+		default:
+			throw new IndexOutOfBoundsException("Word index: " + index);
+		}
+	}
+
 	public int getInt(int offset) {
 		return Byte.toUnsignedInt(bytes[offset]) << 24 |
 				Byte.toUnsignedInt(bytes[offset+1]) << 16 |
@@ -184,6 +247,7 @@ public class Id implements Comparable<Id> {
 			carry >>>= 8;
 		}
 
+		result.updateWords();
 		return result;
 	}
 
@@ -199,16 +263,7 @@ public class Id implements Comparable<Id> {
 	}
 
 	public static Id distance(Id id1, Id id2) {
-		Id result = new Id();
-
-		byte[] r = result.bytes;
-		byte[] a = id1.bytes;
-		byte[] b = id2.bytes;
-
-		for (int i = 0; i < BYTES; i++)
-			r[i] = (byte) (a[i] ^ b[i]);
-
-		return result;
+		return new Id(id1.w0 ^ id2.w0, id1.w1 ^ id2.w1, id1.w2 ^ id2.w2, id1.w3 ^ id2.w3);
 	}
 
 	/**
@@ -251,7 +306,18 @@ public class Id implements Comparable<Id> {
 		 * Compute the xor of this and to Get the index i of the first set bit of the
 		 * xor returned NodeId The distance between them is ID_LENGTH - i
 		 */
-		return SIZE - id1.distance(id2).getLeadingZeros();
+		return SIZE - leadingZeros(id1.w0 ^ id2.w0, id1.w1 ^ id2.w1, id1.w2 ^ id2.w2, id1.w3 ^ id2.w3);
+	}
+
+	private static int leadingZeros(long w0, long w1, long w2, long w3) {
+		if (w0 != 0)
+			return Long.numberOfLeadingZeros(w0);
+		if (w1 != 0)
+			return 64 + Long.numberOfLeadingZeros(w1);
+		if (w2 != 0)
+			return 128 + Long.numberOfLeadingZeros(w2);
+
+		return 192 + Long.numberOfLeadingZeros(w3);
 	}
 
 	/**
@@ -261,15 +327,16 @@ public class Id implements Comparable<Id> {
 	 *         k2 is closer
 	 */
 	public int threeWayCompare(Id id1, Id id2) {
-		int mmi = Arrays.mismatch(id1.bytes, id2.bytes);
-		if (mmi == -1)
-			return 0;
-
-		int r = bytes[mmi] & 0xff;
-		int a = id1.bytes[mmi] & 0xff;
-		int b = id2.bytes[mmi] & 0xff;
+		// the first different word decides, the XOR with the target word
+		// flips the same bits of both, so no need to compute the distances
+		if (id1.w0 != id2.w0)
+			return Long.compareUnsigned(id1.w0 ^ w0, id2.w0 ^ w0);
+		if (id1.w1 != id2.w1)
+			return Long.compareUnsigned(id1.w1 ^ w1, id2.w1 ^ w1);
+		if (id1.w2 != id2.w2)
+			return Long.compareUnsigned(id1.w2 ^ w2, id2.w2 ^ w2);
 
-		return Integer.compareUnsigned(a ^ r, b ^ r);
+		return Long.compareUnsigned(id1.w3 ^ w3, id2.w3 ^ w3);
 	}
 
 	/**
@@ -278,23 +345,7 @@ public class Id implements Comparable<Id> {
 	 * @return the number of leading 0's
 	 */
 	public int getLeadingZeros() {
-		int msb = 0;
-
-		int i;
-		for (i = 0; i < BYTES && bytes[i] == 0; i++);
-		msb += i << 3;
-
-		if (i < BYTES) {
-			byte b = bytes[i];
-			if (b > 0) {
-				int n = 7;
-				if (b >= 1 <<  4) { n -=  4; b >>>=  4; }
-				if (b >= 1 <<  2) { n -=  2; b >>>=  2; }
-				msb += (n - (b >>> 1));
-			}
-		}
-
-		return msb;
+		return leadingZeros(w0, w1, w2, w3);
 	}
 
 	/**
@@ -303,24 +354,14 @@ public class Id implements Comparable<Id> {
 	 * @return the number of trailing 0's
 	 */
 	public int getTrailingZeros() {
-		int lsb = 0;
-
-		int i;
-		for (i = BYTES - 1; i >= 0 && bytes[i] == 0; i--);
-		lsb += (BYTES - 1 - i) << 3;
-
-		if (i >= 0) {
-			byte b = (byte)(~bytes[i] & (bytes[i] - 1));
-			if (b <= 0) {
-				lsb += (b & 8);
-			} else {
-				if (b > 1 <<  4) { lsb +=  4; b >>>=  4; }
-				if (b > 1 <<  2) { lsb +=  2; b >>>=  2; }
-				lsb += ((b >>> 1) + 1);
-			}
-		}
+		if (w3 != 0)
+			return Long.numberOfTrailingZeros(w3);
+		if (w2 != 0)
+			return 64 + Long.numberOfTrailingZeros(w2);
+		if (w1 != 0)
+			return 128 + Long.numberOfTrailingZeros(w1);
 
-		return lsb;
+		return 192 + Long.numberOfTrailingZeros(w0);
 	}
 
 	/**
@@ -335,14 +376,15 @@ public class Id implements Comparable<Id> {
 		if (n < 0)
 			return true;
 
-		int mmi = Arrays.mismatch(id1.bytes, id2.bytes);
-
-		int indexToCheck = n >>> 3;
-		int diff = (id1.bytes[indexToCheck] ^ id2.bytes[indexToCheck]) & 0xff;
-
-		boolean bitsDiff = (diff & (0xff80 >>> (n & 0x07))) == 0;
+		// the words before the word of the Nth bit are all covered
+		int index = n >>> 6;
+		for (int i = 0; i < index; i++) {
+			if (id1.getWord(i) != id2.getWord(i))
+				return false;
+		}
 
-		return mmi == indexToCheck ? bitsDiff : Integer.compareUnsigned(mmi, indexToCheck) > 0;
+		long mask = 0x8000000000000000L >> (n & 0x3f);
+		return ((id1.getWord(index) ^ id2.getWord(index)) & mask) == 0;
 	}
 
 	protected static void bitsCopy(Id src, Id dest, int depth) {
@@ -360,6 +402,8 @@ public class Id implements Comparable<Id> {
 		dest.bytes[idx] &= ~mask;
 		// copy the bits from the last byte
 		dest.bytes[idx] |= src.bytes[idx] & mask;
+
+		dest.updateWords();
 	}
 
 	public Signature.PublicKey toSignatureKey() {
@@ -377,7 +421,14 @@ public class Id implements Comparable<Id> {
 	 */
 	@Override
 	public int compareTo(Id o) {
-		return Arrays.compareUnsigned(bytes, o.bytes);
+		if (w0 != o.w0)
+			return Long.compareUnsigned(w0, o.w0);
+		if (w1 != o.w1)
+			return Long.compareUnsigned(w1, o.w1);
+		if (w2 != o.w2)
+			return Long.compareUnsigned(w2, o.w2);
+
+		return Long.compareUnsigned(w3, o.w3);
 	}
 
 	/**
@@ -393,19 +444,22 @@ public class Id implements Comparable<Id> {
 
 		if (o instanceof Id) {
 			Id id = (Id) o;
-			return Arrays.equals(this.bytes, id.bytes);
+			return w0 == id.w0 && w1 == id.w1 && w2 == id.w2 && w3 == id.w3;
 		}
 		return false;
 	}
 
 	@Override
 	public int hashCode() {
-		byte[] b = bytes;
+		// every byte of the hash is the XOR of the 8 bytes of a word
+		return fold(w0) << 24 | fold(w1) << 16 | fold(w2) << 8 | fold(w3);
+	}
 
-		return (((b[0] ^ b[1] ^ b[2] ^ b[3] ^ b[4] ^ b[5] ^ b[6] ^ b[7]) & 0xff) << 24)
-				| (((b[8] ^ b[9] ^ b[10] ^ b[11] ^ b[12] ^ b[13] ^ b[14] ^ b[15]) & 0xff) << 16)
-				| (((b[16] ^ b[17] ^ b[18] ^ b[19] ^ b[20] ^ b[21] ^ b[22] ^ b[23]) & 0xff) << 8)
-				| ((b[24] ^ b[25] ^ b[26] ^ b[27] ^ b[28] ^ b[29] ^ b[30] ^ b[31]) & 0xff);
+	private static int fold(long w) {
+		w ^= w >>> 32;
+		w ^= w >>> 16;
+		w ^= w >>> 8;
+		return (int)w & 0xff;
 	}
 
 	/**
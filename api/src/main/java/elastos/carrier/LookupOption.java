@@ -22,9 +22,55 @@
 
 package elastos.carrier;
 
+/**
+ * The lookup modes, each carries the preset tuning of its network lookups:
+ * alpha, the requests in flight on each path, beta, the closest responded
+ * nodes a path holds before it may terminate, and the number of the disjoint
+ * paths. A node is queried by one path only, so the paths never share a node
+ * and a sybil node on one path can't steer the others.
+ *
+ * The callers choose the trade-off of a lookup by its mode. A node may
+ * override the preset of a mode by {@link Configuration#lookupTuning()}, and
+ * a single lookup task may run with its own tuning.
+ */
 public enum LookupOption {
-	LOCAL, /* Reserved */
-	ARBITRARY,
-	OPTIMISTIC,
-	CONSERVATIVE
+	LOCAL(8, 8, 1), /* Reserved */
+	ARBITRARY(8, 8, 1),
+	OPTIMISTIC(8, 8, 1),
+	CONSERVATIVE(4, 8, 3);
+
+	private final LookupTuning tuning;
+
+	private LookupOption(int alpha, int beta, int paths) {
+		this.tuning = LookupTuning.of(alpha, beta, paths);
+	}
+
+	/**
+	 * The preset tuning of the mode.
+	 */
+	public LookupTuning tuning() {
+		return tuning;
+	}
+
+	/**
+	 * The maximum number of the concurrent requests on each path.
+	 */
+	public int alpha() {
+		return tuning.alpha();
+	}
+
+	/**
+	 * The number of the closest responded nodes a path holds before it may
+	 * terminate.
+	 */
+	public int beta() {
+		return tuning.beta();
+	}
+
+	/**
+	 * The number of the disjoint lookup paths.
+	 */
+	public int paths() {
+		return tuning.paths();
+	}
 }
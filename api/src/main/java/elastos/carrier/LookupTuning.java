@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package elastos.carrier;
+
+import java.util.Objects;
+
+/**
+ * The tuning of a network lookup: alpha, beta and the number of the disjoint
+ * paths. Every {@link LookupOption} carries a preset one, a node may override
+ * the preset of a mode by {@link Configuration#lookupTuning()}.
+ */
+public final class LookupTuning {
+	private final int alpha;
+	private final int beta;
+	private final int paths;
+
+	private LookupTuning(int alpha, int beta, int paths) {
+		this.alpha = alpha;
+		this.beta = beta;
+		this.paths = paths;
+	}
+
+	public static LookupTuning of(int alpha, int beta, int paths) {
+		if (alpha <= 0)
+			throw new IllegalArgumentException("Invalid lookup alpha: " + alpha);
+
+		if (beta <= 0)
+			throw new IllegalArgumentException("Invalid lookup beta: " + beta);
+
+		if (paths <= 0)
+			throw new IllegalArgumentException("Invalid lookup paths: " + paths);
+
+		return new LookupTuning(alpha, beta, paths);
+	}
+
+	/**
+	 * The maximum number of the concurrent requests on each path.
+	 */
+	public int alpha() {
+		return alpha;
+	}
+
+	/**
+	 * The number of the closest responded nodes a path holds before it may
+	 * terminate.
+	 */
+	public int beta() {
+		return beta;
+	}
+
+	/**
+	 * The number of the disjoint lookup paths.
+	 */
+	public int paths() {
+		return paths;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(alpha, beta, paths);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o == this)
+			return true;
+
+		if (o instanceof LookupTuning) {
+			LookupTuning t = (LookupTuning)o;
+			return alpha == t.alpha && beta == t.beta && paths == t.paths;
+		}
+
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return "alpha " + alpha + ", beta " + beta + ", paths " + paths;
+	}
+}
@@ -22,10 +22,18 @@
 
 package elastos.carrier;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ScheduledExecutorService;
 
+/**
+ * The futures returned by the lookups and the stores complete on the internal
+ * threads of the node, e.g. the event loop of a DHT. The dependent actions that
+ * block or run long should be chained with an executor, e.g.
+ * {@code thenAcceptAsync(action, executor)}, otherwise they delay the node.
+ */
 public interface Node {
 	public Id getId();
 
@@ -65,12 +73,22 @@ public interface Node {
 		return findNode(id, null);
 	}
 
+	/**
+	 * Looks up the node of the id. The concurrent calls of the same lookup, the
+	 * same id and option, share one execution and its immutable result.
+	 * Cancelling the returned future detaches only this caller, the lookup
+	 * stops when all of its callers cancelled.
+	 */
 	public CompletableFuture<List<NodeInfo>> findNode(Id id, LookupOption option);
 
 	public default CompletableFuture<Value> findValue(Id id) {
 		return findValue(id, null);
 	}
 
+	/**
+	 * Looks up the value of the id, the concurrent calls of the same lookup
+	 * share one execution the same as {@link #findNode(Id, LookupOption)}.
+	 */
 	public CompletableFuture<Value> findValue(Id id, LookupOption option);
 
 	public CompletableFuture<Void> storeValue(Value value, boolean persistent);
@@ -83,6 +101,11 @@ public interface Node {
 		return findPeer(id, expected, null);
 	}
 
+	/**
+	 * Looks up the peers of the id, the concurrent calls of the same lookup,
+	 * the same id, expected number and option, share one execution the same
+	 * as {@link #findNode(Id, LookupOption)}.
+	 */
 	public CompletableFuture<List<PeerInfo>> findPeer(Id id, int expected, LookupOption option);
 
 	public CompletableFuture<Void> announcePeer(PeerInfo peer, boolean persistent);
@@ -91,6 +114,61 @@ public interface Node {
 		return announcePeer(peer, false);
 	}
 
+	/**
+	 * Looks up the values of a batch of ids. The lookups of the batch start
+	 * from one snapshot of the routing table, the duplicate ids and the ids
+	 * already being looked up share one lookup, and at most a node wide number
+	 * of the batch operations run at once.
+	 *
+	 * Cancelling a returned future detaches only this caller, a shared lookup
+	 * stops when all of its callers cancelled.
+	 *
+	 * @return the future of each distinct id, in the iteration order of the ids.
+	 */
+	public default Map<Id, CompletableFuture<Value>> findValues(Collection<Id> ids) {
+		return findValues(ids, null);
+	}
+
+	public Map<Id, CompletableFuture<Value>> findValues(Collection<Id> ids, LookupOption option);
+
+	/**
+	 * Looks up the peers of a batch of ids, the same as {@link #findValues(Collection, LookupOption)}.
+	 *
+	 * @return the future of each distinct id, in the iteration order of the ids.
+	 */
+	public default Map<Id, CompletableFuture<List<PeerInfo>>> findPeers(Collection<Id> ids, int expected) {
+		return findPeers(ids, expected, null);
+	}
+
+	public Map<Id, CompletableFuture<List<PeerInfo>>> findPeers(Collection<Id> ids, int expected, LookupOption option);
+
+	/**
+	 * Stores a batch of values, the announces share the concurrency budget of
+	 * the batch lookups. The values are saved to the local storage before this
+	 * returns. The whole batch is validated first, an invalid value or a
+	 * duplicate value id rejects the batch before anything is stored.
+	 *
+	 * @return the future of each value, in the iteration order of the values.
+	 * @throws IllegalArgumentException if a value is invalid or the ids are not distinct.
+	 */
+	public Map<Id, CompletableFuture<Void>> storeValues(Collection<Value> values, boolean persistent);
+
+	public default Map<Id, CompletableFuture<Void>> storeValues(Collection<Value> values) {
+		return storeValues(values, false);
+	}
+
+	/**
+	 * Announces a batch of peers, the same as {@link #storeValues(Collection, boolean)}.
+	 *
+	 * @return the future of each peer, in the iteration order of the peers.
+	 * @throws IllegalArgumentException if a peer is invalid or the peer ids are not distinct.
+	 */
+	public Map<Id, CompletableFuture<Void>> announcePeers(Collection<PeerInfo> peers, boolean persistent);
+
+	public default Map<Id, CompletableFuture<Void>> announcePeers(Collection<PeerInfo> peers) {
+		return announcePeers(peers, false);
+	}
+
 	public Value getValue(Id valueId) throws CarrierException;
 
 	public boolean removeValue(Id valueId) throws CarrierException;;
@@ -22,7 +22,6 @@
 
 package elastos.carrier;
 
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 
@@ -88,6 +87,7 @@ public class Prefix extends Id {
 		// set last bit to zero
 		byte[] b = parent.bytes();
 		b[oldDepth >>> 3] &= ~(0x80 >> (oldDepth & 0x07));
+		parent.updateWords();
 		return parent;
 	}
 
@@ -100,6 +100,7 @@ public class Prefix extends Id {
 		else
 			branch.bytes()[branchDepth / 8] &= ~(0x80 >> (branchDepth % 8));
 
+		branch.updateWords();
 		return branch;
 	}
 
@@ -154,6 +155,7 @@ public class Prefix extends Id {
 			}
 		}
 
+		prefix.updateWords();
 		return prefix;
 	}
 
@@ -165,7 +167,7 @@ public class Prefix extends Id {
 			if (this.depth != p.depth)
 				return false;
 
-			return Arrays.equals(this.bytes(), p.bytes());
+			return super.equals(p);
 		}
 		return false;
 	}
@@ -22,6 +22,7 @@
 
 package elastos.carrier.crypto;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import javax.security.auth.Destroyable;
@@ -33,7 +34,10 @@ import org.apache.tuweni.crypto.sodium.SodiumException;
 public class CryptoBox implements AutoCloseable {
 	public static final int MAC_BYTES = 16;
 
+	// the tuweni box, only if the native binding is not available
 	private Box box;
+	// the precomputed shared key for the native operations
+	private byte[] sharedKey;
 
 	public static class PublicKey implements Destroyable {
 		public static final int BYTES = Box.PublicKey.length();
@@ -336,7 +340,22 @@ public class CryptoBox implements AutoCloseable {
 		this.box = box;
 	}
 
+	private CryptoBox(byte[] sharedKey) {
+		this.sharedKey = sharedKey;
+	}
+
+	/**
+	 * Creates the box of the key pair. The shared key is computed once: by
+	 * libsodium directly if the native binding is available, otherwise by the
+	 * tuweni box used as the fallback for all the operations.
+	 */
 	public static CryptoBox fromKeys(PublicKey pk, PrivateKey sk) throws CryptoException {
+		if (NativeSodium.isAvailable()) {
+			byte[] k = new byte[NativeSodium.BEFORENM_BYTES];
+			if (NativeSodium.lib().crypto_box_beforenm(k, pk.bytes(), sk.bytes()) == 0)
+				return new CryptoBox(k);
+		}
+
 		try {
 			return new CryptoBox(Box.forKeys(pk.raw(), sk.raw()));
 		} catch (SodiumException e) {
@@ -345,6 +364,16 @@ public class CryptoBox implements AutoCloseable {
 	}
 
 	public byte[] encrypt(byte[] plain, Nonce nonce) throws CryptoException {
+		if (sharedKey != null) {
+			byte[] cipher = new byte[plain.length + MAC_BYTES];
+			int rc = NativeSodium.lib().crypto_box_easy_afternm(ByteBuffer.wrap(cipher), ByteBuffer.wrap(plain),
+					plain.length, nonce.bytes(), sharedKey);
+			if (rc != 0)
+				throw new CryptoException("crypto_box_easy_afternm: failed");
+
+			return cipher;
+		}
+
 		try {
 			return box.encrypt(plain, nonce.raw());
 		} catch (SodiumException e) {
@@ -352,6 +381,36 @@ public class CryptoBox implements AutoCloseable {
 		}
 	}
 
+	/**
+	 * Encrypts the remaining bytes of the plain buffer into the cipher buffer.
+	 * The positions of both buffers are advanced. The direct buffers are
+	 * passed to libsodium as they are, the heap buffers are copied to and from
+	 * the native memory by the binding.
+	 *
+	 * @param plain the buffer holding the plain text.
+	 * @param cipher the buffer to receive the cipher.
+	 * @param nonce the nonce.
+	 * @throws CryptoException if the plain text can not be encrypted.
+	 */
+	public void encrypt(ByteBuffer plain, ByteBuffer cipher, Nonce nonce) throws CryptoException {
+		int length = plain.remaining();
+		if (cipher.remaining() < length + MAC_BYTES)
+			throw new CryptoException("crypto_box_easy_afternm: insufficient cipher buffer");
+
+		if (sharedKey != null) {
+			int rc = NativeSodium.lib().crypto_box_easy_afternm(cipher, plain, length, nonce.bytes(), sharedKey);
+			if (rc != 0)
+				throw new CryptoException("crypto_box_easy_afternm: failed");
+
+			plain.position(plain.limit());
+			cipher.position(cipher.position() + length + MAC_BYTES);
+		} else {
+			byte[] p = new byte[length];
+			plain.get(p);
+			cipher.put(encrypt(p, nonce));
+		}
+	}
+
 	public static byte[] encrypt(byte[] plain, PublicKey receiver, PrivateKey sender, Nonce nonce) throws CryptoException {
 		try {
 			return Box.encrypt(plain, receiver.raw(), sender.raw(), nonce.raw());
@@ -369,6 +428,19 @@ public class CryptoBox implements AutoCloseable {
 	}
 
 	public byte[] decrypt(byte[] cipher, Nonce nonce) throws CryptoException {
+		if (sharedKey != null) {
+			if (cipher.length < MAC_BYTES)
+				throw new CryptoException("crypto_box_open_easy_afternm: invalid cipher length");
+
+			byte[] plain = new byte[cipher.length - MAC_BYTES];
+			int rc = NativeSodium.lib().crypto_box_open_easy_afternm(ByteBuffer.wrap(plain), ByteBuffer.wrap(cipher),
+					cipher.length, nonce.bytes(), sharedKey);
+			if (rc != 0)
+				throw new CryptoException("crypto_box_open_easy_afternm: failed");
+
+			return plain;
+		}
+
 		byte[] plain = box.decrypt(cipher, nonce.raw());
 		if (plain == null)
 			throw new CryptoException("crypto_box_open_easy_afternm: failed");
@@ -376,6 +448,37 @@ public class CryptoBox implements AutoCloseable {
 		return plain;
 	}
 
+	/**
+	 * Decrypts the cipher in the given region of the buffer. The plain text is
+	 * written to the beginning of the region, no array is allocated on the Java
+	 * side. The region is still copied to the native memory and the plain text
+	 * copied back by the binding, because the buffer is on the heap.
+	 *
+	 * @param buf the buffer holding the cipher.
+	 * @param offset the offset of the cipher in the buffer.
+	 * @param length the length of the cipher.
+	 * @param nonce the nonce.
+	 * @return the length of the plain text.
+	 * @throws CryptoException if the cipher can not be decrypted.
+	 */
+	public int decrypt(byte[] buf, int offset, int length, Nonce nonce) throws CryptoException {
+		if (length < MAC_BYTES)
+			throw new CryptoException("crypto_box_open_easy_afternm: invalid cipher length");
+
+		if (sharedKey != null) {
+			ByteBuffer region = ByteBuffer.wrap(buf, offset, length).slice();
+			int rc = NativeSodium.lib().crypto_box_open_easy_afternm(region, region.duplicate(),
+					length, nonce.bytes(), sharedKey);
+			if (rc != 0)
+				throw new CryptoException("crypto_box_open_easy_afternm: failed");
+		} else {
+			byte[] plain = decrypt(Arrays.copyOfRange(buf, offset, offset + length), nonce);
+			System.arraycopy(plain, 0, buf, offset, plain.length);
+		}
+
+		return length - MAC_BYTES;
+	}
+
 	public static byte[] decrypt(byte[] cipher, PublicKey sender, PrivateKey receiver, Nonce nonce) throws CryptoException {
 		byte[] plain = Box.decrypt(cipher, sender.raw(), receiver.raw(), nonce.raw());
 		if (plain == null)
@@ -394,7 +497,10 @@ public class CryptoBox implements AutoCloseable {
 
 	@Override
 	public void close() {
-		box.close();
+		if (box != null)
+			box.close();
+		if (sharedKey != null)
+			Arrays.fill(sharedKey, (byte)0);
 	}
 
 	@Override
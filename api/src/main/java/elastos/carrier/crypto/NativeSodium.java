@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package elastos.carrier.crypto;
+
+import java.nio.ByteBuffer;
+
+import jnr.ffi.LibraryLoader;
+import jnr.ffi.annotations.In;
+import jnr.ffi.annotations.Out;
+import jnr.ffi.types.u_int64_t;
+
+/**
+ * Minimal binding of the libsodium box functions that work on the buffer
+ * regions, which are not exposed by the tuweni wrapper. Used for the
+ * encryption and decryption on the packet buffers without allocating the
+ * arrays. The direct buffers are passed as native pointers, jnr-ffi copies
+ * the heap buffers to the temporary native memory and back on every call.
+ */
+final class NativeSodium {
+	public interface LibSodium {
+		int sodium_init();
+
+		int crypto_box_beforenm(@Out byte[] k, @In byte[] pk, @In byte[] sk);
+
+		int crypto_box_easy_afternm(@Out ByteBuffer c, @In ByteBuffer m, @u_int64_t long mlen,
+				@In byte[] n, @In byte[] k);
+
+		int crypto_box_open_easy_afternm(@Out ByteBuffer m, @In ByteBuffer c, @u_int64_t long clen,
+				@In byte[] n, @In byte[] k);
+	}
+
+	public static final int BEFORENM_BYTES = 32;
+
+	private static final LibSodium lib = load();
+
+	private static LibSodium load() {
+		try {
+			LibSodium lib = LibraryLoader.create(LibSodium.class).load("sodium");
+			return lib.sodium_init() >= 0 ? lib : null;
+		} catch (Throwable e) {
+			// fallback to the tuweni based implementation
+			return null;
+		}
+	}
+
+	static boolean isAvailable() {
+		return lib != null;
+	}
+
+	static LibSodium lib() {
+		return lib;
+	}
+}
@@ -29,7 +29,10 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListSet;
 
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
@@ -38,6 +41,68 @@ import elastos.carrier.utils.Base58;
 import elastos.carrier.utils.Hex;
 
 public class IdTests {
+	private static final int IDS = 4096;
+	private static final int WARMUP_ITERATIONS = 2_000_000;
+	private static final int ITERATIONS = 20_000_000;
+	private static final int LOOKUP_CANDIDATES = 64;
+	private static final int LOOKUPS = 200_000;
+
+	private interface Operation {
+		long run(int i);
+	}
+
+	// The byte implementations of the previous Id
+	private static int compareBytes(byte[] a, byte[] b) {
+		return Arrays.compareUnsigned(a, b);
+	}
+
+	private static byte[] distanceBytes(byte[] a, byte[] b) {
+		byte[] r = new byte[Id.BYTES];
+		for (int i = 0; i < Id.BYTES; i++)
+			r[i] = (byte) (a[i] ^ b[i]);
+
+		return r;
+	}
+
+	private static int threeWayCompareBytes(byte[] t, byte[] a, byte[] b) {
+		int mmi = Arrays.mismatch(a, b);
+		if (mmi == -1)
+			return 0;
+
+		int r = t[mmi] & 0xff;
+		return Integer.compareUnsigned((a[mmi] & 0xff) ^ r, (b[mmi] & 0xff) ^ r);
+	}
+
+	private static int hashCodeBytes(byte[] b) {
+		return (((b[0] ^ b[1] ^ b[2] ^ b[3] ^ b[4] ^ b[5] ^ b[6] ^ b[7]) & 0xff) << 24)
+				| (((b[8] ^ b[9] ^ b[10] ^ b[11] ^ b[12] ^ b[13] ^ b[14] ^ b[15]) & 0xff) << 16)
+				| (((b[16] ^ b[17] ^ b[18] ^ b[19] ^ b[20] ^ b[21] ^ b[22] ^ b[23]) & 0xff) << 8)
+				| ((b[24] ^ b[25] ^ b[26] ^ b[27] ^ b[28] ^ b[29] ^ b[30] ^ b[31]) & 0xff);
+	}
+
+	private static int approxDistanceBytes(byte[] a, byte[] b) {
+		byte[] d = distanceBytes(a, b);
+		int i;
+		for (i = 0; i < Id.BYTES && d[i] == 0; i++);
+		if (i == Id.BYTES)
+			return 0;
+
+		return Id.SIZE - (i << 3) - (Integer.numberOfLeadingZeros(d[i] & 0xff) - 24);
+	}
+
+	private static void measure(String name, int iterations, Operation op) {
+		long sink = 0;
+		for (int i = 0; i < iterations / 10; i++)
+			sink += op.run(i);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			sink += op.run(i);
+		long elapsed = System.nanoTime() - start;
+
+		System.out.format("%-32s %8.2f ns/op (%d)%n", name, (double)elapsed / iterations, sink);
+	}
+
 	@Test
 	public void testOfHex() {
 		String hexWithPrefix = "0x71e1b2ecdf528b623192f899d984c53f2b13508e21ccd53de5d7158672820636";
@@ -229,6 +294,42 @@ public class IdTests {
 		}
 	}
 
+	@Test
+	public void testWords() {
+		for (int i = 0; i < 1000; i++) {
+			Id id1 = Id.random();
+			// share a random number of the leading bytes
+			byte[] bytes = Id.random().getBytes();
+			System.arraycopy(id1.bytes(), 0, bytes, 0, i % Id.BYTES);
+			Id id2 = Id.of(bytes);
+
+			BigInteger bi1 = id1.toInteger();
+			BigInteger bi2 = id2.toInteger();
+
+			assertEquals(Integer.signum(bi1.compareTo(bi2)), Integer.signum(id1.compareTo(id2)));
+			assertEquals(bi1.equals(bi2), id1.equals(id2));
+			assertEquals(bi1.xor(bi2), id1.distance(id2).toInteger());
+			assertEquals(Id.SIZE - bi1.xor(bi2).bitLength(), id1.distance(id2).getLeadingZeros());
+			assertEquals(bi1.xor(bi2).bitLength(), id1.approxDistance(id2));
+			assertEquals(bi1.getLowestSetBit(), id1.getTrailingZeros());
+			assertEquals(bi1, new BigInteger(1, id1.distance(Id.MIN_ID).bytes()));
+
+			byte[] b = id1.bytes();
+			int hash = (((b[0] ^ b[1] ^ b[2] ^ b[3] ^ b[4] ^ b[5] ^ b[6] ^ b[7]) & 0xff) << 24)
+					| (((b[8] ^ b[9] ^ b[10] ^ b[11] ^ b[12] ^ b[13] ^ b[14] ^ b[15]) & 0xff) << 16)
+					| (((b[16] ^ b[17] ^ b[18] ^ b[19] ^ b[20] ^ b[21] ^ b[22] ^ b[23]) & 0xff) << 8)
+					| ((b[24] ^ b[25] ^ b[26] ^ b[27] ^ b[28] ^ b[29] ^ b[30] ^ b[31]) & 0xff);
+			assertEquals(hash, id1.hashCode());
+
+			for (int w = 0; w < 4; w++)
+				assertEquals(bi1.shiftRight(192 - w * 64).longValue(), id1.getWord(w));
+		}
+
+		assertEquals(Id.SIZE, Id.MIN_ID.getLeadingZeros());
+		assertEquals(0, Id.MAX_ID.getLeadingZeros());
+		assertEquals(0, Id.MAX_ID.getTrailingZeros());
+	}
+
 	@Disabled("Performance")
 	@Test
 	public void testToHexPerf() {
@@ -429,4 +530,66 @@ public class IdTests {
 
 	    return sb.toString();
 	}
+
+	/**
+	 * The Id primitives on the words against the same primitives on the bytes,
+	 * the previous representation of the Id, kept here as the baseline. The last
+	 * one is the closest set of a lookup: the candidates sorted by the distance
+	 * to the target in a skip list, as ClosestSet and ClosestCandidates do.
+	 */
+	@Disabled("Performance")
+	@Test
+	public void testPrimitivesPerf() {
+		Id[] ids = new Id[IDS];
+		byte[][] bytes = new byte[IDS][];
+		for (int i = 0; i < IDS; i++) {
+			ids[i] = Id.random();
+			// half of the pairs share the leading bytes, like the close ids
+			if ((i & 1) == 1) {
+				byte[] b = ids[i].getBytes();
+				System.arraycopy(ids[i - 1].bytes(), 0, b, 0, i % Id.BYTES);
+				ids[i] = Id.of(b);
+			}
+			bytes[i] = ids[i].bytes();
+		}
+
+		int mask = IDS - 1;
+
+		measure("compareTo, bytes", ITERATIONS, (i) -> compareBytes(bytes[i & mask], bytes[(i + 1) & mask]));
+		measure("compareTo, words", ITERATIONS, (i) -> ids[i & mask].compareTo(ids[(i + 1) & mask]));
+
+		measure("equals, bytes", ITERATIONS, (i) -> Arrays.equals(bytes[i & mask], bytes[(i + 1) & mask]) ? 1 : 0);
+		measure("equals, words", ITERATIONS, (i) -> ids[i & mask].equals(ids[(i + 1) & mask]) ? 1 : 0);
+
+		measure("hashCode, bytes", ITERATIONS, (i) -> hashCodeBytes(bytes[i & mask]));
+		measure("hashCode, words", ITERATIONS, (i) -> ids[i & mask].hashCode());
+
+		measure("distance, bytes", ITERATIONS, (i) -> distanceBytes(bytes[i & mask], bytes[(i + 1) & mask])[0]);
+		measure("distance, words", ITERATIONS, (i) -> ids[i & mask].distance(ids[(i + 1) & mask]).bytes()[0]);
+
+		measure("approxDistance, bytes", ITERATIONS, (i) -> approxDistanceBytes(bytes[i & mask], bytes[(i + 1) & mask]));
+		measure("approxDistance, words", ITERATIONS, (i) -> ids[i & mask].approxDistance(ids[(i + 1) & mask]));
+
+		measure("threeWayCompare, bytes", ITERATIONS, (i) ->
+			threeWayCompareBytes(bytes[(i + 2) & mask], bytes[i & mask], bytes[(i + 1) & mask]));
+		measure("threeWayCompare, words", ITERATIONS, (i) ->
+			ids[(i + 2) & mask].threeWayCompare(ids[i & mask], ids[(i + 1) & mask]));
+
+		measure("closest set, bytes", LOOKUPS, (i) -> {
+			byte[] target = bytes[i & mask];
+			Comparator<byte[]> cmp = (a, b) -> threeWayCompareBytes(target, a, b);
+			ConcurrentSkipListSet<byte[]> closest = new ConcurrentSkipListSet<>(cmp);
+			for (int j = 1; j <= LOOKUP_CANDIDATES; j++)
+				closest.add(bytes[(i + j) & mask]);
+
+			return closest.first()[0];
+		});
+		measure("closest set, words", LOOKUPS, (i) -> {
+			ConcurrentSkipListSet<Id> closest = new ConcurrentSkipListSet<>(new Id.Comparator(ids[i & mask]));
+			for (int j = 1; j <= LOOKUP_CANDIDATES; j++)
+				closest.add(ids[(i + j) & mask]);
+
+			return closest.first().bytes()[0];
+		});
+	}
 }
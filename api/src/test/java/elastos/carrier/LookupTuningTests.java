@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package elastos.carrier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class LookupTuningTests {
+	@Test
+	public void testPresets() {
+		assertEquals(LookupTuning.of(8, 8, 1), LookupOption.OPTIMISTIC.tuning());
+		assertEquals(LookupTuning.of(4, 8, 3), LookupOption.CONSERVATIVE.tuning());
+		assertEquals(LookupOption.CONSERVATIVE.alpha(), LookupOption.CONSERVATIVE.tuning().alpha());
+	}
+
+	@Test
+	public void testInvalid() {
+		assertThrows(IllegalArgumentException.class, () -> LookupTuning.of(0, 8, 1));
+		assertThrows(IllegalArgumentException.class, () -> LookupTuning.of(8, 0, 1));
+		assertThrows(IllegalArgumentException.class, () -> LookupTuning.of(8, 8, 0));
+	}
+
+	@Test
+	public void testConfiguration() {
+		Configuration config = new DefaultConfiguration.Builder()
+				.setAutoIPAddress(false)
+				.setLookupTuning(LookupOption.CONSERVATIVE, LookupTuning.of(8, 8, 4))
+				.build();
+
+		Map<LookupOption, LookupTuning> tuning = config.lookupTuning();
+		assertEquals(1, tuning.size());
+		assertEquals(LookupTuning.of(8, 8, 4), tuning.get(LookupOption.CONSERVATIVE));
+		assertFalse(tuning.containsKey(LookupOption.OPTIMISTIC));
+
+		config = new DefaultConfiguration.Builder().setAutoIPAddress(false).build();
+		assertTrue(config.lookupTuning().isEmpty());
+	}
+
+	@Test
+	public void testLoad() throws IOException {
+		File file = File.createTempFile("carrier", ".conf");
+		try {
+			Files.write(file.toPath(), ("{\"ipv4\": false, \"lookupTuning\": {" +
+					"\"optimistic\": {\"alpha\": 3, \"beta\": 8, \"paths\": 1}}}").getBytes(StandardCharsets.UTF_8));
+			Configuration config = new DefaultConfiguration.Builder().load(file.getAbsolutePath()).build();
+			assertEquals(LookupTuning.of(3, 8, 1), config.lookupTuning().get(LookupOption.OPTIMISTIC));
+
+			Files.write(file.toPath(), ("{\"ipv4\": false, \"lookupTuning\": {" +
+					"\"optimistic\": {\"alpha\": 0, \"beta\": 8, \"paths\": 1}}}").getBytes(StandardCharsets.UTF_8));
+			assertThrows(IOException.class, () -> new DefaultConfiguration.Builder().load(file.getAbsolutePath()));
+		} finally {
+			file.delete();
+		}
+	}
+}
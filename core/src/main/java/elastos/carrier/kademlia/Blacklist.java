@@ -85,10 +85,12 @@ public class Blacklist {
 
 		observations = CacheBuilder.newBuilder()
 			.expireAfterAccess(observationPeriod, TimeUnit.MINUTES)
+			.ticker(Clock.ticker())
 			.build();
 
 		banned = CacheBuilder.newBuilder()
 			.expireAfterAccess(banDiration, TimeUnit.MINUTES)
+			.ticker(Clock.ticker())
 			.build();
 	}
 
@@ -110,7 +112,7 @@ public class Blacklist {
 			if (o.lastId == null || !o.lastId.equals(id)) {
 				o.lastId = id;
 				o.decay = 0;
-				o.lastHitTime = System.currentTimeMillis();
+				o.lastHitTime = Clock.currentTimeMillis();
 				if (++o.hits > observationHits) {
 					ban(addr);
 					return null;
@@ -118,7 +120,7 @@ public class Blacklist {
 			} else {
 				if (o.hits > 0) {
 					if (++o.decay >= (observationHits >> 1)) {
-						long duration = System.currentTimeMillis() - o.lastHitTime;
+						long duration = Clock.currentTimeMillis() - o.lastHitTime;
 						if (duration >= TimeUnit.MINUTES.toMillis((observationPeriod >> 1))) {
 							--o.hits;
 							o.decay = 0;
@@ -137,7 +139,7 @@ public class Blacklist {
 			if (o.lastAddr == null || !o.lastAddr.equals(addr)) {
 				o.lastAddr = addr;
 				o.decay = 0;
-				o.lastHitTime = System.currentTimeMillis();
+				o.lastHitTime = Clock.currentTimeMillis();
 				if (++o.hits > observationHits) {
 					ban(id);
 					return null;
@@ -145,7 +147,7 @@ public class Blacklist {
 			} else {
 				if (o.hits > 0) {
 					if (++o.decay >= (observationHits >> 1)) {
-						long duration = System.currentTimeMillis() - o.lastHitTime;
+						long duration = Clock.currentTimeMillis() - o.lastHitTime;
 						if (duration >= TimeUnit.MINUTES.toMillis((observationPeriod >> 1))) {
 							--o.hits;
 							o.decay = 0;
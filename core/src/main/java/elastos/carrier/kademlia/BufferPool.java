@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package elastos.carrier.kademlia;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A bounded pool of the fixed size byte arrays. The buffers are acquired on
+ * one thread and released on another, the pool never blocks: a new buffer is
+ * allocated when the pool is empty, and the released buffer is dropped when
+ * the pool is full.
+ */
+class BufferPool {
+	private final int bufferSize;
+	private final ArrayBlockingQueue<byte[]> buffers;
+
+	public BufferPool(int bufferSize, int capacity) {
+		this.bufferSize = bufferSize;
+		this.buffers = new ArrayBlockingQueue<>(capacity);
+	}
+
+	public int bufferSize() {
+		return bufferSize;
+	}
+
+	public byte[] acquire() {
+		byte[] buf = buffers.poll();
+		return buf != null ? buf : new byte[bufferSize];
+	}
+
+	public void release(byte[] buf) {
+		if (buf != null && buf.length == bufferSize)
+			buffers.offer(buf);
+	}
+}
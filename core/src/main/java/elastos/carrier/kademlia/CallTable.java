@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package elastos.carrier.kademlia;
+
+import java.util.function.Consumer;
+
+/**
+ * The pending RPC calls indexed by the transaction id. An open addressing
+ * hash table with the primitive int keys and the linear probing, the removed
+ * entries are back-shifted, no tombstones.
+ *
+ * The table is owned by the DHT event loop: only the owner thread reads and
+ * updates the table, the other threads can only read the size.
+ */
+class CallTable {
+	// the transaction id 0 is invalid, used as the empty slot marker
+	private static final int EMPTY = 0;
+
+	private int[] keys;
+	private RPCCall[] values;
+	private int mask;
+	private volatile int size;
+
+	public CallTable(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(expectedSize, 4) * 2 - 1) << 1;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		values = new RPCCall[capacity];
+		mask = capacity - 1;
+	}
+
+	private static int hash(int txid) {
+		int h = txid * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private int indexOf(int txid) {
+		int i = hash(txid) & mask;
+		while (true) {
+			int key = keys[i];
+			if (key == txid)
+				return i;
+			if (key == EMPTY)
+				return -1;
+
+			i = (i + 1) & mask;
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public RPCCall get(int txid) {
+		if (txid == EMPTY)
+			return null;
+
+		int i = indexOf(txid);
+		return i < 0 ? null : values[i];
+	}
+
+	/**
+	 * @return true if added, false if the txid already in the table.
+	 */
+	public boolean putIfAbsent(int txid, RPCCall call) {
+		if (txid == EMPTY)
+			throw new IllegalArgumentException("Invalid transaction id");
+
+		// keep the load factor below 0.5
+		if ((size + 1) * 2 > keys.length)
+			resize(keys.length * 2);
+
+		int i = hash(txid) & mask;
+		while (keys[i] != EMPTY) {
+			if (keys[i] == txid)
+				return false;
+
+			i = (i + 1) & mask;
+		}
+
+		keys[i] = txid;
+		values[i] = call;
+		size++;
+		return true;
+	}
+
+	public boolean remove(int txid, RPCCall call) {
+		if (txid == EMPTY)
+			return false;
+
+		int i = indexOf(txid);
+		if (i < 0 || values[i] != call)
+			return false;
+
+		// back-shift the following entries of the probe sequence
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (keys[j] == EMPTY)
+				break;
+
+			int k = hash(keys[j]) & mask;
+			// the entry at j stays if its home slot is cyclically in (i, j]
+			boolean stays = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+			if (!stays) {
+				keys[i] = keys[j];
+				values[i] = values[j];
+				i = j;
+			}
+		}
+
+		keys[i] = EMPTY;
+		values[i] = null;
+		size--;
+		return true;
+	}
+
+	public void forEach(Consumer<RPCCall> action) {
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != EMPTY)
+				action.accept(values[i]);
+		}
+	}
+
+	public void clear() {
+		allocate(keys.length);
+		size = 0;
+	}
+
+	private void resize(int capacity) {
+		int[] oldKeys = keys;
+		RPCCall[] oldValues = values;
+
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] == EMPTY)
+				continue;
+
+			int j = hash(oldKeys[i]) & mask;
+			while (keys[j] != EMPTY)
+				j = (j + 1) & mask;
+
+			keys[j] = oldKeys[i];
+			values[j] = oldValues[i];
+		}
+	}
+}
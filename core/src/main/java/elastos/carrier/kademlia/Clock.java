@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package elastos.carrier.kademlia;
+
+import java.util.function.LongSupplier;
+
+import com.google.common.base.Ticker;
+
+/**
+ * The time source of the protocol: the timestamps of the calls, the routing
+ * table entries, the tasks, the timers and the data storage. It's the system
+ * clock, unless a simulation runs the nodes on its virtual clock.
+ */
+public final class Clock {
+	// The wall clock time of the virtual time 0, fixed to keep the simulations repeatable
+	private static final long VIRTUAL_EPOCH = 1672531200000L;
+
+	private static volatile LongSupplier virtualNanos;
+
+	private static final Ticker ticker = new Ticker() {
+		@Override
+		public long read() {
+			return nanoTime();
+		}
+	};
+
+	private Clock() {
+	}
+
+	public static long currentTimeMillis() {
+		LongSupplier virtual = virtualNanos;
+		return virtual == null ? System.currentTimeMillis() : VIRTUAL_EPOCH + virtual.getAsLong() / 1000000;
+	}
+
+	public static long nanoTime() {
+		LongSupplier virtual = virtualNanos;
+		return virtual == null ? System.nanoTime() : virtual.getAsLong();
+	}
+
+	/**
+	 * The ticker for the caches that expire by the protocol time.
+	 */
+	public static Ticker ticker() {
+		return ticker;
+	}
+
+	/**
+	 * Runs the protocol on a virtual clock, the elapsed nanoseconds of the
+	 * simulation. null to go back to the system clock.
+	 */
+	static void useVirtual(LongSupplier nanos) {
+		virtualNanos = nanos;
+	}
+}
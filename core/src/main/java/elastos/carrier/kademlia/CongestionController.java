@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package elastos.carrier.kademlia;
+
+/**
+ * AIMD congestion controller of the RPC server. Sizes the window of the active
+ * RPC calls, and the in-flight requests limit of each task that derived from
+ * the call window.
+ *
+ * - Every response grows the window by 1/window, about one call for each round
+ *   trip, while the loss rate is below the threshold. The window only grows
+ *   while it is nearly full(cwnd validation), an app-limited server that
+ *   doesn't use its window would otherwise grow it without ever probing it,
+ *   then burst far past the probed rate.
+ * - A timeout shrinks the window multiplicatively when the loss rate is above
+ *   the threshold, at most once per stall timeout, so one burst of losses is
+ *   one congestion event.
+ *
+ * The timeouts of the unverified nodes are mostly churn, not congestion, so the
+ * unverified calls have a much higher loss threshold than the calls to the
+ * known reachable nodes.
+ *
+ * Updated by the DHT event loop only, the window can be read from any thread.
+ */
+public class CongestionController {
+	static final double ADDITIVE_INCREASE = 1.0;
+	static final double MULTIPLICATIVE_DECREASE = 0.7;
+	static final double VERIFIED_LOSS_THRESHOLD = 0.1;
+	static final double UNVERIFIED_LOSS_THRESHOLD = 0.5;
+	// the window is validated if at least this part of it was in flight
+	static final double CWND_LIMITED_RATIO = 0.75;
+
+	private double window;
+	private long lastDecrease;
+	private volatile int callWindow;
+	private volatile int taskRequests;
+	private volatile long increases;
+	private volatile long decreases;
+
+	public CongestionController() {
+		reset();
+	}
+
+	public void reset() {
+		window = Constants.INITIAL_ACTIVE_CALLS;
+		lastDecrease = 0;
+		update();
+	}
+
+	/**
+	 * @return the max active RPC calls of the server.
+	 */
+	public int getCallWindow() {
+		return callWindow;
+	}
+
+	/**
+	 * @return the max in-flight requests of each task.
+	 */
+	public int getTaskRequestLimit() {
+		return taskRequests;
+	}
+
+	public long getIncreases() {
+		return increases;
+	}
+
+	public long getDecreases() {
+		return decreases;
+	}
+
+	/**
+	 * @param lossrate the current loss rate of the same kind(verified or not) calls.
+	 * @param inFlight the active calls when the response arrived, including the
+	 *        answered one.
+	 */
+	public void onResponse(boolean verified, double lossrate, int inFlight) {
+		if (lossrate > lossThreshold(verified))
+			return;
+
+		// app-limited, the current window is not probed
+		if (inFlight < window * CWND_LIMITED_RATIO)
+			return;
+
+		window = Math.min(window + ADDITIVE_INCREASE / window, Constants.MAX_ACTIVE_CALLS);
+		increases++;
+		update();
+	}
+
+	/**
+	 * @param lossrate the current loss rate of the same kind(verified or not) calls.
+	 * @param now the current time in milliseconds.
+	 * @param stallTimeout the current stall timeout, the minimal interval between
+	 *        two decreases.
+	 */
+	public void onTimeout(boolean verified, double lossrate, long now, long stallTimeout) {
+		if (lossrate <= lossThreshold(verified))
+			return;
+
+		if (now - lastDecrease < stallTimeout)
+			return;
+
+		window = Math.max(window * MULTIPLICATIVE_DECREASE, Constants.MIN_ACTIVE_CALLS);
+		lastDecrease = now;
+		decreases++;
+		update();
+	}
+
+	private static double lossThreshold(boolean verified) {
+		return verified ? VERIFIED_LOSS_THRESHOLD : UNVERIFIED_LOSS_THRESHOLD;
+	}
+
+	private void update() {
+		callWindow = (int)window;
+
+		// scales with the call window, the initial window gets the default limit
+		int limit = (int)Math.round(window * Constants.INITIAL_CONCURRENT_TASK_REQUESTS / Constants.INITIAL_ACTIVE_CALLS);
+		taskRequests = Math.max(Constants.MIN_CONCURRENT_TASK_REQUESTS,
+				Math.min(limit, Constants.MAX_CONCURRENT_TASK_REQUESTS));
+	}
+
+	@Override
+	public String toString() {
+		return String.format("window: %d, task requests: %d, increases: %d, decreases: %d",
+				callWindow, taskRequests, increases, decreases);
+	}
+}
@@ -37,16 +37,38 @@ public final class Constants {
 	///////////////////////////////////////////////////////////////////////////
 	// enter survival mode if we don't see new packets after this time
 	public static final int		RPC_SERVER_REACHABILITY_TIMEOUT			= 60 * 1000;
-	public static final int		MAX_ACTIVE_CALLS						= 256;
+	// the active calls window is sized by the congestion controller
+	public static final int		MIN_ACTIVE_CALLS						= 32;
+	public static final int		INITIAL_ACTIVE_CALLS					= 256;
+	public static final int		MAX_ACTIVE_CALLS						= 4096;
 	public static final int		RPC_CALL_TIMEOUT_MAX					= 10 * 1000;
 	public static final int		RPC_CALL_TIMEOUT_BASELINE_MIN			= 100; // ms
+	// the timer wheel for the RPC call deadlines: 10ms ticks, 512 buckets(~5s per revolution)
+	public static final int		RPC_TIMER_TICK							= 10; // ms
+	public static final int		RPC_TIMER_WHEEL_SIZE					= 512;
 	public static final int		RECEIVE_BUFFER_SIZE						= 5 * 1024;
+	public static final int		RECEIVE_BUFFER_POOL_SIZE				= 512;
+	// max cached crypto contexts, the hot peers are kept by the admission policy
+	public static final int		CRYPTO_CONTEXT_CACHE_SIZE				= 2048;
+	// max packets drained from the socket for each select event
+	public static final int		RPC_RECEIVE_BATCH_SIZE					= 256;
+	// max received packets handed off to the workers in one task
+	public static final int		RPC_DISPATCH_BATCH_SIZE					= 16;
+	// max messages written to the socket before yielding the writer
+	public static final int		RPC_SEND_BATCH_SIZE						= 256;
 
 	///////////////////////////////////////////////////////////////////////////
 	// Task & Lookup constants
 	///////////////////////////////////////////////////////////////////////////
-	public static final int 	MAX_CONCURRENT_TASK_REQUESTS			= 10;
+	// the in-flight requests of each task, scales with the active calls window
+	public static final int 	MIN_CONCURRENT_TASK_REQUESTS			= 3;
+	public static final int 	INITIAL_CONCURRENT_TASK_REQUESTS		= 10;
+	public static final int 	MAX_CONCURRENT_TASK_REQUESTS			= 32;
 	public static final int 	MAX_ACTIVE_TASKS						= 16;
+	// the batch lookups and announces of the node running at once
+	public static final int 	MAX_BATCH_OPERATIONS					= 64;
+	// the entries of each kind kept in the lookup result cache
+	public static final int		LOOKUP_CACHE_SIZE						= 4096;
 
 	///////////////////////////////////////////////////////////////////////////
 	// DHT maintenance constants
@@ -78,10 +100,33 @@ public final class Constants {
 	// Tokens and data storage constants
 	///////////////////////////////////////////////////////////////////////////
 	public static final int		STORAGE_EXPIRE_INTERVAL					= 5 * 60 * 1000;
+	// the expire sweep deletes at most the batch per chunk, and pauses between the chunks
+	public static final int		STORAGE_EXPIRE_BATCH_SIZE				= 1024;
+	public static final int		STORAGE_EXPIRE_PAUSE					= 50; // ms
+	// SQLite connections shared by the storage calls, and the max wait for one
+	public static final int		STORAGE_CONNECTION_POOL_SIZE			= 8;
+	public static final int		STORAGE_CONNECTION_TIMEOUT				= 5 * 1000;
+	public static final long	STORAGE_MMAP_SIZE						= 256L * 1024 * 1024;
+	// the queued writes are committed in one transaction after the delay or the batch is full
+	public static final int		STORAGE_WRITE_DELAY						= 5; // ms
+	public static final int		STORAGE_WRITE_BATCH_SIZE				= 256;
+	// max cached hot values and peer ids
+	public static final int		STORAGE_CACHE_SIZE						= 4096;
+	// the mapped storage engine: segment size, compacts if less than half of the log is live
+	public static final int		STORAGE_SEGMENT_SIZE					= 16 * 1024 * 1024;
+	// the compaction copies in passes without the lock until the records left for the
+	// lock are few, or the passes run out
+	public static final int		STORAGE_COMPACT_PASSES					= 8;
+	public static final int		STORAGE_COMPACT_LOCKED_BYTES			= 1024 * 1024;
 	public static final int		TOKEN_TIMEOUT							= 5 * 60 * 1000;
 	public static final int		MAX_PEER_AGE							= 120 * 60 * 1000;
 	public static final int		MAX_VALUE_AGE							= 120 * 60 * 1000;
 	public static final int		RE_ANNOUNCE_INTERVAL					= 5 * 60 * 1000;
+	// the persistent items re-announced at once, and read from the storage at once
+	public static final int		RE_ANNOUNCE_MAX_IN_FLIGHT				= 32;
+	public static final int		RE_ANNOUNCE_PAGE_SIZE					= 256;
+	// platform threads for the blocking storage calls if no virtual threads
+	public static final int		BLOCKING_POOL_SIZE						= 32;
 
 
 	///////////////////////////////////////////////////////////////////////////
@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package elastos.carrier.kademlia;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import elastos.carrier.Id;
+import elastos.carrier.kademlia.exceptions.CryptoError;
+
+/**
+ * The size bounded cache of the crypto contexts, with the W-TinyLFU style
+ * admission. The new contexts enter a small LRU window, the window victim
+ * is only admitted to the main LRU space if it is used more frequently than
+ * the main space victim, so a scan of the one-off nodes(random lookups)
+ * can't evict the hot peers, e.g. the routing table entries.
+ *
+ * The cache is striped into the independently locked segments, every segment
+ * has its own frequency sketch. The shared key of the context is precomputed
+ * when the context is created(CryptoBox.fromKeys), the load counters measure
+ * the precompute cost.
+ *
+ * The cache holds one reference of every cached context, and get() returns
+ * the context with one more reference that the caller closes after use. The
+ * evicted contexts may still be used by the other threads, the last holder
+ * closes them.
+ */
+public class CryptoCache {
+	private static final int SEGMENTS = 16;
+	// 1% of the capacity for the admission window, at least 1 for each segment
+	private static final int WINDOW_PERCENT = 1;
+
+	private final Loader loader;
+	private final Segment[] segments;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder rejections = new LongAdder();
+	private final LongAdder loadTime = new LongAdder();
+
+	@FunctionalInterface
+	public interface Loader {
+		CryptoContext load(Id id) throws CryptoError;
+	}
+
+	private static final class Segment {
+		final int windowCapacity;
+		final int mainCapacity;
+		final LinkedHashMap<Id, CryptoContext> window = new LinkedHashMap<>(16, 0.75f, true);
+		final LinkedHashMap<Id, CryptoContext> main = new LinkedHashMap<>(16, 0.75f, true);
+		final FrequencySketch sketch;
+
+		Segment(int capacity) {
+			windowCapacity = Math.max(capacity * WINDOW_PERCENT / 100, 1);
+			mainCapacity = Math.max(capacity - windowCapacity, 1);
+			sketch = new FrequencySketch(capacity);
+		}
+
+		CryptoContext get(Id id) {
+			CryptoContext ctx = window.get(id);
+			return ctx != null ? ctx : main.get(id);
+		}
+
+		int size() {
+			return window.size() + main.size();
+		}
+	}
+
+	/**
+	 * A count-min sketch of the access frequencies with the 4 bits saturating
+	 * counters, halved periodically to age out the history.
+	 */
+	static final class FrequencySketch {
+		private static final int DEPTH = 4;
+		private static final int MAX_COUNT = 15;
+		private static final int[] SEEDS = { 0x97cb3127, 0xb32a8f0b, 0x1ec3e3c5, 0x6a09e667 };
+
+		private final byte[] table;
+		private final int mask;
+		private final int sampleSize;
+		private int additions;
+
+		FrequencySketch(int capacity) {
+			// wide enough to keep the collisions of the one-off ids low
+			int width = Integer.highestOneBit(Math.max(capacity, 8) * 2 - 1) << 3;
+			table = new byte[width * DEPTH];
+			mask = width - 1;
+			sampleSize = Math.max(capacity, 8) * 10;
+		}
+
+		private int indexOf(int hash, int row) {
+			int h = (hash ^ SEEDS[row]) * 0x9E3779B9;
+			h ^= h >>> 16;
+			return row * (mask + 1) + (h & mask);
+		}
+
+		void increment(Id id) {
+			int hash = id.hashCode();
+			for (int i = 0; i < DEPTH; i++) {
+				int index = indexOf(hash, i);
+				if (table[index] < MAX_COUNT)
+					table[index]++;
+			}
+
+			if (++additions >= sampleSize)
+				reset();
+		}
+
+		int frequency(Id id) {
+			int hash = id.hashCode();
+			int frequency = MAX_COUNT;
+			for (int i = 0; i < DEPTH; i++)
+				frequency = Math.min(frequency, table[indexOf(hash, i)]);
+
+			return frequency;
+		}
+
+		private void reset() {
+			for (int i = 0; i < table.length; i++)
+				table[i] >>>= 1;
+
+			additions >>>= 1;
+		}
+	}
+
+	public CryptoCache(int maximumSize, Loader loader) {
+		this.loader = loader;
+		this.segments = new Segment[SEGMENTS];
+		int segmentCapacity = Math.max((maximumSize + SEGMENTS - 1) / SEGMENTS, 2);
+		for (int i = 0; i < SEGMENTS; i++)
+			segments[i] = new Segment(segmentCapacity);
+	}
+
+	private Segment segmentOf(Id id) {
+		int h = id.hashCode() * 0x9E3779B9;
+		return segments[(h >>> 28) & (SEGMENTS - 1)];
+	}
+
+	/**
+	 * Gets the crypto context for the id, creates it if not cached.
+	 *
+	 * @return the context with a reference held for the caller, the caller
+	 *         should close it after use.
+	 */
+	public CryptoContext get(Id id) throws CryptoError {
+		Segment segment = segmentOf(id);
+
+		CryptoContext ctx;
+		synchronized (segment) {
+			segment.sketch.increment(id);
+			ctx = segment.get(id);
+			// the cached context can't be closed while the cache holds it
+			if (ctx != null)
+				ctx.retain();
+		}
+
+		if (ctx != null) {
+			hits.increment();
+			return ctx;
+		}
+
+		misses.increment();
+
+		// precompute out of the lock, the concurrent loads for the same id are rare
+		long start = System.nanoTime();
+		CryptoContext loaded = loader.load(id);
+		loadTime.add(System.nanoTime() - start);
+
+		synchronized (segment) {
+			ctx = segment.get(id);
+			if (ctx == null) {
+				// the reference of the creator goes to the cache
+				loaded.retain();
+				segment.window.put(id, loaded);
+				if (segment.window.size() > segment.windowCapacity)
+					admit(segment);
+
+				return loaded;
+			}
+
+			ctx.retain();
+		}
+
+		// lost the race, nobody else saw this one
+		loaded.close();
+		return ctx;
+	}
+
+	private static <K, V> Map.Entry<K, V> eldest(LinkedHashMap<K, V> map) {
+		Iterator<Map.Entry<K, V>> it = map.entrySet().iterator();
+		return it.hasNext() ? it.next() : null;
+	}
+
+	// Owner: the segment lock
+	private void admit(Segment segment) {
+		Map.Entry<Id, CryptoContext> candidate = eldest(segment.window);
+		segment.window.remove(candidate.getKey());
+
+		if (segment.main.size() < segment.mainCapacity) {
+			segment.main.put(candidate.getKey(), candidate.getValue());
+			return;
+		}
+
+		Map.Entry<Id, CryptoContext> victim = eldest(segment.main);
+		if (segment.sketch.frequency(candidate.getKey()) > segment.sketch.frequency(victim.getKey())) {
+			segment.main.remove(victim.getKey());
+			segment.main.put(candidate.getKey(), candidate.getValue());
+			retire(victim.getValue());
+		} else {
+			rejections.increment();
+			retire(candidate.getValue());
+		}
+	}
+
+	// release the reference of the cache, the context is closed once the
+	// current users closed it
+	private void retire(CryptoContext ctx) {
+		evictions.increment();
+		ctx.close();
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+
+		return size;
+	}
+
+	public void clear() {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.window.values().forEach(this::retire);
+				segment.main.values().forEach(this::retire);
+				segment.window.clear();
+				segment.main.clear();
+			}
+		}
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	/**
+	 * @return the number of the new contexts that rejected by the admission.
+	 */
+	public long getRejections() {
+		return rejections.sum();
+	}
+
+	/**
+	 * @return the total time in nanoseconds spent on creating the contexts.
+	 */
+	public long getLoadTime() {
+		return loadTime.sum();
+	}
+
+	@Override
+	public String toString() {
+		long misses = getMisses();
+		long requests = getHits() + misses;
+		return String.format("size: %d, hits: %d, misses: %d, hit rate: %.2f%%, evictions: %d, rejections: %d, avg precompute: %dus",
+				size(), getHits(), misses, requests == 0 ? 0.0 : getHits() * 100.0 / requests,
+				getEvictions(), getRejections(), misses == 0 ? 0 : getLoadTime() / misses / 1000);
+	}
+}
@@ -22,7 +22,9 @@
 
 package elastos.carrier.kademlia;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import elastos.carrier.Id;
 import elastos.carrier.crypto.CryptoBox;
@@ -31,9 +33,16 @@ import elastos.carrier.crypto.CryptoBox.PublicKey;
 import elastos.carrier.crypto.CryptoException;
 import elastos.carrier.kademlia.exceptions.CryptoError;
 
+/**
+ * The crypto context is reference counted, the creator holds the first
+ * reference. The native state of the box is released when the last holder
+ * closes the context, so a context evicted from the cache stays valid for
+ * the threads that are still using it.
+ */
 public class CryptoContext implements AutoCloseable {
 	private CryptoBox box;
 	private CryptoBox.Nonce nonce;
+	private final AtomicInteger references = new AtomicInteger(1);
 
 	public CryptoContext(Id id, KeyPair keyPair) throws CryptoError {
 		try {
@@ -59,6 +68,14 @@ public class CryptoContext implements AutoCloseable {
 		}
 	}
 
+	public void encrypt(ByteBuffer plain, ByteBuffer cipher) throws CryptoError {
+		try {
+			box.encrypt(plain, cipher, nonce);
+		} catch (CryptoException e) {
+			throw new CryptoError(e.getMessage(), e);
+		}
+	}
+
 	public byte[] decrypt(byte[] cipher) throws CryptoError {
 		try {
 			return box.decrypt(cipher, nonce);
@@ -67,8 +84,41 @@ public class CryptoContext implements AutoCloseable {
 		}
 	}
 
+	public int decrypt(byte[] buf, int offset, int length) throws CryptoError {
+		try {
+			return box.decrypt(buf, offset, length, nonce);
+		} catch (CryptoException e) {
+			throw new CryptoError(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Acquires one more reference of the context, the caller should close
+	 * the context when done with it.
+	 *
+	 * @return false if the context is already closed.
+	 */
+	boolean retain() {
+		for (;;) {
+			int n = references.get();
+			if (n == 0)
+				return false;
+
+			if (references.compareAndSet(n, n + 1))
+				return true;
+		}
+	}
+
+	boolean isClosed() {
+		return references.get() == 0;
+	}
+
+	/**
+	 * Releases one reference of the context, the last one closes it.
+	 */
 	@Override
 	public void close() {
-		box.close();
+		if (references.decrementAndGet() == 0)
+			box.close();
 	}
 }
@@ -40,7 +40,11 @@ import java.util.Set;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
@@ -107,6 +111,8 @@ public class DHT {
 	private volatile Cache<InetSocketAddress, Id> knownNodes;
 
 	private TaskManager taskMan;
+	private ExecutorService eventLoop;
+	private volatile Thread eventLoopThread;
 
 	private static final Logger log = LoggerFactory.getLogger(DHT.class);
 
@@ -174,10 +180,71 @@ public class DHT {
 		this.knownNodes = CacheBuilder.newBuilder()
 				.initialCapacity(256)
 				.expireAfterAccess(Constants.KBUCKET_OLD_AND_STALE_TIME, TimeUnit.MILLISECONDS)
+				.ticker(Clock.ticker())
 				.concurrencyLevel(4)
 				.build();
 
 		this.taskMan = new TaskManager(this);
+		this.eventLoop = node.getEventLoop() != null ? node.getEventLoop() : createEventLoop();
+	}
+
+	// Single thread executor that owns the protocol state of this DHT: message
+	// handling, RPC call state changes, tasks and routing table maintenance.
+	private ExecutorService createEventLoop() {
+		ThreadPoolExecutor loop = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(), (r) -> {
+			Thread thread = new Thread(r, "KadDHT-" + type + "-loop");
+			eventLoopThread = thread;
+			thread.setUncaughtExceptionHandler((t, e) -> {
+				log.error("Event loop thread " + t.getName() + " encounter an uncaught exception.", e);
+			});
+			thread.setDaemon(true);
+			return thread;
+		}, (r, e) -> {
+			// the DHT is stopped, nothing to do
+			log.debug("DHT/{} event loop is stopped, dropped the job", type);
+		});
+
+		return loop;
+	}
+
+	public ExecutorService getEventLoop() {
+		return eventLoop;
+	}
+
+	// The request handlers that query the data storage run on the blocking executor,
+	// a slow query can't stall the event loop. They only read the routing table
+	// snapshots and queue the responses, no protocol state is touched there.
+	private void executeBlocking(Runnable handler) {
+		ExecutorService executor = getNode().getBlockingExecutor();
+		try {
+			executor.execute(() -> {
+				try {
+					handler.run();
+				} catch (Exception e) {
+					log.error("DHT/" + type + " blocking request handler failed", e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			log.debug("DHT/{} blocking executor is stopped, dropped the request", type);
+		}
+	}
+
+	public boolean inEventLoop() {
+		return Thread.currentThread() == eventLoopThread;
+	}
+
+	/**
+	 * Runs the job on the event loop of this DHT.
+	 */
+	public void execute(Runnable job) {
+		eventLoop.execute(() -> {
+			try {
+				job.run();
+			} catch (Exception e) {
+				log.error("DHT/" + type + " event loop job failed", e);
+			}
+		});
 	}
 
 	public Type getType() {
@@ -221,7 +288,7 @@ public class DHT {
 	}
 
 	public void bootstrap() {
-		if (!isRunning() || bootstrapNodes.isEmpty() || System.currentTimeMillis() - lastBootstrap < Constants.BOOTSTRAP_MIN_INTERVAL)
+		if (!isRunning() || bootstrapNodes.isEmpty() || Clock.currentTimeMillis() - lastBootstrap < Constants.BOOTSTRAP_MIN_INTERVAL)
 			return;
 
 		if (!bootstrapping.compareAndSet(false, true))
@@ -268,7 +335,7 @@ public class DHT {
 				return l;
 			}).flatMap(l -> l.stream()).collect(Collectors.toSet());
 
-			lastBootstrap = System.currentTimeMillis();
+			lastBootstrap = Clock.currentTimeMillis();
 			fillHomeBucket(nodes);
 		});
 	}
@@ -316,7 +383,7 @@ public class DHT {
 
 		// log.trace("DHT {} regularly update...", type);
 
-		long now = System.currentTimeMillis();
+		long now = Clock.currentTimeMillis();
 
 		server.checkReachability(now);
 		routingTable.maintenance();
@@ -360,7 +427,7 @@ public class DHT {
 
 		scheduledActions.add(getNode().getScheduler().scheduleWithFixedDelay(() -> {
 			// tasks maintenance that should run all the time, before the first queries
-			taskMan.dequeue();
+			execute(taskMan::dequeue);
 		}, 5000, Constants.DHT_UPDATE_INTERVAL, TimeUnit.MILLISECONDS));
 
 		// Ping check if the routing table loaded from cache
@@ -376,19 +443,21 @@ public class DHT {
 		bootstrap();
 
 		// fix the first time to persist the routing table: 2 min
-		lastSave = System.currentTimeMillis() - Constants.ROUTING_TABLE_PERSIST_INTERVAL + (120 * 1000);
+		lastSave = Clock.currentTimeMillis() - Constants.ROUTING_TABLE_PERSIST_INTERVAL + (120 * 1000);
 
 		// Regularly DHT update
 		scheduledActions.add(getNode().getScheduler().scheduleWithFixedDelay(() -> {
-			try {
-				update();
-			} catch (Exception e) {
-				log.error("Regularly DHT update failed", e);
-			}
+			execute(() -> {
+				try {
+					update();
+				} catch (Exception e) {
+					log.error("Regularly DHT update failed", e);
+				}
+			});
 		}, 5000, Constants.DHT_UPDATE_INTERVAL, TimeUnit.MILLISECONDS));
 
 		// send a ping request to a random node to check socket liveness
-		scheduledActions.add(getNode().getScheduler().scheduleWithFixedDelay(() -> {
+		scheduledActions.add(getNode().getScheduler().scheduleWithFixedDelay(() -> execute(() -> {
 			if (server.getNumberOfActiveRPCCalls() > 0)
 				return;
 
@@ -399,14 +468,14 @@ public class DHT {
 			PingRequest q = new PingRequest();
 			RPCCall c = new RPCCall(entry, q);
 			server.sendCall(c);
-		}, Constants.RANDOM_PING_INTERVAL, Constants.RANDOM_PING_INTERVAL, TimeUnit.MILLISECONDS));
+		}), Constants.RANDOM_PING_INTERVAL, Constants.RANDOM_PING_INTERVAL, TimeUnit.MILLISECONDS));
 
 		// deep lookup to make ourselves known to random parts of the keyspace
-		scheduledActions.add(getNode().getScheduler().scheduleWithFixedDelay(() -> {
+		scheduledActions.add(getNode().getScheduler().scheduleWithFixedDelay(() -> execute(() -> {
 			NodeLookup task = new NodeLookup(this, Id.random());
 			task.setName(type + ":Random Refresh Lookup");
 			taskMan.add(task);
-		}, Constants.RANDOM_LOOKUP_INTERVAL, Constants.RANDOM_LOOKUP_INTERVAL, TimeUnit.MILLISECONDS));
+		}), Constants.RANDOM_LOOKUP_INTERVAL, Constants.RANDOM_LOOKUP_INTERVAL, TimeUnit.MILLISECONDS));
 	}
 
 	public void stop() {
@@ -450,6 +519,9 @@ public class DHT {
 		}
 
 		taskMan.cancleAll();
+		// the shared event loop belongs to the node
+		if (eventLoop != node.getEventLoop())
+			eventLoop.shutdown();
 	}
 
 	public boolean isRunning() {
@@ -492,19 +564,19 @@ public class DHT {
 			break;
 
 		case FIND_VALUE:
-			onFindValue((FindValueRequest) msg);
+			executeBlocking(() -> onFindValue((FindValueRequest) msg));
 			break;
 
 		case STORE_VALUE:
-			onStoreValue((StoreValueRequest) msg);
+			executeBlocking(() -> onStoreValue((StoreValueRequest) msg));
 			break;
 
 		case FIND_PEER:
-			onFindPeers((FindPeerRequest) msg);
+			executeBlocking(() -> onFindPeers((FindPeerRequest) msg));
 			break;
 
 		case ANNOUNCE_PEER:
-			onAnnouncePeer((AnnouncePeerRequest) msg);
+			executeBlocking(() -> onAnnouncePeer((AnnouncePeerRequest) msg));
 			break;
 
 		case UNKNOWN:
@@ -759,7 +831,7 @@ public class DHT {
 			PingRequest q = new PingRequest();
 			RPCCall c = new RPCCall(newEntry, q);
 			// Maybe we are in the RPCSever's callback
-			getNode().getScheduler().execute(() -> server.sendCall(c));
+			execute(() -> server.sendCall(c));
 		}
 
 		routingTable.put(newEntry);
@@ -786,7 +858,12 @@ public class DHT {
 	}
 
 	public Task findNode(Id id, Consumer<NodeInfo> completeHandler) {
+		return findNode(id, LookupOption.OPTIMISTIC, completeHandler);
+	}
+
+	public Task findNode(Id id, LookupOption option, Consumer<NodeInfo> completeHandler) {
 		NodeLookup task = new NodeLookup(this, id);
+		task.setLookupOption(option);
 		task.addListener(t -> {
 			NodeInfo ni = routingTable.getEntry(id, true);
 			completeHandler.accept(ni);
@@ -797,8 +874,18 @@ public class DHT {
 	}
 
 	public Task findValue(Id id, LookupOption option, Consumer<Value> completeHandler) {
+		return findValue(id, option, null, completeHandler);
+	}
+
+	/**
+	 * @param routingSnapshot the routing table snapshot to start the lookup from,
+	 *        shared by the lookups of a batch. null for the current one.
+	 */
+	public Task findValue(Id id, LookupOption option, RoutingTable.Snapshot routingSnapshot, Consumer<Value> completeHandler) {
 		AtomicReference<Value> valueRef = new AtomicReference<>(null);
 		ValueLookup task = new ValueLookup(this, id);
+		task.setLookupOption(option);
+		task.setRoutingSnapshot(routingSnapshot);
 		task.setResultHandler((v) -> {
 			if (valueRef.get() == null)
 				valueRef.set(v);
@@ -823,8 +910,22 @@ public class DHT {
 	}
 
 	public Task storeValue(Value value, Consumer<List<NodeInfo>> completeHandler) {
+		return storeValue(value, null, null, completeHandler);
+	}
+
+	/**
+	 * @param seeds the known close nodes of the value id, e.g. the closest nodes
+	 *        of a nearby target, injected into the node lookup. null if none.
+	 * @param routingSnapshot the routing table snapshot to start the lookup from,
+	 *        shared by the lookups of a batch. null for the current one.
+	 */
+	public Task storeValue(Value value, Collection<NodeInfo> seeds, RoutingTable.Snapshot routingSnapshot,
+			Consumer<List<NodeInfo>> completeHandler) {
 		NodeLookup lookup = new NodeLookup(this, value.getId());
 		lookup.setWantToken(true);
+		lookup.setRoutingSnapshot(routingSnapshot);
+		if (seeds != null)
+			lookup.injectCandidates(seeds);
 		lookup.addListener(l -> {
 			if (lookup.getState() != Task.State.FINISHED)
 				return;
@@ -851,6 +952,15 @@ public class DHT {
 	}
 
 	public Task findPeer(Id id, int expected, LookupOption option, Consumer<Collection<PeerInfo>> completeHandler) {
+		return findPeer(id, expected, option, null, completeHandler);
+	}
+
+	/**
+	 * @param routingSnapshot the routing table snapshot to start the lookup from,
+	 *        shared by the lookups of a batch. null for the current one.
+	 */
+	public Task findPeer(Id id, int expected, LookupOption option, RoutingTable.Snapshot routingSnapshot,
+			Consumer<Collection<PeerInfo>> completeHandler) {
 		// NOTICE: Concurrent threads adding to ArrayList
 		//
 		// There is no guaranteed behavior for what happens when add is
@@ -860,6 +970,8 @@ public class DHT {
 		// deal with iteration while adding/removing.
 		List<PeerInfo> peers = new ArrayList<>();
 		PeerLookup task = new PeerLookup(this, id);
+		task.setLookupOption(option);
+		task.setRoutingSnapshot(routingSnapshot);
 		task.setReultHandler((ps) -> {
 			peers.addAll(ps);
 
@@ -878,8 +990,22 @@ public class DHT {
 	}
 
 	public Task announcePeer(PeerInfo peer, Consumer<List<NodeInfo>> completeHandler) {
+		return announcePeer(peer, null, null, completeHandler);
+	}
+
+	/**
+	 * @param seeds the known close nodes of the peer id, e.g. the closest nodes
+	 *        of a nearby target, injected into the node lookup. null if none.
+	 * @param routingSnapshot the routing table snapshot to start the lookup from,
+	 *        shared by the lookups of a batch. null for the current one.
+	 */
+	public Task announcePeer(PeerInfo peer, Collection<NodeInfo> seeds, RoutingTable.Snapshot routingSnapshot,
+			Consumer<List<NodeInfo>> completeHandler) {
 		NodeLookup lookup = new NodeLookup(this, peer.getId());
 		lookup.setWantToken(true);
+		lookup.setRoutingSnapshot(routingSnapshot);
+		if (seeds != null)
+			lookup.injectCandidates(seeds);
 		lookup.addListener(l -> {
 			if (lookup.getState() != Task.State.FINISHED)
 				return;
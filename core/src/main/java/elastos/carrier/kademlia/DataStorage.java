@@ -56,6 +56,10 @@ public interface DataStorage extends Closeable {
 
 	public Stream<Value> getPersistentValues(long lastAnnounceBefore) throws KadException;
 
+	// A page of the persistent values in the id order, starts after the given
+	// id, from the first one if null
+	public List<Value> getPersistentValues(long lastAnnounceBefore, Id after, int limit) throws KadException;
+
 	public Stream<Id> getAllValues() throws KadException;
 
 	public List<PeerInfo> getPeer(Id peerId, int maxPeers) throws KadException;
@@ -80,5 +84,10 @@ public interface DataStorage extends Closeable {
 
 	public Stream<PeerInfo> getPersistentPeers(long lastAnnounceBefore) throws KadException;
 
+	// A page of the persistent peers in the id and node id order, starts after
+	// the given peer, from the first one if null
+	public List<PeerInfo> getPersistentPeers(long lastAnnounceBefore, Id after, Id afterNodeId, int limit)
+			throws KadException;
+
 	public Stream<Id> getAllPeers() throws KadException;
 }
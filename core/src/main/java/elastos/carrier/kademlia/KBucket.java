@@ -233,14 +233,14 @@ public class KBucket implements Comparable<KBucket> {
 	 * @return true if it needs to be refreshed
 	 */
 	public boolean needsToBeRefreshed() {
-		long now = System.currentTimeMillis();
+		long now = Clock.currentTimeMillis();
 		// TODO: timer may be somewhat redundant with needsPing logic
 		return now - lastRefresh > Constants.BUCKET_REFRESH_INTERVAL
 				&& anyMatch(KBucketEntry::needsPing);
 	}
 
 	boolean needsCachePing() {
-		long now = System.currentTimeMillis();
+		long now = Clock.currentTimeMillis();
 
 		return now - lastRefresh > Constants.BUCKET_CACHE_PING_MIN_INTERVAL
 				&& (anyMatch(KBucketEntry::needsReplacement) || getEntries().size() < Constants.MAX_ENTRIES_PER_BUCKET)
@@ -255,7 +255,7 @@ public class KBucket implements Comparable<KBucket> {
 	 * Resets the last modified for this Bucket
 	 */
 	public void updateRefreshTimer() {
-		lastRefresh = System.currentTimeMillis();
+		lastRefresh = Clock.currentTimeMillis();
 	}
 
 	/**
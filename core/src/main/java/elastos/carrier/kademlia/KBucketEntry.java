@@ -93,7 +93,7 @@ public class KBucketEntry extends NodeInfo {
 	 */
 	public KBucketEntry(Id id, InetSocketAddress addr) {
 		super(id, addr);
-		created = System.currentTimeMillis();
+		created = Clock.currentTimeMillis();
 		lastSeen = created;
 		failedRequests = 0;
 	}
@@ -160,11 +160,11 @@ public class KBucketEntry extends NodeInfo {
 	}
 
 	public boolean withinBackoffWindow() {
-		return withinBackoffWindow(System.currentTimeMillis());
+		return withinBackoffWindow(Clock.currentTimeMillis());
 	}
 
 	public boolean needsPing() {
-		long now = System.currentTimeMillis();
+		long now = Clock.currentTimeMillis();
 
 		// don't ping if recently seen to allow NAT entries to time out
 		// see https://arxiv.org/pdf/1605.05606v1.pdf for numbers
@@ -178,7 +178,7 @@ public class KBucketEntry extends NodeInfo {
 	// old entries, e.g. from routing table reload
 	public boolean oldAndStale() {
 		return failedRequests > Constants.KBUCKET_OLD_AND_STALE_TIMEOUTS &&
-				System.currentTimeMillis() - lastSeen > Constants.KBUCKET_OLD_AND_STALE_TIME;
+				Clock.currentTimeMillis() - lastSeen > Constants.KBUCKET_OLD_AND_STALE_TIME;
 	}
 
 	public boolean removableWithoutReplacement() {
@@ -221,7 +221,7 @@ public class KBucketEntry extends NodeInfo {
 	 * @param rtt > 0 in ms. -1 if unknown
 	 */
 	public void signalResponse(long rtt) {
-		lastSeen = System.currentTimeMillis();
+		lastSeen = Clock.currentTimeMillis();
 		failedRequests = 0;
 		reachable = true;
 		if (rtt > 0)
@@ -233,7 +233,7 @@ public class KBucketEntry extends NodeInfo {
 	}
 
 	public void signalRequest() {
-		lastSend = System.currentTimeMillis();
+		lastSend = Clock.currentTimeMillis();
 	}
 
 	/**
@@ -318,7 +318,7 @@ public class KBucketEntry extends NodeInfo {
 
 	@Override
 	public String toString() {
-		long now = System.currentTimeMillis();
+		long now = Clock.currentTimeMillis();
 		StringBuilder repr = new StringBuilder(80);
 		repr.append(getId()).append('@').append(AddressUtils.toString(getAddress()));
 		repr.append(";seen:").append(Duration.ofMillis(now - lastSeen));
@@ -24,10 +24,11 @@ package elastos.carrier.kademlia;
 
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 import elastos.carrier.Id;
 import elastos.carrier.NodeInfo;
@@ -35,11 +36,131 @@ import elastos.carrier.NodeInfo;
 public class KClosestNodes {
 	private DHT dht;
 	private Id target;
+	private long[] targetWords;
 	private List<KBucketEntry> entries;
 	private int maxEntries;
-	private Comparator<KBucketEntry> cmp;
 	private Predicate<KBucketEntry> filter;
 
+	private static final int WORDS = Id.BYTES / Long.BYTES;
+
+	private static final ThreadLocal<Selection> localSelection = ThreadLocal.withInitial(Selection::new);
+
+	/**
+	 * The bounded max-heap of the candidates by the XOR distance to the target,
+	 * the farthest one on the top. The distances are kept as the unsigned words
+	 * in a flat array, the slot after the heap holds the incoming candidate.
+	 * The arrays are reused by the thread, fill() is not reentrant.
+	 */
+	private static final class Selection {
+		private KBucketEntry[] nodes = new KBucketEntry[0];
+		private long[] distances = new long[0];
+		private int capacity;
+		private int size;
+
+		void reset(int capacity) {
+			if (nodes.length < capacity + 1) {
+				nodes = new KBucketEntry[capacity + 1];
+				distances = new long[(capacity + 1) * WORDS];
+			}
+
+			this.capacity = capacity;
+			this.size = 0;
+		}
+
+		int size() {
+			return size;
+		}
+
+		void offer(KBucketEntry entry, long[] target) {
+			Id id = entry.getId();
+			int slot = size < capacity ? size : capacity;
+			int base = slot * WORDS;
+			for (int i = 0; i < WORDS; i++)
+				distances[base + i] = id.getWord(i) ^ target[i];
+
+			if (size < capacity) {
+				nodes[slot] = entry;
+				siftUp(size++);
+			} else if (compare(capacity, 0) < 0) {
+				// closer than the farthest one, replace the top
+				nodes[0] = entry;
+				System.arraycopy(distances, base, distances, 0, WORDS);
+				siftDown(0, size);
+			}
+		}
+
+		// Empties the heap into the list, the closest first
+		void drainTo(List<KBucketEntry> list) {
+			for (int end = size - 1; end > 0; end--) {
+				swap(0, end);
+				siftDown(0, end);
+			}
+
+			for (int i = 0; i < size; i++) {
+				list.add(nodes[i]);
+				nodes[i] = null;
+			}
+
+			nodes[capacity] = null;
+			size = 0;
+		}
+
+		private int compare(int i, int j) {
+			int a = i * WORDS;
+			int b = j * WORDS;
+			for (int w = 0; w < WORDS; w++) {
+				int c = Long.compareUnsigned(distances[a + w], distances[b + w]);
+				if (c != 0)
+					return c;
+			}
+
+			return 0;
+		}
+
+		private void swap(int i, int j) {
+			KBucketEntry n = nodes[i];
+			nodes[i] = nodes[j];
+			nodes[j] = n;
+
+			int a = i * WORDS;
+			int b = j * WORDS;
+			for (int w = 0; w < WORDS; w++) {
+				long d = distances[a + w];
+				distances[a + w] = distances[b + w];
+				distances[b + w] = d;
+			}
+		}
+
+		private void siftUp(int i) {
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (compare(i, parent) <= 0)
+					break;
+
+				swap(i, parent);
+				i = parent;
+			}
+		}
+
+		private void siftDown(int i, int n) {
+			while (true) {
+				int largest = i;
+				int left = 2 * i + 1;
+				int right = left + 1;
+
+				if (left < n && compare(left, largest) > 0)
+					largest = left;
+				if (right < n && compare(right, largest) > 0)
+					largest = right;
+				if (largest == i)
+					break;
+
+				swap(i, largest);
+				i = largest;
+			}
+		}
+	}
+
 	/**
 	 * Constructor sets the key to compare with
 	 *
@@ -55,9 +176,12 @@ public class KClosestNodes {
 		this.dht = dht;
 		this.target = id;
 		this.maxEntries = maxEntries;
-		this.cmp = new KBucketEntry.DistanceOrder(id);
 		this.filter = filter;
-		this.entries = new ArrayList<>(maxEntries + Constants.MAX_ENTRIES_PER_BUCKET);
+		this.entries = Collections.emptyList();
+
+		this.targetWords = new long[WORDS];
+		for (int i = 0; i < WORDS; i++)
+			targetWords[i] = id.getWord(i);
 	}
 
 	/**
@@ -74,82 +198,76 @@ public class KClosestNodes {
 		return entries.size();
 	}
 
-	private void insertEntries(KBucket bucket) {
-		bucket.stream().filter(filter).forEach(entries::add);
+	private void insertEntries(Selection selection, KBucket bucket) {
+		for (KBucketEntry e : bucket.entries()) {
+			if (filter.test(e))
+				selection.offer(e, targetWords);
+		}
 	}
 
-	private void shave() {
-		int overshoot = entries.size() - maxEntries;
+	public void fill() {
+		fill(false);
+	}
 
-		if (overshoot <= 0)
-			return;
+	public void fill(boolean includeSelf) {
+		fill(dht.getRoutingTable().snapshot(), includeSelf);
+	}
 
-		entries.sort(cmp);
-		entries.subList(entries.size() - overshoot, entries.size()).clear();
+	/**
+	 * Fills from a snapshot of the routing table, the lookups of a batch share
+	 * one snapshot instead of each reading the routing table.
+	 */
+	public void fill(RoutingTable.Snapshot snapshot) {
+		fill(snapshot, false);
 	}
 
-	public void fill() {
-		fill(false);
+	private void fill(RoutingTable.Snapshot snapshot, boolean includeSelf) {
+		fill(snapshot, this::bootstrapEntries, includeSelf ? this::localEntry : null);
 	}
 
-	public void fill(boolean includeSelf) {
-		List<KBucket> buckets = dht.getRoutingTable().buckets();
-
-		final int idx = RoutingTable.indexOf(buckets, target);
-		KBucket bucket = buckets.get(idx);
-		insertEntries(bucket);
-
-		int low = idx;
-		int high = idx;
-		while (entries.size() < maxEntries) {
-			KBucket lowBucket = null;
-			KBucket highBucket = null;
-
-			if (low > 0)
-				lowBucket = buckets.get(low - 1);
-
-			if (high < buckets.size() - 1)
-				highBucket = buckets.get(high + 1);
-
-			if (lowBucket == null && highBucket == null)
-				break;
-
-			if (lowBucket == null) {
-				high++;
-				insertEntries(highBucket);
-			} else if (highBucket == null) {
-				low--;
-				insertEntries(lowBucket);
-			} else {
-				int dir = target.threeWayCompare(lowBucket.prefix().last(), highBucket.prefix().first());
-				if (dir < 0) {
-					low--;
-					insertEntries(lowBucket);
-				} else if (dir > 0) {
-					high++;
-					insertEntries(highBucket);
-				} else {
-					low--;
-					high++;
-					insertEntries(lowBucket);
-					insertEntries(highBucket);
-				}
-			}
+	private Collection<KBucketEntry> bootstrapEntries() {
+		List<KBucketEntry> bootstraps = new ArrayList<>();
+		for (NodeInfo n : dht.getNode().getConfig().bootstrapNodes()) {
+			if (dht.getType().canUseSocketAddress(n.getAddress()))
+				bootstraps.add(new KBucketEntry(n));
 		}
 
-		if (entries.size() < maxEntries) {
-			for (NodeInfo n : dht.getNode().getConfig().bootstrapNodes()) {
-				if (dht.getType().canUseSocketAddress(n.getAddress()))
-					entries.add(new KBucketEntry(n));
-			}
-		}
+		return bootstraps;
+	}
 
-		if (includeSelf && entries.size() < maxEntries) {
-			InetSocketAddress sockAddr = dht.getServer().getAddress();
-			entries.add(new KBucketEntry(dht.getNode().getId(), sockAddr));
+	private KBucketEntry localEntry() {
+		InetSocketAddress sockAddr = dht.getServer().getAddress();
+		return new KBucketEntry(dht.getNode().getId(), sockAddr);
+	}
+
+	/**
+	 * Fills from the snapshot. Only if the routing table doesn't have enough
+	 * entries, the bootstrap nodes are added, then the local node if any. Once
+	 * full, a candidate at the same distance as the farthest one doesn't
+	 * replace it, the one offered first is kept.
+	 */
+	void fill(RoutingTable.Snapshot snapshot, Supplier<Collection<KBucketEntry>> bootstraps,
+			Supplier<KBucketEntry> self) {
+		Selection selection = localSelection.get();
+		selection.reset(maxEntries);
+
+		// The buckets come in the order of the distance, the ones after
+		// the bucket that filled the heap can't have any closer entry
+		snapshot.forEachClosest(target, bucket -> {
+			insertEntries(selection, bucket);
+			return selection.size() < maxEntries;
+		});
+
+		if (selection.size() < maxEntries) {
+			for (KBucketEntry e : bootstraps.get())
+				selection.offer(e, targetWords);
 		}
 
-		shave();
+		if (self != null && selection.size() < maxEntries)
+			selection.offer(self.get(), targetWords);
+
+		entries = new ArrayList<>(selection.size());
+		selection.drainTo(entries);
 	}
 
 	public boolean isFull() {
@@ -157,13 +275,13 @@ public class KClosestNodes {
 	}
 
 	/**
-	 * @return a unmodifiable List of the entries
+	 * @return a unmodifiable List of the entries, the closest first
 	 */
 	public List<KBucketEntry> entries() {
 		return Collections.unmodifiableList(entries);
 	}
 
 	public List<NodeInfo> asNodeList() {
-		return new ArrayList<>(entries());
+		return new ArrayList<>(entries);
 	}
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package elastos.carrier.kademlia;
+
+import java.util.Formatter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free log-linear histogram of the latencies in microseconds. Every
+ * power of two range is split into 8 linear sub-buckets, so the reported
+ * percentiles are within 12.5% of the recorded values.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// the values below this are recorded in the exact buckets
+	private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+	private static final int MAX_EXPONENT = 31;
+	private static final int NUM_BUCKETS = LINEAR_LIMIT + (MAX_EXPONENT - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+
+	static int bucketOf(long micros) {
+		if (micros < LINEAR_LIMIT)
+			return (int)Math.max(micros, 0);
+
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		if (exponent >= MAX_EXPONENT)
+			return NUM_BUCKETS - 1;
+
+		int sub = (int)(micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + sub;
+	}
+
+	// the highest value of the bucket
+	static long valueOf(int bucket) {
+		if (bucket < LINEAR_LIMIT)
+			return bucket;
+
+		int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+		int sub = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+		return ((long)(SUB_BUCKETS + sub + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+
+	public void record(long nanos) {
+		buckets.incrementAndGet(bucketOf(nanos / 1000));
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++)
+			count += buckets.get(i);
+
+		return count;
+	}
+
+	/**
+	 * @param percentile the percentile in [0, 100]
+	 * @return the latency in microseconds, 0 if nothing recorded
+	 */
+	public long getPercentile(double percentile) {
+		long[] snapshot = new long[NUM_BUCKETS];
+		long count = 0;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			snapshot[i] = buckets.get(i);
+			count += snapshot[i];
+		}
+
+		if (count == 0)
+			return 0;
+
+		long rank = (long)Math.ceil(count * Math.min(Math.max(percentile, 0), 100) / 100);
+		rank = Math.max(rank, 1);
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			rank -= snapshot[i];
+			if (rank <= 0)
+				return valueOf(i);
+		}
+
+		return valueOf(NUM_BUCKETS - 1);
+	}
+
+	public void reset() {
+		for (int i = 0; i < NUM_BUCKETS; i++)
+			buckets.set(i, 0);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder repr = new StringBuilder();
+
+		@SuppressWarnings("resource")
+		Formatter f = new Formatter(repr);
+		f.format("count %d, p50 %dus, p90 %dus, p99 %dus, p99.9 %dus", getCount(),
+				getPercentile(50), getPercentile(90), getPercentile(99), getPercentile(99.9));
+
+		return repr.toString();
+	}
+}
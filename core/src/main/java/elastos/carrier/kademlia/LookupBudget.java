@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package elastos.carrier.kademlia;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * The concurrency budget of the batch operations of the node. At most limit
+ * operations run at once, the others wait in the FIFO order and start when
+ * a running one completes. Shared by all the batches, so a few huge batches
+ * can't flood the task managers of the DHTs.
+ *
+ * The operations complete on the DHT event loops, the waiting ones freed by a
+ * completion start on the given executor, not inline on the event loop.
+ */
+class LookupBudget {
+	private final int limit;
+	private final Executor executor;
+	private int running;
+	private final Deque<Runnable> waiting = new ArrayDeque<>();
+
+	private static final ThreadLocal<Boolean> draining = ThreadLocal.withInitial(() -> false);
+
+	LookupBudget(int limit, Executor executor) {
+		this.limit = limit;
+		this.executor = executor;
+	}
+
+	/**
+	 * Starts the operation now if the budget allows, otherwise after the earlier
+	 * ones.
+	 *
+	 * @return the future of the operation result.
+	 */
+	<T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> operation) {
+		CompletableFuture<T> result = new CompletableFuture<>();
+
+		Runnable start = () -> {
+			CompletableFuture<T> future;
+			try {
+				future = operation.get();
+			} catch (Exception e) {
+				release();
+				result.completeExceptionally(e);
+				return;
+			}
+
+			future.whenComplete((v, e) -> {
+				release();
+				if (e != null)
+					result.completeExceptionally(e);
+				else
+					result.complete(v);
+			});
+		};
+
+		synchronized (this) {
+			waiting.addLast(start);
+		}
+
+		drain();
+		return result;
+	}
+
+	private void release() {
+		synchronized (this) {
+			running--;
+		}
+
+		try {
+			executor.execute(this::drain);
+		} catch (RejectedExecutionException e) {
+			// the node is stopping, the waiting operations fail on the
+			// stopped node anyway
+			drain();
+		}
+	}
+
+	private void drain() {
+		// the operations may complete synchronously and release inside run(),
+		// the outer loop picks up the freed slots instead of recursing
+		if (draining.get())
+			return;
+
+		draining.set(true);
+		try {
+			while (true) {
+				Runnable next;
+				synchronized (this) {
+					if (running >= limit || waiting.isEmpty())
+						return;
+
+					next = waiting.pollFirst();
+					running++;
+				}
+
+				next.run();
+			}
+		} finally {
+			draining.set(false);
+		}
+	}
+
+	synchronized int getRunning() {
+		return running;
+	}
+
+	synchronized int getWaiting() {
+		return waiting.size();
+	}
+}
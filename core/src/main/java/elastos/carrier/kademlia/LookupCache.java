@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package elastos.carrier.kademlia;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import elastos.carrier.Id;
+import elastos.carrier.NodeInfo;
+
+/**
+ * The short lived cache of the lookup results: the ids that findValue and
+ * findPeer didn't find on the network, and the nodes that findNode found.
+ * Only the positive values and peers are kept in the data storage, so
+ * without it the repeated lookups of a missing key always walk the network.
+ * A node not found may join the network any time, so the findNode misses
+ * are not cached.
+ *
+ * The entries expire after the TTL, and every kind of entry is bounded.
+ */
+class LookupCache {
+	private static final Object MISSING = new Object();
+
+	private final Cache<Id, Object> values;
+	private final Cache<Id, Object> peers;
+	private final Cache<Id, List<NodeInfo>> nodes;
+
+	private final Stats valueStats = new Stats();
+	private final Stats peerStats = new Stats();
+	private final Stats nodeStats = new Stats();
+
+	private static final class Stats {
+		final LongAdder hits = new LongAdder();
+		final LongAdder misses = new LongAdder();
+
+		void record(boolean hit) {
+			if (hit)
+				hits.increment();
+			else
+				misses.increment();
+		}
+
+		@Override
+		public String toString() {
+			long h = hits.sum();
+			long m = misses.sum();
+			return String.format("%d/%d hits(%.2f%%)", h, h + m, h + m == 0 ? 0.0 : h * 100.0 / (h + m));
+		}
+	}
+
+	LookupCache(long ttl, TimeUnit unit) {
+		this(ttl, unit, Ticker.systemTicker());
+	}
+
+	LookupCache(long ttl, TimeUnit unit, Ticker ticker) {
+		values = newCache(ttl, unit, ticker);
+		peers = newCache(ttl, unit, ticker);
+		nodes = newCache(ttl, unit, ticker);
+	}
+
+	private static <V> Cache<Id, V> newCache(long ttl, TimeUnit unit, Ticker ticker) {
+		return CacheBuilder.newBuilder()
+				.maximumSize(Constants.LOOKUP_CACHE_SIZE)
+				.expireAfterWrite(ttl, unit)
+				.ticker(ticker)
+				.build();
+	}
+
+	boolean isValueMissing(Id id) {
+		boolean hit = values.getIfPresent(id) != null;
+		valueStats.record(hit);
+		return hit;
+	}
+
+	void valueResult(Id id, boolean found) {
+		if (found)
+			values.invalidate(id);
+		else
+			values.put(id, MISSING);
+	}
+
+	boolean isPeerMissing(Id id) {
+		boolean hit = peers.getIfPresent(id) != null;
+		peerStats.record(hit);
+		return hit;
+	}
+
+	void peerResult(Id id, boolean found) {
+		if (found)
+			peers.invalidate(id);
+		else
+			peers.put(id, MISSING);
+	}
+
+	// a copy of the cached nodes, or null if not cached
+	List<NodeInfo> getNodes(Id id) {
+		List<NodeInfo> cached = nodes.getIfPresent(id);
+		nodeStats.record(cached != null);
+		return cached != null ? new ArrayList<>(cached) : null;
+	}
+
+	void putNodes(Id id, List<NodeInfo> found) {
+		if (found.isEmpty())
+			nodes.invalidate(id);
+		else
+			nodes.put(id, List.copyOf(found));
+	}
+
+	long getValueHits() {
+		return valueStats.hits.sum();
+	}
+
+	long getPeerHits() {
+		return peerStats.hits.sum();
+	}
+
+	long getNodeHits() {
+		return nodeStats.hits.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "values " + valueStats + ", peers " + peerStats + ", nodes " + nodeStats;
+	}
+}
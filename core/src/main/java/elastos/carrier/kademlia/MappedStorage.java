@@ -0,0 +1,1410 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package elastos.carrier.kademlia;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import elastos.carrier.Id;
+import elastos.carrier.PeerInfo;
+import elastos.carrier.Value;
+import elastos.carrier.kademlia.exceptions.CasFail;
+import elastos.carrier.kademlia.exceptions.IOError;
+import elastos.carrier.kademlia.exceptions.ImmutableSubstitutionFail;
+import elastos.carrier.kademlia.exceptions.InvalidSignature;
+import elastos.carrier.kademlia.exceptions.KadException;
+import elastos.carrier.kademlia.exceptions.NotValueOwner;
+import elastos.carrier.kademlia.exceptions.SequenceNotMonotonic;
+
+/**
+ * The pure Java data storage engine.
+ *
+ * The values and peers are records in an append-only log, the log is split
+ * into segments of STORAGE_SEGMENT_SIZE that are memory mapped from the
+ * storage file, or allocated from the direct memory if no file. The records
+ * stay off the heap, the heap only keeps the hash index by the value/peer id
+ * and the time ordered expiry indexes.
+ *
+ * An update appends a new record and a remove appends a tombstone, the older
+ * records become garbage. Only the last announce time is updated in place.
+ * The log is compacted on the scheduler when less than half of it is live.
+ * The live records are copied to the new log without the lock, the records
+ * changed meanwhile are carried over and the logs are swapped under the write
+ * lock. When opened, the log is replayed to rebuild the indexes, a torn record
+ * at the end of the log is discarded.
+ *
+ * Record layout: length(4), crc32(4), type(1), persistent(1), timestamp(8),
+ * announced(8), payload. The crc covers the type, persistent and payload, but
+ * not the times that are updated in place.
+ */
+public class MappedStorage implements DataStorage {
+	private static final byte VALUE = 1;
+	private static final byte PEER = 2;
+	private static final byte REMOVE_VALUE = 3;
+	private static final byte REMOVE_PEER = 4;
+
+	private static final int HEADER_SIZE = 26;
+	private static final int TYPE_OFFSET = 8;
+	private static final int TIMESTAMP_OFFSET = 10;
+	private static final int ANNOUNCED_OFFSET = 18;
+
+	private final int segmentSize;
+	private File file;
+	private FileChannel channel;
+	private List<ByteBuffer> segments;
+	// the next append position in the log
+	private long tail;
+	private long liveBytes;
+	private long totalBytes;
+	private long compactions;
+	// serializes the compactions, taken before the read/write lock
+	private final ReentrantLock compactLock;
+	private boolean compactionScheduled;
+	// the index changes while a compaction copies, null if not compacting
+	private Changes changes;
+	private boolean closed;
+
+	private final Map<Id, Entry> values;
+	private final Map<Id, Map<PeerKey, Entry>> peers;
+	// the non-persistent entries ordered by the timestamp
+	private final TreeSet<Entry> valueExpiry;
+	private final TreeSet<Entry> peerExpiry;
+	private long nextSequence;
+
+	private boolean durableWrites;
+	private final ReentrantReadWriteLock lock;
+	private ByteBuffer scratch;
+
+	private ScheduledExecutorService scheduler;
+	private ScheduledFuture<?> expireFuture;
+
+	private static final Logger log = LoggerFactory.getLogger(MappedStorage.class);
+
+	private static final class Entry implements Comparable<Entry> {
+		final Id id;
+		// null for the values
+		final PeerKey peerKey;
+		final int size;
+		final boolean persistent;
+		final long sequence;
+		long position;
+		// the position in the compacted log, -1 if not copied
+		long compactedPosition = -1;
+		// replaced or removed
+		boolean retired;
+		long timestamp;
+		long announced;
+
+		Entry(Id id, PeerKey peerKey, long position, int size, boolean persistent,
+				long timestamp, long announced, long sequence) {
+			this.id = id;
+			this.peerKey = peerKey;
+			this.position = position;
+			this.size = size;
+			this.persistent = persistent;
+			this.timestamp = timestamp;
+			this.announced = announced;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Entry o) {
+			int r = Long.compare(timestamp, o.timestamp);
+			return r != 0 ? r : Long.compare(sequence, o.sequence);
+		}
+	}
+
+	// The entries appended, removed and with the times updated in place while
+	// a compaction copies, in the log order. The replaced ones need nothing,
+	// their replacements are appended.
+	private static final class Changes {
+		final List<Entry> appended = new ArrayList<>();
+		final List<Entry> removed = new ArrayList<>();
+		final List<Entry> touched = new ArrayList<>();
+	}
+
+	// The primary key of the peers, except the peer id
+	private static final class PeerKey {
+		final Id nodeId;
+		final Id origin;
+
+		PeerKey(Id nodeId, Id origin) {
+			this.nodeId = nodeId;
+			this.origin = origin;
+		}
+
+		@Override
+		public int hashCode() {
+			return nodeId.hashCode() * 31 + origin.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o)
+				return true;
+
+			if (o instanceof PeerKey) {
+				PeerKey k = (PeerKey)o;
+				return Objects.equals(nodeId, k.nodeId) && Objects.equals(origin, k.origin);
+			}
+
+			return false;
+		}
+	}
+
+	MappedStorage(int segmentSize) {
+		this.segmentSize = segmentSize;
+		this.values = new HashMap<>();
+		this.peers = new HashMap<>();
+		this.valueExpiry = new TreeSet<>();
+		this.peerExpiry = new TreeSet<>();
+		this.lock = new ReentrantReadWriteLock();
+		this.compactLock = new ReentrantLock();
+		this.scratch = ByteBuffer.allocate(4096);
+	}
+
+	public static DataStorage open(File path, ScheduledExecutorService scheduler) throws KadException {
+		return open(path, scheduler, false);
+	}
+
+	public static DataStorage open(File path, ScheduledExecutorService scheduler, boolean durableWrites) throws KadException {
+		return open(path, scheduler, durableWrites, Constants.STORAGE_SEGMENT_SIZE);
+	}
+
+	static DataStorage open(File path, ScheduledExecutorService scheduler, boolean durableWrites,
+			int segmentSize) throws KadException {
+		MappedStorage storage = new MappedStorage(segmentSize);
+		storage.init(path, scheduler, durableWrites);
+		return storage;
+	}
+
+	private void init(File path, ScheduledExecutorService scheduler, boolean durableWrites) throws KadException {
+		this.file = path;
+		this.scheduler = scheduler;
+		this.durableWrites = durableWrites;
+		this.segments = new ArrayList<>();
+
+		try {
+			if (file != null) {
+				channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+				long size = channel.size();
+				for (long pos = 0; pos < size; pos += segmentSize)
+					segments.add(map(channel, segments.size()));
+
+				replay();
+			}
+		} catch (IOException e) {
+			closeChannel();
+			log.error("Failed to open the mapped storage: " + e.getMessage(), e);
+			throw new IOError("Failed to open the mapped storage: " + e.getMessage(), e);
+		}
+
+		this.expireFuture = scheduler.scheduleWithFixedDelay(() -> {
+			// Evict the expired entries from the local storage
+			expire();
+		}, 0, Constants.STORAGE_EXPIRE_INTERVAL, TimeUnit.MILLISECONDS);
+
+		log.info("Mapped storage opened: {}, {} values, {} peers", path != null ? path : "MEMORY",
+				values.size(), peers.size());
+	}
+
+	private MappedByteBuffer map(FileChannel channel, int index) throws IOException {
+		// mapping beyond the end extends the file
+		return channel.map(FileChannel.MapMode.READ_WRITE, (long)index * segmentSize, segmentSize);
+	}
+
+	private ByteBuffer newSegment() throws IOException {
+		return channel != null ? map(channel, segments.size()) : ByteBuffer.allocateDirect(segmentSize);
+	}
+
+	private void closeChannel() {
+		if (channel == null)
+			return;
+
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.error("Failed to close the mapped storage: " + e.getMessage(), e);
+		}
+
+		channel = null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		expireFuture.cancel(false);
+		// none of the scheduled tasks should experience exceptions,
+		// log them if they did
+		try {
+			expireFuture.get();
+		} catch (ExecutionException e) {
+			log.error("Scheduled future error", e);
+		} catch (InterruptedException e) {
+			log.error("Scheduled future error", e);
+		} catch (CancellationException ignore) {
+		}
+
+		// waits for the running compaction, the scheduled ones skip
+		compactLock.lock();
+		lock.writeLock().lock();
+		try {
+			closed = true;
+			for (ByteBuffer segment : segments) {
+				if (segment instanceof MappedByteBuffer)
+					((MappedByteBuffer)segment).force();
+			}
+
+			closeChannel();
+			segments.clear();
+			values.clear();
+			peers.clear();
+			valueExpiry.clear();
+			peerExpiry.clear();
+		} finally {
+			lock.writeLock().unlock();
+			compactLock.unlock();
+		}
+	}
+
+	private ByteBuffer segment(long position) {
+		ByteBuffer segment = segments.get((int)(position / segmentSize)).duplicate();
+		segment.position((int)(position % segmentSize));
+		return segment;
+	}
+
+	private static int crc(ByteBuffer record, int offset, int length) {
+		ByteBuffer b = record.duplicate();
+		CRC32 crc = new CRC32();
+
+		b.limit(offset + TYPE_OFFSET + 2).position(offset + TYPE_OFFSET);
+		crc.update(b);
+		b.limit(offset + length).position(offset + HEADER_SIZE);
+		crc.update(b);
+		return (int)crc.getValue();
+	}
+
+	private void replay() {
+		long now = Clock.currentTimeMillis();
+		long end = (long)segments.size() * segmentSize;
+
+		outer:
+		for (int i = 0; i < segments.size(); i++) {
+			ByteBuffer segment = segments.get(i);
+			int offset = 0;
+
+			while (offset + HEADER_SIZE <= segmentSize) {
+				int length = segment.getInt(offset);
+				// the rest of the segment is empty
+				if (length == 0)
+					break;
+
+				if (length < HEADER_SIZE || offset + length > segmentSize ||
+						segment.getInt(offset + 4) != crc(segment, offset, length)) {
+					end = (long)i * segmentSize + offset;
+					log.warn("Mapped storage discarded a torn record at {}", end);
+					// clean up the torn record, the next appends start here
+					for (int j = offset; j < segmentSize; j++)
+						segment.put(j, (byte)0);
+
+					break outer;
+				}
+
+				long position = (long)i * segmentSize + offset;
+				apply(segment, offset, position, length, now);
+
+				offset += length;
+				tail = position + length;
+			}
+		}
+
+		// no more records after the torn one
+		for (int i = segments.size() - 1; i >= 0 && (long)i * segmentSize > end; i--) {
+			ByteBuffer segment = segments.get(i);
+			for (int j = 0; j < segmentSize; j++)
+				segment.put(j, (byte)0);
+		}
+	}
+
+	private void apply(ByteBuffer segment, int offset, long position, int length, long now) {
+		ByteBuffer b = segment.duplicate();
+		b.position(offset + TYPE_OFFSET);
+
+		byte type = b.get();
+		boolean persistent = b.get() != 0;
+		long timestamp = b.getLong();
+		long announced = b.getLong();
+
+		totalBytes += length;
+
+		switch (type) {
+		case VALUE: {
+			Id id = readId(b);
+			if (!persistent && timestamp < now - Constants.MAX_VALUE_AGE)
+				break;
+
+			putValueEntry(new Entry(id, null, position, length, persistent, timestamp, announced, nextSequence++));
+			break;
+		}
+
+		case PEER: {
+			Id id = readId(b);
+			Id nodeId = readId(b);
+			Id origin = readId(b);
+			if (!persistent && timestamp < now - Constants.MAX_PEER_AGE)
+				break;
+
+			putPeerEntry(new Entry(id, new PeerKey(nodeId, origin), position, length,
+					persistent, timestamp, announced, nextSequence++));
+			break;
+		}
+
+		case REMOVE_VALUE:
+			removeValueEntry(readId(b));
+			break;
+
+		case REMOVE_PEER: {
+			Id id = readId(b);
+			removePeerEntries(id, readId(b));
+			break;
+		}
+
+		default:
+			log.warn("Mapped storage skipped an unknown record type {} at {}", type, position);
+		}
+	}
+
+	private void retired(Entry entry, boolean removed) {
+		entry.retired = true;
+		if (removed && changes != null)
+			changes.removed.add(entry);
+	}
+
+	private void putValueEntry(Entry entry) {
+		if (changes != null)
+			changes.appended.add(entry);
+
+		Entry old = values.put(entry.id, entry);
+		if (old != null) {
+			retired(old, false);
+			liveBytes -= old.size;
+			if (!old.persistent)
+				valueExpiry.remove(old);
+		}
+
+		liveBytes += entry.size;
+		if (!entry.persistent)
+			valueExpiry.add(entry);
+	}
+
+	private boolean removeValueEntry(Id id) {
+		Entry old = values.remove(id);
+		if (old == null)
+			return false;
+
+		retired(old, true);
+		liveBytes -= old.size;
+		if (!old.persistent)
+			valueExpiry.remove(old);
+
+		return true;
+	}
+
+	private void putPeerEntry(Entry entry) {
+		if (changes != null)
+			changes.appended.add(entry);
+
+		Entry old = peers.computeIfAbsent(entry.id, (k) -> new LinkedHashMap<>()).put(entry.peerKey, entry);
+		if (old != null) {
+			retired(old, false);
+			liveBytes -= old.size;
+			if (!old.persistent)
+				peerExpiry.remove(old);
+		}
+
+		liveBytes += entry.size;
+		if (!entry.persistent)
+			peerExpiry.add(entry);
+	}
+
+	private void removePeerEntry(Entry entry) {
+		Map<PeerKey, Entry> entries = peers.get(entry.id);
+		if (entries == null || entries.get(entry.peerKey) != entry)
+			return;
+
+		entries.remove(entry.peerKey);
+		if (entries.isEmpty())
+			peers.remove(entry.id);
+
+		retired(entry, true);
+		liveBytes -= entry.size;
+		if (!entry.persistent)
+			peerExpiry.remove(entry);
+	}
+
+	private boolean removePeerEntries(Id id, Id origin) {
+		Map<PeerKey, Entry> entries = peers.get(id);
+		if (entries == null)
+			return false;
+
+		boolean removed = false;
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.peerKey.origin.equals(origin)) {
+				it.remove();
+				retired(entry, true);
+				liveBytes -= entry.size;
+				if (!entry.persistent)
+					peerExpiry.remove(entry);
+
+				removed = true;
+			}
+		}
+
+		if (entries.isEmpty())
+			peers.remove(id);
+
+		return removed;
+	}
+
+	private ByteBuffer scratch(int size) {
+		if (scratch.capacity() < size)
+			scratch = ByteBuffer.allocate(Math.max(size, scratch.capacity() * 2));
+
+		scratch.clear();
+		return scratch;
+	}
+
+	private static int sizeOf(byte[] bytes) {
+		return 4 + (bytes != null ? bytes.length : 0);
+	}
+
+	private static void writeBytes(ByteBuffer b, byte[] bytes) {
+		if (bytes == null) {
+			b.putInt(-1);
+		} else {
+			b.putInt(bytes.length);
+			b.put(bytes);
+		}
+	}
+
+	private static byte[] readBytes(ByteBuffer b) {
+		int length = b.getInt();
+		if (length < 0)
+			return null;
+
+		byte[] bytes = new byte[length];
+		b.get(bytes);
+		return bytes;
+	}
+
+	private static Id readId(ByteBuffer b) {
+		byte[] bytes = readBytes(b);
+		return bytes != null ? Id.of(bytes) : null;
+	}
+
+	private static byte[] bytesOf(Id id) {
+		return id != null ? id.bytes() : null;
+	}
+
+	private ByteBuffer header(int payloadSize, byte type, boolean persistent, long timestamp, long announced) {
+		ByteBuffer b = scratch(HEADER_SIZE + payloadSize);
+		b.putInt(HEADER_SIZE + payloadSize);
+		b.putInt(0); // crc, filled by the append
+		b.put(type);
+		b.put((byte)(persistent ? 1 : 0));
+		b.putLong(timestamp);
+		b.putLong(announced);
+		return b;
+	}
+
+	private ByteBuffer valueRecord(Value value, boolean persistent, long timestamp, long announced) {
+		byte[] id = value.getId().bytes();
+		byte[] publicKey = bytesOf(value.getPublicKey());
+		byte[] recipient = bytesOf(value.getRecipient());
+
+		int size = sizeOf(id) + sizeOf(publicKey) + sizeOf(value.getPrivateKey()) +
+				sizeOf(recipient) + sizeOf(value.getNonce()) + 4 +
+				sizeOf(value.getSignature()) + sizeOf(value.getData());
+
+		ByteBuffer b = header(size, VALUE, persistent, timestamp, announced);
+		writeBytes(b, id);
+		writeBytes(b, publicKey);
+		writeBytes(b, value.getPrivateKey());
+		writeBytes(b, recipient);
+		writeBytes(b, value.getNonce());
+		b.putInt(value.getSequenceNumber());
+		writeBytes(b, value.getSignature());
+		writeBytes(b, value.getData());
+		return b.flip();
+	}
+
+	private ByteBuffer peerRecord(PeerInfo peer, boolean persistent, long timestamp, long announced) {
+		byte[] id = peer.getId().bytes();
+		byte[] nodeId = peer.getNodeId().bytes();
+		byte[] origin = peer.getOrigin().bytes();
+		byte[] alt = peer.hasAlternativeURL() ? peer.getAlternativeURL().getBytes(StandardCharsets.UTF_8) : null;
+
+		int size = sizeOf(id) + sizeOf(nodeId) + sizeOf(origin) + sizeOf(peer.getPrivateKey()) + 4 +
+				sizeOf(alt) + sizeOf(peer.getSignature());
+
+		ByteBuffer b = header(size, PEER, persistent, timestamp, announced);
+		writeBytes(b, id);
+		writeBytes(b, nodeId);
+		writeBytes(b, origin);
+		writeBytes(b, peer.getPrivateKey());
+		b.putInt(peer.getPort());
+		writeBytes(b, alt);
+		writeBytes(b, peer.getSignature());
+		return b.flip();
+	}
+
+	private ByteBuffer tombstone(byte type, Id id, Id origin) {
+		int size = sizeOf(id.bytes()) + (origin != null ? sizeOf(origin.bytes()) : 0);
+		ByteBuffer b = header(size, type, false, Clock.currentTimeMillis(), 0);
+		writeBytes(b, id.bytes());
+		if (origin != null)
+			writeBytes(b, origin.bytes());
+
+		return b.flip();
+	}
+
+	private Value valueAt(Entry entry) {
+		ByteBuffer b = segment(entry.position + HEADER_SIZE);
+
+		readBytes(b); // id
+		Id publicKey = readId(b);
+		byte[] privateKey = readBytes(b);
+		Id recipient = readId(b);
+		byte[] nonce = readBytes(b);
+		int sequenceNumber = b.getInt();
+		byte[] signature = readBytes(b);
+		byte[] data = readBytes(b);
+
+		return Value.of(publicKey, privateKey, recipient, nonce, sequenceNumber, signature, data);
+	}
+
+	private PeerInfo peerAt(Entry entry) {
+		ByteBuffer b = segment(entry.position + HEADER_SIZE);
+
+		Id peerId = readId(b);
+		Id nodeId = readId(b);
+		Id origin = readId(b);
+		byte[] privateKey = readBytes(b);
+		int port = b.getInt();
+		byte[] alt = readBytes(b);
+		byte[] signature = readBytes(b);
+
+		return PeerInfo.of(peerId, privateKey, nodeId, origin, port,
+				alt != null ? new String(alt, StandardCharsets.UTF_8) : null, signature);
+	}
+
+	// the caller holds the write lock
+	private long append(ByteBuffer record) throws IOException {
+		int length = record.remaining();
+		if (length > segmentSize)
+			throw new IOException("Record too large: " + length);
+
+		// the record don't cross the segments
+		int offset = (int)(tail % segmentSize);
+		if (offset + length > segmentSize)
+			tail += segmentSize - offset;
+
+		if (tail / segmentSize >= segments.size()) {
+			if (compactable())
+				scheduleCompaction();
+
+			segments.add(newSegment());
+		}
+
+		long position = tail;
+		ByteBuffer segment = segment(position);
+		int start = segment.position();
+		segment.put(record);
+		segment.putInt(start + 4, crc(segment, start, length));
+
+		tail += length;
+		totalBytes += length;
+		return position;
+	}
+
+	private void sync(long position) {
+		ByteBuffer segment = segments.get((int)(position / segmentSize));
+		if (segment instanceof MappedByteBuffer)
+			((MappedByteBuffer)segment).force();
+	}
+
+	private boolean compactable() {
+		return totalBytes >= segmentSize && liveBytes * 2 < totalBytes;
+	}
+
+	// the caller holds the write lock
+	private void scheduleCompaction() {
+		if (compactionScheduled)
+			return;
+
+		compactionScheduled = true;
+		try {
+			scheduler.execute(() -> {
+				try {
+					compact();
+				} catch (IOException e) {
+					log.error("Failed to compact the mapped storage: " + e.getMessage(), e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			compactionScheduled = false;
+		}
+	}
+
+	// Writes the compacted log, to a new file or to the direct memory
+	private final class LogWriter {
+		final File path;
+		final FileChannel channel;
+		final List<ByteBuffer> segments = new ArrayList<>();
+		long tail;
+		long bytes;
+		int forced;
+
+		LogWriter(File path) throws IOException {
+			this.path = path;
+			this.channel = path != null ? FileChannel.open(path.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE) : null;
+		}
+
+		long write(ByteBuffer record) throws IOException {
+			int length = record.remaining();
+			int offset = (int)(tail % segmentSize);
+			if (offset + length > segmentSize)
+				tail += segmentSize - offset;
+
+			if (tail / segmentSize >= segments.size())
+				segments.add(channel != null ? map(channel, segments.size()) : ByteBuffer.allocateDirect(segmentSize));
+
+			long position = tail;
+			ByteBuffer segment = segments.get((int)(position / segmentSize)).duplicate();
+			int start = (int)(position % segmentSize);
+			segment.position(start);
+			segment.put(record);
+			segment.putInt(start + 4, crc(segment, start, length));
+
+			tail += length;
+			bytes += length;
+			return position;
+		}
+
+		// the times are updated in place, the copy may have missed the last
+		// update. Only writes the changed ones, keeps the flushed pages clean.
+		void updateTimes(long position, long timestamp, long announced) {
+			ByteBuffer segment = segments.get((int)(position / segmentSize));
+			int start = (int)(position % segmentSize);
+			if (segment.getLong(start + TIMESTAMP_OFFSET) != timestamp ||
+					segment.getLong(start + ANNOUNCED_OFFSET) != announced) {
+				segment.putLong(start + TIMESTAMP_OFFSET, timestamp);
+				segment.putLong(start + ANNOUNCED_OFFSET, announced);
+			}
+		}
+
+		// flushes the segments written since the last call
+		void force() {
+			for (int i = forced; i < segments.size(); i++) {
+				if (segments.get(i) instanceof MappedByteBuffer)
+					((MappedByteBuffer)segments.get(i)).force();
+			}
+
+			// the last one may get more records
+			forced = Math.max(segments.size() - 1, 0);
+		}
+
+		void discard() {
+			if (channel == null)
+				return;
+
+			try {
+				channel.close();
+			} catch (IOException e) {
+				log.error("Failed to close the compacting storage: " + e.getMessage(), e);
+			}
+
+			path.delete();
+		}
+	}
+
+	private static ByteBuffer recordAt(List<ByteBuffer> segments, int segmentSize, Entry entry) {
+		ByteBuffer record = segments.get((int)(entry.position / segmentSize)).duplicate();
+		int start = (int)(entry.position % segmentSize);
+		record.limit(start + entry.size).position(start);
+		return record;
+	}
+
+	// Writes the tombstones of the removed entries and the changed times to the
+	// new log. Returns the entries to copy after them: the appended ones and the
+	// copied peers hit by the tombstones of the same origin. Only walks the
+	// changes, the caller holds the write lock.
+	private List<Entry> takeChanges(LogWriter writer) throws IOException {
+		List<Entry> entries = new ArrayList<>();
+		for (Entry entry : changes.appended) {
+			if (!entry.retired)
+				entries.add(entry);
+		}
+
+		// a tombstone for every remove, the removed entry or the one it
+		// replaced may be copied already
+		Map<Id, Set<Id>> removedPeers = new HashMap<>();
+		for (Entry entry : changes.removed) {
+			if (entry.peerKey == null) {
+				writer.write(tombstone(REMOVE_VALUE, entry.id, null));
+				continue;
+			}
+
+			Id origin = entry.peerKey.origin;
+			if (!removedPeers.computeIfAbsent(entry.id, k -> new HashSet<>()).add(origin))
+				continue;
+
+			writer.write(tombstone(REMOVE_PEER, entry.id, origin));
+			Map<PeerKey, Entry> current = peers.get(entry.id);
+			if (current != null) {
+				for (Entry e : current.values()) {
+					if (e.compactedPosition >= 0 && e.peerKey.origin.equals(origin))
+						entries.add(e);
+				}
+			}
+		}
+
+		for (Entry entry : changes.touched) {
+			if (entry.compactedPosition >= 0 && !entry.retired)
+				writer.updateTimes(entry.compactedPosition, entry.timestamp, entry.announced);
+		}
+
+		changes.appended.clear();
+		changes.removed.clear();
+		changes.touched.clear();
+		return entries;
+	}
+
+	// Copies the live records to a new log. The copy runs without the lock in
+	// the passes, each pass copies the records appended during the previous
+	// one, the puts and the removes go on in the old log meanwhile. When little
+	// is left, the rest is carried over and the logs are swapped under the write
+	// lock. Called without the lock.
+	void compact() throws IOException {
+		compactLock.lock();
+		try {
+			List<Entry> pending = new ArrayList<>();
+			List<ByteBuffer> oldSegments;
+
+			lock.writeLock().lock();
+			try {
+				compactionScheduled = false;
+				if (closed || !compactable())
+					return;
+
+				pending.addAll(values.values());
+				for (Map<PeerKey, Entry> m : peers.values())
+					pending.addAll(m.values());
+				oldSegments = new ArrayList<>(segments);
+				changes = new Changes();
+			} finally {
+				lock.writeLock().unlock();
+			}
+
+			LogWriter writer = new LogWriter(file != null ? new File(file.getPath() + ".compacting") : null);
+			List<Entry> copied = new ArrayList<>();
+			boolean swapped = false;
+			try {
+				for (int pass = 0; ; pass++) {
+					// the copied records don't move or change, except the
+					// times updated in place
+					for (Entry entry : pending) {
+						entry.compactedPosition = writer.write(recordAt(oldSegments, segmentSize, entry));
+						copied.add(entry);
+					}
+
+					writer.force();
+
+					lock.writeLock().lock();
+					try {
+						if (closed)
+							return;
+
+						long bytes = 0;
+						for (Entry entry : changes.appended)
+							bytes += entry.size;
+
+						// few enough to carry over under the lock
+						if (bytes < Constants.STORAGE_COMPACT_LOCKED_BYTES || pass >= Constants.STORAGE_COMPACT_PASSES)
+							break;
+
+						pending = takeChanges(writer);
+						oldSegments = new ArrayList<>(segments);
+					} finally {
+						lock.writeLock().unlock();
+					}
+				}
+
+				swapped = swap(writer, copied);
+			} finally {
+				lock.writeLock().lock();
+				try {
+					changes = null;
+					if (!swapped) {
+						for (Entry entry : copied)
+							entry.compactedPosition = -1;
+					}
+				} finally {
+					lock.writeLock().unlock();
+				}
+
+				if (!swapped)
+					writer.discard();
+			}
+		} finally {
+			compactLock.unlock();
+		}
+	}
+
+	// Carries over the changes since the last pass and swaps the logs
+	private boolean swap(LogWriter writer, List<Entry> copied) throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (closed)
+				return false;
+
+			long totalBefore = totalBytes;
+			List<Entry> carried = takeChanges(writer);
+			for (Entry entry : carried) {
+				entry.compactedPosition = writer.write(recordAt(segments, segmentSize, entry));
+				copied.add(entry);
+			}
+
+			writer.force();
+			if (writer.channel != null)
+				Files.move(writer.path.toPath(), file.toPath(),
+						StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			closeChannel();
+			channel = writer.channel;
+			segments = writer.segments;
+			// the retired entries move too, nothing reads them
+			for (Entry entry : copied) {
+				entry.position = entry.compactedPosition;
+				entry.compactedPosition = -1;
+			}
+
+			tail = writer.tail;
+			totalBytes = writer.bytes;
+			compactions++;
+			log.debug("Mapped storage compacted, {} -> {} bytes, {} records carried over",
+					totalBefore, totalBytes, carried.size());
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public Value getValue(Id valueId) throws KadException {
+		lock.readLock().lock();
+		try {
+			Entry entry = values.get(valueId);
+			if (entry == null || entry.timestamp < Clock.currentTimeMillis() - Constants.MAX_VALUE_AGE)
+				return null;
+
+			return valueAt(entry);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Value putValue(Value value, int expectedSeq, boolean persistent, boolean updateLastAnnounce) throws KadException {
+		if (value.isMutable() && !value.isValid())
+			throw new InvalidSignature("Value signature validation failed");
+
+		lock.writeLock().lock();
+		try {
+			Entry oldEntry = values.get(value.getId());
+			Value old = oldEntry != null && oldEntry.timestamp >= Clock.currentTimeMillis() - Constants.MAX_VALUE_AGE ?
+					valueAt(oldEntry) : null;
+			if (old != null && old.isMutable()) {
+				if (!value.isMutable())
+					throw new ImmutableSubstitutionFail("Can not replace mutable value with immutable is not supported");
+				if (old.hasPrivateKey() && !value.hasPrivateKey())
+					throw new NotValueOwner("Not the owner of the value");
+				if (value.getSequenceNumber() < old.getSequenceNumber())
+					throw new SequenceNotMonotonic("Sequence number less than current");
+				if (expectedSeq >= 0 && old.getSequenceNumber() >= 0 && old.getSequenceNumber() != expectedSeq)
+					throw new CasFail("CAS failure");
+			}
+
+			long now = Clock.currentTimeMillis();
+			long announced = updateLastAnnounce ? now : 0;
+			// same as the SQLite upsert: an update keeps the persistent flag and the last announce
+			if (oldEntry != null) {
+				persistent = oldEntry.persistent;
+				announced = oldEntry.announced;
+			}
+
+			ByteBuffer record = valueRecord(value, persistent, now, announced);
+			int size = record.remaining();
+			long position = append(record);
+			putValueEntry(new Entry(value.getId(), null, position, size, persistent, now, announced, nextSequence++));
+
+			if (durableWrites || persistent)
+				sync(position);
+
+			return old;
+		} catch (IOException e) {
+			log.error("Mapped storage encounter an error: " + e.getMessage(), e);
+			throw new IOError("Mapped storage encounter an error: " + e.getMessage(), e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void updateLastAnnounce(Entry entry, TreeSet<Entry> expiry) {
+		long now = Clock.currentTimeMillis();
+
+		if (!entry.persistent)
+			expiry.remove(entry);
+
+		entry.timestamp = now;
+		entry.announced = now;
+		if (!entry.persistent)
+			expiry.add(entry);
+
+		if (changes != null)
+			changes.touched.add(entry);
+
+		// the times are not covered by the crc
+		ByteBuffer segment = segment(entry.position);
+		int offset = segment.position();
+		segment.putLong(offset + TIMESTAMP_OFFSET, now);
+		segment.putLong(offset + ANNOUNCED_OFFSET, now);
+
+		if (durableWrites)
+			sync(entry.position);
+	}
+
+	@Override
+	public void updateValueLastAnnounce(Id valueId) throws KadException {
+		lock.writeLock().lock();
+		try {
+			Entry entry = values.get(valueId);
+			if (entry != null)
+				updateLastAnnounce(entry, valueExpiry);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public Stream<Value> getPersistentValues(long lastAnnounceBefore) throws KadException {
+		List<Entry> result = new ArrayList<>();
+		lock.readLock().lock();
+		try {
+			for (Entry entry : values.values()) {
+				if (entry.persistent && entry.announced <= lastAnnounceBefore)
+					result.add(entry);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		// in the id order, the records are read lazily, skipped if removed since
+		result.sort((e1, e2) -> e1.id.compareTo(e2.id));
+		return result.stream().map(entry -> {
+			lock.readLock().lock();
+			try {
+				return values.get(entry.id) == entry ? valueAt(entry) : null;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}).filter(Objects::nonNull);
+	}
+
+	@Override
+	public List<Value> getPersistentValues(long lastAnnounceBefore, Id after, int limit) throws KadException {
+		List<Value> result = new ArrayList<>();
+		lock.readLock().lock();
+		try {
+			List<Entry> entries = new ArrayList<>();
+			for (Entry entry : values.values()) {
+				if (entry.persistent && entry.announced <= lastAnnounceBefore &&
+						(after == null || entry.id.compareTo(after) > 0))
+					entries.add(entry);
+			}
+
+			entries.sort((e1, e2) -> e1.id.compareTo(e2.id));
+			for (Entry entry : entries.subList(0, Math.min(limit, entries.size())))
+				result.add(valueAt(entry));
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		return result;
+	}
+
+	@Override
+	public Stream<Id> getAllValues() throws KadException {
+		long when = Clock.currentTimeMillis() - Constants.MAX_VALUE_AGE;
+
+		lock.readLock().lock();
+		try {
+			List<Id> ids = new ArrayList<>();
+			for (Entry entry : values.values()) {
+				if (entry.timestamp >= when)
+					ids.add(entry.id);
+			}
+
+			Collections.sort(ids);
+			return ids.stream();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean removeValue(Id valueId) throws KadException {
+		lock.writeLock().lock();
+		try {
+			if (!values.containsKey(valueId))
+				return false;
+
+			long position = append(tombstone(REMOVE_VALUE, valueId, null));
+			removeValueEntry(valueId);
+
+			if (durableWrites)
+				sync(position);
+
+			return true;
+		} catch (IOException e) {
+			log.error("Mapped storage encounter an error: " + e.getMessage(), e);
+			throw new IOError("Mapped storage encounter an error: " + e.getMessage(), e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public List<PeerInfo> getPeer(Id peerId, int maxPeers) throws KadException {
+		if (maxPeers <= 0)
+			maxPeers = Integer.MAX_VALUE;
+
+		long when = Clock.currentTimeMillis() - Constants.MAX_PEER_AGE;
+
+		lock.readLock().lock();
+		try {
+			Map<PeerKey, Entry> entries = peers.get(peerId);
+			if (entries == null)
+				return Collections.emptyList();
+
+			List<Entry> live = new ArrayList<>(entries.size());
+			for (Entry entry : entries.values()) {
+				if (entry.timestamp >= when)
+					live.add(entry);
+			}
+
+			// random sample, partial shuffle of the first maxPeers
+			int n = Math.min(maxPeers, live.size());
+			if (n < live.size()) {
+				ThreadLocalRandom rnd = ThreadLocalRandom.current();
+				for (int i = 0; i < n; i++)
+					Collections.swap(live, i, i + rnd.nextInt(live.size() - i));
+			}
+
+			List<PeerInfo> result = new ArrayList<>(n);
+			for (int i = 0; i < n; i++)
+				result.add(peerAt(live.get(i)));
+
+			return result.isEmpty() ? Collections.emptyList() : result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public PeerInfo getPeer(Id peerId, Id origin) throws KadException {
+		long when = Clock.currentTimeMillis() - Constants.MAX_PEER_AGE;
+
+		lock.readLock().lock();
+		try {
+			Map<PeerKey, Entry> entries = peers.get(peerId);
+			if (entries == null)
+				return null;
+
+			for (Entry entry : entries.values()) {
+				if (entry.peerKey.origin.equals(origin) && entry.timestamp >= when)
+					return peerAt(entry);
+			}
+
+			return null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean removePeer(Id peerId, Id origin) throws KadException {
+		lock.writeLock().lock();
+		try {
+			Map<PeerKey, Entry> entries = peers.get(peerId);
+			if (entries == null || entries.keySet().stream().noneMatch(k -> k.origin.equals(origin)))
+				return false;
+
+			long position = append(tombstone(REMOVE_PEER, peerId, origin));
+			removePeerEntries(peerId, origin);
+
+			if (durableWrites)
+				sync(position);
+
+			return true;
+		} catch (IOException e) {
+			log.error("Mapped storage encounter an error: " + e.getMessage(), e);
+			throw new IOError("Mapped storage encounter an error: " + e.getMessage(), e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// the caller holds the write lock
+	private long appendPeer(PeerInfo peer, boolean persistent, boolean updateLastAnnounce) throws IOException {
+		long now = Clock.currentTimeMillis();
+		long announced = updateLastAnnounce ? now : 0;
+
+		ByteBuffer record = peerRecord(peer, persistent, now, announced);
+		int size = record.remaining();
+		long position = append(record);
+		putPeerEntry(new Entry(peer.getId(), new PeerKey(peer.getNodeId(), peer.getOrigin()),
+				position, size, persistent, now, announced, nextSequence++));
+
+		return position;
+	}
+
+	@Override
+	public void putPeer(Collection<PeerInfo> peers) throws KadException {
+		lock.writeLock().lock();
+		try {
+			long position = -1;
+			for (PeerInfo peer : peers)
+				position = appendPeer(peer, false, false);
+
+			if (durableWrites && position >= 0)
+				sync(position);
+		} catch (IOException e) {
+			log.error("Mapped storage encounter an error: " + e.getMessage(), e);
+			throw new IOError("Mapped storage encounter an error: " + e.getMessage(), e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void putPeer(PeerInfo peer, boolean persistent, boolean updateLastAnnounce) throws KadException {
+		lock.writeLock().lock();
+		try {
+			long position = appendPeer(peer, persistent, updateLastAnnounce);
+
+			if (durableWrites || persistent)
+				sync(position);
+		} catch (IOException e) {
+			log.error("Mapped storage encounter an error: " + e.getMessage(), e);
+			throw new IOError("Mapped storage encounter an error: " + e.getMessage(), e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void updatePeerLastAnnounce(Id peerId, Id origin) throws KadException {
+		lock.writeLock().lock();
+		try {
+			Map<PeerKey, Entry> entries = peers.get(peerId);
+			if (entries == null)
+				return;
+
+			for (Entry entry : entries.values()) {
+				if (entry.peerKey.origin.equals(origin))
+					updateLastAnnounce(entry, peerExpiry);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public Stream<PeerInfo> getPersistentPeers(long lastAnnounceBefore) throws KadException {
+		List<Entry> result = new ArrayList<>();
+		lock.readLock().lock();
+		try {
+			for (Map<PeerKey, Entry> entries : peers.values()) {
+				for (Entry entry : entries.values()) {
+					if (entry.persistent && entry.announced <= lastAnnounceBefore)
+						result.add(entry);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		// in the id and node id order, the records are read lazily, skipped if
+		// removed since
+		result.sort((e1, e2) -> {
+			int r = e1.id.compareTo(e2.id);
+			return r != 0 ? r : e1.peerKey.nodeId.compareTo(e2.peerKey.nodeId);
+		});
+		return result.stream().map(entry -> {
+			lock.readLock().lock();
+			try {
+				Map<PeerKey, Entry> entries = peers.get(entry.id);
+				return entries != null && entries.get(entry.peerKey) == entry ? peerAt(entry) : null;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}).filter(Objects::nonNull);
+	}
+
+	@Override
+	public List<PeerInfo> getPersistentPeers(long lastAnnounceBefore, Id after, Id afterNodeId, int limit)
+			throws KadException {
+		List<PeerInfo> result = new ArrayList<>();
+		lock.readLock().lock();
+		try {
+			List<Entry> entries = new ArrayList<>();
+			for (Map<PeerKey, Entry> es : peers.values()) {
+				for (Entry entry : es.values()) {
+					if (!entry.persistent || entry.announced > lastAnnounceBefore)
+						continue;
+
+					if (after != null) {
+						int r = entry.id.compareTo(after);
+						if (r < 0 || (r == 0 && entry.peerKey.nodeId.compareTo(afterNodeId) <= 0))
+							continue;
+					}
+
+					entries.add(entry);
+				}
+			}
+
+			entries.sort((e1, e2) -> {
+				int r = e1.id.compareTo(e2.id);
+				return r != 0 ? r : e1.peerKey.nodeId.compareTo(e2.peerKey.nodeId);
+			});
+			for (Entry entry : entries.subList(0, Math.min(limit, entries.size())))
+				result.add(peerAt(entry));
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		return result;
+	}
+
+	@Override
+	public Stream<Id> getAllPeers() throws KadException {
+		long when = Clock.currentTimeMillis() - Constants.MAX_PEER_AGE;
+
+		lock.readLock().lock();
+		try {
+			List<Id> ids = new ArrayList<>();
+			for (Map.Entry<Id, Map<PeerKey, Entry>> e : peers.entrySet()) {
+				if (e.getValue().values().stream().anyMatch(entry -> entry.timestamp >= when))
+					ids.add(e.getKey());
+			}
+
+			Collections.sort(ids);
+			return ids.stream();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// The expired records are garbage, no tombstones: the replay skips them too
+	void expire() {
+		long now = Clock.currentTimeMillis();
+
+		lock.writeLock().lock();
+		try {
+			long ts = now - Constants.MAX_VALUE_AGE;
+			while (!valueExpiry.isEmpty() && valueExpiry.first().timestamp < ts)
+				removeValueEntry(valueExpiry.first().id);
+
+			ts = now - Constants.MAX_PEER_AGE;
+			while (!peerExpiry.isEmpty() && peerExpiry.first().timestamp < ts)
+				removePeerEntry(peerExpiry.first());
+		} finally {
+			lock.writeLock().unlock();
+		}
+
+		try {
+			compact();
+		} catch (IOException e) {
+			log.error("Failed to compact the mapped storage: " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		lock.readLock().lock();
+		try {
+			return String.format("Mapped storage, values: %d, peer ids: %d, live: %d/%d bytes, segments: %d, compactions: %d",
+					values.size(), peers.size(), liveBytes, totalBytes, segments.size(), compactions);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+}
@@ -41,6 +41,7 @@ public class NetworkEngine {
 	private ConcurrentLinkedQueue<Selectable> interestUpdates;
 	private List<Selectable> selectables;
 	private AtomicReference<Thread> worker;
+	private String name;
 
 	private Selector selector;
 
@@ -57,6 +58,11 @@ public class NetworkEngine {
 	}
 
 	public NetworkEngine() {
+		this("KademliaNetworkEngine");
+	}
+
+	public NetworkEngine(String name) {
+		this.name = name;
 		this.registrations = new ConcurrentLinkedQueue<>();
 		this.interestUpdates = new ConcurrentLinkedQueue<>();
 		this.selectables = new ArrayList<>();
@@ -64,7 +70,7 @@ public class NetworkEngine {
 
 		try {
 			this.selector = Selector.open();
-			log.info("NIO network engine started.");
+			log.info("NIO network engine {} started.", name);
 		} catch (IOException e) {
 			throw new RuntimeException("NIO selector error.", e);
 		}
@@ -185,7 +191,7 @@ public class NetworkEngine {
 			Thread thread = worker.get();
 			if (thread == null && registrations.peek() != null) {
 				thread = new Thread(this::loop);
-				thread.setName("KademliaNetworkEngine");
+				thread.setName(name);
 				thread.setDaemon(true);
 				if (worker.compareAndSet(null, thread)) {
 					thread.start();
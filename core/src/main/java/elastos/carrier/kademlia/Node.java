@@ -32,37 +32,44 @@ import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
-import java.util.stream.Stream;
+import java.util.function.Supplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
-import com.google.common.cache.RemovalListener;
-import com.google.common.cache.RemovalNotification;
 
 import elastos.carrier.CarrierException;
 import elastos.carrier.Configuration;
 import elastos.carrier.Id;
 import elastos.carrier.LookupOption;
+import elastos.carrier.LookupTuning;
 import elastos.carrier.NodeInfo;
 import elastos.carrier.NodeStatus;
 import elastos.carrier.NodeStatusListener;
@@ -74,6 +81,7 @@ import elastos.carrier.kademlia.DHT.Type;
 import elastos.carrier.kademlia.exceptions.CryptoError;
 import elastos.carrier.kademlia.exceptions.IOError;
 import elastos.carrier.kademlia.exceptions.KadException;
+import elastos.carrier.kademlia.messages.Message;
 import elastos.carrier.kademlia.tasks.Task;
 import elastos.carrier.kademlia.tasks.TaskFuture;
 import elastos.carrier.utils.AddressUtils;
@@ -92,6 +100,25 @@ public class Node implements elastos.carrier.Node {
 	private volatile static ScheduledThreadPoolExecutor defaultScheduler;
 	private ScheduledExecutorService scheduler;
 
+	private static AtomicInteger workerThreadIndex;
+	private volatile static ThreadPoolExecutor defaultWorkers;
+	private ExecutorService workers;
+	private ExecutorService blockingExecutor;
+	// created by the node, not set by the simulations
+	private boolean ownBlockingExecutor;
+	// the shared event loop of the DHTs, null if each DHT runs its own
+	private ExecutorService eventLoop;
+	private Transport transport;
+	private PersistentAnnouncer announcer;
+
+	// the concurrency budget of the batch operations
+	private final LookupBudget lookupBudget = new LookupBudget(Constants.MAX_BATCH_OPERATIONS,
+			task -> getBlockingExecutor().execute(task));
+	// the same lookups in flight share one execution
+	private final SingleFlight<LookupKey> lookups = new SingleFlight<>();
+	// the recent lookup misses and found nodes, null if disabled
+	private LookupCache lookupCache;
+
 	private List<ScheduledFuture<?>> scheduledActions = new ArrayList<>();
 
 	private NetworkEngine networkEngine;
@@ -101,7 +128,7 @@ public class Node implements elastos.carrier.Node {
 	private int numDHTs;
 	private LookupOption defaultLookupOption;
 
-	private LoadingCache<Id, CryptoContext> cryptoContexts;
+	private CryptoCache cryptoContexts;
 	private Blacklist blacklist;
 
 	private TokenManager tokenMan;
@@ -112,7 +139,60 @@ public class Node implements elastos.carrier.Node {
 
 	private static final Logger log = LoggerFactory.getLogger(Node.class);
 
+	// The key of a lookup, the same lookups in flight are coalesced
+	private static final class LookupKey {
+		final Message.Method method;
+		final Id target;
+		final LookupOption option;
+		final int expected;
+
+		LookupKey(Message.Method method, Id target, LookupOption option, int expected) {
+			this.method = method;
+			this.target = target;
+			this.option = option;
+			this.expected = expected;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(method, target, option, expected);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o == this)
+				return true;
+
+			if (o instanceof LookupKey) {
+				LookupKey k = (LookupKey)o;
+				return method == k.method && target.equals(k.target) &&
+						option == k.option && expected == k.expected;
+			}
+
+			return false;
+		}
+	}
+
+	// The routing tables of the DHTs, taken once for a batch
+	private static final class RoutingSnapshot {
+		final RoutingTable.Snapshot buckets4;
+		final RoutingTable.Snapshot buckets6;
+
+		RoutingSnapshot(RoutingTable.Snapshot buckets4, RoutingTable.Snapshot buckets6) {
+			this.buckets4 = buckets4;
+			this.buckets6 = buckets6;
+		}
+	}
+
 	public Node(Configuration config) throws KadException {
+		this(config, null);
+	}
+
+	/**
+	 * Creates the node with the given key pair instead of the persisted or a
+	 * random one, e.g. the seeded keys of the simulated nodes.
+	 */
+	Node(Configuration config, Signature.KeyPair keyPair) throws KadException {
 		if (config.IPv4Address() == null && config.IPv6Address() == null) {
 			log.error("No valid IPv4 or IPv6 address specified");
 			throw new IOError("No listening address");
@@ -124,8 +204,10 @@ public class Node implements elastos.carrier.Node {
 		storagePath = config.storagePath() != null ? config.storagePath().getAbsoluteFile() : null;
 		persistent = checkPersistence(storagePath);
 
+		this.keyPair = keyPair;
+
 		File keyFile = null;
-		if (persistent) {
+		if (persistent && keyPair == null) {
 			// Try to load the existing key
 			keyFile = new File(storagePath, "key");
 			if (keyFile.exists()) {
@@ -163,6 +245,22 @@ public class Node implements elastos.carrier.Node {
 		this.scheduledActions = new ArrayList<>();
 	}
 
+	private DataStorage openStorage() throws KadException {
+		String engine = String.valueOf(config.storageEngine());
+		switch (engine) {
+		case "sqlite":
+			File dbFile = persistent ? new File(storagePath, "node.db") : null;
+			return SQLiteStorage.open(dbFile, getScheduler(), config.durableWrites());
+
+		case "mapped":
+			File storeFile = persistent ? new File(storagePath, "node.store") : null;
+			return MappedStorage.open(storeFile, getScheduler(), config.durableWrites());
+
+		default:
+			throw new IOError("Invalid storage engine: " + engine);
+		}
+	}
+
 	private boolean checkPersistence(File storagePath) {
 		if (storagePath == null) {
 			log.info("Storage path disabled, DHT node will not try to persist");
@@ -212,26 +310,12 @@ public class Node implements elastos.carrier.Node {
 	}
 
 	private void setupCryptoBoxesCache() {
-		CacheLoader<Id, CryptoContext> loader;
-		loader = new CacheLoader<>() {
-			@Override
-			public CryptoContext load(Id id) throws CryptoError {
-				return new CryptoContext(id, encryptKeyPair);
-			}
-		};
-
-		RemovalListener<Id, CryptoContext> listener;
-		listener = new RemovalListener<Id, CryptoContext>() {
-			@Override
-			public void onRemoval(RemovalNotification<Id, CryptoContext> n) {
-				n.getValue().close();
-			}
-		};
+		cryptoContexts = new CryptoCache(Constants.CRYPTO_CONTEXT_CACHE_SIZE,
+				(id) -> new CryptoContext(id, encryptKeyPair));
+	}
 
-		cryptoContexts = CacheBuilder.newBuilder()
-				.expireAfterAccess(Constants.KBUCKET_OLD_AND_STALE_TIME, TimeUnit.MILLISECONDS)
-				.removalListener(listener)
-				.build(loader);
+	CryptoCache getCryptoContexts() {
+		return cryptoContexts;
 	}
 
 	@Override
@@ -249,6 +333,15 @@ public class Node implements elastos.carrier.Node {
 		return config;
 	}
 
+	/**
+	 * The tuning of the lookups in the given mode, the one configured for the
+	 * node or the preset of the mode.
+	 */
+	public LookupTuning getLookupTuning(LookupOption option) {
+		LookupTuning tuning = config.lookupTuning().get(option);
+		return tuning != null ? tuning : option.tuning();
+	}
+
 	@Override
 	public void setDefaultLookupOption(LookupOption option) {
 		defaultLookupOption = option != null ? option : LookupOption.CONSERVATIVE;
@@ -318,6 +411,101 @@ public class Node implements elastos.carrier.Node {
 		return defaultScheduler;
 	}
 
+	/**
+	 * The worker pool runs the CPU bound jobs: decrypting and decoding the
+	 * inbound packets, encoding and encrypting the outbound messages. The
+	 * protocol state is only touched on the event loop of each DHT.
+	 */
+	public ExecutorService getWorkers() {
+		return workers;
+	}
+
+	private static ExecutorService getDefaultWorkers() {
+		if (defaultWorkers == null) {
+			workerThreadIndex = new AtomicInteger(0);
+
+			int poolSize = Math.max(Runtime.getRuntime().availableProcessors(), 2);
+
+			ThreadGroup group = new ThreadGroup("CarrierKadNodeWorkers");
+			ThreadFactory factory = (r) -> {
+				Thread thread = new Thread(group, r, "KadNode-wk-" + workerThreadIndex.getAndIncrement());
+				thread.setUncaughtExceptionHandler((t, e) -> {
+					log.error("Worker thread " + t.getName() + " encounter an uncaught exception.", e);
+				});
+				thread.setDaemon(true);
+				return thread;
+			};
+
+			log.info("Creating the default worker thread pool executor, PoolSize: {}, KeepAliveTime: 20s",
+					poolSize);
+
+			ThreadPoolExecutor w = new ThreadPoolExecutor(poolSize, poolSize, 20, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<>(), factory, (r, e) -> {
+				log.error("Workers encounter a reject exception.", e);
+			});
+			w.allowCoreThreadTimeOut(true);
+			defaultWorkers = w;
+		}
+
+		return defaultWorkers;
+	}
+
+	/**
+	 * The executor for the blocking storage calls, on the virtual threads if
+	 * enabled, otherwise on a pool of the platform threads. Keeps the storage
+	 * I/O off the DHT event loops and the timer threads.
+	 */
+	ExecutorService getBlockingExecutor() {
+		return blockingExecutor;
+	}
+
+	// The complete handlers of the lookups run on the DHT event loops, save
+	// the results on the blocking executor
+	private void saveLookupResult(Runnable save) {
+		try {
+			blockingExecutor.execute(save);
+		} catch (RejectedExecutionException e) {
+			log.debug("Node is stopping, the lookup result is not saved");
+		}
+	}
+
+	private static ExecutorService newBlockingExecutor(boolean virtualThreads) {
+		// The virtual threads are available since Java 21, the project still
+		// targets Java 11, so create the executor by reflection:
+		//   Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("KadNode-vt-", 0).factory())
+		if (virtualThreads) {
+			try {
+				Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+				builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "KadNode-vt-", 0L);
+				ThreadFactory factory = (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+
+				ExecutorService executor = (ExecutorService)Executors.class
+						.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+				log.info("Created the virtual thread executor for the blocking calls");
+				return executor;
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				log.warn("Virtual threads are not available on this Java runtime, use {} platform threads for the blocking calls",
+						Constants.BLOCKING_POOL_SIZE);
+			}
+		}
+
+		AtomicInteger index = new AtomicInteger(0);
+		ThreadFactory factory = (r) -> {
+			Thread thread = new Thread(r, "KadNode-io-" + index.getAndIncrement());
+			thread.setUncaughtExceptionHandler((t, e) -> {
+				log.error("Blocking call thread " + t.getName() + " encounter an uncaught exception.", e);
+			});
+			thread.setDaemon(true);
+			return thread;
+		};
+
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(Constants.BLOCKING_POOL_SIZE, Constants.BLOCKING_POOL_SIZE,
+				20, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), factory);
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
 	@Override
 	public void bootstrap(NodeInfo node) throws KadException {
 		checkArgument(node != null, "Invalid bootstrap node");
@@ -346,9 +534,19 @@ public class Node implements elastos.carrier.Node {
 			networkEngine = new NetworkEngine();
 			if (this.scheduler == null)
 				this.scheduler = getDefaultScheduler();
+			if (this.workers == null)
+				this.workers = getDefaultWorkers();
+			if (this.blockingExecutor == null) {
+				this.blockingExecutor = newBlockingExecutor(config.virtualThreads());
+				ownBlockingExecutor = true;
+			}
 
-			File dbFile = persistent ? new File(storagePath, "node.db") : null;
-			storage = SQLiteStorage.open(dbFile, getScheduler());
+			// unless set by the tests or the simulations
+			if (storage == null)
+				storage = openStorage();
+
+			lookupCache = config.lookupCacheTTL() > 0 ?
+					new LookupCache(config.lookupCacheTTL(), TimeUnit.SECONDS, Clock.ticker()) : null;
 
 			if (config.IPv4Address() != null) {
 				InetSocketAddress addr4 = config.IPv4Address();
@@ -387,8 +585,12 @@ public class Node implements elastos.carrier.Node {
 			throw e;
 		}
 
+		// Re-announce the persistent values and peers, the storage calls run on
+		// the blocking executor, the scheduler only triggers them
+		Executor executor = blockingExecutor;
+		announcer = new PersistentAnnouncer(this, executor, getScheduler());
 		scheduledActions.add(getScheduler().scheduleWithFixedDelay(() -> {
-			persistentAnnounce();
+			executor.execute(announcer::announce);
 		}, 60000, Constants.RE_ANNOUNCE_INTERVAL, TimeUnit.MILLISECONDS));
 	}
 
@@ -416,6 +618,11 @@ public class Node implements elastos.carrier.Node {
 
 		scheduledActions.clear();
 
+		if (announcer != null) {
+			announcer.stop();
+			announcer = null;
+		}
+
 		if (dht4 != null) {
 			dht4.stop();
 			dht4 = null;
@@ -427,6 +634,12 @@ public class Node implements elastos.carrier.Node {
 		}
 
 		networkEngine = null;
+		if (ownBlockingExecutor) {
+			blockingExecutor.shutdown();
+			blockingExecutor = null;
+			ownBlockingExecutor = false;
+		}
+
 		try {
 			storage.close();
 		} catch (Exception e) {
@@ -452,69 +665,53 @@ public class Node implements elastos.carrier.Node {
 		return status == NodeStatus.Running;
 	}
 
-	private void persistentAnnounce() {
-		log.info("Re-announce the persistent values and peers...");
-
-		long ts = System.currentTimeMillis() - Constants.MAX_VALUE_AGE +
-				Constants.RE_ANNOUNCE_INTERVAL * 2;
-		Stream<Value> vs;
-		try {
-			vs = storage.getPersistentValues(ts);
-
-			vs.forEach((v) -> {
-				log.debug("Re-announce the value: {}", v.getId());
-
-				try {
-					storage.updateValueLastAnnounce(v.getId());
-				} catch (Exception e) {
-					log.error("Can not update last announce timestamp for value", e);
-				}
+	NetworkEngine getNetworkEngine() {
+		return networkEngine;
+	}
 
-				doStoreValue(v).whenComplete((na, e) -> {
-					if (e == null)
-						log.debug("Re-announce the value {} success", v.getId());
-					else
-						log.error("Re-announce the value " + v.getId() + " failed", e);
-				});
-			});
-		} catch (KadException e) {
-			log.error("Can not read the persistent values", e);
-		}
+	public Transport getTransport() {
+		return transport;
+	}
 
-		ts = System.currentTimeMillis() - Constants.MAX_PEER_AGE +
-				Constants.RE_ANNOUNCE_INTERVAL * 2;
-		try {
-			Stream<PeerInfo> ps = storage.getPersistentPeers(ts);
+	/**
+	 * Replaces the UDP sockets of the DHTs with the transport, e.g. a
+	 * simulated network. Must be set before the node starts.
+	 */
+	public void setTransport(Transport transport) {
+		this.transport = transport;
+	}
 
-			ps.forEach((p) -> {
-				log.debug("Re-announce the peer: {}", p.getId());
+	// for the simulations, run the CPU bound jobs on the given executor
+	void setWorkers(ExecutorService workers) {
+		this.workers = workers;
+	}
 
-				try {
-					storage.updatePeerLastAnnounce(p.getId(), p.getOrigin());
-				} catch (Exception e) {
-					log.error("Can not update last announce timestamp for peer", e);
-				}
+	// for the simulations, run the blocking storage calls on the given executor,
+	// the node doesn't shut it down
+	void setBlockingExecutor(ExecutorService executor) {
+		this.blockingExecutor = executor;
+	}
 
-				doAnnouncePeer(p).whenComplete((na, e) -> {
-					if (e == null)
-						log.debug("Re-announce the peer {} success", p.getId());
-					else
-						log.error("Re-announce the peer " + p.getId() + " failed", e);
-				});
-			});
-		} catch (KadException e) {
-			log.error("Can not read the persistent peers", e);
-		}
+	ExecutorService getEventLoop() {
+		return eventLoop;
 	}
 
-	NetworkEngine getNetworkEngine() {
-		return networkEngine;
+	// for the simulations, run the DHTs on the given executor instead of
+	// their own event loop threads, the DHTs don't shut it down
+	void setEventLoop(ExecutorService eventLoop) {
+		this.eventLoop = eventLoop;
 	}
 
 	DHT getDHT(Type type) {
 		return type == Type.IPV4 ? dht4 : dht6;
 	}
 
+	// for testing, replace the data storage of a running node,
+	// or set it before the node starts instead of the configured one
+	void setStorage(DataStorage storage) {
+		this.storage = storage;
+	}
+
 	public DataStorage getStorage() {
 		return storage;
 	}
@@ -529,21 +726,29 @@ public class Node implements elastos.carrier.Node {
 
 	@Override
 	public byte[] encrypt(Id recipient, byte[] data) throws CryptoError {
-		try {
-			CryptoContext ctx = cryptoContexts.get(recipient);
+		try (CryptoContext ctx = cryptoContexts.get(recipient)) {
 			return ctx.encrypt(data);
-		} catch (ExecutionException e) {
-			throw new CryptoError("can not create the encryption context", e.getCause());
 		}
 	}
 
 	@Override
 	public byte[] decrypt(Id sender, byte[] data) throws CryptoError {
-		try {
-			CryptoContext ctx = cryptoContexts.get(sender);
+		try (CryptoContext ctx = cryptoContexts.get(sender)) {
 			return ctx.decrypt(data);
-		} catch (ExecutionException e) {
-			throw new CryptoError("can not create the encryption context", e.getCause());
+		}
+	}
+
+	// Encrypt the remaining plain message into the outgoing packet buffer
+	void encrypt(Id recipient, ByteBuffer plain, ByteBuffer cipher) throws CryptoError {
+		try (CryptoContext ctx = cryptoContexts.get(recipient)) {
+			ctx.encrypt(plain, cipher);
+		}
+	}
+
+	// Decrypt the packet into its own buffer, returns the length of the plain message
+	int decrypt(Id sender, byte[] buf, int offset, int length) throws CryptoError {
+		try (CryptoContext ctx = cryptoContexts.get(sender)) {
+			return ctx.decrypt(buf, offset, length);
 		}
 	}
 
@@ -583,27 +788,49 @@ public class Node implements elastos.carrier.Node {
 				return CompletableFuture.completedFuture(results);
 		}
 
+		LookupCache cache = lookupCache;
+		if (cache != null && lookupOption != LookupOption.CONSERVATIVE) {
+			List<NodeInfo> cached = cache.getNodes(id);
+			if (cached != null)
+				return CompletableFuture.completedFuture(cached);
+		}
+
+		return lookups.execute(new LookupKey(Message.Method.FIND_NODE, id, lookupOption, -1),
+				() -> doFindNode(id, lookupOption));
+	}
+
+	private CompletableFuture<List<NodeInfo>> doFindNode(Id id, LookupOption lookupOption) {
+		List<NodeInfo> results = new ArrayList<NodeInfo>(2);
+		LookupCache cache = lookupCache;
 		TaskFuture<List<NodeInfo>> future = new TaskFuture<>();
 		AtomicInteger completion = new AtomicInteger(0);
 
+		// the tasks of the DHTs complete on their own event loops. the future is
+		// shared by all the callers of the flight, so it gets an immutable copy,
+		// the cache copies the results of all the DHTs if any found.
 		Consumer<NodeInfo> completeHandler = (n) -> {
-			int c = completion.incrementAndGet();
+			synchronized (results) {
+				int c = completion.incrementAndGet();
+
+				if (n != null)
+					results.add(n);
 
-			if (n != null)
-				results.add(n);
+				if ((lookupOption == LookupOption.OPTIMISTIC && !results.isEmpty()) || c >= numDHTs)
+					future.complete(List.copyOf(results));
 
-			if ((lookupOption == LookupOption.OPTIMISTIC && !results.isEmpty()) || c >= numDHTs)
-				future.complete(results);
+				if (c >= numDHTs && cache != null)
+					cache.putNodes(id, results);
+			}
 		};
 
 		Task t4 = null, t6 = null;
 		if (dht4 != null) {
-			t4 = dht4.findNode(id, completeHandler);
+			t4 = dht4.findNode(id, lookupOption, completeHandler);
 			future.addTask(t4);
 		}
 
 		if (dht6 != null) {
-			t6 = dht6.findNode(id, completeHandler);
+			t6 = dht6.findNode(id, lookupOption, completeHandler);
 			future.addTask(t6);
 		}
 
@@ -616,7 +843,11 @@ public class Node implements elastos.carrier.Node {
 		checkArgument(id != null, "Invalid value id");
 
 		LookupOption lookupOption = option == null ? defaultLookupOption : option;
+		return lookups.execute(new LookupKey(Message.Method.FIND_VALUE, id, lookupOption, -1),
+				() -> doFindValue(id, lookupOption, null));
+	}
 
+	private CompletableFuture<Value> doFindValue(Id id, LookupOption lookupOption, RoutingSnapshot snapshot) {
 		Value local = null;
 		try {
 			local = getStorage().getValue(id);
@@ -626,6 +857,11 @@ public class Node implements elastos.carrier.Node {
 			return CompletableFuture.failedFuture(e);
 		}
 
+		LookupCache cache = lookupCache;
+		if (local == null && cache != null && lookupOption != LookupOption.CONSERVATIVE &&
+				cache.isValueMissing(id))
+			return CompletableFuture.completedFuture(null);
+
 		TaskFuture<Value> future = new TaskFuture<>();
 		AtomicInteger completion = new AtomicInteger(0);
 		AtomicReference<Value> valueRef = new AtomicReference<>(local);
@@ -648,25 +884,28 @@ public class Node implements elastos.carrier.Node {
 			if ((lookupOption == LookupOption.OPTIMISTIC && v != null) || c >= numDHTs) {
 				Value value = valueRef.get();
 				if (value != null) {
-					try {
-						getStorage().putValue(value);
-					} catch (KadException ignore) {
-						log.error("Save value " + id + " failed", ignore);
-					}
+					saveLookupResult(() -> {
+						try {
+							getStorage().putValue(value);
+						} catch (KadException ignore) {
+							log.error("Save value " + id + " failed", ignore);
+						}
+					});
 				}
 
-				future.complete(value);
+				if (future.complete(value) && cache != null)
+					cache.valueResult(id, value != null);
 			}
 		};
 
 		Task t4 = null, t6 = null;
 		if (dht4 != null) {
-			t4 = dht4.findValue(id, lookupOption, completeHandler);
+			t4 = dht4.findValue(id, lookupOption, snapshot != null ? snapshot.buckets4 : null, completeHandler);
 			future.addTask(t4);
 		}
 
 		if (dht6 != null) {
-			t6 = dht6.findValue(id, lookupOption, completeHandler);
+			t6 = dht6.findValue(id, lookupOption, snapshot != null ? snapshot.buckets6 : null, completeHandler);
 			future.addTask(t6);
 		}
 
@@ -685,10 +924,10 @@ public class Node implements elastos.carrier.Node {
 			return CompletableFuture.failedFuture(e);
 		}
 
-		return doStoreValue(value);
+		return doStoreValue(value, null);
 	}
 
-	private CompletableFuture<Void> doStoreValue(Value value) {
+	private CompletableFuture<Void> doStoreValue(Value value, RoutingSnapshot snapshot) {
 		TaskFuture<Void> future = new TaskFuture<>();
 		AtomicInteger completion = new AtomicInteger(0);
 
@@ -700,12 +939,12 @@ public class Node implements elastos.carrier.Node {
 
 		Task t4 = null, t6 = null;
 		if (dht4 != null) {
-			t4 = dht4.storeValue(value, completeHandler);
+			t4 = dht4.storeValue(value, null, snapshot != null ? snapshot.buckets4 : null, completeHandler);
 			future.addTask(t4);
 		}
 
 		if (dht6 != null) {
-			t6 = dht6.storeValue(value, completeHandler);
+			t6 = dht6.storeValue(value, null, snapshot != null ? snapshot.buckets6 : null, completeHandler);
 			future.addTask(t6);
 		}
 
@@ -718,16 +957,26 @@ public class Node implements elastos.carrier.Node {
 		checkArgument(id != null, "Invalid peer id");
 
 		LookupOption lookupOption = option == null ? defaultLookupOption : option;
+		return lookups.execute(new LookupKey(Message.Method.FIND_PEER, id, lookupOption, expected),
+				() -> doFindPeer(id, expected, lookupOption, null));
+	}
 
+	private CompletableFuture<List<PeerInfo>> doFindPeer(Id id, int expected, LookupOption lookupOption,
+			RoutingSnapshot snapshot) {
 		List<PeerInfo> local;
 		try {
 			local = getStorage().getPeer(id, expected);
 			if (expected > 0 && local.size() >= expected && lookupOption == LookupOption.ARBITRARY)
-				return CompletableFuture.completedFuture(local);
+				return CompletableFuture.completedFuture(List.copyOf(local));
 		} catch (KadException e) {
 			return CompletableFuture.failedFuture(e);
 		}
 
+		LookupCache cache = lookupCache;
+		if (local.isEmpty() && cache != null && lookupOption != LookupOption.CONSERVATIVE &&
+				cache.isPeerMissing(id))
+			return CompletableFuture.completedFuture(Collections.emptyList());
+
 		TaskFuture<List<PeerInfo>> future = new TaskFuture<>();
 		AtomicInteger completion = new AtomicInteger(0);
 
@@ -742,31 +991,41 @@ public class Node implements elastos.carrier.Node {
 
 		// TODO: improve the value handler
 		Consumer<Collection<PeerInfo>> completeHandler = (ps) -> {
-			int c = completion.incrementAndGet();
-
-			results.addAll(ps);
-
-			try {
-				getStorage().putPeer(ps);
-			} catch (KadException ignore) {
-				log.error("Save peer " + id + " failed", ignore);
+			if (!ps.isEmpty()) {
+				List<PeerInfo> found = new ArrayList<>(ps);
+				saveLookupResult(() -> {
+					try {
+						getStorage().putPeer(found);
+					} catch (KadException ignore) {
+						log.error("Save peer " + id + " failed", ignore);
+					}
+				});
 			}
 
-			if (c >= numDHTs) {
-				ArrayList<PeerInfo> list = new ArrayList<>(results);
-				Collections.shuffle(list);
-				future.complete(list);
+			// the tasks of the DHTs complete on their own event loops, the
+			// callers of the flight share an immutable copy of the results
+			List<PeerInfo> list = null;
+			synchronized (results) {
+				results.addAll(ps);
+				if (completion.incrementAndGet() >= numDHTs) {
+					ArrayList<PeerInfo> shuffled = new ArrayList<>(results);
+					Collections.shuffle(shuffled);
+					list = List.copyOf(shuffled);
+				}
 			}
+
+			if (list != null && future.complete(list) && cache != null)
+				cache.peerResult(id, !list.isEmpty());
 		};
 
 		Task t4 = null, t6 = null;
 		if (dht4 != null) {
-			t4 = dht4.findPeer(id, expected, lookupOption, completeHandler);
+			t4 = dht4.findPeer(id, expected, lookupOption, snapshot != null ? snapshot.buckets4 : null, completeHandler);
 			future.addTask(t4);
 		}
 
 		if (dht6 != null) {
-			t6 = dht6.findPeer(id, expected, lookupOption, completeHandler);
+			t6 = dht6.findPeer(id, expected, lookupOption, snapshot != null ? snapshot.buckets6 : null, completeHandler);
 			future.addTask(t6);
 		}
 
@@ -786,10 +1045,10 @@ public class Node implements elastos.carrier.Node {
 			return CompletableFuture.failedFuture(e);
 		}
 
-		return doAnnouncePeer(peer);
+		return doAnnouncePeer(peer, null);
 	}
 
-	private CompletableFuture<Void> doAnnouncePeer(PeerInfo peer) {
+	private CompletableFuture<Void> doAnnouncePeer(PeerInfo peer, RoutingSnapshot snapshot) {
 		TaskFuture<Void> future = new TaskFuture<>();
 		AtomicInteger completion = new AtomicInteger(0);
 
@@ -801,18 +1060,135 @@ public class Node implements elastos.carrier.Node {
 
 		Task t4 = null, t6 = null;
 		if (dht4 != null) {
-			t4 = dht4.announcePeer(peer, completeHandler);
+			t4 = dht4.announcePeer(peer, null, snapshot != null ? snapshot.buckets4 : null, completeHandler);
 			future.addTask(t4);
 		}
 
 		if (dht6 != null) {
-			t6 = dht6.announcePeer(peer, completeHandler);
+			t6 = dht6.announcePeer(peer, null, snapshot != null ? snapshot.buckets6 : null, completeHandler);
 			future.addTask(t6);
 		}
 
 		return future;
 	}
 
+	private RoutingSnapshot routingSnapshot() {
+		return new RoutingSnapshot(dht4 != null ? dht4.getRoutingTable().snapshot() : null,
+				dht6 != null ? dht6.getRoutingTable().snapshot() : null);
+	}
+
+	// Joins the same lookup already in flight, or starts it within the budget
+	private <T> CompletableFuture<T> coalesce(LookupKey key, Supplier<CompletableFuture<T>> lookup) {
+		return lookups.execute(key, () -> lookupBudget.submit(lookup));
+	}
+
+	@Override
+	public Map<Id, CompletableFuture<Value>> findValues(Collection<Id> ids, LookupOption option) {
+		checkState(isRunning(), "Node not running");
+		checkArgument(ids != null, "Invalid value ids");
+
+		// validate the whole batch before any lookup starts
+		for (Id id : ids)
+			checkArgument(id != null, "Invalid value id");
+
+		LookupOption lookupOption = option == null ? defaultLookupOption : option;
+		RoutingSnapshot snapshot = routingSnapshot();
+
+		Map<Id, CompletableFuture<Value>> results = new LinkedHashMap<>();
+		for (Id id : ids) {
+			if (!results.containsKey(id))
+				results.put(id, coalesce(new LookupKey(Message.Method.FIND_VALUE, id, lookupOption, -1),
+						() -> doFindValue(id, lookupOption, snapshot)));
+		}
+
+		return results;
+	}
+
+	@Override
+	public Map<Id, CompletableFuture<List<PeerInfo>>> findPeers(Collection<Id> ids, int expected, LookupOption option) {
+		checkState(isRunning(), "Node not running");
+		checkArgument(ids != null, "Invalid peer ids");
+
+		// validate the whole batch before any lookup starts
+		for (Id id : ids)
+			checkArgument(id != null, "Invalid peer id");
+
+		LookupOption lookupOption = option == null ? defaultLookupOption : option;
+		RoutingSnapshot snapshot = routingSnapshot();
+
+		Map<Id, CompletableFuture<List<PeerInfo>>> results = new LinkedHashMap<>();
+		for (Id id : ids) {
+			if (!results.containsKey(id))
+				results.put(id, coalesce(new LookupKey(Message.Method.FIND_PEER, id, lookupOption, expected),
+						() -> doFindPeer(id, expected, lookupOption, snapshot)));
+		}
+
+		return results;
+	}
+
+	@Override
+	public Map<Id, CompletableFuture<Void>> storeValues(Collection<Value> values, boolean persistent) {
+		checkState(isRunning(), "Node not running");
+		checkArgument(values != null, "Invalid values");
+
+		// validate the whole batch before any side effect
+		Set<Id> ids = new HashSet<>();
+		for (Value value : values) {
+			checkArgument(value != null, "Invalid value: null");
+			checkArgument(value.isValid(), "Invalid value");
+			checkArgument(ids.add(value.getId()), "Invalid values: duplicate value id " + value.getId());
+		}
+
+		RoutingSnapshot snapshot = routingSnapshot();
+
+		Map<Id, CompletableFuture<Void>> results = new LinkedHashMap<>();
+		for (Value value : values) {
+			CompletableFuture<Void> future;
+			try {
+				getStorage().putValue(value, persistent);
+				future = lookupBudget.submit(() -> doStoreValue(value, snapshot));
+			} catch(KadException e) {
+				future = CompletableFuture.failedFuture(e);
+			}
+
+			results.put(value.getId(), future);
+		}
+
+		return results;
+	}
+
+	@Override
+	public Map<Id, CompletableFuture<Void>> announcePeers(Collection<PeerInfo> peers, boolean persistent) {
+		checkState(isRunning(), "Node not running");
+		checkArgument(peers != null, "Invalid peers");
+
+		// validate the whole batch before any side effect
+		Set<Id> ids = new HashSet<>();
+		for (PeerInfo peer : peers) {
+			checkArgument(peer != null, "Invalid peer: null");
+			checkArgument(peer.getOrigin().equals(getId()), "Invaid peer: not belongs to current node");
+			checkArgument(peer.isValid(), "Invalid peer");
+			checkArgument(ids.add(peer.getId()), "Invalid peers: duplicate peer id " + peer.getId());
+		}
+
+		RoutingSnapshot snapshot = routingSnapshot();
+
+		Map<Id, CompletableFuture<Void>> results = new LinkedHashMap<>();
+		for (PeerInfo peer : peers) {
+			CompletableFuture<Void> future;
+			try {
+				getStorage().putPeer(peer, persistent);
+				future = lookupBudget.submit(() -> doAnnouncePeer(peer, snapshot));
+			} catch(KadException e) {
+				future = CompletableFuture.failedFuture(e);
+			}
+
+			results.put(peer.getId(), future);
+		}
+
+		return results;
+	}
+
 	@Override
 	public Value getValue(Id valueId) throws KadException {
 		checkArgument(valueId != null, "Invalid value id");
@@ -847,6 +1223,23 @@ public class Node implements elastos.carrier.Node {
 
 		repr.append("Node: ").append(id);
 		repr.append('\n');
+		repr.append("Crypto contexts: ").append(cryptoContexts);
+		repr.append('\n');
+		repr.append("Storage: ").append(storage);
+		repr.append('\n');
+		if (announcer != null) {
+			repr.append("Re-announce: ").append(announcer);
+			repr.append('\n');
+		}
+		repr.append("Lookups: ").append(lookups);
+		repr.append('\n');
+		if (lookupCache != null) {
+			repr.append("Lookup cache: ").append(lookupCache);
+			repr.append('\n');
+		}
+		repr.append("Batch operations: ").append(lookupBudget.getRunning()).append(" running, ")
+			.append(lookupBudget.getWaiting()).append(" waiting");
+		repr.append('\n');
 		if (dht4 != null)
 			repr.append(dht4);
 		if (dht6 != null)
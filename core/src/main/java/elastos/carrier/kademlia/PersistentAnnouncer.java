@@ -0,0 +1,505 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package elastos.carrier.kademlia;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import elastos.carrier.Id;
+import elastos.carrier.NodeInfo;
+import elastos.carrier.PeerInfo;
+import elastos.carrier.Value;
+import elastos.carrier.kademlia.exceptions.KadException;
+
+/**
+ * Re-announces the persistent values and peers of the node.
+ *
+ * A round reads the rows due for the re-announce page by page, in the id
+ * order, and spreads the announces evenly over the RE_ANNOUNCE_INTERVAL with
+ * at most RE_ANNOUNCE_MAX_IN_FLIGHT of them in flight. So a node with many
+ * persistent items doesn't flood the task manager at the start of the round.
+ *
+ * The consecutive ids that are closer to each other than the closest nodes
+ * usually are to their target form a group. The first announce of the group
+ * runs the full lookup, the others wait for it and seed their lookups with its
+ * closest nodes, so they usually finish in one round trip. The announce tokens
+ * are bound to the target id, every item still needs its own lookup.
+ *
+ * The round state is guarded by this, the storage is read and updated on the
+ * executor after the lock is released, never on the DHT event loops. The pages
+ * seek by the key after the last pulled row.
+ */
+class PersistentAnnouncer {
+	// the announces are spread over this part of the interval, leaves some slack
+	// for the last ones to finish before the next round
+	private static final long ROUND_WINDOW = Constants.RE_ANNOUNCE_INTERVAL * 4L / 5;
+
+	private final Node node;
+	private final Executor executor;
+	private final ScheduledExecutorService scheduler;
+
+	private boolean stopped;
+	private boolean running;
+	private boolean fetching;
+	private Phase phase = Phase.DONE;
+	private long valuesBefore;
+	private long peersBefore;
+	private long roundStarted;
+	private long due;
+	private long pulled;
+	private int inFlight;
+	private final Deque<Item> page = new ArrayDeque<>();
+	private Item lastPulled;
+	private final Deque<Item> ready = new ArrayDeque<>();
+	private Group group;
+	// the estimated distance from a target to its farthest closest node
+	private Id radius;
+	private ScheduledFuture<?> pumpFuture;
+
+	private long rounds;
+	private long skippedRounds;
+	private long completed;
+	private long failed;
+	private long seeded;
+	private long lastRoundDuration;
+
+	private static final Logger log = LoggerFactory.getLogger(PersistentAnnouncer.class);
+
+	private static enum Phase {
+		VALUES, PEERS, DONE
+	}
+
+	private static abstract class Item {
+		final Id target;
+		Group group;
+
+		Item(Id target) {
+			this.target = target;
+		}
+
+		abstract void updateLastAnnounce(DataStorage storage) throws KadException;
+
+		abstract void announce(DHT dht, Collection<NodeInfo> seeds, Consumer<List<NodeInfo>> completeHandler);
+	}
+
+	private static final class ValueItem extends Item {
+		final Value value;
+
+		ValueItem(Value value) {
+			super(value.getId());
+			this.value = value;
+		}
+
+		@Override
+		void updateLastAnnounce(DataStorage storage) throws KadException {
+			storage.updateValueLastAnnounce(value.getId());
+		}
+
+		@Override
+		void announce(DHT dht, Collection<NodeInfo> seeds, Consumer<List<NodeInfo>> completeHandler) {
+			dht.storeValue(value, seeds, null, completeHandler);
+		}
+	}
+
+	private static final class PeerItem extends Item {
+		final PeerInfo peer;
+
+		PeerItem(PeerInfo peer) {
+			super(peer.getId());
+			this.peer = peer;
+		}
+
+		@Override
+		void updateLastAnnounce(DataStorage storage) throws KadException {
+			storage.updatePeerLastAnnounce(peer.getId(), peer.getOrigin());
+		}
+
+		@Override
+		void announce(DHT dht, Collection<NodeInfo> seeds, Consumer<List<NodeInfo>> completeHandler) {
+			dht.announcePeer(peer, seeds, null, completeHandler);
+		}
+	}
+
+	private static final class Group {
+		final Item leader;
+		final List<Item> waiting = new ArrayList<>();
+		// the closest nodes found by the leader for each DHT, null until it's done
+		Map<DHT.Type, List<NodeInfo>> closest;
+
+		Group(Item leader) {
+			this.leader = leader;
+		}
+
+		boolean isDone() {
+			return closest != null;
+		}
+	}
+
+	PersistentAnnouncer(Node node, Executor executor, ScheduledExecutorService scheduler) {
+		this.node = node;
+		this.executor = executor;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Starts a re-announce round. Skipped if the previous round is still
+	 * running, the rows it didn't reach are due in the next round anyway.
+	 */
+	void announce() {
+		long now = Clock.currentTimeMillis();
+
+		synchronized (this) {
+			if (stopped)
+				return;
+
+			if (running) {
+				skippedRounds++;
+				log.warn("The previous re-announce round is not finished, {} of {} announced", pulled, due);
+				return;
+			}
+
+			running = true;
+			phase = Phase.VALUES;
+			valuesBefore = now - Constants.MAX_VALUE_AGE + Constants.RE_ANNOUNCE_INTERVAL * 2;
+			peersBefore = now - Constants.MAX_PEER_AGE + Constants.RE_ANNOUNCE_INTERVAL * 2;
+			roundStarted = now;
+			due = 0;
+			pulled = 0;
+			page.clear();
+			lastPulled = null;
+			group = null;
+			fetching = false;
+		}
+
+		long values = 0, peers = 0;
+		DataStorage storage = node.getStorage();
+		try (Stream<Value> vs = storage.getPersistentValues(valuesBefore)) {
+			values = vs.count();
+		} catch (KadException e) {
+			log.error("Can not read the persistent values", e);
+		}
+
+		try (Stream<PeerInfo> ps = storage.getPersistentPeers(peersBefore)) {
+			peers = ps.count();
+		} catch (KadException e) {
+			log.error("Can not read the persistent peers", e);
+		}
+
+		synchronized (this) {
+			due = values + peers;
+		}
+
+		log.info("Re-announce the persistent values and peers: {} values, {} peers", values, peers);
+		pump();
+	}
+
+	void stop() {
+		synchronized (this) {
+			stopped = true;
+			running = false;
+			if (pumpFuture != null)
+				pumpFuture.cancel(false);
+		}
+	}
+
+	private long allowance(long now) {
+		// the number of the items should be announced by now
+		return due * Math.min(now - roundStarted, ROUND_WINDOW) / ROUND_WINDOW + 1;
+	}
+
+	private void pump() {
+		// a pump that fetched a page pumps again, loops instead of recursing
+		while (pumpOnce())
+			;
+	}
+
+	// The storage reads and the last announce updates run after the lock is
+	// released. Returns true if a page was fetched.
+	private boolean pumpOnce() {
+		List<Item> announces = new ArrayList<>();
+		List<Item> pulledItems = new ArrayList<>();
+		Phase fetchPhase = null;
+		Item fetchAfter = null;
+
+		synchronized (this) {
+			if (!running || stopped)
+				return false;
+
+			long now = Clock.currentTimeMillis();
+			while (inFlight < Constants.RE_ANNOUNCE_MAX_IN_FLIGHT) {
+				Item item = ready.poll();
+				if (item == null) {
+					if (phase == Phase.DONE || pulled >= allowance(now))
+						break;
+
+					if (page.isEmpty()) {
+						// one fetch at a time, the fetching pump continues
+						if (!fetching) {
+							fetching = true;
+							fetchPhase = phase;
+							fetchAfter = lastPulled;
+						}
+						break;
+					}
+
+					item = next();
+					pulledItems.add(item);
+					if (!isReady(item))
+						continue;
+				}
+
+				inFlight++;
+				announces.add(item);
+			}
+
+			if (phase == Phase.DONE && ready.isEmpty() && inFlight == 0) {
+				finish(now);
+			} else if (phase != Phase.DONE && !fetching && inFlight < Constants.RE_ANNOUNCE_MAX_IN_FLIGHT &&
+					(pumpFuture == null || pumpFuture.isDone())) {
+				// ahead of the schedule, continue when the next one is due
+				long delay = due == 0 ? 1 : Math.max(ROUND_WINDOW / due, 1);
+				try {
+					pumpFuture = scheduler.schedule(() -> executor.execute(this::pump),
+							delay, TimeUnit.MILLISECONDS);
+				} catch (RejectedExecutionException e) {
+					log.debug("Failed to schedule the re-announce: {}", e.getMessage());
+				}
+			}
+		}
+
+		DataStorage storage = node.getStorage();
+		for (Item item : pulledItems) {
+			try {
+				item.updateLastAnnounce(storage);
+			} catch (KadException e) {
+				log.error("Can not update last announce timestamp for " + item.target, e);
+			}
+		}
+
+		for (Item item : announces)
+			announce(item);
+
+		if (fetchPhase == null)
+			return false;
+
+		fetch(fetchPhase, fetchAfter);
+		return true;
+	}
+
+	// Pulls the next row of the page and puts it to its group. Called with the
+	// lock held.
+	private Item next() {
+		Item item = page.poll();
+		pulled++;
+		lastPulled = item;
+
+		if (group != null && radius != null &&
+				group.leader.target.distance(item.target).compareTo(radius) < 0) {
+			item.group = group;
+			if (!group.isDone())
+				group.waiting.add(item);
+
+			return item;
+		}
+
+		group = new Group(item);
+		item.group = group;
+		return item;
+	}
+
+	// The leaders and the rows of the done groups are ready, the others wait
+	// for their group leader
+	private static boolean isReady(Item item) {
+		return item.group.leader == item || item.group.isDone();
+	}
+
+	// Reads the page after the last pulled row, seeks by the key, doesn't scan
+	// the announced rows again. Called without the lock.
+	private void fetch(Phase fetchPhase, Item after) {
+		List<Item> rows = new ArrayList<>(Constants.RE_ANNOUNCE_PAGE_SIZE);
+		DataStorage storage = node.getStorage();
+		try {
+			if (fetchPhase == Phase.VALUES) {
+				for (Value v : storage.getPersistentValues(valuesBefore, after != null ? after.target : null,
+						Constants.RE_ANNOUNCE_PAGE_SIZE))
+					rows.add(new ValueItem(v));
+			} else {
+				PeerInfo last = after != null ? ((PeerItem)after).peer : null;
+				for (PeerInfo p : storage.getPersistentPeers(peersBefore, last != null ? last.getId() : null,
+						last != null ? last.getNodeId() : null, Constants.RE_ANNOUNCE_PAGE_SIZE))
+					rows.add(new PeerItem(p));
+			}
+		} catch (KadException e) {
+			log.error("Can not read the persistent " + (fetchPhase == Phase.VALUES ? "values" : "peers"), e);
+			rows.clear();
+		}
+
+		synchronized (this) {
+			fetching = false;
+			if (!running || stopped || phase != fetchPhase)
+				return;
+
+			if (rows.isEmpty()) {
+				lastPulled = null;
+				group = null;
+				phase = phase == Phase.VALUES ? Phase.PEERS : Phase.DONE;
+			} else {
+				page.addAll(rows);
+			}
+		}
+	}
+
+	private void announce(Item item) {
+		List<DHT> dhts = new ArrayList<>(2);
+		for (DHT.Type type : DHT.Type.values()) {
+			DHT dht = node.getDHT(type);
+			if (dht != null)
+				dhts.add(dht);
+		}
+
+		if (dhts.isEmpty()) {
+			announced(item, Collections.emptyMap());
+			return;
+		}
+
+		boolean isLeader = item.group.leader == item;
+		Map<DHT.Type, List<NodeInfo>> seeds = isLeader ? null : item.group.closest;
+		if (seeds != null && !seeds.isEmpty()) {
+			synchronized (this) {
+				seeded++;
+			}
+		}
+
+		Map<DHT.Type, List<NodeInfo>> closest = new EnumMap<>(DHT.Type.class);
+		AtomicInteger completion = new AtomicInteger(0);
+		for (DHT dht : dhts) {
+			try {
+				item.announce(dht, seeds != null ? seeds.get(dht.getType()) : null, (nl) -> {
+					synchronized (closest) {
+						if (!nl.isEmpty())
+							closest.put(dht.getType(), nl);
+					}
+
+					if (completion.incrementAndGet() == dhts.size())
+						executeAnnounced(item, closest);
+				});
+			} catch (Exception e) {
+				log.error("Re-announce " + item.target + " failed", e);
+				if (completion.incrementAndGet() == dhts.size())
+					executeAnnounced(item, closest);
+			}
+		}
+	}
+
+	private void executeAnnounced(Item item, Map<DHT.Type, List<NodeInfo>> closest) {
+		// the complete handlers run on the DHT event loops, the storage calls
+		// of the next pump must not
+		try {
+			executor.execute(() -> announced(item, closest));
+		} catch (RejectedExecutionException e) {
+			log.debug("Failed to continue the re-announce: {}", e.getMessage());
+		}
+	}
+
+	private void announced(Item item, Map<DHT.Type, List<NodeInfo>> closest) {
+		synchronized (this) {
+			inFlight--;
+			if (closest.isEmpty()) {
+				failed++;
+				log.debug("Re-announce {} failed, no closest nodes", item.target);
+			} else {
+				completed++;
+			}
+
+			Group g = item.group;
+			if (g.leader == item) {
+				g.closest = closest;
+				for (Map.Entry<DHT.Type, List<NodeInfo>> e : closest.entrySet()) {
+					Id r = farthest(item.target, e.getValue());
+					if (radius == null || r.compareTo(radius) < 0)
+						radius = r;
+				}
+
+				ready.addAll(g.waiting);
+				g.waiting.clear();
+			}
+		}
+
+		pump();
+	}
+
+	private static Id farthest(Id target, List<NodeInfo> nodes) {
+		Id max = null;
+		for (NodeInfo ni : nodes) {
+			Id d = target.distance(ni.getId());
+			if (max == null || d.compareTo(max) > 0)
+				max = d;
+		}
+
+		return max;
+	}
+
+	private void finish(long now) {
+		running = false;
+		rounds++;
+		lastRoundDuration = now - roundStarted;
+		log.info("Re-announced {} persistent values and peers in {}ms", pulled, lastRoundDuration);
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder repr = new StringBuilder(256);
+		repr.append("rounds: ").append(rounds);
+		if (running) {
+			long behind = Math.max(0, Math.min(allowance(Clock.currentTimeMillis()), due) - pulled);
+			repr.append(", current: ").append(pulled).append('/').append(due)
+				.append(" in flight: ").append(inFlight)
+				.append(" behind: ").append(behind);
+		}
+
+		repr.append(", completed: ").append(completed)
+			.append(", failed: ").append(failed)
+			.append(", seeded lookups: ").append(seeded)
+			.append(", skipped rounds: ").append(skippedRounds)
+			.append(", last round: ").append(lastRoundDuration).append("ms");
+
+		return repr.toString();
+	}
+}
@@ -24,9 +24,6 @@ package elastos.carrier.kademlia;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 import elastos.carrier.Id;
@@ -46,8 +43,8 @@ public class RPCCall {
 	private long expectedRTT = -1;
 	private boolean responseSocketMismatch;
 	private State state = State.UNSENT;
-	ScheduledExecutorService scheduler;
-	private ScheduledFuture<?> timeoutTimer;
+	private TimerWheel timers;
+	private TimerWheel.Timeout timeoutTimer;
 	private List<RPCCallListener> listeners;
 
 	public static enum State {
@@ -177,20 +174,23 @@ public class RPCCall {
 		}
 	}
 
-	void sent(RPCServer server) {
+	// Called on the event loop of the DHT after the request left the socket,
+	// the sent time is taken by the sender when it actually sent the request.
+	void sent(RPCServer server, long sentTime) {
 		assert(expectedRTT >= 0);
 		assert(expectedRTT <= Constants.RPC_CALL_TIMEOUT_MAX);
 
-		sentTime = System.currentTimeMillis();
-		updateState(State.SENT);
+		// canceled or failed while the request was in the pipeline
+		if (state != State.UNSENT)
+			return;
 
-		// Keep the scheduler for later use
-		scheduler = server.getScheduler();
+		this.sentTime = sentTime;
+		updateState(State.SENT);
 
-		// spread out the stalls by +- 1ms to reduce lock contention
-		int smear = ThreadLocalRandom.current().nextInt(-1000, 1000);
-		timeoutTimer = scheduler.schedule(this::checkTimeout,
-				expectedRTT * 1000 + smear, TimeUnit.MICROSECONDS);
+		// Keep the timer wheel for later use, the timeouts are checked on
+		// the event loop of the DHT
+		timers = server.getTimers();
+		timeoutTimer = timers.schedule(this::checkTimeout, expectedRTT, TimeUnit.MILLISECONDS);
 	}
 
 	void responsed(Message response) {
@@ -199,10 +199,10 @@ public class RPCCall {
 				response.getType() == Message.Type.ERROR) : "Invalid request message";
 
 		if (timeoutTimer != null)
-			timeoutTimer.cancel(false);
+			timeoutTimer.cancel();
 
 		this.response = response;
-		responseTime = System.currentTimeMillis();
+		responseTime = Clock.currentTimeMillis();
 
 		switch(response.getType()) {
 		case RESPONSE:
@@ -226,7 +226,7 @@ public class RPCCall {
 
 	void cancel() {
 		if (timeoutTimer != null)
-			timeoutTimer.cancel(false);
+			timeoutTimer.cancel();
 
 		updateState(State.CANCELED);
 	}
@@ -242,12 +242,12 @@ public class RPCCall {
 		if (state != State.SENT && state != State.STALLED)
 			return;
 
-		long elapsed = System.currentTimeMillis() - sentTime;
+		long elapsed = Clock.currentTimeMillis() - sentTime;
 		long remaining = Constants.RPC_CALL_TIMEOUT_MAX - elapsed;
 		if (remaining > 0) {
 			updateState(State.STALLED);
 			// re-schedule for failed
-			timeoutTimer = scheduler.schedule(this::checkTimeout, remaining, TimeUnit.MILLISECONDS);
+			timeoutTimer = timers.schedule(this::checkTimeout, remaining, TimeUnit.MILLISECONDS);
 		} else {
 			updateState(State.TIMEOUT);
 		}
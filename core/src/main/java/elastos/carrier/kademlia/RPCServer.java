@@ -35,13 +35,13 @@ import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Formatter;
+import java.util.List;
 import java.util.Objects;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -71,6 +71,9 @@ public class RPCServer implements Selectable {
 	private DHT dht;
 	private InetSocketAddress addr;
 	private DatagramChannel channel;
+	private List<ReceiveShard> shards;
+	// replaces the sockets if set on the node
+	private Transport transport;
 
 	private Instant startTime;
 	private State state;
@@ -83,7 +86,9 @@ public class RPCServer implements Selectable {
 	private long lastReachableCheck;
 
 	private AtomicInteger callQueueGuard;
-	private ConcurrentMap<Integer, RPCCall> calls;
+	private CallTable calls;
+	private TimerWheel timers;
+	private ScheduledFuture<?> timersTicker;
 	private ConcurrentLinkedQueue<RPCCall> callQueue;
 	private ConcurrentLinkedQueue<Message> pipeline;
 
@@ -93,9 +98,17 @@ public class RPCServer implements Selectable {
 	private RPCStatistics stats;
 	private ExponentialWeightendMovingAverage unverifiedLossrate;
 	private ExponentialWeightendMovingAverage verifiedEntryLossrate;
+	private CongestionController congestionController;
 
 	private static final ThreadLocal<ByteBuffer> writeBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(1500));
+	// the outgoing messages are serialized into this buffer, then sealed into the write buffer
+	// after the sender id, so the message has to leave room for the id and the MAC. both are
+	// direct, the native binding only passes the direct buffers without copying them
+	private static final ThreadLocal<ByteBuffer> serializeBuffer = ThreadLocal.withInitial(() ->
+			ByteBuffer.allocateDirect(1500 - Id.BYTES - CryptoBox.MAC_BYTES));
 	private static final ThreadLocal<ByteBuffer> readBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(Constants.RECEIVE_BUFFER_SIZE));
+	// the inbound packets are decrypted and parsed on these buffers, without the per packet arrays
+	private static final BufferPool packetBuffers = new BufferPool(Constants.RECEIVE_BUFFER_SIZE, Constants.RECEIVE_BUFFER_POOL_SIZE);
 
 	private int nextTxid = ThreadLocalRandom.current().nextInt(1, 32768);
 
@@ -115,9 +128,11 @@ public class RPCServer implements Selectable {
 
 		this.state = State.INITIAL;
 		this.writeState = new AtomicInteger(WRITE_STATE_INITIAL);
+		this.shards = new ArrayList<>();
 
 		this.callQueueGuard = new AtomicInteger(0);
-		this.calls = new ConcurrentHashMap<>(Constants.MAX_ACTIVE_CALLS);
+		this.calls = new CallTable(Constants.MAX_ACTIVE_CALLS);
+		this.timers = new TimerWheel(Constants.RPC_TIMER_TICK, TimeUnit.MILLISECONDS, Constants.RPC_TIMER_WHEEL_SIZE);
 		this.callQueue = new ConcurrentLinkedQueue<>();
 		this.pipeline = new ConcurrentLinkedQueue<>();
 
@@ -131,6 +146,7 @@ public class RPCServer implements Selectable {
 
 		this.unverifiedLossrate = new ExponentialWeightendMovingAverage(0.01, 0.5);
 		this.verifiedEntryLossrate = new ExponentialWeightendMovingAverage(0.01, 0.5);
+		this.congestionController = new CongestionController();
 
 		dht.setRPCServer(this);
 	}
@@ -182,6 +198,10 @@ public class RPCServer implements Selectable {
 		return stats;
 	}
 
+	public CongestionController getCongestionController() {
+		return congestionController;
+	}
+
 	public boolean isReachable() {
 		return isReachable;
 	}
@@ -196,29 +216,92 @@ public class RPCServer implements Selectable {
 		} else if (now - lastReachableCheck > Constants.RPC_SERVER_REACHABILITY_TIMEOUT) {
 			isReachable = false;
 			timeoutSampler.reset();
+			congestionController.reset();
 		}
 	}
 
-	public synchronized void start() throws IOError {
-		com.google.common.base.Preconditions.checkState(state == State.INITIAL, "already started");
+	public int getNumberOfShards() {
+		return shards.size() + 1;
+	}
 
+	private DatagramChannel openChannel(boolean reusePort) throws IOException {
+		DatagramChannel ch = DatagramChannel.open(StandardProtocolFamily.INET);
 		try {
-			channel = DatagramChannel.open(StandardProtocolFamily.INET);
-			channel.configureBlocking(false);
-			channel.setOption(StandardSocketOptions.SO_RCVBUF, 2 * 1024 * 1024);
-			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
-			channel.bind(addr);
+			ch.configureBlocking(false);
+			ch.setOption(StandardSocketOptions.SO_RCVBUF, 2 * 1024 * 1024);
+			ch.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			if (reusePort)
+				ch.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			ch.bind(addr);
 		} catch (IOException e) {
-			throw new IOError("Open and bing UDP socket error.", e);
+			ch.close();
+			throw e;
+		}
+
+		return ch;
+	}
+
+	public synchronized void start() throws IOError {
+		com.google.common.base.Preconditions.checkState(state == State.INITIAL, "already started");
+
+		transport = getNode().getTransport();
+		if (transport != null) {
+			try {
+				transport.bind(addr, this::received);
+			} catch (IOException e) {
+				throw new IOError("Bind the transport error.", e);
+			}
+		} else {
+			openSockets();
 		}
 
 		writeState.set(WRITE_STATE_IDLE);
 		state = State.RUNNING;
-		startTime = Instant.now();
+		startTime = Instant.ofEpochMilli(Clock.currentTimeMillis());
+
+		if (transport == null) {
+			getNode().getNetworkEngine().register(this);
+			for (ReceiveShard shard : shards)
+				shard.engine.register(shard);
+		}
 
-		getNode().getNetworkEngine().register(this);
+		// the scheduler only ticks the wheel, the deadlines are checked on the event loop
+		timersTicker = getScheduler().scheduleAtFixedRate(() -> dht.execute(timers::advance),
+				Constants.RPC_TIMER_TICK, Constants.RPC_TIMER_TICK, TimeUnit.MILLISECONDS);
 
-		log.info("Started RPC server {}", AddressUtils.toString(addr));
+		log.info("Started RPC server {} with {} socket(s)", AddressUtils.toString(addr), getNumberOfShards());
+	}
+
+	private void openSockets() throws IOError {
+		int numShards = getNode().getConfig() != null ? getNode().getConfig().networkShards() : 1;
+		if (numShards > 1) {
+			try (DatagramChannel probe = DatagramChannel.open()) {
+				if (!probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+					log.warn("SO_REUSEPORT is not supported on this platform, fallback to the single socket mode");
+					numShards = 1;
+				}
+			} catch (IOException e) {
+				numShards = 1;
+			}
+		}
+
+		try {
+			channel = openChannel(numShards > 1);
+
+			for (int i = 1; i < numShards; i++)
+				shards.add(new ReceiveShard(i, openChannel(true)));
+		} catch (IOException e) {
+			shards.forEach(ReceiveShard::close);
+			shards.clear();
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException ignore) {
+				}
+			}
+
+			throw new IOError("Open and bing UDP socket error.", e);
+		}
 	}
 
 	public synchronized void stop() {
@@ -228,6 +311,9 @@ public class RPCServer implements Selectable {
 		state = State.STOPPED;
 		writeState.set(WRITE_STATE_CLOSED);
 
+		if (transport != null)
+			transport.unbind(addr);
+
 		if (channel != null) {
 			try {
 				channel.close();
@@ -235,12 +321,23 @@ public class RPCServer implements Selectable {
 			}
 		}
 
-		Stream.of(calls.values().stream(), callQueue.stream(), pipeline.stream().map(msg -> msg.getAssociatedCall())
+		shards.forEach(ReceiveShard::close);
+
+		if (timersTicker != null)
+			timersTicker.cancel(false);
+
+		Stream.of(callQueue.stream(), pipeline.stream().map(msg -> msg.getAssociatedCall())
 				.filter(Objects::nonNull)).flatMap(s -> s).forEach(r -> {
 					r.cancel();
 				});
 		pipeline.clear();
 
+		// the call table is owned by the event loop
+		dht.execute(() -> {
+			calls.forEach(RPCCall::cancel);
+			calls.clear();
+		});
+
 		log.info("Stopped RPC Server {}", addr);
 	}
 
@@ -248,7 +345,15 @@ public class RPCServer implements Selectable {
 		//Message request = call.getRequest();
 		// enqueueEventConsumers.forEach(callback -> callback.accept(c));
 		callQueue.add(call);
-		processCallQueue();
+		// the call table is owned by the event loop
+		if (dht.inEventLoop())
+			processCallQueue();
+		else
+			dht.execute(this::processCallQueue);
+	}
+
+	TimerWheel getTimers() {
+		return timers;
 	}
 
 	private void processCallQueue() {
@@ -257,7 +362,7 @@ public class RPCServer implements Selectable {
 
 		outboundThrottle.decay();
 
-		int capacity = Constants.MAX_ACTIVE_CALLS  - calls.size();
+		int capacity = congestionController.getCallWindow() - calls.size();
 		while(capacity > 0) {
 			RPCCall call = callQueue.poll();
 			if(call == null) {
@@ -276,11 +381,11 @@ public class RPCServer implements Selectable {
 				delay += ThreadLocalRandom.current().nextInt(10, 50);
 				log.info("Throttled(delay {}ms) the RPCCall to remote peer {}@{}, {}", delay,
 						call.getTargetId(), AddressUtils.toString(call.getRequest().getRemoteAddress()), call.getRequest());
-				getScheduler().schedule(() -> {
+				getScheduler().schedule(() -> dht.execute(() -> {
 					callQueue.add(call);
 					processCallQueue();
 					outboundThrottle.saturatingDec(call.getRequest().getRemoteAddress().getAddress());
-				}, delay, TimeUnit.MILLISECONDS);
+				}), delay, TimeUnit.MILLISECONDS);
 				continue;
 			}
 
@@ -290,7 +395,7 @@ public class RPCServer implements Selectable {
 
 			call.getRequest().setTxid(txid);
 
-			if(calls.putIfAbsent(txid, call) == null) {
+			if(calls.putIfAbsent(txid, call)) {
 				capacity--;
 				dispatchCall(call);
 			} else {
@@ -304,7 +409,7 @@ public class RPCServer implements Selectable {
 		callQueueGuard.set(0);
 
 		if(capacity > 0 && callQueue.peek() != null)
-			getDHT().getNode().getScheduler().execute(this::processCallQueue);
+			dht.execute(this::processCallQueue);
 	}
 
 	private final RPCCallListener callListener = new RPCCallListener() {
@@ -313,10 +418,11 @@ public class RPCServer implements Selectable {
 			calls.remove(call.getRequest().getTxid(), call);
 
 			stats.timeoutMessage(call.getRequest());
-			if(call.knownReachableAtCreationTime())
-				verifiedEntryLossrate.updateAverage(1.0);
-			else
-				unverifiedLossrate.updateAverage(1.0);
+			boolean verified = call.knownReachableAtCreationTime();
+			ExponentialWeightendMovingAverage lossrate = verified ? verifiedEntryLossrate : unverifiedLossrate;
+			lossrate.updateAverage(1.0);
+			congestionController.onTimeout(verified, lossrate.getAverage(), Clock.currentTimeMillis(),
+					timeoutSampler.getStallTimeout());
 
 			dht.onTimeout(call);
 			processCallQueue();
@@ -324,10 +430,11 @@ public class RPCServer implements Selectable {
 
 		@Override
 		public void onResponse(RPCCall call, Message msg) {
-			if(call.knownReachableAtCreationTime())
-				verifiedEntryLossrate.updateAverage(0.0);
-			else
-				unverifiedLossrate.updateAverage(0.0);
+			boolean verified = call.knownReachableAtCreationTime();
+			ExponentialWeightendMovingAverage lossrate = verified ? verifiedEntryLossrate : unverifiedLossrate;
+			lossrate.updateAverage(0.0);
+			// the answered call is already removed from the call table
+			congestionController.onResponse(verified, lossrate.getAverage(), calls.size() + 1);
 		}
 	};
 
@@ -370,7 +477,10 @@ public class RPCServer implements Selectable {
 			dht.onSend(call);
 
 		pipeline.add(msg);
-		processPipeline();
+		// encode and encrypt on the worker pool, keep the event loop for the protocol state.
+		// the current writer will double-check the pipeline after releasing the write lock
+		if (writeState.get() == WRITE_STATE_IDLE)
+			getNode().getWorkers().execute(this::processPipeline);
 	}
 
 	private void processPipeline() {
@@ -381,74 +491,97 @@ public class RPCServer implements Selectable {
 			return;
 
 		// we are now the exclusive writer for this socket
-		while(true) {
-			Message msg = pipeline.poll();
-			if(msg == null)
-				break;
-
-			try {
-				ByteBuffer writeBuffer = RPCServer.writeBuffer.get();
-				writeBuffer.clear();
-
-				byte[] encryptedMsg = getNode().encrypt(msg.getRemoteId(), msg.serialize());
-				writeBuffer.put(msg.getId().bytes());
-				writeBuffer.put(encryptedMsg);
-
-				writeBuffer.flip();
-
-				int bytesSent = channel.send(writeBuffer, msg.getRemoteAddress());
-				if(bytesSent == 0) {
-					log.debug("Awaiting the socket available to send the messages.");
-					pipeline.add(msg);
-
-					writeState.set(WRITE_STATE_AWAITING);
-					// wakeup -> updates selections -> will wait for write OP
-					getNode().getNetworkEngine().updateInterestOps(this);
-					return;
-				}
-
-				log.trace("sent {}/{} to {}: [{}]{}", msg.getMethod(), msg.getType(),
-						AddressUtils.toString(msg.getRemoteAddress()), bytesSent, msg);
-
-				if(msg.getAssociatedCall() != null) {
-					msg.getAssociatedCall().sent(this);
-					// when we send requests to a node we don't want their
-					// replies to get stuck in the filter
-					inboundThrottle.clear(msg.getRemoteAddress().getAddress());
-				}
-
-				sentMessages.incrementAndGet();
-				stats.sentMessage(msg);
-				stats.sentBytes(bytesSent + dht.getType().protocolHeaderSize());
-			} catch (IOException e) {
-				// async close
-				if(!channel.isOpen())
-					return;
-
-				// BSD variants may throw an exception (ENOBUFS) instead of
-				// just signaling 0 bytes sent when network queues are
-				// full -> back off just like we would in the 0 bytes case.
-				if(e.getMessage().equals("No buffer space available")) {
-					// !!! same with above: channel.send returns 0
-					log.debug("Awaiting the socket available to send the messages.");
-					pipeline.add(msg);
-
-					writeState.set(WRITE_STATE_AWAITING);
-					// wakeup -> updates selections -> will wait for write OP
-					getNode().getNetworkEngine().updateInterestOps(this);
-					return;
+		// drain up to a batch of messages, the counters are updated once per batch
+		int sent = 0;
+		long sentBytes = 0;
+		try {
+			for (int n = 0; n < Constants.RPC_SEND_BATCH_SIZE; n++) {
+				Message msg = pipeline.poll();
+				if(msg == null)
+					break;
+
+				try {
+					ByteBuffer serializeBuffer = RPCServer.serializeBuffer.get();
+					serializeBuffer.clear();
+					msg.serialize(serializeBuffer);
+					serializeBuffer.flip();
+
+					ByteBuffer writeBuffer = RPCServer.writeBuffer.get();
+					writeBuffer.clear();
+					writeBuffer.put(msg.getId().bytes());
+					getNode().encrypt(msg.getRemoteId(), serializeBuffer, writeBuffer);
+					writeBuffer.flip();
+
+					int bytesSent = transport != null ? transport.send(addr, writeBuffer, msg.getRemoteAddress()) :
+							channel.send(writeBuffer, msg.getRemoteAddress());
+					if(bytesSent == 0) {
+						log.debug("Awaiting the socket available to send the messages.");
+						pipeline.add(msg);
+
+						writeState.set(WRITE_STATE_AWAITING);
+						// wakeup -> updates selections -> will wait for write OP
+						getNode().getNetworkEngine().updateInterestOps(this);
+						return;
+					}
+
+					log.trace("sent {}/{} to {}: [{}]{}", msg.getMethod(), msg.getType(),
+							AddressUtils.toString(msg.getRemoteAddress()), bytesSent, msg);
+
+					if(msg.getAssociatedCall() != null) {
+						// the call state belongs to the event loop of the DHT
+						RPCCall call = msg.getAssociatedCall();
+						long sentTime = Clock.currentTimeMillis();
+						dht.execute(() -> call.sent(this, sentTime));
+						// when we send requests to a node we don't want their
+						// replies to get stuck in the filter
+						inboundThrottle.clear(msg.getRemoteAddress().getAddress());
+					}
+
+					sent++;
+					stats.sentMessage(msg);
+					sentBytes += bytesSent + dht.getType().protocolHeaderSize();
+				} catch (IOException e) {
+					// async close
+					if(transport == null && !channel.isOpen())
+						return;
+
+					// BSD variants may throw an exception (ENOBUFS) instead of
+					// just signaling 0 bytes sent when network queues are
+					// full -> back off just like we would in the 0 bytes case.
+					if(e.getMessage().equals("No buffer space available")) {
+						// !!! same with above: channel.send returns 0
+						log.debug("Awaiting the socket available to send the messages.");
+						pipeline.add(msg);
+
+						writeState.set(WRITE_STATE_AWAITING);
+						// wakeup -> updates selections -> will wait for write OP
+						getNode().getNetworkEngine().updateInterestOps(this);
+						return;
+					}
+
+					log.error("Failed while attempting to send {}/{} to {}: {}", msg.getMethod(), msg.getType(),
+							AddressUtils.toString(msg.getRemoteAddress()), msg);
+					log.error("Stack trace", e);
+					if(msg.getAssociatedCall() != null)
+						dht.execute(msg.getAssociatedCall()::failed);
+
+					break;
+				} catch (MessageException e) {
+					log.error("Failed to serialize message {}/{} to {}: {}", msg.getMethod(), msg.getType(),
+							AddressUtils.toString(msg.getRemoteAddress()), msg);
+					if(msg.getAssociatedCall() != null)
+						dht.execute(msg.getAssociatedCall()::failed);
+				} catch (CryptoError e) {
+					log.error("Failed to encrypt message {}/{} to {}: {}", msg.getMethod(), msg.getType(),
+							AddressUtils.toString(msg.getRemoteAddress()), msg);
+					if(msg.getAssociatedCall() != null)
+						dht.execute(msg.getAssociatedCall()::failed);
 				}
-
-				log.error("Failed while attempting to send {}/{} to {}: {}", msg.getMethod(), msg.getType(),
-						AddressUtils.toString(msg.getRemoteAddress()), msg);
-				log.error("Stack trace", e);
-				if(msg.getAssociatedCall() != null)
-					msg.getAssociatedCall().failed();
-
-				break;
-			} catch (CryptoError e) {
-				log.error("Failed to encrypt message {}/{} to {}: {}", msg.getMethod(), msg.getType(),
-						AddressUtils.toString(msg.getRemoteAddress()), msg);
+			}
+		} finally {
+			if (sent > 0) {
+				sentMessages.addAndGet(sent);
+				stats.sentBytes(sentBytes);
 			}
 		}
 
@@ -458,93 +591,203 @@ public class RPCServer implements Selectable {
 		// check if we might have to pick it up again due to races
 		// schedule async to avoid infinite stacks
 		if(pipeline.peek() != null)
-			getNode().getScheduler().execute(this::processPipeline);
+			getNode().getWorkers().execute(this::processPipeline);
 	}
 
 	// The package format: [32 bytes id][[16 bytes mac][encrypted message]]
 	private static final int MIN_PACKET_SIZE = Message.MIN_SIZE + Id.BYTES + CryptoBox.MAC_BYTES;
 
-	private void processPackets() throws IOException {
+	private void processPackets(DatagramChannel channel) throws IOException {
 		ByteBuffer readBuffer = RPCServer.readBuffer.get();
 		inboundThrottle.decay();
 
-		while(true) {
-			readBuffer.clear();
-			InetSocketAddress sa = (InetSocketAddress) channel.receive(readBuffer);
-			if(sa == null)
-				break;
+		// drain up to RPC_RECEIVE_BATCH_SIZE packets for each wake-up, leave the rest to the
+		// next select round to keep the writes on the same selector responsive. the packets
+		// are handed off to the workers in batches, and the counters are updated once.
+		PacketBatch batch = null;
+		long receivedBytes = 0;
+		try {
+			for (int n = 0; n < Constants.RPC_RECEIVE_BATCH_SIZE; n++) {
+				readBuffer.clear();
+				InetSocketAddress sa = (InetSocketAddress) channel.receive(readBuffer);
+				if(sa == null)
+					break;
 
-			readBuffer.flip();
-			if (readBuffer.limit() == 0)
-				break;
+				readBuffer.flip();
+				if (readBuffer.limit() == 0)
+					break;
 
-			stats.receivedBytes(readBuffer.limit() + dht.getType().protocolHeaderSize());
+				receivedBytes += readBuffer.limit() + dht.getType().protocolHeaderSize();
 
-			// - no conceivable DHT message is smaller than MIN_PACKET_SIZE bytes
-			// - port 0 is reserved
-			// - address family may mismatch due to autoconversion from v4-mapped v6 addresses to Inet4Address
-			// immediately discard junk on the read loop, don't even allocate a buffer for it
-			if(readBuffer.limit() < MIN_PACKET_SIZE || sa.getPort() == 0 || !dht.getType().canUseSocketAddress(sa)) {
-				log.warn("Dropped an invalid packet from {}.", AddressUtils.toString(sa));
-				stats.droppedPacket(readBuffer.limit() + dht.getType().protocolHeaderSize());
-				continue;
+				// immediately discard junk on the read loop, don't even allocate a buffer for it
+				if (!accept(readBuffer.limit(), sa))
+					continue;
+
+				// copy from the read buffer since we hand off to another thread
+				int length = readBuffer.limit();
+				byte[] packet = packetBuffers.acquire();
+				readBuffer.get(packet, 0, length);
+
+				if (batch == null)
+					batch = new PacketBatch();
+
+				batch.add(packet, length, sa, System.nanoTime());
+				if (batch.isFull()) {
+					dispatch(batch);
+					batch = null;
+				}
 			}
+		} finally {
+			if (batch != null)
+				dispatch(batch);
 
-			if(inboundThrottle.saturatingInc(sa.getAddress())) {
-				log.warn("Throttled an packet from {}", AddressUtils.toString(sa));
-				stats.droppedPacket(readBuffer.limit() + dht.getType().protocolHeaderSize());
-				continue;
+			if (receivedBytes > 0)
+				stats.receivedBytes(receivedBytes);
+		}
+	}
+
+	private boolean accept(int length, InetSocketAddress sa) {
+		// - no conceivable DHT message is smaller than MIN_PACKET_SIZE bytes
+		// - port 0 is reserved
+		// - address family may mismatch due to autoconversion from v4-mapped v6 addresses to Inet4Address
+		if(length < MIN_PACKET_SIZE || sa.getPort() == 0 || !dht.getType().canUseSocketAddress(sa)) {
+			log.warn("Dropped an invalid packet from {}.", AddressUtils.toString(sa));
+			stats.droppedPacket(length + dht.getType().protocolHeaderSize());
+			return false;
+		}
+
+		if(inboundThrottle.saturatingInc(sa.getAddress())) {
+			log.warn("Throttled an packet from {}", AddressUtils.toString(sa));
+			stats.droppedPacket(length + dht.getType().protocolHeaderSize());
+			return false;
+		}
+
+		return true;
+	}
+
+	// the packets delivered by the transport, handled the same as the ones read from the socket
+	private void received(ByteBuffer packet, InetSocketAddress sa) {
+		if (state != State.RUNNING)
+			return;
+
+		inboundThrottle.decay();
+
+		int length = packet.remaining();
+		stats.receivedBytes(length + dht.getType().protocolHeaderSize());
+		if (length > Constants.RECEIVE_BUFFER_SIZE || !accept(length, sa))
+			return;
+
+		byte[] buffer = packetBuffers.acquire();
+		packet.get(buffer, 0, length);
+
+		PacketBatch batch = new PacketBatch();
+		batch.add(buffer, length, sa, System.nanoTime());
+		dispatch(batch);
+	}
+
+	// decrypt and decode the packets on the worker pool, then hand off the
+	// messages to the event loop of the DHT that owns the protocol state
+	private void dispatch(PacketBatch batch) {
+		getNode().getWorkers().execute(() -> {
+			int decoded = 0;
+			for (int i = 0; i < batch.size; i++) {
+				try {
+					batch.messages[i] = decodePacket(batch.packets[i], batch.lengths[i], batch.sources[i]);
+					if (batch.messages[i] != null)
+						decoded++;
+				} catch (Exception e) {
+					log.error("Decode packet from {} failed", AddressUtils.toString(batch.sources[i]), e);
+				} finally {
+					packetBuffers.release(batch.packets[i]);
+					batch.packets[i] = null;
+				}
 			}
 
-			// copy from the read buffer since we hand off to another thread
-			byte[] packet = new byte[readBuffer.limit()];
-			readBuffer.get(packet);
-			getNode().getScheduler().execute(() -> handlePacket(packet, sa));
+			if (decoded == 0)
+				return;
+
+			dht.execute(() -> {
+				for (int i = 0; i < batch.size; i++) {
+					Message msg = batch.messages[i];
+					if (msg == null)
+						continue;
+
+					try {
+						handleMessage(msg, batch.timestamps[i]);
+					} catch (Exception e) {
+						log.error("Handle message from {} failed", AddressUtils.toString(batch.sources[i]), e);
+					}
+				}
+			});
+		});
+	}
+
+	private static final class PacketBatch {
+		final byte[][] packets = new byte[Constants.RPC_DISPATCH_BATCH_SIZE][];
+		final int[] lengths = new int[Constants.RPC_DISPATCH_BATCH_SIZE];
+		final InetSocketAddress[] sources = new InetSocketAddress[Constants.RPC_DISPATCH_BATCH_SIZE];
+		final long[] timestamps = new long[Constants.RPC_DISPATCH_BATCH_SIZE];
+		final Message[] messages = new Message[Constants.RPC_DISPATCH_BATCH_SIZE];
+		int size;
+
+		void add(byte[] packet, int length, InetSocketAddress source, long timestamp) {
+			packets[size] = packet;
+			lengths[size] = length;
+			sources[size] = source;
+			timestamps[size] = timestamp;
+			size++;
+		}
+
+		boolean isFull() {
+			return size == packets.length;
 		}
 	}
 
-	private void handlePacket(byte[] packet, InetSocketAddress sa) {
+	private Message decodePacket(byte[] packet, int length, InetSocketAddress sa) {
 		Message msg = null;
 		Id sender = Id.of(packet, 0);
 
 		Blacklist blacklist = getNode().getBlacklist();
 		if (blacklist.isBanned(sa)) {
 			log.warn("Ignored the message from banned address {}", AddressUtils.toString(sa));
-			return;
+			return null;
 		}
 		if (blacklist.isBanned(sender)) {
 			log.warn("Ignored the message from banned node {}", sender);
-			return;
+			return null;
 		}
 
 		try {
-			byte[] encryptedMsg = Arrays.copyOfRange(packet, Id.BYTES, packet.length);
-			byte[] decryptedMsg = getNode().decrypt(sender, encryptedMsg);
-			msg = Message.parse(decryptedMsg);
+			// decrypt into the packet buffer, the plain message follows the sender id
+			int msgLength = getNode().decrypt(sender, packet, Id.BYTES, length - Id.BYTES);
+			msg = Message.parse(packet, Id.BYTES, msgLength);
 			msg.setId(sender);
 		} catch (MessageException e) {
 			log.warn("Got a wrong packet from {}, ignored.", AddressUtils.toString(sa));
 
-			stats.droppedPacket(packet.length);
+			stats.droppedPacket(length);
 			blacklist.observeInvalidMessage(sa);
-			return;
+			return null;
 		} catch (CryptoError e) {
 			log.warn("Decrypt packet error from {}, ignored.", AddressUtils.toString(sa));
 
-			stats.droppedPacket(packet.length);
+			stats.droppedPacket(length);
 			blacklist.observeInvalidMessage(sa);
-			return;
+			return null;
 		}
 
 		blacklist.observe(sa, sender);
 
 		log.trace("Received {}/{} from {}: [{}]{}", msg.getMethod(), msg.getType(),
-				AddressUtils.toString(sa), packet.length, msg);
+				AddressUtils.toString(sa), length, msg);
 
 		receivedMessages.incrementAndGet();
 		stats.receivedMessage(msg);
 		msg.setOrigin(sa);
+		return msg;
+	}
 
+	private void handleMessage(Message msg, long receivedTime) {
 		// transaction id should be a non-zero integer
 		if (msg.getType() != Message.Type.ERROR && msg.getTxid() == 0) {
 			log.warn("Received a message with invalid transaction id.");
@@ -558,6 +801,7 @@ public class RPCServer implements Selectable {
 		// just respond to incoming requests, no need to match them to pending requests
 		if(msg.getType() == Message.Type.REQUEST) {
 			handleMessage(msg);
+			stats.handledRequest(System.nanoTime() - receivedTime);
 			return;
 		}
 
@@ -610,7 +854,7 @@ public class RPCServer implements Selectable {
 		// b) didn't find a call
 		// c) up-time is high enough that it's not a stray from a restart
 		// did not expect this response
-		if (msg.getType() == Message.Type.RESPONSE && Duration.between(startTime, Instant.now()).getSeconds() > 2 * 60) {
+		if (msg.getType() == Message.Type.RESPONSE && Duration.between(startTime, Instant.ofEpochMilli(Clock.currentTimeMillis())).getSeconds() > 2 * 60) {
 			log.warn("Cannot find RPC call for {} {}", msg.getType() == Message.Type.RESPONSE
 					? "response" : "error", msg.getTxid());
 			ErrorMessage err = new ErrorMessage(msg.getMethod(), msg.getTxid(), ErrorCode.ProtocolError.value(),
@@ -636,7 +880,7 @@ public class RPCServer implements Selectable {
 		Instant start = startTime;
 		if(start == null)
 			return Duration.ZERO;
-		return Duration.between(start, Instant.now());
+		return Duration.between(start, Instant.ofEpochMilli(Clock.currentTimeMillis()));
 	}
 
 	ScheduledExecutorService getScheduler() {
@@ -657,9 +901,9 @@ public class RPCServer implements Selectable {
 			writeState.set(WRITE_STATE_IDLE);
 			getNode().getNetworkEngine().updateInterestOps(this);
 			// schedule async writes first before spending thread time on reads
-			getNode().getScheduler().execute(this::processPipeline);
+			getNode().getWorkers().execute(this::processPipeline);
 		} else if (key.isReadable()) {
-			processPackets();
+			processPackets(channel);
 		}
 	}
 
@@ -678,15 +922,61 @@ public class RPCServer implements Selectable {
 		return ops;
 	}
 
+	/**
+	 * The additional SO_REUSEPORT socket of the RPC server. The kernel spreads
+	 * the inbound packets to the sockets bound on the same port, each shard drains
+	 * its socket in its own network engine thread. The outbound messages, the
+	 * pending calls and the statistics are still shared by the RPC server.
+	 */
+	private class ReceiveShard implements Selectable {
+		private final DatagramChannel channel;
+		private final NetworkEngine engine;
+
+		ReceiveShard(int index, DatagramChannel channel) {
+			this.channel = channel;
+			this.engine = new NetworkEngine("KademliaNetworkEngine-" + dht.getType() + "-" + index);
+		}
+
+		void close() {
+			try {
+				channel.close();
+			} catch (IOException ignore) {
+			}
+		}
+
+		@Override
+		public SelectableChannel getChannel() {
+			return channel;
+		}
+
+		@Override
+		public void selectEvent(SelectionKey key) throws IOException {
+			if (key.isValid() && key.isReadable())
+				processPackets(channel);
+		}
+
+		@Override
+		public void checkState() throws IOException {
+			if(!channel.isOpen() || channel.socket().isClosed())
+				RPCServer.this.stop();
+		}
+
+		@Override
+		public int interestOps() {
+			return SelectionKey.OP_READ;
+		}
+	}
+
 	@Override
 	public String toString() {
 		@SuppressWarnings("resource")
 		Formatter f = new Formatter();
 
-		f.format("%s @ %s%n", getNode().getId(), AddressUtils.toString(getAddress()));
+		f.format("%s @ %s, sockets: %d%n", getNode().getId(), AddressUtils.toString(getAddress()), getNumberOfShards());
 		f.format("rx: %d tx: %d active: %d baseRTT: %d loss: %f  loss (verified): %f uptime: %s%n",
 				getNumberOfReceivedMessages(), getNumberOfSentMessages(), getNumberOfActiveRPCCalls(),
 				timeoutSampler.getStallTimeout(), unverifiedLossrate.getAverage(), verifiedEntryLossrate.getAverage(), age());
+		f.format("congestion control: %s%n", congestionController);
 		f.format("RTT stats (%dsamples) %s", timeoutSampler.getSampleCount(), timeoutSampler.getStats());
 
 		return f.toString();
@@ -49,6 +49,9 @@ public class RPCStatistics {
 	private AtomicLong droppedPackets = new AtomicLong();
 	private AtomicLong droppedBytes = new AtomicLong();
 
+	// from the packet received to the request handled
+	private LatencyHistogram requestLatency = new LatencyHistogram();
+
 	protected RPCStatistics() {
 		sentMessages = new AtomicLong[Method.values().length][Type.values().length];
 		receivedMessages = new AtomicLong[Method.values().length][Type.values().length];
@@ -81,7 +84,7 @@ public class RPCStatistics {
 	 * @return
 	 */
 	public long getReceivedBytesPerSec() {
-		long now = System.currentTimeMillis();
+		long now = Clock.currentTimeMillis();
 		long d = now - lastReceivedTimestamp;
 		if (d > 950) {
 			long lrb = lastReceivedBytes.getAndSet(0);
@@ -95,7 +98,7 @@ public class RPCStatistics {
 	 * @return
 	 */
 	public long getSentBytesPerSec() {
-		long now = System.currentTimeMillis();
+		long now = Clock.currentTimeMillis();
 		long d = now - lastSentTimestamp;
 		if (d > 950) {
 			long lsb = lastSentBytes.getAndSet(0);
@@ -167,6 +170,10 @@ public class RPCStatistics {
 		return droppedBytes.get();
 	}
 
+	public LatencyHistogram getRequestLatency() {
+		return requestLatency;
+	}
+
 	/**
 	 * @param receivedBytes the receivedBytes to add
 	 */
@@ -207,6 +214,10 @@ public class RPCStatistics {
 		timeoutMessages[msg.getMethod().ordinal()].incrementAndGet();
 	}
 
+	protected void handledRequest(long nanos) {
+		requestLatency.record(nanos);
+	}
+
 	protected void droppedPacket(int bytes) {
 		droppedPackets.incrementAndGet();
 		droppedBytes.addAndGet(bytes);
@@ -242,6 +253,9 @@ public class RPCStatistics {
 				getTotalSentMessages(), sentBytes.get(), getTotalReceivedMessages(), receivedBytes.get(),
 				getTotalTimeoutMessages(), droppedPackets.get(), droppedBytes.get());
 
+		f.format("%n### Request handling latency%n");
+		f.format("    %s%n", requestLatency);
+
 		return repr.toString();
 	}
 }
@@ -30,7 +30,6 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
@@ -39,6 +38,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
@@ -59,13 +59,15 @@ import elastos.carrier.utils.ThreadLocals;
 /**
  * This is a lock-free routing table implementation.
  *
- * The table itself and all buckets are Copy-on-Write list.
- * Which all mutative operations(add, remove, ...) are implemented by
- * making a fresh copy of the underlying list.
+ * The table is a binary trie of the buckets, branching on the id bits. The
+ * trie nodes are immutable, a split or a merge creates the new nodes on the
+ * path to the changed bucket and shares the rest with the previous version,
+ * then publishes the new root. The readers always see a consistent version
+ * without locking, and looking up a bucket walks the trie by the id bits.
  *
- * This is ordinarily too costly, but may be more efficient for routing
- * table reading. All mutative operations are synchronized, this means
- * only one writer at the same time.
+ * The buckets themselves are Copy-on-Write lists. All mutative operations
+ * are serialized by the pipeline, this means only one writer at the same
+ * time.
  *
  * CAUTION:
  *   All methods name leading with _ means that method will WRITE the
@@ -73,8 +75,9 @@ import elastos.carrier.utils.ThreadLocals;
  */
 public final class RoutingTable {
 	private DHT dht;
+	private final Id localId;
 
-	private volatile List<KBucket> buckets;
+	private volatile Snapshot snapshot;
 
 	private AtomicInteger writeLock;
 	private ConcurrentLinkedQueue<Operation> pipeline;
@@ -123,32 +126,153 @@ public final class RoutingTable {
 		}
 	}
 
+	// The node of the trie, a leaf holds a bucket, an inner node has both branches
+	private static final class TrieNode {
+		final KBucket bucket;
+		final TrieNode low;
+		final TrieNode high;
+		final int buckets;
+
+		TrieNode(KBucket bucket) {
+			this.bucket = bucket;
+			this.low = null;
+			this.high = null;
+			this.buckets = 1;
+		}
+
+		TrieNode(TrieNode low, TrieNode high) {
+			this.bucket = null;
+			this.low = low;
+			this.high = high;
+			this.buckets = low.buckets + high.buckets;
+		}
+
+		boolean isLeaf() {
+			return bucket != null;
+		}
+	}
+
+	/**
+	 * An immutable version of the routing table structure. The buckets are
+	 * the live buckets of the table, only the structure is frozen, so the
+	 * lookups of a batch can share one snapshot instead of each reading the
+	 * routing table.
+	 */
+	public static final class Snapshot {
+		private final TrieNode root;
+
+		private Snapshot(TrieNode root) {
+			this.root = root;
+		}
+
+		/**
+		 * @return the number of the buckets
+		 */
+		public int size() {
+			return root.buckets;
+		}
+
+		/**
+		 * Get the bucket at the index, the buckets are in the order of their prefixes.
+		 */
+		public KBucket get(int index) {
+			if (index < 0 || index >= root.buckets)
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + root.buckets);
+
+			TrieNode node = root;
+			while (!node.isLeaf()) {
+				if (index < node.low.buckets) {
+					node = node.low;
+				} else {
+					index -= node.low.buckets;
+					node = node.high;
+				}
+			}
+
+			return node.bucket;
+		}
+
+		public KBucket bucketOf(Id id) {
+			byte[] bits = id.bytes();
+			TrieNode node = root;
+			for (int depth = 0; !node.isLeaf(); depth++)
+				node = isHighBranch(bits, depth) ? node.high : node.low;
+
+			return node.bucket;
+		}
+
+		/**
+		 * Visits the buckets in the order of the XOR distance to the target, the
+		 * closer bucket first, until the visitor returns false. All ids in a
+		 * bucket are closer to the target than all ids in the buckets after it.
+		 */
+		public void forEachClosest(Id target, Predicate<KBucket> visitor) {
+			forEachClosest(root, target.bytes(), 0, visitor);
+		}
+
+		private static boolean forEachClosest(TrieNode node, byte[] target, int depth, Predicate<KBucket> visitor) {
+			if (node.isLeaf())
+				return visitor.test(node.bucket);
+
+			boolean high = isHighBranch(target, depth);
+			return forEachClosest(high ? node.high : node.low, target, depth + 1, visitor) &&
+					forEachClosest(high ? node.low : node.high, target, depth + 1, visitor);
+		}
+
+		/**
+		 * @return the buckets in the order of their prefixes
+		 */
+		public List<KBucket> buckets() {
+			List<KBucket> buckets = new ArrayList<>(root.buckets);
+			collect(root, buckets);
+			return Collections.unmodifiableList(buckets);
+		}
+
+		private static void collect(TrieNode node, List<KBucket> buckets) {
+			if (node.isLeaf()) {
+				buckets.add(node.bucket);
+			} else {
+				collect(node.low, buckets);
+				collect(node.high, buckets);
+			}
+		}
+	}
+
 	public RoutingTable(DHT dht) {
+		this(dht, dht.getNode().getId());
+	}
+
+	// Without the DHT only the table structure works, e.g. in the tests,
+	// the maintenance needs the DHT.
+	RoutingTable(DHT dht, Id localId) {
 		this.dht = dht;
-		this.buckets = new ArrayList<>();
+		this.localId = localId;
 		this.writeLock = new AtomicInteger(0);
 		this.pipeline = new ConcurrentLinkedQueue<>();
-		buckets.add(new KBucket(new Prefix(), x -> true));
+		this.snapshot = new Snapshot(new TrieNode(new KBucket(new Prefix(), x -> true)));
 	}
 
-	private List<KBucket> getBuckets() {
-		return buckets;
-	}
-
-	private void setBuckets(List<KBucket> buckets) {
-		this.buckets = buckets;
+	private static boolean isHighBranch(byte[] bits, int depth) {
+		return (bits[depth >>> 3] & (0x80 >>> (depth & 0x07))) != 0;
 	}
 
 	private DHT getDHT() {
 		return dht;
 	}
 
+	/**
+	 * @return the current version of the routing table structure
+	 */
+	public Snapshot snapshot() {
+		return snapshot;
+	}
+
 	public int size() {
-		return getBuckets().size();
+		return snapshot.size();
 	}
 
 	public KBucket get(int index) {
-		return getBuckets().get(index);
+		return snapshot.get(index);
 	}
 
 	public KBucketEntry getEntry(Id id, boolean includeCache) {
@@ -156,41 +280,15 @@ public final class RoutingTable {
 	}
 
 	public List<KBucket> buckets() {
-		return Collections.unmodifiableList(getBuckets());
+		return snapshot.buckets();
 	}
 
 	public Stream<KBucket> stream() {
-		return getBuckets().stream();
-	}
-
-	public int indexOf(Id id) {
-		return indexOf(getBuckets(), id);
+		return buckets().stream();
 	}
 
 	public KBucket bucketOf(Id id) {
-		List<KBucket> bucketsRef = getBuckets();
-		return bucketsRef.get(indexOf(bucketsRef, id));
-	}
-
-	static int indexOf(List<KBucket> bucketsRef, Id id) {
-		int low = 0;
-		int mid = 0;
-		int high = bucketsRef.size() - 1;
-		int cmp = 0;
-
-		while (low <= high) {
-			mid = (low + high) >>> 1;
-			KBucket bucket = bucketsRef.get(mid);
-			cmp = id.compareTo(bucket.prefix());
-			if (cmp > 0)
-				low = mid + 1;
-			else if (cmp < 0)
-				high = mid - 1;
-			else
-				return mid; // match the current bucket
-		}
-
-		return cmp < 0 ? mid - 1 : mid;
+		return snapshot.bucketOf(id);
 	}
 
 	/**
@@ -199,22 +297,22 @@ public final class RoutingTable {
 	 * @return
 	 */
 	public int getNumBucketEntries() {
-		return getBuckets().stream().flatMapToInt(b -> IntStream.of(b.size())).sum();
+		return buckets().stream().flatMapToInt(b -> IntStream.of(b.size())).sum();
 	}
 
 	public int getNumCacheEntries() {
-		return getBuckets().stream().flatMapToInt(b -> IntStream.of(b.cacheSize())).sum();
+		return buckets().stream().flatMapToInt(b -> IntStream.of(b.cacheSize())).sum();
 	}
 
 	public KBucketEntry getRandomEntry() {
-		List<KBucket> bucketsRef = getBuckets();
+		Snapshot snapshotRef = snapshot;
 
-		int offset = ThreadLocals.random().nextInt(bucketsRef.size());
-		return bucketsRef.get(offset).random();
+		int offset = ThreadLocals.random().nextInt(snapshotRef.size());
+		return snapshotRef.get(offset).random();
 	}
 
 	private boolean isHomeBucket(Prefix p) {
-		return p.isPrefixOf(getDHT().getNode().getId());
+		return p.isPrefixOf(localId);
 	}
 
 	// TODO: CHECKME!!!
@@ -285,7 +383,7 @@ public final class RoutingTable {
 		// check if we might have to pick it up again due to races
 		// schedule async to avoid infinite stacks
 		if(pipeline.peek() != null)
-			getDHT().getNode().getScheduler().execute(this::processPipeline);
+			getDHT().execute(this::processPipeline);
 	}
 
 	private void _put(KBucketEntry entry) {
@@ -329,14 +427,19 @@ public final class RoutingTable {
 		return highBranch.isPrefixOf(newEntry.getId());
 	}
 
-	private void _modify(Collection<KBucket> toRemove, Collection<KBucket> toAdd) {
-		List<KBucket> newBuckets = new ArrayList<>(getBuckets());
-		if (toRemove != null && !toRemove.isEmpty())
-			newBuckets.removeAll(toRemove);
-		if (toAdd != null && !toAdd.isEmpty())
-			newBuckets.addAll(toAdd);
-		Collections.sort(newBuckets);
-		setBuckets(newBuckets);
+	// Copies the path to the prefix, the replacement takes the place of its subtree
+	private static TrieNode replace(TrieNode node, Prefix prefix, int depth, TrieNode replacement) {
+		if (depth > prefix.getDepth())
+			return replacement;
+
+		if (isHighBranch(prefix.bytes(), depth))
+			return new TrieNode(node.low, replace(node.high, prefix, depth + 1, replacement));
+		else
+			return new TrieNode(replace(node.low, prefix, depth + 1, replacement), node.high);
+	}
+
+	private void _modify(Prefix prefix, TrieNode replacement) {
+		snapshot = new Snapshot(replace(snapshot.root, prefix, 0, replacement));
 	}
 
 	private void _split(KBucket bucket) {
@@ -357,56 +460,56 @@ public final class RoutingTable {
 				b._put(e);
 		}
 
-		_modify(Arrays.asList(bucket), Arrays.asList(a, b));
+		_modify(bucket.prefix(), new TrieNode(new TrieNode(a), new TrieNode(b)));
 	}
 
-	private void _mergeBuckets() {
-		int i = 0;
-
-		// perform bucket merge operations where possible
-		while (true) {
-			i++;
-
-			if (i < 1)
-				continue;
+	void _mergeBuckets() {
+		// perform bucket merge operations where possible, bottom up
+		TrieNode root = snapshot.root;
+		TrieNode merged = _merge(root);
+		if (merged != root)
+			snapshot = new Snapshot(merged);
+	}
 
-			List<KBucket> bucketsRef = getBuckets();
-			if (i >= bucketsRef.size())
-				break;
+	private TrieNode _merge(TrieNode node) {
+		if (node.isLeaf())
+			return node;
 
-			KBucket b1 = bucketsRef.get(i - 1);
-			KBucket b2 = bucketsRef.get(i);
+		TrieNode low = _merge(node.low);
+		TrieNode high = _merge(node.high);
 
-			if (b1.prefix().isSiblingOf(b2.prefix())) {
-				int effectiveSize1 = (int) (b1.stream().filter(e -> !e.removableWithoutReplacement()).count()
-						+ b1.cacheStream().filter(KBucketEntry::isEligibleForNodesList).count());
-				int effectiveSize2 = (int) (b2.stream().filter(e -> !e.removableWithoutReplacement()).count()
-						+ b2.cacheStream().filter(KBucketEntry::isEligibleForNodesList).count());
+		if (low.isLeaf() && high.isLeaf()) {
+			KBucket b1 = low.bucket;
+			KBucket b2 = high.bucket;
 
-				// check if the buckets can be merged without losing any effective entries
-				if (effectiveSize1 + effectiveSize2 <= Constants.MAX_ENTRIES_PER_BUCKET) {
-					// Insert into a new bucket directly, no splitting to avoid
-					// fibrillation between merge and split operations
-					KBucket newBucket = new KBucket(b1.prefix().getParent(), this::isHomeBucket);
+			int effectiveSize1 = (int) (b1.stream().filter(e -> !e.removableWithoutReplacement()).count()
+					+ b1.cacheStream().filter(KBucketEntry::isEligibleForNodesList).count());
+			int effectiveSize2 = (int) (b2.stream().filter(e -> !e.removableWithoutReplacement()).count()
+					+ b2.cacheStream().filter(KBucketEntry::isEligibleForNodesList).count());
 
-					b1.stream().forEach(newBucket::_put);
-					b2.stream().forEach(newBucket::_put);
-					b1.cacheStream().forEach(newBucket::_put);
-					b2.cacheStream().forEach(newBucket::_put);
+			// check if the buckets can be merged without losing any effective entries
+			if (effectiveSize1 + effectiveSize2 <= Constants.MAX_ENTRIES_PER_BUCKET) {
+				// Insert into a new bucket directly, no splitting to avoid
+				// fibrillation between merge and split operations
+				KBucket newBucket = new KBucket(b1.prefix().getParent(), this::isHomeBucket);
 
-					_modify(Arrays.asList(b1, b2), Arrays.asList(newBucket));
+				b1.stream().forEach(newBucket::_put);
+				b2.stream().forEach(newBucket::_put);
+				b1.cacheStream().forEach(newBucket::_put);
+				b2.cacheStream().forEach(newBucket::_put);
 
-					i -= 2;
-				}
+				return new TrieNode(newBucket);
 			}
 		}
+
+		return low == node.low && high == node.high ? node : new TrieNode(low, high);
 	}
 
 	/**
 	 * Check if a buckets needs to be refreshed, and refresh if necessary.
 	 */
 	private void _maintenance() {
-		long now = System.currentTimeMillis();
+		long now = Clock.currentTimeMillis();
 
 		// don't spam the checks if we're not receiving anything.
 		// we don't want to cause too many stray packets somewhere in a network
@@ -418,10 +521,9 @@ public final class RoutingTable {
 
 		_mergeBuckets();
 
-		Id localId = getDHT().getNode().getId();
 		Collection<Id> bootstrapIds = getDHT().getBootstrapIds();
 
-		List<KBucket> bucketsRef = getBuckets();
+		List<KBucket> bucketsRef = buckets();
 		for (KBucket bucket : bucketsRef) {
 			boolean isHome = bucket.isHomeBucket();
 
@@ -469,7 +571,7 @@ public final class RoutingTable {
 	 * @param dh_table
 	 */
 	void fillBuckets() {
-		List<KBucket> bucketsRef = getBuckets();
+		List<KBucket> bucketsRef = buckets();
 
 		for (int i = 0, n = bucketsRef.size(); i < n; i++) {
 			KBucket bucket = bucketsRef.get(i);
@@ -533,7 +635,7 @@ public final class RoutingTable {
 			}
 
 			log.info("Loaded {} entries from persistent file. it was {} min old.", totalEntries,
-					((System.currentTimeMillis() - timestamp) / (60 * 1000)));
+					((Clock.currentTimeMillis() - timestamp) / (60 * 1000)));
 		} catch (IOException e) {
 			log.error("Can not load the routing table.", e);
 		}
@@ -560,11 +662,13 @@ public final class RoutingTable {
 			gen.writeStartObject();
 
 			gen.writeFieldName("timestamp");
-			gen.writeNumber(System.currentTimeMillis());
+			gen.writeNumber(Clock.currentTimeMillis());
+
+			List<KBucket> bucketsRef = buckets();
 
 			gen.writeFieldName("entries");
 			gen.writeStartArray();
-			for (KBucket bucket : getBuckets()) {
+			for (KBucket bucket : bucketsRef) {
 				for (KBucketEntry entry : bucket.entries()) {
 					gen.writeStartObject();
 
@@ -581,7 +685,7 @@ public final class RoutingTable {
 
 			gen.writeFieldName("cache");
 			gen.writeStartArray();
-			for (KBucket bucket : getBuckets()) {
+			for (KBucket bucket : bucketsRef) {
 				for (KBucketEntry entry : bucket.cacheEntries()) {
 					gen.writeStartObject();
 
@@ -609,7 +713,7 @@ public final class RoutingTable {
 	@Override
 	public String toString() {
 		StringBuilder repr = new StringBuilder(10240);
-		List<KBucket> buckets = getBuckets();
+		List<KBucket> buckets = buckets();
 		repr.append("buckets: ").append(buckets.size()).append(" / entries: ").append(getNumBucketEntries());
 		repr.append('\n');
 		for (KBucket bucket : buckets) {
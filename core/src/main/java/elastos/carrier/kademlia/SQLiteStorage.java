@@ -33,14 +33,27 @@ import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Spliterator;
 import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
@@ -49,6 +62,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.sqlite.SQLiteDataSource;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 import elastos.carrier.Id;
 import elastos.carrier.PeerInfo;
 import elastos.carrier.Value;
@@ -60,8 +76,35 @@ import elastos.carrier.kademlia.exceptions.KadException;
 import elastos.carrier.kademlia.exceptions.NotValueOwner;
 import elastos.carrier.kademlia.exceptions.SequenceNotMonotonic;
 
+/**
+ * The SQLite based data storage.
+ *
+ * The storage calls share a fixed pool of connections. Every connection keeps
+ * its own prepared statements, so the hot queries are prepared only once. The
+ * file database runs in the WAL mode, the readers don't block each other nor
+ * the writer. The writes are serialized by the storage itself, the SQLite
+ * allows only one writer anyway.
+ *
+ * The puts are queued and committed in batches, one transaction every
+ * STORAGE_WRITE_DELAY or STORAGE_WRITE_BATCH_SIZE writes(group commit). The
+ * value and sequence checks run against the queued writes, and the reads see
+ * them before they are committed. Unless the durable writes are enabled, only
+ * the persistent puts wait for the commit.
+ *
+ * The hot values are cached in memory. A cached value expires with its row,
+ * the same as the expire sweep, and it is invalidated when the value is
+ * written, removed or swept. The peers are not cached, every read samples a
+ * new random subset.
+ *
+ * The peers of an id are sampled through a random slot index, so the cost of
+ * a FIND_PEER lookup is bounded by the number of the returned peers, not by
+ * the number of the peers announced for the id.
+ *
+ * The streams returned by the storage hold a pooled connection until they are
+ * exhausted or closed.
+ */
 public class SQLiteStorage implements DataStorage {
-	private static final int VERSION = 4;
+	private static final int VERSION = 5;
 	private static final String SET_USER_VERSION = "PRAGMA user_version = " + VERSION;
 	private static final String GET_USER_VERSION = "PRAGMA user_version";
 
@@ -93,6 +136,7 @@ public class SQLiteStorage implements DataStorage {
 			"signature BLOB NOT NULL, " +
 			"timestamp INTEGER NOT NULL, " +
 			"announced INTEGER NOT NULL DEFAULT 0, " +
+			"slot INTEGER NOT NULL DEFAULT 0, " +
 			"PRIMARY KEY(id, nodeId, origin)" +
 		") WITHOUT ROWID";
 
@@ -102,6 +146,11 @@ public class SQLiteStorage implements DataStorage {
 	private static final String CREATE_PEERS_ID_INDEX =
 			"CREATE INDEX IF NOT EXISTS idx_peers_id ON peers(id)";
 
+	// The random slot of the peer, re-rolled on every announce. The peers
+	// are sampled by seeking to a random slot in this index.
+	private static final String CREATE_PEERS_SLOT_INDEX =
+			"CREATE INDEX IF NOT EXISTS idx_peers_slot ON peers(id, slot)";
+
 	private static final String UPSERT_VALUE = "INSERT INTO valores(" +
 			"id, persistent, publicKey, privateKey, recipient, nonce, signature, sequenceNumber, data, timestamp, announced) " +
 			"VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) ON CONFLICT(id) DO UPDATE SET " +
@@ -117,16 +166,20 @@ public class SQLiteStorage implements DataStorage {
 			"SET timestamp=?, announced = ? WHERE id = ?";
 
 	private static final String UPSERT_PEER = "INSERT INTO peers(" +
-			"id, nodeId, origin, persistent, privateKey, port, alternativeURL, signature, timestamp, announced) " +
-			"VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?) ON CONFLICT(id, nodeId, origin) DO UPDATE SET " +
+			"id, nodeId, origin, persistent, privateKey, port, alternativeURL, signature, timestamp, announced, slot) " +
+			"VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) ON CONFLICT(id, nodeId, origin) DO UPDATE SET " +
 			"persistent=excluded.persistent, privateKey=excluded.privateKey, " +
 			"port=excluded.port, alternativeURL=excluded.alternativeURL, " +
 			"signature=excluded.signature, timestamp=excluded.timestamp, " +
-			"announced=excluded.announced";
+			"announced=excluded.announced, slot=excluded.slot";
+
+	private static final String SELECT_PEER = "SELECT * from peers INDEXED BY idx_peers_slot " +
+			"WHERE id = ? and slot >= ? and timestamp >= ? " +
+			"ORDER BY slot LIMIT ?";
 
-	private static final String SELECT_PEER = "SELECT * from peers " +
-			"WHERE id = ? and timestamp >= ? " +
-			"ORDER BY RANDOM() LIMIT ?";
+	private static final String SELECT_PEER_WRAPPED = "SELECT * from peers INDEXED BY idx_peers_slot " +
+			"WHERE id = ? and slot < ? and timestamp >= ? " +
+			"ORDER BY slot LIMIT ?";
 
 	private static final String SELECT_PEER_WITH_SRC = "SELECT * from peers " +
 			"WHERE id = ? and origin = ? and timestamp >= ?";
@@ -134,129 +187,664 @@ public class SQLiteStorage implements DataStorage {
 	private static final String UPDATE_PEER_LAST_ANNOUNCE = "UPDATE peers " +
 			"SET timestamp=?, announced = ? WHERE id = ? and origin = ?";
 
-	private static ThreadLocal<Connection> cp;
-
+	// The re-announce pages, seek by the primary key after the last row of the
+	// previous page. The empty blob sorts before any id.
+	private static final String SELECT_PERSISTENT_VALUES = "SELECT * FROM valores " +
+			"WHERE persistent = true AND announced <= ? AND id > ? ORDER BY id LIMIT ?";
+
+	private static final String SELECT_PERSISTENT_PEERS = "SELECT * FROM peers " +
+			"WHERE persistent = true AND announced <= ? AND (id > ? OR (id = ? AND nodeId > ?)) " +
+			"ORDER BY id, nodeId LIMIT ?";
+
+	private static final String DELETE_VALUE = "DELETE FROM valores WHERE id = ?";
+
+	private static final String DELETE_PEER = "DELETE FROM peers WHERE id = ? and origin = ?";
+
+	// The expire sweep deletes the oldest rows in the chunks, walks the
+	// timestamp index instead of scanning the tables.
+	private static final String EXPIRE_VALUES = "DELETE FROM valores WHERE id IN (" +
+			"SELECT id FROM valores INDEXED BY idx_valores_timpstamp " +
+			"WHERE timestamp < ? and persistent != TRUE ORDER BY timestamp LIMIT ?)";
+
+	private static final String EXPIRE_PEERS = "DELETE FROM peers WHERE (id, nodeId, origin) IN (" +
+			"SELECT id, nodeId, origin FROM peers INDEXED BY idx_peers_timpstamp " +
+			"WHERE timestamp < ? and persistent != TRUE ORDER BY timestamp LIMIT ?)";
+
+	private static final String OLDEST_EXPIRED_VALUE = "SELECT timestamp FROM valores " +
+			"INDEXED BY idx_valores_timpstamp " +
+			"WHERE timestamp < ? and persistent != TRUE ORDER BY timestamp LIMIT 1";
+
+	private static final String OLDEST_EXPIRED_PEER = "SELECT timestamp FROM peers " +
+			"INDEXED BY idx_peers_timpstamp " +
+			"WHERE timestamp < ? and persistent != TRUE ORDER BY timestamp LIMIT 1";
+
+	private BlockingQueue<PooledConnection> pool;
+	private List<PooledConnection> connections;
+	private volatile boolean closed;
+
+	// SQLite allows only one writer, serialize the writes here instead of
+	// spinning on the busy handler.
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	// Guards the write queue, keeps the check-enqueue of the CAS and sequence
+	// number checks atomic. The database is never read under this lock.
+	private final ReentrantLock queueLock = new ReentrantLock();
+	private WriteBatch batch = new WriteBatch();
+	private boolean closing;
+	private final Map<Id, PendingWrite> pendingValues = new ConcurrentHashMap<>();
+	private final Map<Id, Map<PeerKey, PendingWrite>> pendingPeers = new ConcurrentHashMap<>();
+	// Counts the batches taken out of the queue, bumped before their writes
+	// leave the pending maps. A check that read the database before taking
+	// the queue lock is stale if the count changed meanwhile.
+	private volatile long flushes;
+
+	private ScheduledExecutorService scheduler;
+	private boolean durableWrites;
+
+	// The read-through cache of the hot values, null if disabled. A read only
+	// fills the cache if no commit invalidated the cache meanwhile.
+	private Cache<Id, CachedValue> valueCache;
+	private final Object cacheLock = new Object();
+	private long cacheGeneration;
+	private final LongAdder valueHits = new LongAdder();
+	private final LongAdder valueMisses = new LongAdder();
+
+	// the expire sweep reschedules itself, the lock guards the future
+	private final Object expireLock = new Object();
 	private ScheduledFuture<?> expireFuture;
+	private volatile boolean expireStopped;
+	private final LongAdder expiredValues = new LongAdder();
+	private final LongAdder expiredPeers = new LongAdder();
+	// how far the expire sweep is behind, the age of the oldest expired row
+	// not deleted yet
+	private volatile long expireLag;
 
 	private static final Logger log = LoggerFactory.getLogger(SQLiteStorage.class);
 
+	@FunctionalInterface
+	private interface RowMapper<T> {
+		T map(ResultSet rs) throws SQLException;
+	}
+
+	private static final class PendingWrite {
+		final Value value;
+		final PeerInfo peer;
+		final boolean persistent;
+		final long timestamp;
+		final long announced;
+
+		PendingWrite(Value value, PeerInfo peer, boolean persistent, boolean updateLastAnnounce) {
+			this.value = value;
+			this.peer = peer;
+			this.persistent = persistent;
+			this.timestamp = Clock.currentTimeMillis();
+			this.announced = updateLastAnnounce ? timestamp : 0;
+		}
+	}
+
+	// The primary key of the peers table, except the peer id
+	private static final class PeerKey {
+		final Id nodeId;
+		final Id origin;
+
+		PeerKey(PeerInfo peer) {
+			this.nodeId = peer.getNodeId();
+			this.origin = peer.getOrigin();
+		}
+
+		@Override
+		public int hashCode() {
+			return nodeId.hashCode() * 31 + origin.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o)
+				return true;
+
+			if (o instanceof PeerKey) {
+				PeerKey k = (PeerKey)o;
+				return Objects.equals(nodeId, k.nodeId) && Objects.equals(origin, k.origin);
+			}
+
+			return false;
+		}
+	}
+
+	private static final class CachedValue {
+		final Value value;
+		final long expiresAt;
+
+		CachedValue(Value value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private static final class WriteBatch {
+		final List<PendingWrite> writes = new ArrayList<>();
+		final CompletableFuture<Void> committed = new CompletableFuture<>();
+	}
+
+	private final class PooledConnection implements AutoCloseable {
+		private final Connection connection;
+		private final Map<String, PreparedStatement> statements;
+
+		PooledConnection(Connection connection) {
+			this.connection = connection;
+			this.statements = new HashMap<>();
+		}
+
+		Connection getConnection() {
+			return connection;
+		}
+
+		// The cached statements are owned by the connection, don't close them
+		PreparedStatement prepare(String sql) throws SQLException {
+			PreparedStatement stmt = statements.get(sql);
+			if (stmt == null) {
+				stmt = connection.prepareStatement(sql);
+				statements.put(sql, stmt);
+			} else {
+				stmt.clearParameters();
+			}
+
+			return stmt;
+		}
+
+		void destroy() {
+			for (PreparedStatement stmt : statements.values()) {
+				try {
+					stmt.close();
+				} catch (SQLException ignore) {
+				}
+			}
+			statements.clear();
+
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				log.error("Failed to close the SQLite connection: " + e.getMessage(), e);
+			}
+		}
+
+		@Override
+		public void close() {
+			release(this);
+		}
+	}
+
 	public static DataStorage open(File path, ScheduledExecutorService scheduler) throws KadException {
+		return open(path, scheduler, false);
+	}
+
+	public static DataStorage open(File path, ScheduledExecutorService scheduler, boolean durableWrites) throws KadException {
+		return open(path, scheduler, durableWrites, Constants.STORAGE_CACHE_SIZE);
+	}
+
+	// cacheSize: max cached values, 0 to disable the cache
+	static DataStorage open(File path, ScheduledExecutorService scheduler, boolean durableWrites,
+			int cacheSize) throws KadException {
 		SQLiteStorage storage = new SQLiteStorage();
-		storage.init(path, scheduler);
+		storage.init(path, scheduler, durableWrites, cacheSize);
 		return storage;
 	}
 
-	private void init(File path, ScheduledExecutorService scheduler) throws KadException {
-		// SQLite connection global initialization
-		// According to the SQLite documentation, using single connection in
-		// multiple threads is safe and efficient.
-		// But java maybe using green thread on top of the system thread.
-		// So we should use the thread local connection make sure the database
-		// operations are safe.
+	private void init(File path, ScheduledExecutorService scheduler, boolean durableWrites,
+			int cacheSize) throws KadException {
+		this.scheduler = scheduler;
+		this.durableWrites = durableWrites;
+
+		if (cacheSize > 0) {
+			valueCache = CacheBuilder.newBuilder()
+					.maximumSize(cacheSize)
+					.expireAfterWrite(Constants.MAX_VALUE_AGE, TimeUnit.MILLISECONDS)
+					.ticker(Clock.ticker())
+					.build();
+		}
+
 		SQLiteDataSource ds = new SQLiteDataSource();
 
 		// URL for memory db: https://www.sqlite.org/inmemorydb.html
-		ds.setUrl("jdbc:sqlite:" + (path != null ? path.toString() : "file:node?mode=memory&cache=shared"));
+		// The shared cache memory db lives as long as one of the connections is open,
+		// the pool keeps all the connections open until the storage closed.
+		boolean memory = path == null;
+		ds.setUrl("jdbc:sqlite:" + (!memory ? path.toString() : "file:node?mode=memory&cache=shared"));
 
-		cp = ThreadLocal.withInitial(() -> {
-			try {
-				return ds.getConnection();
-			} catch (SQLException e) {
-				log.error("Failed to open the SQLite storage.", e);
-				//throw new IOError("Failed to open the SQLite storage", e);
-				return null;
+		pool = new ArrayBlockingQueue<>(Constants.STORAGE_CONNECTION_POOL_SIZE);
+		connections = new ArrayList<>(Constants.STORAGE_CONNECTION_POOL_SIZE);
+		try {
+			for (int i = 0; i < Constants.STORAGE_CONNECTION_POOL_SIZE; i++) {
+				PooledConnection pc = new PooledConnection(openConnection(ds, memory));
+				connections.add(pc);
+				pool.add(pc);
 			}
-		});
+		} catch (SQLException e) {
+			connections.forEach(PooledConnection::destroy);
+			log.error("Failed to open the SQLite storage: " + e.getMessage(), e);
+			throw new IOError("Failed to open the SQLite storage: " + e.getMessage(), e);
+		}
 
 		int userVersion = getUserVersion();
 
-		// Check and initialize the database schema.
-		try (Statement stmt = getConnection().createStatement()) {
-			// if we change the schema,
-			// we should check the user version, do the schema update,
-			// then increase the user_version;
-			if (userVersion < 4) {
-				stmt.executeUpdate("DROP INDEX IF EXISTS idx_valores_timpstamp");
-				stmt.executeUpdate("DROP TABLE IF EXISTS valores");
-
-				stmt.executeUpdate("DROP INDEX IF EXISTS idx_peers_timpstamp");
-				stmt.executeUpdate("DROP INDEX IF EXISTS idx_peers_id");
-				stmt.executeUpdate("DROP TABLE IF EXISTS peers");
-			}
-
-			stmt.executeUpdate(SET_USER_VERSION);
-			stmt.executeUpdate(CREATE_VALUES_TABLE);
-			stmt.executeUpdate(CREATE_VALUES_INDEX);
-			stmt.executeUpdate(CREATE_PEERS_TABLE);
-			stmt.executeUpdate(CREATE_PEERS_INDEX);
-			stmt.executeUpdate(CREATE_PEERS_ID_INDEX);
+		// Check and initialize the database schema. The migration and the user
+		// version bump are in one transaction, a crash in between leaves the old
+		// schema untouched.
+		try (PooledConnection pc = getConnection();
+				Statement stmt = pc.getConnection().createStatement()) {
+			Connection connection = pc.getConnection();
+			connection.setAutoCommit(false);
+			try {
+				// if we change the schema,
+				// we should check the user version, do the schema update,
+				// then increase the user_version;
+				if (userVersion < 4) {
+					stmt.executeUpdate("DROP INDEX IF EXISTS idx_valores_timpstamp");
+					stmt.executeUpdate("DROP TABLE IF EXISTS valores");
+
+					stmt.executeUpdate("DROP INDEX IF EXISTS idx_peers_timpstamp");
+					stmt.executeUpdate("DROP INDEX IF EXISTS idx_peers_id");
+					stmt.executeUpdate("DROP TABLE IF EXISTS peers");
+				} else if (userVersion < 5) {
+					stmt.executeUpdate("ALTER TABLE peers ADD COLUMN slot INTEGER NOT NULL DEFAULT 0");
+					stmt.executeUpdate("UPDATE peers SET slot = RANDOM()");
+				}
+
+				stmt.executeUpdate(CREATE_VALUES_TABLE);
+				stmt.executeUpdate(CREATE_VALUES_INDEX);
+				stmt.executeUpdate(CREATE_PEERS_TABLE);
+				stmt.executeUpdate(CREATE_PEERS_INDEX);
+				stmt.executeUpdate(CREATE_PEERS_ID_INDEX);
+				stmt.executeUpdate(CREATE_PEERS_SLOT_INDEX);
+				stmt.executeUpdate(SET_USER_VERSION);
+
+				connection.commit();
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(true);
+			}
 		} catch (SQLException e) {
+			closeConnections();
 			log.error("Failed to open the SQLite storage: " + e.getMessage(), e);
 			throw new IOError("Failed to open the SQLite storage: " + e.getMessage(), e);
 		}
 
-		this.expireFuture = scheduler.scheduleWithFixedDelay(() -> {
-			// Evict the expired entries from the local storage
-			expire();
-		}, 0, Constants.STORAGE_EXPIRE_INTERVAL, TimeUnit.MILLISECONDS);
+		// Evict the expired entries from the local storage
+		scheduleExpire(0);
 
 		log.info("SQLite storage opened: {}", path != null ? path : "MEMORY");
 	}
 
-	private Connection getConnection() {
-		return cp.get();
+	private static Connection openConnection(SQLiteDataSource ds, boolean memory) throws SQLException {
+		Connection connection = ds.getConnection();
+
+		try (Statement stmt = connection.createStatement()) {
+			if (!memory) {
+				// WAL: the readers run concurrently with the writer, and the commits
+				// only append to the log. NORMAL synchronous is durable in WAL mode
+				// except for the last transactions on a power loss.
+				stmt.execute("PRAGMA journal_mode = WAL");
+				stmt.execute("PRAGMA synchronous = NORMAL");
+				stmt.execute("PRAGMA mmap_size = " + Constants.STORAGE_MMAP_SIZE);
+			} else {
+				// The shared cache uses the table level locks, the readers
+				// should not wait for the writer.
+				stmt.execute("PRAGMA read_uncommitted = true");
+			}
+
+			stmt.execute("PRAGMA temp_store = MEMORY");
+			stmt.execute("PRAGMA busy_timeout = " + Constants.STORAGE_CONNECTION_TIMEOUT);
+		} catch (SQLException e) {
+			connection.close();
+			throw e;
+		}
+
+		return connection;
+	}
+
+	private PooledConnection getConnection() throws IOError {
+		if (closed)
+			throw new IOError("SQLite storage already closed");
+
+		PooledConnection pc;
+		try {
+			pc = pool.poll(Constants.STORAGE_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOError("Interrupted while waiting for the SQLite connection", e);
+		}
+
+		if (pc == null)
+			throw new IOError("No SQLite connection available in " + Constants.STORAGE_CONNECTION_TIMEOUT + "ms");
+
+		return pc;
+	}
+
+	private void release(PooledConnection pc) {
+		pool.offer(pc);
+		// released after the storage closed
+		if (closed)
+			closeConnections();
+	}
+
+	private void closeConnections() {
+		PooledConnection pc;
+		while ((pc = pool.poll()) != null)
+			pc.destroy();
 	}
 
 	@Override
 	public void close() throws IOException {
-		expireFuture.cancel(false);
-		// none of the scheduled tasks should experience exceptions,
-		// log them if they did
+		ScheduledFuture<?> expireFuture;
+		synchronized (expireLock) {
+			expireStopped = true;
+			expireFuture = this.expireFuture;
+		}
+
+		if (expireFuture != null) {
+			expireFuture.cancel(false);
+			// none of the scheduled tasks should experience exceptions,
+			// log them if they did
+			try {
+				expireFuture.get();
+			} catch (ExecutionException e) {
+				log.error("Scheduled future error", e);
+			} catch (InterruptedException e) {
+				log.error("Scheduled future error", e);
+			} catch (CancellationException ignore) {
+			}
+		}
+
+		// no more writes, commit the queued ones
+		queueLock.lock();
+		try {
+			closing = true;
+		} finally {
+			queueLock.unlock();
+		}
+		flush();
+
+		// the in use connections are closed when they come back
+		closed = true;
+		closeConnections();
+	}
+
+	private CompletableFuture<Void> enqueue(PendingWrite write) throws KadException {
+		// the caller holds the queue lock
+		if (closing)
+			throw new IOError("SQLite storage already closed");
+
+		batch.writes.add(write);
+		int size = batch.writes.size();
+		try {
+			if (size == 1)
+				scheduler.schedule(this::flush, Constants.STORAGE_WRITE_DELAY, TimeUnit.MILLISECONDS);
+			else if (size == Constants.STORAGE_WRITE_BATCH_SIZE)
+				scheduler.execute(this::flush);
+		} catch (RejectedExecutionException e) {
+			// the scheduler is stopped, the storage commits the queue when closing
+			log.debug("SQLite storage failed to schedule the commit: {}", e.getMessage());
+		}
+
+		return batch.committed;
+	}
+
+	private void await(CompletableFuture<Void> committed) throws KadException {
 		try {
-			expireFuture.get();
+			committed.get();
 		} catch (ExecutionException e) {
-			log.error("Scheduled future error", e);
+			Throwable cause = e.getCause();
+			if (cause instanceof KadException)
+				throw (KadException)cause;
+
+			throw new IOError("SQLite storage encounter an error: " + cause.getMessage(), cause);
 		} catch (InterruptedException e) {
-			log.error("Scheduled future error", e);
-		} catch (CancellationException ignore) {
+			Thread.currentThread().interrupt();
+			throw new IOError("Interrupted while waiting for the commit", e);
 		}
+	}
 
-		/*
+	/**
+	 * Commits the queued writes in one transaction.
+	 */
+	void flush() {
+		// hold the write lock before taking the batch, so the batches are committed in order
+		writeLock.lock();
 		try {
-			connection.close();
-		} catch (SQLException e) {
-			log.error("Failed to close the SQLite storage.", e);
-			throw new IOException("Failed to close the SQLite storage.", e);
+			WriteBatch current;
+			queueLock.lock();
+			try {
+				if (batch.writes.isEmpty())
+					return;
+
+				current = batch;
+				batch = new WriteBatch();
+			} finally {
+				queueLock.unlock();
+			}
+
+			try {
+				commit(current.writes);
+				invalidate(current.writes);
+				current.committed.complete(null);
+			} catch (SQLException | KadException e) {
+				log.error("Failed to commit " + current.writes.size() + " queued writes: " + e.getMessage(), e);
+				current.committed.completeExceptionally(e instanceof SQLException ?
+						new IOError("SQLite storage encounter an error: " + e.getMessage(), e) : e);
+			} finally {
+				// committed or lost, the reads go to the database from now on
+				flushes++;
+				current.writes.forEach(this::unpend);
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private void commit(List<PendingWrite> writes) throws SQLException, KadException {
+		try (PooledConnection pc = getConnection()) {
+			Connection connection = pc.getConnection();
+			connection.setAutoCommit(false);
+
+			try {
+				PreparedStatement values = null;
+				PreparedStatement peers = null;
+
+				for (PendingWrite w : writes) {
+					if (w.value != null) {
+						if (values == null)
+							values = pc.prepare(UPSERT_VALUE);
+
+						bindValue(values, w);
+						values.addBatch();
+					} else {
+						if (peers == null)
+							peers = pc.prepare(UPSERT_PEER);
+
+						bindPeer(peers, w);
+						peers.addBatch();
+					}
+				}
+
+				if (values != null)
+					values.executeBatch();
+				if (peers != null)
+					peers.executeBatch();
+
+				connection.commit();
+			} catch (SQLException e) {
+				// the connection goes back to the pool, leave it clean
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(true);
+			}
 		}
-		*/
+	}
+
+	private long cacheGeneration() {
+		synchronized (cacheLock) {
+			return cacheGeneration;
+		}
+	}
+
+	private void invalidate(List<PendingWrite> writes) {
+		if (valueCache == null)
+			return;
+
+		synchronized (cacheLock) {
+			cacheGeneration++;
+			for (PendingWrite w : writes) {
+				if (w.value != null)
+					valueCache.invalidate(w.value.getId());
+			}
+		}
+	}
+
+	private void invalidateValue(Id valueId) {
+		if (valueCache == null)
+			return;
+
+		synchronized (cacheLock) {
+			cacheGeneration++;
+			valueCache.invalidate(valueId);
+		}
+	}
+
+	// the values deleted by the expire sweep, the rows are not known one by one
+	private void invalidateExpired(long now) {
+		if (valueCache == null)
+			return;
+
+		synchronized (cacheLock) {
+			cacheGeneration++;
+			valueCache.asMap().values().removeIf(c -> c.expiresAt <= now);
+		}
+	}
+
+	private void pend(PendingWrite w) {
+		if (w.value != null) {
+			pendingValues.put(w.value.getId(), w);
+		} else {
+			PeerKey key = new PeerKey(w.peer);
+			pendingPeers.compute(w.peer.getId(), (id, m) -> {
+				if (m == null)
+					m = new ConcurrentHashMap<>();
+
+				m.put(key, w);
+				return m;
+			});
+		}
+	}
+
+	private void unpend(PendingWrite w) {
+		if (w.value != null) {
+			pendingValues.remove(w.value.getId(), w);
+		} else {
+			PeerKey key = new PeerKey(w.peer);
+			pendingPeers.computeIfPresent(w.peer.getId(), (id, m) -> {
+				m.remove(key, w);
+				return m.isEmpty() ? null : m;
+			});
+		}
+	}
+
+	private static void bindValue(PreparedStatement stmt, PendingWrite w) throws SQLException {
+		Value value = w.value;
+
+		stmt.setBytes(1, value.getId().bytes());
+
+		stmt.setBoolean(2, w.persistent);
+
+		if (value.getPublicKey() != null)
+			stmt.setBytes(3, value.getPublicKey().bytes());
+		else
+			stmt.setNull(3, Types.BLOB);
+
+		if (value.getPrivateKey() != null)
+			stmt.setBytes(4, value.getPrivateKey());
+		else
+			stmt.setNull(4, Types.BLOB);
+
+		if (value.getRecipient() != null)
+			stmt.setBytes(5, value.getRecipient().bytes());
+		else
+			stmt.setNull(5, Types.BLOB);
+
+		if (value.getNonce() != null)
+			stmt.setBytes(6, value.getNonce());
+		else
+			stmt.setNull(6, Types.BLOB);
+
+		if (value.getSignature() != null)
+			stmt.setBytes(7, value.getSignature());
+		else
+			stmt.setNull(7, Types.BLOB);
+
+		stmt.setInt(8, value.getSequenceNumber());
+
+		if (value.getData() != null)
+			stmt.setBytes(9, value.getData());
+		else
+			stmt.setNull(9, Types.BLOB);
+
+		stmt.setLong(10, w.timestamp);
+		stmt.setLong(11, w.announced);
+	}
+
+	private static void bindPeer(PreparedStatement stmt, PendingWrite w) throws SQLException {
+		PeerInfo peer = w.peer;
+
+		stmt.setBytes(1, peer.getId().bytes());
+		stmt.setBytes(2, peer.getNodeId().bytes());
+		stmt.setBytes(3, peer.getOrigin().bytes());
+		stmt.setBoolean(4, w.persistent);
+
+		if (peer.hasPrivateKey())
+			stmt.setBytes(5, peer.getPrivateKey());
+		else
+			stmt.setNull(5, Types.BLOB);
+
+		stmt.setInt(6, peer.getPort());
+
+		if (peer.hasAlternativeURL())
+			stmt.setString(7, peer.getAlternativeURL());
+		else
+			stmt.setNull(7, Types.VARCHAR);
+
+		stmt.setBytes(8, peer.getSignature());
+		stmt.setLong(9, w.timestamp);
+		stmt.setLong(10, w.announced);
+		stmt.setLong(11, ThreadLocalRandom.current().nextLong());
 	}
 
 	public int getUserVersion() {
 		int userVersion = 0;
-		try (PreparedStatement stmt = getConnection().prepareStatement(GET_USER_VERSION)) {
-			try (ResultSet rs = stmt.executeQuery()) {
+		try (PooledConnection pc = getConnection()) {
+			try (ResultSet rs = pc.prepare(GET_USER_VERSION).executeQuery()) {
 				if (rs.next()) {
 					userVersion = rs.getInt("user_version");
 				}
 			}
-		} catch (SQLException e) {
+		} catch (SQLException | KadException e) {
 			log.error("SQLite get user version an error: " + e.getMessage(), e);
 		}
 
 		return userVersion;
 	}
 
-
-	@Override
-	public Stream<Id> getAllValues() throws KadException {
+	private <T> Stream<T> stream(String sql, long param, RowMapper<T> mapper) throws KadException {
+		PooledConnection pc = getConnection();
 		PreparedStatement stmt = null;
 		ResultSet rs = null;
 
 		try {
-			stmt = getConnection().prepareStatement("SELECT id from valores WHERE timestamp >= ? ORDER BY id");
+			// Not cached, the statement is busy until the stream finished
+			stmt = pc.getConnection().prepareStatement(sql);
 			stmt.closeOnCompletion();
-			long when = System.currentTimeMillis() - Constants.MAX_VALUE_AGE;
-			stmt.setLong(1, when);
+			stmt.setLong(1, param);
 			rs = stmt.executeQuery();
 		} catch (SQLException e) {
 			try {
@@ -266,44 +854,118 @@ public class SQLiteStorage implements DataStorage {
 				log.error("SQLite storage encounter an error: " + ignore.getMessage(), ignore);
 			}
 
+			pc.close();
 			log.error("SQLite storage encounter an error: " + e.getMessage(), e);
 			throw new IOError("SQLite storage encounter an error: " + e.getMessage(), e);
 		}
 
-		final ResultSet idrs = rs;
-		Stream<Id> s = StreamSupport.stream(new Spliterators.AbstractSpliterator<Id>(
+		final ResultSet srs = rs;
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final Runnable finish = () -> {
+			if (done.compareAndSet(false, true)) {
+				try {
+					srs.close();
+				} catch (SQLException ignore) {
+					log.error("SQLite storage encounter an error: " + ignore.getMessage(), ignore);
+				}
+
+				pc.close();
+			}
+		};
+
+		Stream<T> s = StreamSupport.stream(new Spliterators.AbstractSpliterator<T>(
 				Long.MAX_VALUE, Spliterator.NONNULL | Spliterator.IMMUTABLE | Spliterator.ORDERED) {
 			@Override
-			public boolean tryAdvance(Consumer<? super Id> consumer) {
+			public boolean tryAdvance(Consumer<? super T> consumer) {
+				if (done.get())
+					return false;
+
 				try {
-					if(!idrs.next())
+					if(!srs.next()) {
+						// give back the connection as soon as possible
+						finish.run();
 						return false;
+					}
 
-					byte[] binId = idrs.getBytes("id");
-					consumer.accept(Id.of(binId));
+					consumer.accept(mapper.map(srs));
 					return true;
 				} catch (SQLException e) {
 					log.error("SQLite storage encounter an error: " + e.getMessage(), e);
+					finish.run();
 					return false;
 				}
 			}
 		}, false);
 
-		s.onClose(() -> {
-			try {
-				idrs.close();
-			} catch (SQLException ignore) {
-				log.error("SQLite storage encounter an error: " + ignore.getMessage(), ignore);
-			}
-		});
-
+		s.onClose(finish);
 		return s;
 	}
 
+	private static Value valueOf(ResultSet rs) throws SQLException {
+		byte[] v = rs.getBytes("publicKey");
+		Id publicKey = v != null ? Id.of(v) : null;
+
+		byte[] privateKey = rs.getBytes("privateKey");
+
+		v = rs.getBytes("recipient");
+		Id recipient = v != null ? Id.of(v) : null;
+
+		byte[] nonce = rs.getBytes("nonce");
+		byte[] signature = rs.getBytes("signature");
+		int sequenceNumber = rs.getInt("sequenceNumber");
+		byte[] data = rs.getBytes("data");
+
+		return Value.of(publicKey, privateKey, recipient, nonce, sequenceNumber, signature, data);
+	}
+
+	private static PeerInfo peerOf(ResultSet rs) throws SQLException {
+		Id peerId = Id.of(rs.getBytes("id"));
+		byte[] privateKey = rs.getBytes("privateKey");
+		Id nodeId = Id.of(rs.getBytes("nodeId"));
+		Id origin = Id.of(rs.getBytes("origin"));
+		int port = rs.getInt("port");
+		String alt = rs.getString("alternativeURL");
+		byte[] signature = rs.getBytes("signature");
+
+		return PeerInfo.of(peerId, privateKey, nodeId, origin, port, alt, signature);
+	}
+
+	@Override
+	public Stream<Id> getAllValues() throws KadException {
+		flush();
+
+		long when = Clock.currentTimeMillis() - Constants.MAX_VALUE_AGE;
+		return stream("SELECT id from valores WHERE timestamp >= ? ORDER BY id", when,
+				(rs) -> Id.of(rs.getBytes("id")));
+	}
+
 	@Override
 	public Value getValue(Id valueId) throws KadException {
-		try (PreparedStatement stmt = getConnection().prepareStatement(SELECT_VALUE)) {
-			long when = System.currentTimeMillis() - Constants.MAX_VALUE_AGE;
+		PendingWrite w = pendingValues.get(valueId);
+		if (w != null)
+			return w.value;
+
+		return getStoredValue(valueId);
+	}
+
+	// the committed value, from the cache or the database
+	private Value getStoredValue(Id valueId) throws KadException {
+		long now = Clock.currentTimeMillis();
+		long generation = 0;
+		if (valueCache != null) {
+			CachedValue cached = valueCache.getIfPresent(valueId);
+			if (cached != null && cached.expiresAt > now) {
+				valueHits.increment();
+				return cached.value;
+			}
+
+			valueMisses.increment();
+			generation = cacheGeneration();
+		}
+
+		try (PooledConnection pc = getConnection()) {
+			PreparedStatement stmt = pc.prepare(SELECT_VALUE);
+			long when = now - Constants.MAX_VALUE_AGE;
 			stmt.setBytes(1, valueId.bytes());
 			stmt.setLong(2, when);
 
@@ -311,20 +973,16 @@ public class SQLiteStorage implements DataStorage {
 				if (!rs.next())
 					return null;
 
-				byte[] v = rs.getBytes("publicKey");
-				Id publicKey = v != null ? Id.of(v) : null;
-
-				byte[] privateKey = rs.getBytes("privateKey");
-
-				v = rs.getBytes("recipient");
-				Id recipient = v != null ? Id.of(v) : null;
-
-				byte[] nonce = rs.getBytes("nonce");
-				byte[] signature = rs.getBytes("signature");
-				int sequenceNumber = rs.getInt("sequenceNumber");
-				byte[] data = rs.getBytes("data");
+				Value value = valueOf(rs);
+				if (valueCache != null) {
+					long expiresAt = rs.getLong("timestamp") + Constants.MAX_VALUE_AGE;
+					synchronized (cacheLock) {
+						if (generation == cacheGeneration)
+							valueCache.put(valueId, new CachedValue(value, expiresAt));
+					}
+				}
 
-				return Value.of(publicKey, privateKey, recipient, nonce, sequenceNumber, signature, data);
+				return value;
 			}
 		} catch (SQLException e) {
 			log.error("SQLite storage encounter an error: " + e.getMessage(), e);
@@ -337,206 +995,137 @@ public class SQLiteStorage implements DataStorage {
 		if (value.isMutable() && !value.isValid())
 			throw new InvalidSignature("Value signature validation failed");
 
-		Value old = getValue(value.getId());
-		if (old != null && old.isMutable()) {
-			if (!value.isMutable())
-				throw new ImmutableSubstitutionFail("Can not replace mutable value with immutable is not supported");
-			if (old.hasPrivateKey() && !value.hasPrivateKey())
-				throw new NotValueOwner("Not the owner of the value");
-			if (value.getSequenceNumber() < old.getSequenceNumber())
-				throw new SequenceNotMonotonic("Sequence number less than current");
-			if (expectedSeq >= 0 && old.getSequenceNumber() >= 0 && old.getSequenceNumber() != expectedSeq)
-				throw new CasFail("CAS failure");
-		}
-
-		try (PreparedStatement stmt = getConnection().prepareStatement(UPSERT_VALUE)) {
-			stmt.setBytes(1, value.getId().bytes());
-
-			stmt.setBoolean(2, persistent);
-
-			if (value.getPublicKey() != null)
-				stmt.setBytes(3, value.getPublicKey().bytes());
-			else
-				stmt.setNull(3, Types.BLOB);
+		Value old;
+		CompletableFuture<Void> committed;
 
-			if (value.getPrivateKey() != null)
-				stmt.setBytes(4, value.getPrivateKey());
-			else
-				stmt.setNull(4, Types.BLOB);
+		while (true) {
+			// read the committed value out of the queue lock, the database read
+			// shouldn't block the other writers
+			long flushCount = flushes;
+			Value stored = getStoredValue(value.getId());
 
-			if (value.getRecipient() != null)
-				stmt.setBytes(5, value.getRecipient().bytes());
-			else
-				stmt.setNull(5, Types.BLOB);
-
-			if (value.getNonce() != null)
-				stmt.setBytes(6, value.getNonce());
-			else
-				stmt.setNull(6, Types.BLOB);
-
-			if (value.getSignature() != null)
-				stmt.setBytes(7, value.getSignature());
-			else
-				stmt.setNull(7, Types.BLOB);
+			queueLock.lock();
+			PendingWrite pending = pendingValues.get(value.getId());
+			if (pending != null) {
+				old = pending.value;
+				break;
+			}
 
-			stmt.setInt(8, value.getSequenceNumber());
+			if (flushCount == flushes) {
+				old = stored;
+				break;
+			}
 
-			if (value.getData() != null)
-				stmt.setBytes(9, value.getData());
-			else
-				stmt.setNull(9, Types.BLOB);
+			// a batch was committed meanwhile, the read maybe stale
+			queueLock.unlock();
+		}
 
-			long now = System.currentTimeMillis();
-			stmt.setLong(10, now);
-			stmt.setLong(11, updateLastAnnounce ? now : 0);
+		// holds the queue lock
+		try {
+			if (old != null && old.isMutable()) {
+				if (!value.isMutable())
+					throw new ImmutableSubstitutionFail("Can not replace mutable value with immutable is not supported");
+				if (old.hasPrivateKey() && !value.hasPrivateKey())
+					throw new NotValueOwner("Not the owner of the value");
+				if (value.getSequenceNumber() < old.getSequenceNumber())
+					throw new SequenceNotMonotonic("Sequence number less than current");
+				if (expectedSeq >= 0 && old.getSequenceNumber() >= 0 && old.getSequenceNumber() != expectedSeq)
+					throw new CasFail("CAS failure");
+			}
 
-			stmt.executeUpdate();
-		} catch (SQLException e) {
-			log.error("SQLite storage encounter an error: " + e.getMessage(), e);
-			throw new IOError("SQLite storage encounter an error: " + e.getMessage(), e);
+			PendingWrite w = new PendingWrite(value, null, persistent, updateLastAnnounce);
+			committed = enqueue(w);
+			pend(w);
+		} finally {
+			queueLock.unlock();
 		}
 
+		if (durableWrites || persistent)
+			await(committed);
+
 		return old;
 	}
 
 	@Override
 	public void updateValueLastAnnounce(Id valueId) throws KadException {
-		try (PreparedStatement stmt = getConnection().prepareStatement(UPDATE_VALUE_LAST_ANNOUNCE)) {
-			long now = System.currentTimeMillis();
+		// the value maybe still queued
+		flush();
+
+		writeLock.lock();
+		try (PooledConnection pc = getConnection()) {
+			PreparedStatement stmt = pc.prepare(UPDATE_VALUE_LAST_ANNOUNCE);
+			long now = Clock.currentTimeMillis();
 			stmt.setLong(1, now);
 			stmt.setLong(2, now);
 			stmt.setBytes(3, valueId.bytes());
 			stmt.executeUpdate();
+			invalidateValue(valueId);
 		} catch (SQLException e) {
 			log.error("SQLite storage encounter an error: " + e.getMessage(), e);
 			throw new IOError("SQLite storage encounter an error: " + e.getMessage(), e);
+		} finally {
+			writeLock.unlock();
 		}
 	}
 
 	@Override
 	public Stream<Value> getPersistentValues(long lastAnnounceBefore) throws KadException {
-		PreparedStatement stmt = null;
-		ResultSet rs = null;
-
-		try {
-			stmt = getConnection().prepareStatement("SELECT * FROM valores WHERE persistent = true AND announced <= ?");
-			stmt.setLong(1, lastAnnounceBefore);
-			stmt.closeOnCompletion();
-			rs = stmt.executeQuery();
-		} catch (SQLException e) {
-			try {
-				if (stmt != null)
-					stmt.close();
-			} catch (SQLException ignore) {
-				log.error("SQLite storage encounter an error: " + ignore.getMessage(), ignore);
-			}
-		}
+		flush();
 
-		final ResultSet vrs = rs;
-		Stream<Value> s = StreamSupport.stream(new Spliterators.AbstractSpliterator<Value>(
-				Long.MAX_VALUE, Spliterator.NONNULL | Spliterator.IMMUTABLE | Spliterator.ORDERED) {
-			@Override
-			public boolean tryAdvance(Consumer<? super Value> consumer) {
-				try {
-					if(!vrs.next())
-						return false;
-
-					byte[] v = vrs.getBytes("publicKey");
-					Id publicKey = v != null ? Id.of(v) : null;
-
-					byte[] privateKey = vrs.getBytes("privateKey");
-
-					v = vrs.getBytes("recipient");
-					Id recipient = v != null ? Id.of(v) : null;
+		return stream("SELECT * FROM valores WHERE persistent = true AND announced <= ? ORDER BY id",
+				lastAnnounceBefore, SQLiteStorage::valueOf);
+	}
 
-					byte[] nonce = vrs.getBytes("nonce");
-					byte[] signature = vrs.getBytes("signature");
-					int sequenceNumber = vrs.getInt("sequenceNumber");
-					byte[] data = vrs.getBytes("data");
+	@Override
+	public List<Value> getPersistentValues(long lastAnnounceBefore, Id after, int limit) throws KadException {
+		flush();
 
-					Value value = Value.of(publicKey, privateKey, recipient, nonce, sequenceNumber, signature, data);
-					consumer.accept(value);
-					return true;
-				} catch (SQLException e) {
-					log.error("SQLite storage encounter an error: " + e.getMessage(), e);
-					return false;
-				}
-			}
-		}, false);
+		List<Value> values = new ArrayList<>();
+		try (PooledConnection pc = getConnection()) {
+			PreparedStatement stmt = pc.prepare(SELECT_PERSISTENT_VALUES);
+			stmt.setLong(1, lastAnnounceBefore);
+			stmt.setBytes(2, after != null ? after.bytes() : new byte[0]);
+			stmt.setInt(3, limit);
 
-		s.onClose(() -> {
-			try {
-				vrs.close();
-			} catch (SQLException ignore) {
-				log.error("SQLite storage encounter an error: " + ignore.getMessage(), ignore);
+			try (ResultSet rs = stmt.executeQuery()) {
+				while (rs.next())
+					values.add(valueOf(rs));
 			}
-		});
+		} catch (SQLException e) {
+			log.error("SQLite storage encounter an error: " + e.getMessage(), e);
+			throw new IOError("SQLite storage encounter an error: " + e.getMessage(), e);
+		}
 
-		return s;
+		return values;
 	}
 
 	@Override
 	public boolean removeValue(Id valueId) throws KadException {
-		Connection connection = getConnection();
+		// commit the queued writes first, keeps the order with the remove
+		flush();
 
-		try (PreparedStatement stmt = connection.prepareStatement("DELETE FROM valores WHERE id = ?")) {
+		writeLock.lock();
+		try (PooledConnection pc = getConnection()) {
+			PreparedStatement stmt = pc.prepare(DELETE_VALUE);
 			stmt.setBytes(1, valueId.bytes());
 			int rows = stmt.executeUpdate();
+			invalidateValue(valueId);
 			return rows > 0;
 		} catch (SQLException e) {
 			log.error("Failed to evict the expired values: " + e.getMessage(), e);
 			throw new IOError("SQLite storage encounter an error: " + e.getMessage(), e);
+		} finally {
+			writeLock.unlock();
 		}
 	}
 
 	@Override
-	public Stream<Id> getAllPeers() {
-		PreparedStatement stmt = null;
-		ResultSet rs = null;
-
-		try {
-			stmt = getConnection().prepareStatement("SELECT DISTINCT id from peers WHERE timestamp >= ? ORDER BY id");
-			stmt.closeOnCompletion();
-			long when = System.currentTimeMillis() - Constants.MAX_PEER_AGE;
-			stmt.setLong(1, when);
-			rs = stmt.executeQuery();
-		} catch (SQLException e) {
-			try {
-				if (stmt != null)
-					stmt.close();
-			} catch (SQLException ignore) {
-				log.error("SQLite storage encounter an error: " + ignore.getMessage(), ignore);
-			}
-		}
-
-		final ResultSet idrs = rs;
-		Stream<Id> s = StreamSupport.stream(new Spliterators.AbstractSpliterator<Id>(
-				Long.MAX_VALUE, Spliterator.NONNULL | Spliterator.IMMUTABLE | Spliterator.ORDERED) {
-			@Override
-			public boolean tryAdvance(Consumer<? super Id> consumer) {
-				try {
-					if(!idrs.next())
-						return false;
-
-					byte[] binId = idrs.getBytes("id");
-					consumer.accept(Id.of(binId));
-					return true;
-				} catch (SQLException e) {
-					log.error("SQLite storage encounter an error: " + e.getMessage(), e);
-					return false;
-				}
-			}
-		}, false);
-
-		s.onClose(() -> {
-			try {
-				idrs.close();
-			} catch (SQLException ignore) {
-				log.error("SQLite storage encounter an error: " + ignore.getMessage(), ignore);
-			}
-		});
+	public Stream<Id> getAllPeers() throws KadException {
+		flush();
 
-		return s;
+		long when = Clock.currentTimeMillis() - Constants.MAX_PEER_AGE;
+		return stream("SELECT DISTINCT id from peers WHERE timestamp >= ? ORDER BY id", when,
+				(rs) -> Id.of(rs.getBytes("id")));
 	}
 
 	@Override
@@ -544,53 +1133,78 @@ public class SQLiteStorage implements DataStorage {
 		if (maxPeers <=0)
 			maxPeers = Integer.MAX_VALUE;
 
-		List<PeerInfo> peers = new ArrayList<>(maxPeers > 32 ? 32 : maxPeers);
-		try (PreparedStatement stmt = getConnection().prepareStatement(SELECT_PEER)) {
-			long when = System.currentTimeMillis() - Constants.MAX_PEER_AGE;
-			stmt.setBytes(1, peerId.bytes());
-			stmt.setLong(2, when);
-			stmt.setInt(3, maxPeers);
+		List<PeerInfo> peers = getStoredPeers(peerId, maxPeers);
+
+		Map<PeerKey, PendingWrite> pending = pendingPeers.get(peerId);
+		if (pending != null && !pending.isEmpty()) {
+			// the queued peers replace the stored ones
+			Map<PeerKey, PeerInfo> merged = new LinkedHashMap<>();
+			for (PeerInfo peer : peers)
+				merged.put(new PeerKey(peer), peer);
+			for (Map.Entry<PeerKey, PendingWrite> e : pending.entrySet())
+				merged.put(e.getKey(), e.getValue().peer);
+
+			peers = new ArrayList<>(merged.values());
+			if (peers.size() > maxPeers) {
+				Collections.shuffle(peers);
+				peers = peers.subList(0, maxPeers);
+			}
+		}
 
-			try (ResultSet rs = stmt.executeQuery()) {
-				while (rs.next()) {
-					byte[] privateKey = rs.getBytes("privateKey");
-					Id nodeId = Id.of(rs.getBytes("nodeId"));
-					Id origin = Id.of(rs.getBytes("origin"));
-					int port = rs.getInt("port");
-					String alt = rs.getString("alternativeURL");
-					byte[] signature = rs.getBytes("signature");
-
-					PeerInfo peer = PeerInfo.of(peerId, privateKey, nodeId, origin, port, alt, signature);
-					peers.add(peer);
+		return peers.isEmpty() ? Collections.emptyList() : peers;
+	}
+
+	private List<PeerInfo> getStoredPeers(Id peerId, int maxPeers) throws KadException {
+		long now = Clock.currentTimeMillis();
+		List<PeerInfo> peers = new ArrayList<>(maxPeers > 32 ? 32 : maxPeers);
+		try (PooledConnection pc = getConnection()) {
+			// Seek to a random slot and take the next maxPeers peers, wrap
+			// around if not enough. Reads only the returned rows, whatever
+			// the number of the peers announced for the id.
+			long when = now - Constants.MAX_PEER_AGE;
+			long slot = ThreadLocalRandom.current().nextLong();
+			for (String sql : List.of(SELECT_PEER, SELECT_PEER_WRAPPED)) {
+				PreparedStatement stmt = pc.prepare(sql);
+				stmt.setBytes(1, peerId.bytes());
+				stmt.setLong(2, slot);
+				stmt.setLong(3, when);
+				stmt.setInt(4, maxPeers - peers.size());
+
+				try (ResultSet rs = stmt.executeQuery()) {
+					while (rs.next())
+						peers.add(peerOf(rs));
 				}
+
+				if (peers.size() >= maxPeers)
+					break;
 			}
 		} catch (SQLException e) {
 			log.error("SQLite storage encounter an error: " + e.getMessage(), e);
 			throw new IOError("SQLite storage encounter an error: " + e.getMessage(), e);
 		}
 
-		return peers.isEmpty() ? Collections.emptyList() : peers;
+		return peers;
 	}
 
 	@Override
 	public PeerInfo getPeer(Id peerId, Id origin) throws KadException {
-		try (PreparedStatement stmt = getConnection().prepareStatement(SELECT_PEER_WITH_SRC)) {
-			long when = System.currentTimeMillis() - Constants.MAX_PEER_AGE;
+		Map<PeerKey, PendingWrite> pending = pendingPeers.get(peerId);
+		if (pending != null) {
+			for (PendingWrite w : pending.values()) {
+				if (w.peer.getOrigin().equals(origin))
+					return w.peer;
+			}
+		}
+
+		try (PooledConnection pc = getConnection()) {
+			PreparedStatement stmt = pc.prepare(SELECT_PEER_WITH_SRC);
+			long when = Clock.currentTimeMillis() - Constants.MAX_PEER_AGE;
 			stmt.setBytes(1, peerId.bytes());
 			stmt.setBytes(2, origin.bytes());
 			stmt.setLong(3, when);
 
 			try (ResultSet rs = stmt.executeQuery()) {
-				if (!rs.next())
-					return null;
-
-				byte[] privateKey = rs.getBytes("privateKey");
-				Id nodeId = Id.of(rs.getBytes("nodeId"));
-				int port = rs.getInt("port");
-				String alt = rs.getString("alternativeURL");
-				byte[] signature = rs.getBytes("signature");
-
-				return PeerInfo.of(peerId, privateKey, nodeId, origin, port, alt, signature);
+				return rs.next() ? peerOf(rs) : null;
 			}
 		} catch (SQLException e) {
 			log.error("SQLite storage encounter an error: " + e.getMessage(), e);
@@ -600,82 +1214,50 @@ public class SQLiteStorage implements DataStorage {
 
 	@Override
 	public void putPeer(Collection<PeerInfo> peers) throws KadException {
-		long now = System.currentTimeMillis();
-		Connection connection = getConnection();
+		CompletableFuture<Void> committed = null;
 
+		queueLock.lock();
 		try {
-			connection.setAutoCommit(false);
-		} catch (SQLException e) {
-			log.error("SQLite storage encounter an error: " + e.getMessage(), e);
-			throw new IOError("SQLite storage encounter an error: " + e.getMessage(), e);
-		}
-
-		try (PreparedStatement stmt = connection.prepareStatement(UPSERT_PEER)) {
 			for (PeerInfo peer : peers) {
-				stmt.setBytes(1, peer.getId().bytes());
-				stmt.setBytes(2, peer.getNodeId().bytes());
-				stmt.setBytes(3, peer.getOrigin().bytes());
-				stmt.setBoolean(4, false);
-
-				if (peer.hasPrivateKey())
-					stmt.setBytes(5, peer.getPrivateKey());
-				else
-					stmt.setNull(5, Types.BLOB);
-
-				stmt.setInt(6, peer.getPort());
-
-				if (peer.hasAlternativeURL())
-					stmt.setString(7, peer.getAlternativeURL());
-				else
-					stmt.setNull(7, Types.VARCHAR);
-
-				stmt.setBytes(8, peer.getSignature());
-				stmt.setLong(9, now);
-				stmt.setLong(10, 0);
-				stmt.addBatch();
+				PendingWrite w = new PendingWrite(null, peer, false, false);
+				committed = enqueue(w);
+				pend(w);
 			}
-
-			stmt.executeBatch();
-			connection.commit();
-			connection.setAutoCommit(true);
-		} catch (SQLException e) {
-			log.error("SQLite storage encounter an error: " + e.getMessage(), e);
-			throw new IOError("SQLite storage encounter an error: " + e.getMessage(), e);
+		} finally {
+			queueLock.unlock();
 		}
+
+		// the last batch commits after all the previous ones
+		if (durableWrites && committed != null)
+			await(committed);
 	}
 
 	@Override
 	public void putPeer(PeerInfo peer, boolean persistent, boolean updateLastAnnounce) throws KadException {
-		try (PreparedStatement stmt = getConnection().prepareStatement(UPSERT_PEER)) {
-			stmt.setBytes(1, peer.getId().bytes());
-			stmt.setBytes(2, peer.getNodeId().bytes());
-			stmt.setBytes(3, peer.getOrigin().bytes());
-			stmt.setBoolean(4, persistent);
-			stmt.setBytes(5, peer.getPrivateKey());
-			stmt.setInt(6, peer.getPort());
-
-			if (peer.hasAlternativeURL())
-				stmt.setString(7, peer.getAlternativeURL());
-			else
-				stmt.setNull(7, Types.VARCHAR);
+		CompletableFuture<Void> committed;
 
-			stmt.setBytes(8, peer.getSignature());
-
-			long now = System.currentTimeMillis();
-			stmt.setLong(9, now);
-			stmt.setLong(10, updateLastAnnounce ? now : 0);
-
-			stmt.executeUpdate();
-		} catch (SQLException e) {
-			log.error("SQLite storage encounter an error: " + e.getMessage(), e);
-			throw new IOError("SQLite storage encounter an error: " + e.getMessage(), e);
+		queueLock.lock();
+		try {
+			PendingWrite w = new PendingWrite(null, peer, persistent, updateLastAnnounce);
+			committed = enqueue(w);
+			pend(w);
+		} finally {
+			queueLock.unlock();
 		}
+
+		if (durableWrites || persistent)
+			await(committed);
 	}
 
 	@Override
 	public void updatePeerLastAnnounce(Id peerId, Id origin) throws KadException {
-		try (PreparedStatement stmt = getConnection().prepareStatement(UPDATE_PEER_LAST_ANNOUNCE)) {
-			long now = System.currentTimeMillis();
+		// the peer maybe still queued
+		flush();
+
+		writeLock.lock();
+		try (PooledConnection pc = getConnection()) {
+			PreparedStatement stmt = pc.prepare(UPDATE_PEER_LAST_ANNOUNCE);
+			long now = Clock.currentTimeMillis();
 			stmt.setLong(1, now);
 			stmt.setLong(2, now);
 			stmt.setBytes(3, peerId.bytes());
@@ -684,71 +1266,54 @@ public class SQLiteStorage implements DataStorage {
 		} catch (SQLException e) {
 			log.error("SQLite storage encounter an error: " + e.getMessage(), e);
 			throw new IOError("SQLite storage encounter an error: " + e.getMessage(), e);
+		} finally {
+			writeLock.unlock();
 		}
 	}
 
 	@Override
 	public Stream<PeerInfo> getPersistentPeers(long lastAnnounceBefore) throws KadException {
-		PreparedStatement stmt = null;
-		ResultSet rs = null;
+		flush();
 
-		try {
-			stmt = getConnection().prepareStatement("SELECT * FROM peers WHERE persistent = true AND announced <= ?");
-			stmt.setLong(1, lastAnnounceBefore);
-			stmt.closeOnCompletion();
-			rs = stmt.executeQuery();
-		} catch (SQLException e) {
-			try {
-				if (stmt != null)
-					stmt.close();
-			} catch (SQLException ignore) {
-				log.error("SQLite storage encounter an error: " + ignore.getMessage(), ignore);
-			}
-		}
-
-		final ResultSet prs = rs;
-		Stream<PeerInfo> s = StreamSupport.stream(new Spliterators.AbstractSpliterator<PeerInfo>(
-				Long.MAX_VALUE, Spliterator.NONNULL | Spliterator.IMMUTABLE | Spliterator.ORDERED) {
-			@Override
-			public boolean tryAdvance(Consumer<? super PeerInfo> consumer) {
-				try {
-					if(!prs.next())
-						return false;
-
-					Id peerId = Id.of(prs.getBytes("id"));
-					byte[] privateKey = prs.getBytes("privateKey");
-					Id nodeId = Id.of(prs.getBytes("nodeId"));
-					Id origin = Id.of(prs.getBytes("origin"));
-					int port = prs.getInt("port");
-					String alt = prs.getString("alternativeURL");
-					byte[] signature = prs.getBytes("signature");
+		return stream("SELECT * FROM peers WHERE persistent = true AND announced <= ? ORDER BY id, nodeId",
+				lastAnnounceBefore, SQLiteStorage::peerOf);
+	}
 
-					PeerInfo peer = PeerInfo.of(peerId, privateKey, nodeId, origin, port, alt, signature);
-					consumer.accept(peer);
-					return true;
-				} catch (SQLException e) {
-					log.error("SQLite storage encounter an error: " + e.getMessage(), e);
-					return false;
-				}
-			}
-		}, false);
+	@Override
+	public List<PeerInfo> getPersistentPeers(long lastAnnounceBefore, Id after, Id afterNodeId, int limit)
+			throws KadException {
+		flush();
+
+		List<PeerInfo> peers = new ArrayList<>();
+		try (PooledConnection pc = getConnection()) {
+			byte[] id = after != null ? after.bytes() : new byte[0];
+			PreparedStatement stmt = pc.prepare(SELECT_PERSISTENT_PEERS);
+			stmt.setLong(1, lastAnnounceBefore);
+			stmt.setBytes(2, id);
+			stmt.setBytes(3, id);
+			stmt.setBytes(4, afterNodeId != null ? afterNodeId.bytes() : new byte[0]);
+			stmt.setInt(5, limit);
 
-		s.onClose(() -> {
-			try {
-				prs.close();
-			} catch (SQLException ignore) {
-				log.error("SQLite storage encounter an error: " + ignore.getMessage(), ignore);
+			try (ResultSet rs = stmt.executeQuery()) {
+				while (rs.next())
+					peers.add(peerOf(rs));
 			}
-		});
+		} catch (SQLException e) {
+			log.error("SQLite storage encounter an error: " + e.getMessage(), e);
+			throw new IOError("SQLite storage encounter an error: " + e.getMessage(), e);
+		}
 
-		return s;
+		return peers;
 	}
 
 	@Override
 	public boolean removePeer(Id peerId, Id origin) throws KadException {
-		Connection connection = getConnection();
+		// commit the queued writes first, keeps the order with the remove
+		flush();
 
-		try (PreparedStatement stmt = connection.prepareStatement("DELETE FROM peers WHERE id = ? and origin = ?")) {
+		writeLock.lock();
+		try (PooledConnection pc = getConnection()) {
+			PreparedStatement stmt = pc.prepare(DELETE_PEER);
 			stmt.setBytes(1, peerId.bytes());
 			stmt.setBytes(2, origin.bytes());
 			int rows = stmt.executeUpdate();
@@ -756,27 +1321,148 @@ public class SQLiteStorage implements DataStorage {
 		} catch (SQLException e) {
 			log.error("Failed to evict the expired peers: " + e.getMessage(), e);
 			throw new IOError("SQLite storage encounter an error: " + e.getMessage(), e);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private static String hitRate(long hits, long misses) {
+		long total = hits + misses;
+		return String.format("%.2f%%", total == 0 ? 0.0 : hits * 100.0 / total);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder repr = new StringBuilder(256);
+		repr.append("SQLite storage, queued writes: ");
+		queueLock.lock();
+		try {
+			repr.append(batch.writes.size());
+		} finally {
+			queueLock.unlock();
+		}
+
+		if (valueCache != null) {
+			long hits = valueHits.sum();
+			long misses = valueMisses.sum();
+			repr.append(", value cache: ").append(valueCache.size())
+				.append(" hits: ").append(hits)
+				.append(" misses: ").append(misses)
+				.append(" hit rate: ").append(hitRate(hits, misses));
+		}
+
+		repr.append(", expired values: ").append(expiredValues.sum())
+			.append(" peers: ").append(expiredPeers.sum())
+			.append(" lag: ").append(expireLag).append("ms");
+
+		return repr.toString();
+	}
+
+	/**
+	 * The total number of the values deleted by the expire sweep.
+	 */
+	public long getExpiredValues() {
+		return expiredValues.sum();
+	}
+
+	/**
+	 * The total number of the peers deleted by the expire sweep.
+	 */
+	public long getExpiredPeers() {
+		return expiredPeers.sum();
+	}
+
+	/**
+	 * How far the expire sweep is behind, in milliseconds: the age of the
+	 * oldest expired value or peer it has not deleted yet, 0 if caught up.
+	 */
+	public long getExpireLag() {
+		return expireLag;
+	}
+
+	private void scheduleExpire(long delay) {
+		synchronized (expireLock) {
+			if (expireStopped)
+				return;
+
+			try {
+				expireFuture = scheduler.schedule(this::expire, delay, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				log.debug("SQLite storage failed to schedule the expire sweep: {}", e.getMessage());
+			}
 		}
 	}
 
+	/**
+	 * One chunk of the expire sweep: deletes up to STORAGE_EXPIRE_BATCH_SIZE
+	 * expired values and peers, then yields the write lock. The sweep goes on
+	 * after STORAGE_EXPIRE_PAUSE until nothing is left to delete, then waits
+	 * STORAGE_EXPIRE_INTERVAL for the next one. So a big backlog is worked off
+	 * gradually instead of blocking the writes for seconds.
+	 */
 	private void expire() {
-		long now = System.currentTimeMillis();
-		Connection connection = getConnection();
+		long now = Clock.currentTimeMillis();
+		long valuesBefore = now - Constants.MAX_VALUE_AGE;
+		long peersBefore = now - Constants.MAX_PEER_AGE;
+		boolean more = false;
 
-		try (PreparedStatement stmt = connection.prepareStatement("DELETE FROM valores WHERE persistent != TRUE and timestamp < ?")) {
-			long ts = now - Constants.MAX_VALUE_AGE;
-			stmt.setLong(1, ts);
-			stmt.executeUpdate();
-		} catch (SQLException e) {
-			log.error("Failed to evict the expired values: " + e.getMessage(), e);
+		writeLock.lock();
+		try (PooledConnection pc = getConnection()) {
+			if (expireStopped)
+				return;
+
+			try {
+				int deleted = expireChunk(pc, EXPIRE_VALUES, valuesBefore);
+				expiredValues.add(deleted);
+				if (deleted > 0)
+					invalidateExpired(now);
+				more |= deleted == Constants.STORAGE_EXPIRE_BATCH_SIZE;
+			} catch (SQLException e) {
+				log.error("Failed to evict the expired values: " + e.getMessage(), e);
+			}
+
+			try {
+				int deleted = expireChunk(pc, EXPIRE_PEERS, peersBefore);
+				expiredPeers.add(deleted);
+				more |= deleted == Constants.STORAGE_EXPIRE_BATCH_SIZE;
+			} catch (SQLException e) {
+				log.error("Failed to evict the expired peers: " + e.getMessage(), e);
+			}
+
+			try {
+				long lag = 0;
+				if (more) {
+					lag = Math.max(lag, valuesBefore - oldestExpired(pc, OLDEST_EXPIRED_VALUE, valuesBefore));
+					lag = Math.max(lag, peersBefore - oldestExpired(pc, OLDEST_EXPIRED_PEER, peersBefore));
+				}
+
+				expireLag = lag;
+			} catch (SQLException e) {
+				log.error("Failed to check the expire sweep lag: " + e.getMessage(), e);
+			}
+		} catch (KadException e) {
+			log.error("Failed to evict the expired entries: " + e.getMessage(), e);
+		} finally {
+			writeLock.unlock();
+			scheduleExpire(more ? Constants.STORAGE_EXPIRE_PAUSE : Constants.STORAGE_EXPIRE_INTERVAL);
 		}
 
-		try (PreparedStatement stmt = connection.prepareStatement("DELETE FROM peers WHERE persistent != TRUE and timestamp < ?")) {
-			long ts = now - Constants.MAX_PEER_AGE;
-			stmt.setLong(1, ts);
-			stmt.executeUpdate();
-		} catch (SQLException e) {
-			log.error("Failed to evict the expired peers: " + e.getMessage(), e);
+		if (more)
+			log.debug("Expire sweep behind {}ms, continues in {}ms", expireLag, Constants.STORAGE_EXPIRE_PAUSE);
+	}
+
+	private static int expireChunk(PooledConnection pc, String sql, long before) throws SQLException {
+		PreparedStatement stmt = pc.prepare(sql);
+		stmt.setLong(1, before);
+		stmt.setInt(2, Constants.STORAGE_EXPIRE_BATCH_SIZE);
+		return stmt.executeUpdate();
+	}
+
+	private static long oldestExpired(PooledConnection pc, String sql, long before) throws SQLException {
+		PreparedStatement stmt = pc.prepare(sql);
+		stmt.setLong(1, before);
+		try (ResultSet rs = stmt.executeQuery()) {
+			return rs.next() ? rs.getLong(1) : before;
 		}
 	}
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package elastos.carrier.kademlia;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Single-flight of the lookups: the concurrent calls of the same lookup share
+ * one execution and its result, a new call after it completed starts a new one.
+ *
+ * Every caller gets its own future, but they share the result object, so the
+ * lookups complete with the immutable results. Cancelling the future only
+ * detaches that caller, the shared execution is cancelled when all of its
+ * callers cancelled.
+ *
+ * @param <K> the lookup key, e.g. the method, target and options.
+ */
+class SingleFlight<K> {
+	private final Map<K, Flight<?>> flights = new ConcurrentHashMap<>();
+	private final LongAdder started = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+
+	private static final class Flight<T> {
+		private final CompletableFuture<T> result = new CompletableFuture<>();
+		private CompletableFuture<T> execution;
+		private int callers;
+		private boolean abandoned;
+
+		// null if all the callers left, the execution is being cancelled
+		synchronized CompletableFuture<T> join() {
+			if (abandoned)
+				return null;
+
+			callers++;
+			CompletableFuture<T> future = new CompletableFuture<T>() {
+				@Override
+				public boolean cancel(boolean mayInterruptIfRunning) {
+					boolean cancelled = super.cancel(mayInterruptIfRunning);
+					if (cancelled)
+						leave();
+
+					return cancelled;
+				}
+			};
+
+			result.whenComplete((v, e) -> {
+				if (e != null)
+					future.completeExceptionally(e);
+				else
+					future.complete(v);
+			});
+
+			return future;
+		}
+
+		private void leave() {
+			CompletableFuture<T> cancel = null;
+			synchronized (this) {
+				if (--callers == 0 && !result.isDone()) {
+					abandoned = true;
+					cancel = execution;
+				}
+			}
+
+			if (cancel != null)
+				cancel.cancel(false);
+		}
+
+		void start(CompletableFuture<T> execution) {
+			boolean cancel;
+			synchronized (this) {
+				this.execution = execution;
+				cancel = abandoned;
+			}
+
+			if (cancel)
+				execution.cancel(false);
+		}
+
+		void complete(T value, Throwable error) {
+			if (error != null)
+				result.completeExceptionally(error);
+			else
+				result.complete(value);
+		}
+	}
+
+	/**
+	 * Joins the same lookup in flight, or starts it.
+	 *
+	 * @param key the key of the lookup.
+	 * @param lookup starts the lookup, called only if none in flight.
+	 * @return the future of the lookup result for this caller.
+	 */
+	@SuppressWarnings("unchecked")
+	<T> CompletableFuture<T> execute(K key, Supplier<CompletableFuture<T>> lookup) {
+		while (true) {
+			Flight<T> flight = new Flight<>();
+			Flight<?> inflight = flights.putIfAbsent(key, flight);
+			if (inflight != null) {
+				CompletableFuture<T> future = ((Flight<T>)inflight).join();
+				if (future != null) {
+					coalesced.increment();
+					return future;
+				}
+
+				// abandoned by all its callers, start a new one
+				flights.remove(key, inflight);
+				continue;
+			}
+
+			CompletableFuture<T> future = flight.join();
+			started.increment();
+
+			CompletableFuture<T> execution;
+			try {
+				execution = lookup.get();
+			} catch (RuntimeException e) {
+				flights.remove(key, flight);
+				flight.complete(null, e);
+				return future;
+			}
+
+			execution.whenComplete((v, e) -> {
+				// no new callers join once it's done
+				flights.remove(key, flight);
+				flight.complete(v, e);
+			});
+
+			flight.start(execution);
+			return future;
+		}
+	}
+
+	/**
+	 * @return the number of the lookups started.
+	 */
+	long getStarted() {
+		return started.sum();
+	}
+
+	/**
+	 * @return the number of the calls joined a lookup in flight.
+	 */
+	long getCoalesced() {
+		return coalesced.sum();
+	}
+
+	int getInflight() {
+		return flights.size();
+	}
+
+	@Override
+	public String toString() {
+		long s = started.sum();
+		long c = coalesced.sum();
+		return String.format("%d started, %d coalesced(%.2f%%), %d in flight",
+				s, c, s + c == 0 ? 0.0 : c * 100.0 / (s + c), flights.size());
+	}
+}
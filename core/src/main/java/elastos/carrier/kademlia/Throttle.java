@@ -30,7 +30,7 @@ import java.util.concurrent.atomic.AtomicLong;
 
 public class Throttle {
 	private Map<InetAddress, Integer> counter = new ConcurrentHashMap<>();
-	private AtomicLong lastDecayTime = new AtomicLong(System.currentTimeMillis());
+	private AtomicLong lastDecayTime = new AtomicLong(Clock.currentTimeMillis());
 
 	private static final int LIMITS = 16;
 	private static final int PERMITS_PER_SECOND = 4;
@@ -59,7 +59,7 @@ public class Throttle {
 	}
 
 	public void decay() {
-		long now = System.currentTimeMillis();
+		long now = Clock.currentTimeMillis();
 		long last = lastDecayTime.get();
 		long interval = TimeUnit.MILLISECONDS.toSeconds(now - last);
 
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package elastos.carrier.kademlia;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timer wheel for the RPC call deadlines. The timeouts can be added
+ * and cancelled from any thread, the wheel is advanced and the expired
+ * timeouts are run by a single thread - the DHT event loop.
+ *
+ * The timeouts are rounded up to the tick duration, the deadlines longer than
+ * one revolution of the wheel are kept in the bucket with the remaining rounds.
+ */
+class TimerWheel {
+	private final long tickNanos;
+	private final int mask;
+	private final Timeout[] buckets;
+	private final long startTime;
+	private long tick;
+
+	private final ConcurrentLinkedQueue<Timeout> pending;
+	private final ConcurrentLinkedQueue<Timeout> cancelled;
+	private int size;
+
+	private static final Logger log = LoggerFactory.getLogger(TimerWheel.class);
+
+	public static final class Timeout {
+		private final TimerWheel wheel;
+		private final Runnable task;
+		private final long deadline;
+		private long rounds;
+		private volatile boolean cancelled;
+
+		// the bucket and the links, owner thread only
+		private int bucket = -1;
+		private Timeout next;
+		private Timeout prev;
+
+		private Timeout(TimerWheel wheel, Runnable task, long deadline) {
+			this.wheel = wheel;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		public void cancel() {
+			if (cancelled)
+				return;
+
+			cancelled = true;
+			// removed from the bucket on the next advance
+			wheel.cancelled.add(this);
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+
+	public TimerWheel(long tickDuration, TimeUnit unit, int wheelSize) {
+		if (Integer.bitCount(wheelSize) != 1)
+			throw new IllegalArgumentException("Wheel size should be power of 2");
+
+		this.tickNanos = unit.toNanos(tickDuration);
+		this.mask = wheelSize - 1;
+		this.buckets = new Timeout[wheelSize];
+		this.startTime = Clock.nanoTime();
+		this.pending = new ConcurrentLinkedQueue<>();
+		this.cancelled = new ConcurrentLinkedQueue<>();
+	}
+
+	public long getTickDuration(TimeUnit unit) {
+		return unit.convert(tickNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Thread safe, the task will run on the thread that advances the wheel.
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(this, task, Clock.nanoTime() + unit.toNanos(delay));
+		pending.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * @return the number of the timeouts in the wheel. Owner thread only.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Runs all the expired timeouts. Owner thread only.
+	 */
+	public void advance() {
+		long now = Clock.nanoTime();
+		transferPending();
+		removeCancelled();
+
+		long currentTick = (now - startTime) / tickNanos;
+		while (tick <= currentTick) {
+			expire(tick & mask, now);
+			tick++;
+		}
+	}
+
+	private void transferPending() {
+		Timeout timeout;
+		while ((timeout = pending.poll()) != null) {
+			if (timeout.cancelled)
+				continue;
+
+			// round up, never expire earlier than the deadline
+			long ticks = (timeout.deadline - startTime + tickNanos - 1) / tickNanos;
+			timeout.rounds = Math.max(ticks - tick, 0) / buckets.length;
+			add((int)(Math.max(ticks, tick) & mask), timeout);
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelled.poll()) != null) {
+			if (timeout.bucket >= 0)
+				remove(timeout.bucket, timeout);
+		}
+	}
+
+	private void add(int bucket, Timeout timeout) {
+		timeout.bucket = bucket;
+		timeout.prev = null;
+		timeout.next = buckets[bucket];
+		if (buckets[bucket] != null)
+			buckets[bucket].prev = timeout;
+		buckets[bucket] = timeout;
+		size++;
+	}
+
+	private void remove(int bucket, Timeout timeout) {
+		if (timeout.prev != null)
+			timeout.prev.next = timeout.next;
+		else
+			buckets[bucket] = timeout.next;
+
+		if (timeout.next != null)
+			timeout.next.prev = timeout.prev;
+
+		timeout.next = timeout.prev = null;
+		timeout.bucket = -1;
+		size--;
+	}
+
+	private void expire(long bucket, long now) {
+		int index = (int)bucket;
+		Timeout timeout = buckets[index];
+		while (timeout != null) {
+			Timeout next = timeout.next;
+
+			if (timeout.cancelled) {
+				remove(index, timeout);
+			} else if (timeout.rounds <= 0 && timeout.deadline <= now) {
+				remove(index, timeout);
+				try {
+					timeout.task.run();
+				} catch (Exception e) {
+					log.error("Timeout task failed", e);
+				}
+			} else if (timeout.rounds > 0) {
+				timeout.rounds--;
+			}
+
+			timeout = next;
+		}
+	}
+}
@@ -42,7 +42,7 @@ public class TokenManager {
 
 	void updateTokenTimestamps() {
 		long current = timestamp.get();
-		long now = System.nanoTime();
+		long now = Clock.nanoTime();
 		while (TimeUnit.NANOSECONDS.toMillis(now - current) > Constants.TOKEN_TIMEOUT) {
 			if (timestamp.compareAndSet(current, now)) {
 				previousTimestamp = current;
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package elastos.carrier.kademlia;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * The datagram transport under the RPC servers. By default the RPC servers
+ * send and receive on their UDP sockets served by the network engine; a
+ * transport set on the node replaces the sockets, e.g. an in-memory network
+ * that simulates the latency, the loss and the NATs between the nodes.
+ */
+public interface Transport {
+	public interface Receiver {
+		/**
+		 * Called for every packet delivered to the bound address. The packet
+		 * is only valid during the call.
+		 */
+		public void received(ByteBuffer packet, InetSocketAddress sender);
+	}
+
+	public void bind(InetSocketAddress addr, Receiver receiver) throws IOException;
+
+	public void unbind(InetSocketAddress addr);
+
+	/**
+	 * @return the number of bytes sent. Like a UDP datagram the packet may
+	 *         still be lost on the way.
+	 */
+	public int send(InetSocketAddress source, ByteBuffer packet, InetSocketAddress target) throws IOException;
+}
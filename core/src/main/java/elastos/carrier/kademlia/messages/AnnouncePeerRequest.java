@@ -25,8 +25,8 @@ package elastos.carrier.kademlia.messages;
 import java.io.IOException;
 
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
-import com.fasterxml.jackson.dataformat.cbor.CBORParser;
 
 import elastos.carrier.Id;
 import elastos.carrier.PeerInfo;
@@ -109,7 +109,7 @@ public class AnnouncePeerRequest extends Message {
 	}
 
 	@Override
-	protected void parse(String fieldName, CBORParser parser) throws MessageException, IOException {
+	protected void parse(String fieldName, JsonParser parser) throws MessageException, IOException {
 		if (!fieldName.equals(Type.REQUEST.toString()) || parser.getCurrentToken() != JsonToken.START_OBJECT)
 			throw new MessageException("Invalid " + getMethod() + " request message");
 
@@ -26,8 +26,8 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
-import com.fasterxml.jackson.dataformat.cbor.CBORParser;
 
 public class ErrorMessage extends Message {
 	private static final Charset utf8 = Charset.forName("UTF-8");
@@ -65,7 +65,7 @@ public class ErrorMessage extends Message {
 	}
 
 	@Override
-	protected void parse(String fieldName, CBORParser parser) throws MessageException, IOException {
+	protected void parse(String fieldName, JsonParser parser) throws MessageException, IOException {
 		if (!fieldName.equals(Type.ERROR.toString()) || parser.getCurrentToken() != JsonToken.START_OBJECT)
 			throw new MessageException("Invalid error message");
 
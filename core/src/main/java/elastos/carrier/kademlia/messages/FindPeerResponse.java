@@ -29,8 +29,8 @@ import java.util.List;
 import java.util.stream.Collectors;
 
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
-import com.fasterxml.jackson.dataformat.cbor.CBORParser;
 
 import elastos.carrier.Id;
 import elastos.carrier.PeerInfo;
@@ -89,7 +89,7 @@ public class FindPeerResponse extends LookupResponse {
 	}
 
 	@Override
-	protected void _parse(String fieldName, CBORParser parser) throws MessageException, IOException {
+	protected void _parse(String fieldName, JsonParser parser) throws MessageException, IOException {
 		switch (fieldName) {
 		case "p":
 			peers = parsePeers(parser);
@@ -101,7 +101,7 @@ public class FindPeerResponse extends LookupResponse {
 		}
 	}
 
-	private List<PeerInfo> parsePeers(CBORParser parser) throws IOException {
+	private List<PeerInfo> parsePeers(JsonParser parser) throws IOException {
 		if (parser.currentToken() != JsonToken.START_ARRAY)
 			throw new IOException("Invalid peers, should be array");
 
@@ -25,7 +25,7 @@ package elastos.carrier.kademlia.messages;
 import java.io.IOException;
 
 import com.fasterxml.jackson.core.JsonGenerator;
-import com.fasterxml.jackson.dataformat.cbor.CBORParser;
+import com.fasterxml.jackson.core.JsonParser;
 
 import elastos.carrier.Id;
 
@@ -59,7 +59,7 @@ public class FindValueRequest extends LookupRequest {
 	}
 
 	@Override
-	protected void _parse(String fieldName, CBORParser parser) throws MessageException, IOException {
+	protected void _parse(String fieldName, JsonParser parser) throws MessageException, IOException {
 		switch (fieldName) {
 		case "seq":
 			sequenceNumber = parser.getIntValue();
@@ -25,8 +25,8 @@ package elastos.carrier.kademlia.messages;
 import java.io.IOException;
 
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
-import com.fasterxml.jackson.dataformat.cbor.CBORParser;
 
 import elastos.carrier.Id;
 
@@ -106,7 +106,7 @@ public abstract class LookupRequest extends Message {
 	}
 
 	@Override
-	protected void parse(String fieldName, CBORParser parser) throws MessageException, IOException {
+	protected void parse(String fieldName, JsonParser parser) throws MessageException, IOException {
 		if (!fieldName.equals(Type.REQUEST.toString()) || parser.getCurrentToken() != JsonToken.START_OBJECT)
 			throw new MessageException("Invalid " + getMethod() + " request message");
 
@@ -130,7 +130,7 @@ public abstract class LookupRequest extends Message {
 		}
 	}
 
-	protected void _parse(String fieldName, CBORParser parser) throws MessageException, IOException {
+	protected void _parse(String fieldName, JsonParser parser) throws MessageException, IOException {
 	}
 
 	@Override
@@ -30,8 +30,8 @@ import java.util.List;
 import java.util.stream.Collectors;
 
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
-import com.fasterxml.jackson.dataformat.cbor.CBORParser;
 
 import elastos.carrier.Id;
 import elastos.carrier.NodeInfo;
@@ -116,7 +116,7 @@ public abstract class LookupResponse extends Message {
 	}
 
 	@Override
-	protected void parse(String fieldName, CBORParser parser) throws MessageException, IOException {
+	protected void parse(String fieldName, JsonParser parser) throws MessageException, IOException {
 		if (!fieldName.equals(Type.RESPONSE.toString()) || parser.getCurrentToken() != JsonToken.START_OBJECT)
 			throw new MessageException("Invalid " + getMethod() + " response message");
 
@@ -143,10 +143,10 @@ public abstract class LookupResponse extends Message {
 		}
 	}
 
-	protected void _parse(String fieldName, CBORParser parser) throws MessageException, IOException {
+	protected void _parse(String fieldName, JsonParser parser) throws MessageException, IOException {
 	}
 
-	private List<NodeInfo> parseNodes(String fieldName, CBORParser parser) throws IOException {
+	private List<NodeInfo> parseNodes(String fieldName, JsonParser parser) throws IOException {
 		if (parser.currentToken() != JsonToken.START_ARRAY)
 			throw new IOException("Invalid " + fieldName + " data, should be array");
 
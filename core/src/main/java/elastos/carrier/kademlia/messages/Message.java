@@ -29,9 +29,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
 import com.fasterxml.jackson.dataformat.cbor.CBORParser;
 
@@ -39,12 +42,10 @@ import elastos.carrier.Id;
 import elastos.carrier.Version;
 import elastos.carrier.kademlia.RPCCall;
 import elastos.carrier.kademlia.RPCServer;
-import elastos.carrier.utils.Functional.ThrowingSupplier;
+import elastos.carrier.utils.ByteBufferOutputStream;
 import elastos.carrier.utils.ThreadLocals;
 
 public abstract class Message {
-	private static final int READ_LIMIT = 2048;
-
 	private static final int TYPE_MASK = 0x000000E0;
 	private static final int METHOD_MASK = 0x0000001F;
 
@@ -260,6 +261,14 @@ public abstract class Message {
 		}
 	}
 
+	/**
+	 * Serializes the message into the buffer from its current position, the
+	 * position is advanced past the serialized message.
+	 */
+	public void serialize(ByteBuffer buf) throws MessageException {
+		serialize(new ByteBufferOutputStream(buf));
+	}
+
 	protected void serialize(JsonGenerator gen) throws MessageException, IOException {
 	}
 
@@ -294,136 +303,170 @@ public abstract class Message {
 	public static Message parse(byte[] data) throws MessageException {
 		checkArgument(data != null && data.length >= MIN_SIZE, "Invalid data");
 
-		return parse(() -> (ThreadLocals.CBORFactory().createParser(data)));
+		try {
+			return parse(ThreadLocals.CBORFactory().createParser(data));
+		} catch (IOException e) {
+			throw new MessageException("Parse message failed", e);
+		}
+	}
+
+	public static Message parse(byte[] data, int offset, int length) throws MessageException {
+		checkArgument(data != null && length >= MIN_SIZE, "Invalid data");
+		checkArgument(offset >= 0 && offset + length <= data.length, "Invalid offset or length");
+
+		try {
+			return parse(ThreadLocals.CBORFactory().createParser(data, offset, length));
+		} catch (IOException e) {
+			throw new MessageException("Parse message failed", e);
+		}
 	}
 
 	public static Message parse(InputStream in) throws MessageException {
-		checkArgument(in.markSupported(), "Input stream shoud support mark()");
-		in.mark(READ_LIMIT);
+		checkArgument(in != null, "Invalid input stream");
 
-		return parse(() -> {
-			in.reset();
-			in.mark(READ_LIMIT);
-			return ThreadLocals.CBORFactory().createParser(in);
-		});
+		try {
+			return parse(ThreadLocals.CBORFactory().createParser(in));
+		} catch (IOException e) {
+			throw new MessageException("Parse message failed", e);
+		}
 	}
 
 	// According to my tests, streaming deserialization is about 25x faster than the object mapping
-	private static Message parse(ThrowingSupplier<CBORParser, IOException> ps) throws MessageException {
+	private static Message parse(CBORParser parser) throws MessageException {
 		Message msg = null;
 
 		try {
-			int typeCode = Integer.MAX_VALUE;
-
-			CBORParser parser = ps.get();
-			int depth = 0;
-			while (true) {
-				JsonToken tok = parser.nextToken();
-
-				if (tok == JsonToken.START_OBJECT) {
-					depth++;
-				} else if (tok == JsonToken.END_OBJECT) {
-					if (--depth == 0)
+			if (parser.nextToken() != JsonToken.START_OBJECT)
+				throw new MessageException("Invalid message");
+
+			// The message type is always the first field written by serialize(),
+			// so the whole message is decoded in one pass.
+			if (parser.nextToken() == JsonToken.FIELD_NAME && "y".equals(parser.getCurrentName())) {
+				parser.nextToken();
+				msg = createMessage(parser.getIntValue());
+			} else {
+				// Fallback for the other field orders: buffer the leading fields
+				// until the type arrives, then replay them to the message.
+				TokenBuffer leading = new TokenBuffer(parser, null);
+				leading.writeStartObject();
+
+				int typeCode = Integer.MAX_VALUE;
+				while (parser.currentToken() == JsonToken.FIELD_NAME) {
+					if ("y".equals(parser.getCurrentName())) {
+						parser.nextToken();
+						typeCode = parser.getIntValue();
 						break;
-				}
+					}
 
-				String name = parser.getCurrentName();
-				if (name != null && name.equals("y")) {
+					leading.copyCurrentStructure(parser);
 					parser.nextToken();
-					typeCode = parser.getIntValue();
-					break;
 				}
+
+				if (typeCode == Integer.MAX_VALUE)
+					throw new MessageException("Missing message type");
+
+				leading.writeEndObject();
+
+				msg = createMessage(typeCode);
+				JsonParser replay = leading.asParser();
+				replay.nextToken(); // START_OBJECT
+				parseFields(msg, replay);
+				replay.close();
 			}
+
+			parseFields(msg, parser);
 			parser.close();
+		} catch (IOException e) {
+			throw new MessageException("Parse message failed", e).setPartialMessage(PartialMessage.of(msg));
+		}
 
-			if (typeCode == Integer.MAX_VALUE)
-				throw new MessageException("Missing message type");
+		return msg;
+	}
 
-			Type type;
-			try {
-				type = Type.valueOf(typeCode);
-			} catch (IllegalArgumentException e) {
-				throw new MessageException("Invalid message type: " + typeCode);
-			}
+	private static Message createMessage(int typeCode) throws MessageException {
+		Type type;
+		try {
+			type = Type.valueOf(typeCode);
+		} catch (IllegalArgumentException e) {
+			throw new MessageException("Invalid message type: " + typeCode);
+		}
 
-			Method method;
-			try {
-				method = Method.valueOf(typeCode);
-			} catch (IllegalArgumentException e) {
-				throw new MessageException("Invalid message type: " + typeCode);
-			}
+		Method method;
+		try {
+			method = Method.valueOf(typeCode);
+		} catch (IllegalArgumentException e) {
+			throw new MessageException("Invalid message type: " + typeCode);
+		}
 
-			msg = createMessage(type, method);
+		return createMessage(type, method);
+	}
 
-			parser = ps.get();
-			depth = 0;
-			while (true) {
-				JsonToken tok = parser.nextToken();
+	// Parse the fields of the message, the parser should be positioned inside the top level object
+	private static void parseFields(Message msg, JsonParser parser) throws MessageException, IOException {
+		Type type = msg.getType();
+		int depth = 1;
+		while (true) {
+			JsonToken tok = parser.nextToken();
+			if (tok == null)
+				throw new MessageException("Invalid message, unexpected end of data").setPartialMessage(PartialMessage.of(msg));
 
-				if (tok == JsonToken.START_OBJECT) {
-					depth++;
-				} else if (tok == JsonToken.END_OBJECT) {
-					if (--depth == 0)
-						break;
-				} else if (tok == JsonToken.FIELD_NAME) {
-					String name = parser.getCurrentName();
-					parser.nextToken();
-					switch (name) {
-					case "y":
-						break;
+			if (tok == JsonToken.START_OBJECT) {
+				depth++;
+			} else if (tok == JsonToken.END_OBJECT) {
+				if (--depth == 0)
+					break;
+			} else if (tok == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				parser.nextToken();
+				switch (name) {
+				case "y":
+					break;
 
-					// Id will not included in the encrypted message.
-					/*
-					case "i":
-						try {
-							msg.id = Id.of(parser.getBinaryValue());
-						} catch (IllegalArgumentException e) {
-							throw new MessageException("Invalid node id for 'i'").setPartialMessage(PartialMessage.of(msg));
-						}
-						break;
-					*/
+				// Id will not included in the encrypted message.
+				/*
+				case "i":
+					try {
+						msg.id = Id.of(parser.getBinaryValue());
+					} catch (IllegalArgumentException e) {
+						throw new MessageException("Invalid node id for 'i'").setPartialMessage(PartialMessage.of(msg));
+					}
+					break;
+				*/
 
-					case "t":
-						msg.txid = parser.getIntValue();
-						break;
+				case "t":
+					msg.txid = parser.getIntValue();
+					break;
 
-					case "q":
-						if (type != Type.REQUEST)
-							throw new MessageException("Invalid " + type.name().toLowerCase() + " message, unknown 'q'").setPartialMessage(PartialMessage.of(msg));
-						else
-							msg.parse(name, parser);
-						break;
+				case "q":
+					if (type != Type.REQUEST)
+						throw new MessageException("Invalid " + type.name().toLowerCase() + " message, unknown 'q'").setPartialMessage(PartialMessage.of(msg));
+					else
+						msg.parse(name, parser);
+					break;
 
-					case "r":
-						if (type != Type.RESPONSE)
-							throw new MessageException("Invalid " + type.name().toLowerCase() + " message, unknown 'r'").setPartialMessage(PartialMessage.of(msg));
-						else
-							msg.parse(name, parser);
-						break;
+				case "r":
+					if (type != Type.RESPONSE)
+						throw new MessageException("Invalid " + type.name().toLowerCase() + " message, unknown 'r'").setPartialMessage(PartialMessage.of(msg));
+					else
+						msg.parse(name, parser);
+					break;
 
-					case "e":
-						if (type != Type.ERROR)
-							throw new MessageException("Invalid " + type.name().toLowerCase() + " message, unknown 'e'").setPartialMessage(PartialMessage.of(msg));
-						else
-							msg.parse(name, parser);
-						break;
+				case "e":
+					if (type != Type.ERROR)
+						throw new MessageException("Invalid " + type.name().toLowerCase() + " message, unknown 'e'").setPartialMessage(PartialMessage.of(msg));
+					else
+						msg.parse(name, parser);
+					break;
 
-					case "v":
-						msg.version = parser.getIntValue();
-						break;
-					}
+				case "v":
+					msg.version = parser.getIntValue();
+					break;
 				}
 			}
-
-			parser.close();
-		} catch (IOException e) {
-			throw new MessageException("Parse message failed", e).setPartialMessage(PartialMessage.of(msg));
 		}
-
-		return msg;
 	}
 
-	protected void parse(String fieldName, CBORParser parser) throws MessageException, IOException {
+	protected void parse(String fieldName, JsonParser parser) throws MessageException, IOException {
 	}
 
 	private static Message createMessage(Type type, Method method) throws MessageException {
@@ -26,6 +26,7 @@ import java.util.Comparator;
 
 import elastos.carrier.Id;
 import elastos.carrier.NodeInfo;
+import elastos.carrier.kademlia.Clock;
 import elastos.carrier.kademlia.KBucketEntry;
 
 public class CandidateNode extends NodeInfo {
@@ -37,6 +38,9 @@ public class CandidateNode extends NodeInfo {
 
 	private int token;
 
+	private final int path;			/* the lookup path it belongs to */
+	private final int hops;			/* the hops from the local node */
+
 	public static final class DistanceOrder implements Comparator<CandidateNode> {
 		final Id target;
 
@@ -51,7 +55,13 @@ public class CandidateNode extends NodeInfo {
 	}
 
 	public CandidateNode(NodeInfo ni) {
+		this(ni, 0, 0);
+	}
+
+	CandidateNode(NodeInfo ni, int path, int hops) {
 		super(ni);
+		this.path = path;
+		this.hops = hops;
 
 		if (ni instanceof KBucketEntry) {
 			KBucketEntry e = (KBucketEntry)ni;
@@ -60,7 +70,7 @@ public class CandidateNode extends NodeInfo {
 	}
 
 	public void setSent() {
-		lastSent = System.currentTimeMillis();
+		lastSent = Clock.currentTimeMillis();
 		pinged++;
 	}
 
@@ -77,7 +87,7 @@ public class CandidateNode extends NodeInfo {
 	}
 
 	public void setReplied() {
-		lastReply = System.currentTimeMillis();
+		lastReply = Clock.currentTimeMillis();
 	}
 
 	public boolean isReplied() {
@@ -92,6 +102,14 @@ public class CandidateNode extends NodeInfo {
 		return token;
 	}
 
+	public int getPath() {
+		return path;
+	}
+
+	public int getHops() {
+		return hops;
+	}
+
 	public boolean isAcked() {
 		return acked;
 	}
@@ -23,10 +23,10 @@
 package elastos.carrier.kademlia.tasks;
 
 import java.util.Collection;
-import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.function.Predicate;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import elastos.carrier.Id;
@@ -38,14 +38,26 @@ public class ClosestCandidates {
 	private final Id target;
 	private final int capacity;
 	private final ConcurrentSkipListMap<Id, CandidateNode> closest;
-	private final ConcurrentHashSet<Object> dedup;
+	// The candidates without a pending request, in the candidate order.
+	// The order keys of a candidate only change while it's out of it.
+	private final TreeSet<CandidateNode> idle;
+	private final Set<Object> dedup;
 
 	public ClosestCandidates(Id target, int capacity) {
+		this(target, capacity, new ConcurrentHashSet<>());
+	}
+
+	/**
+	 * @param dedup the node ids and addresses seen, shared by the candidates
+	 *        of the disjoint lookup paths so that a node only joins one of them.
+	 */
+	public ClosestCandidates(Id target, int capacity, Set<Object> dedup) {
 		this.target = target;
 		this.capacity = capacity;
 
 		closest = new ConcurrentSkipListMap<>(target::threeWayCompare);
-		dedup = new ConcurrentHashSet<>();
+		idle = new TreeSet<>(this::candidateOrder);
+		this.dedup = dedup;
 	}
 
 	boolean reachedCapacity() {
@@ -70,6 +82,14 @@ public class ClosestCandidates {
 	}
 
 	public void add(Collection<? extends NodeInfo> nodes) {
+		add(nodes, 0, 0);
+	}
+
+	/**
+	 * @param path the lookup path of the new candidates.
+	 * @param hops the hops of the new candidates from the local node.
+	 */
+	public void add(Collection<? extends NodeInfo> nodes, int path, int hops) {
 		synchronized (closest) {
 			for (NodeInfo node : nodes) {
 				// Check existing node id
@@ -85,18 +105,14 @@ public class ClosestCandidates {
 				if (!dedup.add(addr))
 					continue;
 
-				CandidateNode cn = new CandidateNode(node);
+				CandidateNode cn = new CandidateNode(node, path, hops);
 				closest.put(cn.getId(), cn);
+				idle.add(cn);
 			}
 
-			if (closest.size() > capacity) {
-				List<Id> toRemove = closest.values().stream()
-						.filter(cn -> !cn.isInFlight())
-						.sorted(this::candidateOrder).skip(capacity)
-						.map(cn -> cn.getId()).collect(Collectors.toList());
-				for (Id id : toRemove)
-					closest.remove(id);
-			}
+			// Keep at most capacity candidates without a pending request
+			while (idle.size() > capacity)
+				closest.remove(idle.pollLast().getId());
 		}
 	}
 
@@ -106,7 +122,11 @@ public class ClosestCandidates {
 
 		synchronized (closest) {
 			closest.entrySet().removeIf((e) -> {
-				return filter.test(e.getValue());
+				if (!filter.test(e.getValue()))
+					return false;
+
+				idle.remove(e.getValue());
+				return true;
 			});
 		}
 	}
@@ -116,16 +136,39 @@ public class ClosestCandidates {
 			return null;
 
 		synchronized (closest) {
-			return closest.remove(id);
+			CandidateNode cn = closest.remove(id);
+			if (cn != null)
+				idle.remove(cn);
+
+			return cn;
 		}
 	}
 
+	/**
+	 * Takes the next candidate to query, the least pinged and then the
+	 * closest one. The caller should send the request to it right away,
+	 * or {@link #requeue(CandidateNode)} it.
+	 */
 	public CandidateNode next() {
 		synchronized (closest) {
-			return closest.values().stream()
-					.filter(CandidateNode::isEligible)
-					.sorted(this::candidateOrder)
-					.findFirst().orElse(null);
+			CandidateNode cn = idle.isEmpty() ? null : idle.first();
+			if (cn == null || !cn.isEligible())
+				return null;
+
+			idle.pollFirst();
+			return cn;
+		}
+	}
+
+	/**
+	 * Makes the candidate available to {@link #next()} again, after its
+	 * request timed out or it wasn't sent.
+	 */
+	public void requeue(CandidateNode cn) {
+		synchronized (closest) {
+			cn.clearSent();
+			if (closest.get(cn.getId()) == cn)
+				idle.add(cn);
 		}
 	}
 
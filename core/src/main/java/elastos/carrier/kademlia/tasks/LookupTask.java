@@ -23,42 +23,131 @@
 package elastos.carrier.kademlia.tasks;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import elastos.carrier.Id;
+import elastos.carrier.LookupOption;
+import elastos.carrier.LookupTuning;
 import elastos.carrier.NodeInfo;
 import elastos.carrier.kademlia.Constants;
 import elastos.carrier.kademlia.DHT;
 import elastos.carrier.kademlia.RPCCall;
+import elastos.carrier.kademlia.RoutingTable;
 import elastos.carrier.kademlia.messages.LookupResponse;
 import elastos.carrier.kademlia.messages.Message;
 import elastos.carrier.utils.AddressUtils;
+import elastos.carrier.utils.ConcurrentHashSet;
 
 public abstract class LookupTask extends Task {
 	private Id target;
 	private ClosestSet closest;
-	private ClosestCandidates candidates;
+	private Path[] paths;
+	private int nextPath;
+	private LookupOption option;
+	private LookupTuning tuning;
+	private RoutingTable.Snapshot routingSnapshot;
+
+	private static class Path {
+		final int index;
+		final ClosestCandidates candidates;
+		final ClosestSet closest;
+		final AtomicInteger inFlight;
+
+		Path(int index, Id target, int beta, Set<Object> dedup) {
+			this.index = index;
+			candidates = new ClosestCandidates(target, Constants.MAX_ENTRIES_PER_BUCKET * 3, dedup);
+			closest = new ClosestSet(target, beta);
+			inFlight = new AtomicInteger();
+		}
+	}
 
 	public LookupTask(DHT dht, Id target) {
 		super(dht);
 		this.target = target;
 
 		closest = new ClosestSet(target, Constants.MAX_ENTRIES_PER_BUCKET);
-		candidates = new ClosestCandidates(target, Constants.MAX_ENTRIES_PER_BUCKET * 3);
+		setLookupOption(LookupOption.OPTIMISTIC);
 	}
 
 	public Id getTarget() {
 		return target;
 	}
 
+	/**
+	 * Sets the mode of the lookup, with the tuning the node has for the mode.
+	 * Should be called before any candidate is added.
+	 */
+	public void setLookupOption(LookupOption option) {
+		setLookupOption(option, getDHT().getNode().getLookupTuning(option));
+	}
+
+	/**
+	 * Sets the mode of the lookup with its own alpha, beta and disjoint paths,
+	 * overrides the tuning of the node for this lookup only. Should be called
+	 * before any candidate is added.
+	 */
+	public void setLookupOption(LookupOption option, LookupTuning tuning) {
+		if (paths != null && getCandidateSize() > 0)
+			throw new IllegalStateException("Lookup already has candidates");
+
+		Set<Object> dedup = new ConcurrentHashSet<>();
+		paths = new Path[tuning.paths()];
+		for (int i = 0; i < paths.length; i++)
+			paths[i] = new Path(i, target, tuning.beta(), dedup);
+
+		this.option = option;
+		this.tuning = tuning;
+	}
+
+	public LookupOption getLookupOption() {
+		return option;
+	}
+
+	public LookupTuning getLookupTuning() {
+		return tuning;
+	}
+
+	/**
+	 * Use a snapshot of the routing table to pick the initial candidates,
+	 * instead of the current routing table when the task starts.
+	 */
+	public void setRoutingSnapshot(RoutingTable.Snapshot snapshot) {
+		this.routingSnapshot = snapshot;
+	}
+
+	protected RoutingTable.Snapshot getRoutingSnapshot() {
+		return routingSnapshot != null ? routingSnapshot : getDHT().getRoutingTable().snapshot();
+	}
+
 	public int getCandidateSize() {
-		return candidates.size();
+		int size = 0;
+		for (Path path : paths)
+			size += path.candidates.size();
+
+		return size;
 	}
 
 	protected CandidateNode getCandidate(Id id) {
-		return candidates.get(id);
+		for (Path path : paths) {
+			CandidateNode cn = path.candidates.get(id);
+			if (cn != null)
+				return cn;
+		}
+
+		return null;
+	}
+
+	/**
+	 * The hops of the farthest reaching node in the closest set.
+	 */
+	public int getHops() {
+		return closest.entriesStream().mapToInt(CandidateNode::getHops).max().orElse(0);
 	}
 
 	private boolean isBogonAddress(InetSocketAddress addr) {
@@ -66,59 +155,149 @@ public abstract class LookupTask extends Task {
 				!AddressUtils.isAnyUnicast(addr.getAddress()) : AddressUtils.isBogon(addr);
 	}
 
-	protected void addCandidates(Collection<? extends NodeInfo> nodes) {
-		Set<NodeInfo> cands = nodes.stream()
+	private List<NodeInfo> filter(Collection<? extends NodeInfo> nodes) {
+		return nodes.stream()
 				.filter(n -> !isBogonAddress(n.getAddress()) && !getDHT().getNode().isLocalId(n.getId()))
 				.filter(n -> !closest.contains(n.getId()))
-				.collect(Collectors.toSet());
+				.distinct()
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * Adds the initial candidates, dealt to the paths in the order of the
+	 * distance, so that every path starts from the close nodes.
+	 */
+	protected void addCandidates(Collection<? extends NodeInfo> nodes) {
+		List<NodeInfo> cands = filter(nodes);
+		if (cands.isEmpty())
+			return;
+
+		if (paths.length == 1) {
+			paths[0].candidates.add(cands, 0, 1);
+			return;
+		}
+
+		cands.sort((n1, n2) -> target.threeWayCompare(n1.getId(), n2.getId()));
+		List<List<NodeInfo>> dealt = new ArrayList<>(paths.length);
+		for (int i = 0; i < paths.length; i++)
+			dealt.add(new ArrayList<>());
+		for (int i = 0; i < cands.size(); i++)
+			dealt.get(i % paths.length).add(cands.get(i));
 
+		for (Path path : paths)
+			path.candidates.add(dealt.get(path.index), path.index, 1);
+	}
+
+	/**
+	 * Adds the nodes returned by a candidate to the path of that candidate.
+	 */
+	protected void addCandidates(CandidateNode from, Collection<? extends NodeInfo> nodes) {
+		List<NodeInfo> cands = filter(nodes);
 		if (!cands.isEmpty())
-			candidates.add(cands);
+			paths[from.getPath()].candidates.add(cands, from.getPath(), from.getHops() + 1);
 	}
 
 	protected CandidateNode removeCandidate(Id id) {
-		return candidates.remove(id);
+		for (Path path : paths) {
+			CandidateNode cn = path.candidates.remove(id);
+			if (cn != null)
+				return cn;
+		}
+
+		return null;
 	}
 
+	/**
+	 * Picks the next candidate from the paths in turn, skipping the paths
+	 * that already have alpha requests in flight.
+	 */
 	protected CandidateNode getNextCandidate() {
-		return candidates.next();
+		for (int i = 0; i < paths.length; i++) {
+			Path path = paths[(nextPath + i) % paths.length];
+			if (path.inFlight.get() >= tuning.alpha())
+				continue;
+
+			CandidateNode cn = path.candidates.next();
+			if (cn != null) {
+				nextPath = (path.index + 1) % paths.length;
+				return cn;
+			}
+		}
+
+		return null;
 	}
 
 	protected void addClosest(CandidateNode cn) {
 		closest.add(cn);
+		paths[cn.getPath()].closest.add(cn);
 	}
 
 	public ClosestSet getClosestSet() {
 		return closest;
 	}
 
+	@Override
+	protected boolean sendCall(NodeInfo node, Message request, Consumer<RPCCall> modifyCallBeforeSubmit) {
+		if (!(node instanceof CandidateNode))
+			return super.sendCall(node, request, modifyCallBeforeSubmit);
+
+		CandidateNode cn = (CandidateNode)node;
+		Path path = paths[cn.getPath()];
+		if (!super.sendCall(node, request, modifyCallBeforeSubmit)) {
+			path.candidates.requeue(cn);
+			return false;
+		}
+
+		path.inFlight.incrementAndGet();
+		return true;
+	}
+
+	private boolean isDone(Path path) {
+		return path.candidates.size() == 0 || (path.closest.isEligible() &&
+				(target.threeWayCompare(path.closest.tail(), path.candidates.head()) <= 0));
+	}
+
 	@Override
 	protected boolean isDone() {
-		return super.isDone() &&
-				(getCandidateSize() == 0 || (closest.isEligible() && (target.threeWayCompare(closest.tail(), candidates.head()) <= 0)));
+		if (!super.isDone())
+			return false;
+
+		for (Path path : paths) {
+			if (!isDone(path))
+				return false;
+		}
+
+		return true;
 	}
 
 	@Override
 	protected void callError(RPCCall call) {
 		CandidateNode cn = (CandidateNode)call.getTarget();
+		Path path = paths[cn.getPath()];
+		path.inFlight.decrementAndGet();
 		// Remove the candidate on error
-		candidates.remove(cn.getId());
+		path.candidates.remove(cn.getId());
 	}
 
 	@Override
 	protected void callTimeout(RPCCall call) {
 		CandidateNode cn = (CandidateNode)call.getTarget();
+		Path path = paths[cn.getPath()];
+		path.inFlight.decrementAndGet();
 		if (cn.isUnreachable())
 			// Remove the candidate only when make sure it's unreachable
-			candidates.remove(cn.getId());
+			path.candidates.remove(cn.getId());
 		else
 			// Clear the sent time-stamp and make it available again for the next retry
-			cn.clearSent();
+			path.candidates.requeue(cn);
 	}
 
 	@Override
 	protected void callResponsed(RPCCall call, Message response) {
-		CandidateNode cn = removeCandidate(call.getTargetId());
+		Path path = paths[((CandidateNode)call.getTarget()).getPath()];
+		path.inFlight.decrementAndGet();
+
+		CandidateNode cn = path.candidates.remove(call.getTargetId());
 		if (cn != null) {
 			cn.setReplied();
 			cn.setToken(((LookupResponse)response).getToken());
@@ -135,11 +314,16 @@ public abstract class LookupTask extends Task {
 			status.append(closest.entriesStream().map(NodeInfo::toString).collect(Collectors.joining("\n    ", "    ", "\n")));
 		else
 			status.append("    <empty>\n");
-		status.append("Candidates: \n");
-		if (candidates.size() > 0)
-			status.append(candidates.entries().map(NodeInfo::toString).collect(Collectors.joining("\n    ", "    ", "\n")));
-		else
-			status.append("    <empty>\n");
+		for (Path path : paths) {
+			status.append("Candidates");
+			if (paths.length > 1)
+				status.append(" of path ").append(path.index);
+			status.append(": \n");
+			if (path.candidates.size() > 0)
+				status.append(path.candidates.entries().map(NodeInfo::toString).collect(Collectors.joining("\n    ", "    ", "\n")));
+			else
+				status.append("    <empty>\n");
+		}
 
 		return status.toString();
 	}
@@ -77,7 +77,7 @@ public class NodeLookup extends LookupTask {
 		// delay the filling of the todo list until we actually start the task
 		KClosestNodes kns = new KClosestNodes(getDHT(), knsTarget,
 				Constants.MAX_ENTRIES_PER_BUCKET * 2, KBucketEntry::isEligibleForLocalLookup);
-		kns.fill();
+		kns.fill(getRoutingSnapshot());
 		addCandidates(kns.entries());
 	}
 
@@ -115,7 +115,7 @@ public class NodeLookup extends LookupTask {
 		if (nodes.isEmpty())
 			return;
 
-		addCandidates(nodes);
+		addCandidates((CandidateNode)call.getTarget(), nodes);
 	}
 
 	@Override
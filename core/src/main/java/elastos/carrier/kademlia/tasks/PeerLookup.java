@@ -57,7 +57,7 @@ public class PeerLookup extends LookupTask {
 	@Override
 	protected void prepare() {
 		KClosestNodes kns = new KClosestNodes(getDHT(), getTarget(), Constants.MAX_ENTRIES_PER_BUCKET * 2);
-		kns.fill();
+		kns.fill(getRoutingSnapshot());
 		addCandidates(kns.entries());
 	}
 
@@ -109,7 +109,7 @@ public class PeerLookup extends LookupTask {
 			if (nodes.isEmpty())
 				return;
 
-			addCandidates(nodes);
+			addCandidates((CandidateNode)call.getTarget(), nodes);
 		}
 	}
 
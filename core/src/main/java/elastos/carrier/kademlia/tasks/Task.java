@@ -36,7 +36,7 @@ import java.util.function.Consumer;
 import org.slf4j.Logger;
 
 import elastos.carrier.NodeInfo;
-import elastos.carrier.kademlia.Constants;
+import elastos.carrier.kademlia.Clock;
 import elastos.carrier.kademlia.DHT;
 import elastos.carrier.kademlia.RPCCall;
 import elastos.carrier.kademlia.RPCCallListener;
@@ -51,6 +51,7 @@ public abstract class Task implements Comparable<Task> {
 
 	private final DHT dht;
 	private Set<RPCCall> inFlight;
+	private int sentCalls;
 
 	long startTime;
 	long finishTime;
@@ -180,7 +181,7 @@ public abstract class Task implements Comparable<Task> {
 	public void start() {
 		if (setState(EnumSet.of(State.INITIAL, State.QUEUED), State.RUNNING)) {
 			getLogger().debug("Task starting: {}", toString());
-			startTime = System.currentTimeMillis();
+			startTime = Clock.currentTimeMillis();
 
 			prepare();
 
@@ -224,7 +225,7 @@ public abstract class Task implements Comparable<Task> {
 
 	public void cancel() {
 		if (setState(EnumSet.complementOf(EnumSet.of(State.FINISHED, State.CANCELED)), State.CANCELED)) {
-			finishTime = System.currentTimeMillis();
+			finishTime = Clock.currentTimeMillis();
 			getLogger().debug("Task canceled: {}", toString());
 			notifyCompletionListeners();
 		}
@@ -235,7 +236,7 @@ public abstract class Task implements Comparable<Task> {
 
 	private void finish() {
 		if (setState(EnumSet.complementOf(EnumSet.of(State.FINISHED, State.CANCELED)), State.FINISHED)) {
-			finishTime = System.currentTimeMillis();
+			finishTime = Clock.currentTimeMillis();
 			getLogger().debug("Task finished: {}", toString());
 			notifyCompletionListeners();
 		}
@@ -266,11 +267,18 @@ public abstract class Task implements Comparable<Task> {
 	}
 
 	public Duration age() {
-		return Duration.between(Instant.ofEpochMilli(startTime), Instant.now());
+		return Duration.ofMillis(Clock.currentTimeMillis() - startTime);
+	}
+
+	/**
+	 * The number of the requests the task has sent, the retries included.
+	 */
+	public int getNumberOfSentCalls() {
+		return sentCalls;
 	}
 
 	protected boolean canDoRequest() {
-		return inFlight.size() < Constants.MAX_CONCURRENT_TASK_REQUESTS;
+		return inFlight.size() < dht.getServer().getCongestionController().getTaskRequestLimit();
 	}
 
 	protected boolean sendCall(NodeInfo node, Message request) {
@@ -290,10 +298,11 @@ public abstract class Task implements Comparable<Task> {
 			modifyCallBeforeSubmit.accept(call);
 
 		inFlight.add(call);
+		sentCalls++;
 
 		getLogger().debug("Task#{} sending call to {}", getTaskId(), node, request.getRemoteAddress());
 		// asyncify since we're under a lock here
-		dht.getNode().getScheduler().execute(() -> dht.getServer().sendCall(call));
+		dht.execute(() -> dht.getServer().sendCall(call));
 
 		return true;
 	}
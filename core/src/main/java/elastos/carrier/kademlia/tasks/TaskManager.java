@@ -94,7 +94,7 @@ public class TaskManager {
 
 			running.add(t);
 
-			dht.getNode().getScheduler().execute(t::start);
+			dht.execute(t::start);
 		}
 	}
 
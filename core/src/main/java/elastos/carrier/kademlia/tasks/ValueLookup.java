@@ -60,7 +60,7 @@ public class ValueLookup extends LookupTask {
 	@Override
 	protected void prepare() {
 		KClosestNodes kns = new KClosestNodes(getDHT(), getTarget(), Constants.MAX_ENTRIES_PER_BUCKET * 2);
-		kns.fill();
+		kns.fill(getRoutingSnapshot());
 		addCandidates(kns.entries());
 	}
 
@@ -120,7 +120,7 @@ public class ValueLookup extends LookupTask {
 			if (nodes.isEmpty())
 				return;
 
-			addCandidates(nodes);
+			addCandidates((CandidateNode)call.getTarget(), nodes);
 		}
 	}
 
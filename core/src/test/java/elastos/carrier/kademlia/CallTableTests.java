@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package elastos.carrier.kademlia;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+import elastos.carrier.Id;
+import elastos.carrier.NodeInfo;
+import elastos.carrier.kademlia.messages.PingRequest;
+
+public class CallTableTests {
+	private static final int WARMUP_ITERATIONS = 500_000;
+	private static final int ITERATIONS = 2_000_000;
+	private static final int[] ACTIVE_CALLS = { 256, 4096 };
+
+	private interface Operation {
+		void run(int i);
+	}
+
+	private static long allocatedBytes() {
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static void measure(String name, Operation op) {
+		for (int i = 0; i < WARMUP_ITERATIONS; i++)
+			op.run(i);
+
+		long bytes = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = WARMUP_ITERATIONS; i < WARMUP_ITERATIONS + ITERATIONS; i++)
+			op.run(i);
+		long elapsed = System.nanoTime() - start;
+		bytes = allocatedBytes() - bytes;
+
+		System.out.format("%-40s %8.1f bytes/op %8.1f ns/op%n", name,
+				(double)bytes / ITERATIONS, (double)elapsed / ITERATIONS);
+	}
+
+	private static RPCCall[] calls(int n) {
+		NodeInfo ni = new NodeInfo(Id.random(), new InetSocketAddress("192.168.1.1", 39001));
+		RPCCall[] calls = new RPCCall[n];
+		for (int i = 0; i < n; i++)
+			calls[i] = new RPCCall(ni, new PingRequest());
+
+		return calls;
+	}
+
+	private static RPCCall newCall() {
+		NodeInfo ni = new NodeInfo(Id.random(), new InetSocketAddress("192.168.1.1", 39001));
+		return new RPCCall(ni, new PingRequest());
+	}
+
+	@Test
+	public void testPutGetRemove() {
+		CallTable table = new CallTable(4);
+		RPCCall call1 = newCall();
+		RPCCall call2 = newCall();
+
+		assertTrue(table.putIfAbsent(1, call1));
+		assertFalse(table.putIfAbsent(1, call2));
+		assertTrue(table.putIfAbsent(2, call2));
+		assertEquals(2, table.size());
+
+		assertSame(call1, table.get(1));
+		assertSame(call2, table.get(2));
+		assertNull(table.get(3));
+		assertNull(table.get(0));
+
+		assertFalse(table.remove(1, call2));
+		assertTrue(table.remove(1, call1));
+		assertNull(table.get(1));
+		assertSame(call2, table.get(2));
+		assertEquals(1, table.size());
+	}
+
+	@Test
+	public void testRandomOperations() {
+		CallTable table = new CallTable(16);
+		Map<Integer, RPCCall> expected = new HashMap<>();
+		Random rnd = new Random(1234);
+		RPCCall[] calls = new RPCCall[64];
+		for (int i = 0; i < calls.length; i++)
+			calls[i] = newCall();
+
+		for (int i = 0; i < 100_000; i++) {
+			// small key space to force the collisions and the back-shifts
+			int txid = rnd.nextInt(512) + 1;
+			RPCCall call = calls[rnd.nextInt(calls.length)];
+
+			if (rnd.nextBoolean()) {
+				assertEquals(!expected.containsKey(txid), table.putIfAbsent(txid, call));
+				expected.putIfAbsent(txid, call);
+			} else {
+				RPCCall current = expected.get(txid);
+				if (current != null)
+					assertTrue(table.remove(txid, current));
+				else
+					assertFalse(table.remove(txid, call));
+				expected.remove(txid);
+			}
+
+			assertEquals(expected.size(), table.size());
+		}
+
+		for (int txid = 1; txid <= 512; txid++)
+			assertSame(expected.get(txid), table.get(txid));
+
+		Map<RPCCall, Integer> visited = new HashMap<>();
+		table.forEach(c -> visited.merge(c, 1, Integer::sum));
+		assertEquals(expected.size(), visited.values().stream().mapToInt(Integer::intValue).sum());
+
+		table.clear();
+		assertEquals(0, table.size());
+		assertNull(table.get(expected.keySet().iterator().next()));
+	}
+
+	/**
+	 * Measures the cost of the RPC call setup and teardown: register the call by
+	 * the transaction id, arm the timeout, look up the call by the response, then
+	 * remove the call and cancel the timeout. Compares the boxed map with the
+	 * scheduled futures against the call table with the timer wheel.
+	 */
+	@Disabled("Performance")
+	@Test
+	public void testCallSetupTeardownPerf() {
+		Runnable noop = () -> {};
+
+		for (int active : ACTIVE_CALLS) {
+			RPCCall[] calls = calls(active);
+
+			// the former implementation: boxed txids, one scheduled future per call
+			ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+			ConcurrentMap<Integer, RPCCall> map = new ConcurrentHashMap<>(active);
+			ScheduledFuture<?>[] futures = new ScheduledFuture<?>[active];
+			measure("map+scheduler, active " + active, (i) -> {
+				int slot = i % active;
+				int txid = i + 1;
+				if (futures[slot] != null) {
+					int old = txid - active;
+					map.get(old);
+					map.remove(old, calls[slot]);
+					futures[slot].cancel(false);
+				}
+
+				map.putIfAbsent(txid, calls[slot]);
+				futures[slot] = scheduler.schedule(noop, Constants.RPC_CALL_TIMEOUT_MAX, TimeUnit.MILLISECONDS);
+			});
+			scheduler.shutdownNow();
+
+			// the call table and the timer wheel, advanced as the event loop does
+			TimerWheel wheel = new TimerWheel(Constants.RPC_TIMER_TICK, TimeUnit.MILLISECONDS,
+					Constants.RPC_TIMER_WHEEL_SIZE);
+			CallTable table = new CallTable(active);
+			TimerWheel.Timeout[] timeouts = new TimerWheel.Timeout[active];
+			measure("table+wheel, active " + active, (i) -> {
+				int slot = i % active;
+				int txid = i + 1;
+				if (timeouts[slot] != null) {
+					int old = txid - active;
+					table.get(old);
+					table.remove(old, calls[slot]);
+					timeouts[slot].cancel();
+				}
+
+				table.putIfAbsent(txid, calls[slot]);
+				timeouts[slot] = wheel.schedule(noop, Constants.RPC_CALL_TIMEOUT_MAX, TimeUnit.MILLISECONDS);
+				if ((i & 0x3f) == 0)
+					wheel.advance();
+			});
+		}
+	}
+}
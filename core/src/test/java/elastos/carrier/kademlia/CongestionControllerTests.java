@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package elastos.carrier.kademlia;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class CongestionControllerTests {
+	@Test
+	public void testInitialState() {
+		CongestionController cc = new CongestionController();
+		assertEquals(Constants.INITIAL_ACTIVE_CALLS, cc.getCallWindow());
+		assertEquals(Constants.INITIAL_CONCURRENT_TASK_REQUESTS, cc.getTaskRequestLimit());
+	}
+
+	@Test
+	public void testAdditiveIncrease() {
+		CongestionController cc = new CongestionController();
+
+		// about one window of responses for each extra call
+		for (int i = 0; i < Constants.INITIAL_ACTIVE_CALLS * 2; i++)
+			cc.onResponse(true, 0.0, cc.getCallWindow());
+
+		int window = cc.getCallWindow();
+		assertTrue(window >= Constants.INITIAL_ACTIVE_CALLS + 1 && window <= Constants.INITIAL_ACTIVE_CALLS + 2);
+
+		// no increase under loss
+		for (int i = 0; i < Constants.INITIAL_ACTIVE_CALLS * 2; i++)
+			cc.onResponse(true, 0.2, cc.getCallWindow());
+		assertEquals(window, cc.getCallWindow());
+
+		for (int i = 0; i < 10_000_000; i++)
+			cc.onResponse(false, 0.3, cc.getCallWindow());
+		assertEquals(Constants.MAX_ACTIVE_CALLS, cc.getCallWindow());
+		assertEquals(Constants.MAX_CONCURRENT_TASK_REQUESTS, cc.getTaskRequestLimit());
+	}
+
+	@Test
+	public void testAppLimited() {
+		CongestionController cc = new CongestionController();
+
+		// an idle server doesn't grow the window it doesn't use
+		for (int i = 0; i < 100_000; i++)
+			cc.onResponse(true, 0.0, 1);
+		assertEquals(Constants.INITIAL_ACTIVE_CALLS, cc.getCallWindow());
+		assertEquals(0, cc.getIncreases());
+
+		int limited = (int)Math.ceil(Constants.INITIAL_ACTIVE_CALLS * CongestionController.CWND_LIMITED_RATIO);
+		cc.onResponse(true, 0.0, limited - 1);
+		assertEquals(0, cc.getIncreases());
+
+		// grows again once the window is nearly full
+		cc.onResponse(true, 0.0, limited);
+		assertEquals(1, cc.getIncreases());
+	}
+
+	@Test
+	public void testMultiplicativeDecrease() {
+		CongestionController cc = new CongestionController();
+		long now = 1_000_000;
+
+		// below the threshold, the timeouts are ignored
+		cc.onTimeout(true, 0.05, now, 500);
+		cc.onTimeout(false, 0.4, now, 500);
+		assertEquals(Constants.INITIAL_ACTIVE_CALLS, cc.getCallWindow());
+
+		cc.onTimeout(true, 0.2, now, 500);
+		assertEquals((int)(Constants.INITIAL_ACTIVE_CALLS * CongestionController.MULTIPLICATIVE_DECREASE),
+				cc.getCallWindow());
+
+		// one decrease per stall timeout
+		cc.onTimeout(true, 0.2, now + 100, 500);
+		assertEquals(1, cc.getDecreases());
+		cc.onTimeout(true, 0.2, now + 500, 500);
+		assertEquals(2, cc.getDecreases());
+
+		for (int i = 0; i < 100; i++) {
+			now += 1000;
+			cc.onTimeout(false, 0.9, now, 500);
+		}
+
+		assertEquals(Constants.MIN_ACTIVE_CALLS, cc.getCallWindow());
+		assertEquals(Constants.MIN_CONCURRENT_TASK_REQUESTS, cc.getTaskRequestLimit());
+
+		cc.reset();
+		assertEquals(Constants.INITIAL_ACTIVE_CALLS, cc.getCallWindow());
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package elastos.carrier.kademlia;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import elastos.carrier.Id;
+import elastos.carrier.crypto.CryptoBox;
+
+public class CryptoCacheTests {
+	private final CryptoBox.KeyPair keyPair = CryptoBox.KeyPair.random();
+
+	private CryptoCache newCache(int size, AtomicInteger loads) {
+		return new CryptoCache(size, (id) -> {
+			loads.incrementAndGet();
+			return new CryptoContext(id, keyPair);
+		});
+	}
+
+	@Test
+	public void testHitAndMiss() throws Exception {
+		AtomicInteger loads = new AtomicInteger();
+		CryptoCache cache = newCache(64, loads);
+
+		Id id = Id.random();
+		CryptoContext ctx = cache.get(id);
+		assertSame(ctx, cache.get(id));
+		assertSame(ctx, cache.get(id));
+
+		assertEquals(1, loads.get());
+		assertEquals(1, cache.getMisses());
+		assertEquals(2, cache.getHits());
+		assertEquals(1, cache.size());
+		assertTrue(cache.getLoadTime() > 0);
+	}
+
+	@Test
+	public void testMaximumSize() throws Exception {
+		AtomicInteger loads = new AtomicInteger();
+		CryptoCache cache = newCache(256, loads);
+
+		for (int i = 0; i < 2048; i++)
+			cache.get(Id.random());
+
+		assertTrue(cache.size() <= 256 + 16, "size: " + cache.size());
+		assertEquals(2048 - cache.size(), cache.getEvictions());
+	}
+
+	@Test
+	public void testScanResistance() throws Exception {
+		AtomicInteger loads = new AtomicInteger();
+		CryptoCache cache = newCache(256, loads);
+
+		List<Id> hot = new ArrayList<>();
+		for (int i = 0; i < 64; i++)
+			hot.add(Id.random());
+
+		for (int round = 0; round < 8; round++) {
+			for (Id id : hot)
+				cache.get(id);
+		}
+
+		// one-off lookups to the random nodes
+		for (int i = 0; i < 4096; i++)
+			cache.get(Id.random());
+
+		loads.set(0);
+		for (Id id : hot)
+			cache.get(id);
+
+		// the hot peers survived the scan
+		assertTrue(loads.get() <= hot.size() / 10, "reloaded hot entries: " + loads.get());
+		assertTrue(cache.getRejections() > 0);
+	}
+
+	@Test
+	public void testEvictedContextInUse() throws Exception {
+		AtomicInteger loads = new AtomicInteger();
+		CryptoCache cache = newCache(64, loads);
+
+		Id id = Id.random();
+		CryptoContext ctx = cache.get(id);
+		CryptoContext other = cache.get(Id.random());
+		other.close();
+
+		// evicts all, the context in use is still open
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertTrue(other.isClosed());
+		assertFalse(ctx.isClosed());
+		assertEquals(16 + CryptoBox.MAC_BYTES, ctx.encrypt(new byte[16]).length);
+
+		// the last holder closes it
+		ctx.close();
+		assertTrue(ctx.isClosed());
+		assertFalse(ctx.retain());
+
+		// a new context is created for the id
+		CryptoContext ctx2 = cache.get(id);
+		assertFalse(ctx2.isClosed());
+		assertEquals(2, loads.get());
+	}
+}
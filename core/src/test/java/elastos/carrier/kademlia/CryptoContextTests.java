@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package elastos.carrier.kademlia;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+import elastos.carrier.Id;
+import elastos.carrier.NodeInfo;
+import elastos.carrier.Value;
+import elastos.carrier.crypto.CryptoBox;
+import elastos.carrier.crypto.Signature;
+import elastos.carrier.kademlia.messages.FindNodeResponse;
+import elastos.carrier.kademlia.messages.FindValueResponse;
+import elastos.carrier.kademlia.messages.LookupResponse;
+import elastos.carrier.kademlia.messages.Message;
+import elastos.carrier.kademlia.messages.PingRequest;
+
+public class CryptoContextTests {
+	private static final int WARMUP_ITERATIONS = 200_000;
+	private static final int ITERATIONS = 1_000_000;
+
+	private interface Operation {
+		void run() throws Exception;
+	}
+
+	private static long allocatedBytes() {
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static void measure(String name, Operation op) throws Exception {
+		for (int i = 0; i < WARMUP_ITERATIONS; i++)
+			op.run();
+
+		long bytes = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++)
+			op.run();
+		long elapsed = System.nanoTime() - start;
+		bytes = allocatedBytes() - bytes;
+
+		System.out.format("%-40s %8.1f bytes/op %8.1f ns/op%n", name,
+				(double)bytes / ITERATIONS, (double)elapsed / ITERATIONS);
+	}
+
+	private static List<NodeInfo> randomNodes(int count) {
+		List<NodeInfo> nodes = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+			nodes.add(new NodeInfo(Id.random(), new InetSocketAddress("192.168.1." + (i + 1), 39001 + i)));
+
+		return nodes;
+	}
+
+	private static List<LookupResponse> inboundMessages() {
+		FindNodeResponse fnr = new FindNodeResponse(0x12345678);
+		fnr.setNodes4(randomNodes(Constants.MAX_ENTRIES_PER_BUCKET));
+		fnr.setToken(0x78901234);
+		fnr.setVersion(Constants.VERSION);
+
+		byte[] data = new byte[512];
+		Arrays.fill(data, (byte)'D');
+		FindValueResponse fvr = new FindValueResponse(0x12345678);
+		fvr.setValue(Value.of(data));
+		fvr.setNodes4(randomNodes(4));
+		fvr.setVersion(Constants.VERSION);
+
+		return List.of(fnr, fvr);
+	}
+
+	private static List<Message> outboundMessages(Id id) {
+		PingRequest ping = new PingRequest();
+		ping.setTxid(0x12345678);
+
+		List<NodeInfo> nodes = new ArrayList<>();
+		for (int i = 0; i < Constants.MAX_ENTRIES_PER_BUCKET; i++)
+			nodes.add(new NodeInfo(Id.random(), new InetSocketAddress("192.168.1." + (i + 1), 39001 + i)));
+
+		FindNodeResponse fnr = new FindNodeResponse(0x12345678);
+		fnr.setNodes4(nodes);
+		fnr.setToken(0x78901234);
+
+		List<Message> messages = List.of(ping, fnr);
+		for (Message msg : messages) {
+			msg.setId(id);
+			msg.setVersion(Constants.VERSION);
+		}
+
+		return messages;
+	}
+
+	/**
+	 * Measures the allocation rate and the time of the outbound message encoding,
+	 * compares the copying encode path with the buffer reusing encode path.
+	 */
+	@Disabled("Performance")
+	@Test
+	public void testSerializePerf() throws Exception {
+		ByteBuffer buffer = ByteBuffer.allocate(1500);
+
+		for (Message msg : outboundMessages(Id.random())) {
+			String name = msg.getClass().getSimpleName();
+			measure(name + " serialize(copy)", () -> {
+				msg.serialize();
+			});
+
+			measure(name + " serialize(buffer)", () -> {
+				buffer.clear();
+				msg.serialize(buffer);
+			});
+		}
+	}
+
+	@Disabled("Performance")
+	@Test
+	public void testSendPerf() throws Exception {
+		Signature.KeyPair senderKey = Signature.KeyPair.random();
+		Signature.KeyPair receiverKey = Signature.KeyPair.random();
+		Id sender = Id.of(senderKey.publicKey().bytes());
+		Id receiver = Id.of(receiverKey.publicKey().bytes());
+
+		CryptoContext ctx = new CryptoContext(receiver, CryptoBox.KeyPair.fromSignatureKeyPair(senderKey));
+		ByteBuffer serializeBuffer = ByteBuffer.allocate(1500);
+		ByteBuffer writeBuffer = ByteBuffer.allocateDirect(1500);
+
+		// The sink never reads, the kernel drops the packets when its buffer is full
+		try (DatagramChannel sink = DatagramChannel.open();
+				DatagramChannel channel = DatagramChannel.open()) {
+			sink.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			InetSocketAddress target = (InetSocketAddress)sink.getLocalAddress();
+
+			for (Message msg : outboundMessages(sender)) {
+				String name = msg.getClass().getSimpleName();
+				measure(name + " send(copy)", () -> {
+					byte[] encrypted = ctx.encrypt(msg.serialize());
+					writeBuffer.clear();
+					writeBuffer.put(msg.getId().bytes());
+					writeBuffer.put(encrypted);
+					writeBuffer.flip();
+					channel.send(writeBuffer, target);
+				});
+
+				measure(name + " send(buffer)", () -> {
+					serializeBuffer.clear();
+					msg.serialize(serializeBuffer);
+					serializeBuffer.flip();
+
+					writeBuffer.clear();
+					writeBuffer.put(msg.getId().bytes());
+					ctx.encrypt(serializeBuffer, writeBuffer);
+					writeBuffer.flip();
+					channel.send(writeBuffer, target);
+				});
+			}
+		}
+
+		ctx.close();
+	}
+
+	/**
+	 * Measures the allocation rate and the time of the inbound packet decoding,
+	 * compares the copying decode path with the in-place decode path.
+	 */
+	@Disabled("Performance")
+	@Test
+	public void testParsePerf() throws Exception {
+		for (LookupResponse msg : inboundMessages()) {
+			byte[] bin = msg.serialize();
+			byte[] packet = new byte[Constants.RECEIVE_BUFFER_SIZE];
+			System.arraycopy(bin, 0, packet, Id.BYTES, bin.length);
+
+			String name = msg.getClass().getSimpleName();
+			measure(name + " parse(copy)", () -> {
+				Message.parse(Arrays.copyOfRange(packet, Id.BYTES, Id.BYTES + bin.length));
+			});
+
+			measure(name + " parse(in place)", () -> {
+				Message.parse(packet, Id.BYTES, bin.length);
+			});
+		}
+	}
+
+	@Disabled("Performance")
+	@Test
+	public void testDecodePerf() throws Exception {
+		Signature.KeyPair senderKey = Signature.KeyPair.random();
+		Signature.KeyPair receiverKey = Signature.KeyPair.random();
+		Id sender = Id.of(senderKey.publicKey().bytes());
+		Id receiver = Id.of(receiverKey.publicKey().bytes());
+
+		CryptoContext outbound = new CryptoContext(receiver, CryptoBox.KeyPair.fromSignatureKeyPair(senderKey));
+		CryptoContext inbound = new CryptoContext(sender, CryptoBox.KeyPair.fromSignatureKeyPair(receiverKey));
+		BufferPool pool = new BufferPool(Constants.RECEIVE_BUFFER_SIZE, 16);
+
+		for (LookupResponse msg : inboundMessages()) {
+			byte[] cipher = outbound.encrypt(msg.serialize());
+			byte[] received = new byte[Id.BYTES + cipher.length];
+			System.arraycopy(sender.bytes(), 0, received, 0, Id.BYTES);
+			System.arraycopy(cipher, 0, received, Id.BYTES, cipher.length);
+
+			String name = msg.getClass().getSimpleName();
+			measure(name + " decode(copy)", () -> {
+				byte[] packet = new byte[received.length];
+				System.arraycopy(received, 0, packet, 0, received.length);
+				byte[] encrypted = Arrays.copyOfRange(packet, Id.BYTES, packet.length);
+				Message.parse(inbound.decrypt(encrypted));
+			});
+
+			measure(name + " decode(in place)", () -> {
+				byte[] packet = pool.acquire();
+				try {
+					System.arraycopy(received, 0, packet, 0, received.length);
+					int length = inbound.decrypt(packet, Id.BYTES, received.length - Id.BYTES);
+					Message.parse(packet, Id.BYTES, length);
+				} finally {
+					pool.release(packet);
+				}
+			});
+		}
+
+		outbound.close();
+		inbound.close();
+	}
+}
@@ -36,16 +36,27 @@ import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.ValueSource;
 
@@ -59,6 +70,98 @@ import elastos.carrier.kademlia.exceptions.SequenceNotMonotonic;
 import elastos.carrier.utils.ThreadLocals;
 
 public class DataStorageTests {
+	private static final int PEER_IDS = 1024;
+	private static final int PEERS_PER_ID = 16;
+	private static final int MAX_PEERS = 8;
+	private static final int VALUE_SIZE = 256;
+	private static final int[] READERS = { 1, 2, 4, 8 };
+	private static final int WRITERS = 8;
+	private static final int VALUES = 16384;
+	// 90% of the lookups go to 1% of the keys
+	private static final int HOT_KEYS_PERCENT = 1;
+	private static final int HOT_LOOKUPS_PERCENT = 90;
+	private static final int[] PEERS_PER_SAMPLED_ID = { 16, 1000, 10000 };
+	private static final int SAMPLED_IDS = 8;
+	private static final int WARMUP_SECONDS = 2;
+	private static final int MEASURE_SECONDS = 5;
+
+	private DataStorage openFresh(Class<? extends DataStorage> clazz, boolean durableWrites) throws Exception {
+		File f = getStorageFile();
+		if (f.exists())
+			f.delete();
+
+		Method open = clazz.getMethod("open", File.class, ScheduledExecutorService.class, boolean.class);
+		return (DataStorage)open.invoke(null, f, getScheduler(), durableWrites);
+	}
+
+	private static List<Id> populate(DataStorage ds) throws Exception {
+		List<Id> ids = new ArrayList<>(PEER_IDS);
+		byte[] sig = new byte[64];
+
+		for (int i = 0; i < PEER_IDS; i++) {
+			Id id = Id.random();
+			List<PeerInfo> peers = new ArrayList<>(PEERS_PER_ID);
+			for (int j = 0; j < PEERS_PER_ID; j++) {
+				ThreadLocalRandom.current().nextBytes(sig);
+				peers.add(PeerInfo.of(id, Id.random(), Id.random(), 39001 + j, sig.clone()));
+			}
+
+			ds.putPeer(peers);
+			ids.add(id);
+		}
+
+		return ids;
+	}
+
+	private String run(DataStorage ds, List<Id> ids, int readers) throws Exception {
+		AtomicBoolean running = new AtomicBoolean(true);
+		AtomicBoolean measuring = new AtomicBoolean(false);
+		LongAdder puts = new LongAdder();
+		LongAdder gets = new LongAdder();
+		List<Thread> threads = new ArrayList<>();
+
+		threads.add(new Thread(() -> {
+			byte[] data = new byte[VALUE_SIZE];
+			try {
+				while (running.get()) {
+					ThreadLocalRandom.current().nextBytes(data);
+					ds.putValue(Value.of(data.clone()));
+					if (measuring.get())
+						puts.increment();
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}));
+
+		for (int i = 0; i < readers; i++) {
+			threads.add(new Thread(() -> {
+				try {
+					while (running.get()) {
+						Id id = ids.get(ThreadLocalRandom.current().nextInt(ids.size()));
+						ds.getPeer(id, MAX_PEERS);
+						if (measuring.get())
+							gets.increment();
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}));
+		}
+
+		threads.forEach(Thread::start);
+		TimeUnit.SECONDS.sleep(WARMUP_SECONDS);
+		measuring.set(true);
+		TimeUnit.SECONDS.sleep(MEASURE_SECONDS);
+		measuring.set(false);
+		running.set(false);
+		for (Thread t : threads)
+			t.join();
+
+		return String.format("%d readers: putValue %,10d ops/s | getPeer %,10d ops/s",
+				readers, puts.sum() / MEASURE_SECONDS, gets.sum() / MEASURE_SECONDS);
+	}
+
 	private static ScheduledExecutorService scheduler;
 
 	private File getStorageFile() {
@@ -102,7 +205,7 @@ public class DataStorageTests {
 	}
 
 	@ParameterizedTest
-	@ValueSource(classes = { SQLiteStorage.class })
+	@ValueSource(classes = { SQLiteStorage.class, MappedStorage.class })
 	public void testPutAndGetValue(Class<? extends DataStorage> clazz) throws Exception {
 		DataStorage ds = open(clazz);
 
@@ -151,7 +254,7 @@ public class DataStorageTests {
 	}
 
 	@ParameterizedTest
-	@ValueSource(classes = { SQLiteStorage.class })
+	@ValueSource(classes = { SQLiteStorage.class, MappedStorage.class })
 	public void testPutAndGetPersistentValue(Class<? extends DataStorage> clazz) throws Exception {
 		DataStorage ds = open(clazz);
 
@@ -176,6 +279,8 @@ public class DataStorageTests {
 		Stream<Value> vs = ds.getPersistentValues(ts);
 		List<Value> values = vs.collect(Collectors.toList());
 		assertEquals(128, values.size());
+		for (int i = 1; i < values.size(); i++)
+			assertTrue(values.get(i - 1).getId().compareTo(values.get(i).getId()) < 0);
 
 		Thread.sleep(1000);
 
@@ -219,7 +324,7 @@ public class DataStorageTests {
 	}
 
 	@ParameterizedTest
-	@ValueSource(classes = { SQLiteStorage.class })
+	@ValueSource(classes = { SQLiteStorage.class, MappedStorage.class })
 	public void testUpdateSignedValue(Class<? extends DataStorage> clazz) throws Exception {
 		DataStorage ds = open(clazz);
 
@@ -287,7 +392,7 @@ public class DataStorageTests {
 	}
 
 	@ParameterizedTest
-	@ValueSource(classes = { SQLiteStorage.class })
+	@ValueSource(classes = { SQLiteStorage.class, MappedStorage.class })
 	public void testUpdateEncryptedValue(Class<? extends DataStorage> clazz) throws Exception {
 		DataStorage ds = open(clazz);
 
@@ -360,7 +465,7 @@ public class DataStorageTests {
 	}
 
 	@ParameterizedTest
-	@ValueSource(classes = { SQLiteStorage.class })
+	@ValueSource(classes = { SQLiteStorage.class, MappedStorage.class })
 	public void testPutAndGetPeerWithRandomData(Class<? extends DataStorage> clazz) throws Exception {
 		DataStorage ds = open(clazz);
 
@@ -456,7 +561,7 @@ public class DataStorageTests {
 	}
 
 	@ParameterizedTest
-	@ValueSource(classes = { SQLiteStorage.class })
+	@ValueSource(classes = { SQLiteStorage.class, MappedStorage.class })
 	public void testPutAndGetPeer(Class<? extends DataStorage> clazz) throws Exception {
 		DataStorage ds = open(clazz);
 
@@ -553,7 +658,7 @@ public class DataStorageTests {
 
 
 	@ParameterizedTest
-	@ValueSource(classes = { SQLiteStorage.class })
+	@ValueSource(classes = { SQLiteStorage.class, MappedStorage.class })
 	public void testPutAndGetPersistentPeer(Class<? extends DataStorage> clazz) throws Exception {
 		DataStorage ds = open(clazz);
 
@@ -579,6 +684,8 @@ public class DataStorageTests {
 		Stream<PeerInfo> ps = ds.getPersistentPeers(ts);
 		List<PeerInfo> peers = ps.collect(Collectors.toList());
 		assertEquals(128, peers.size());
+		for (int i = 1; i < peers.size(); i++)
+			assertTrue(peers.get(i - 1).getId().compareTo(peers.get(i).getId()) < 0);
 
 		Thread.sleep(1000);
 
@@ -619,4 +726,468 @@ public class DataStorageTests {
 
 		ds.close();
 	}
+
+	// The SQLite storage on the virtual clock, the queued writes are committed
+	// and the expire sweep runs only when the scheduler is driven.
+	private DataStorage openSQLite(VirtualScheduler scheduler) throws Exception {
+		return openSQLite(scheduler, false);
+	}
+
+	private DataStorage openSQLite(VirtualScheduler scheduler, boolean durableWrites) throws Exception {
+		Clock.useVirtual(scheduler::nanoTime);
+		return SQLiteStorage.open(getStorageFile(), scheduler, durableWrites, 64);
+	}
+
+	private void commit(VirtualScheduler scheduler) {
+		scheduler.runFor(Constants.STORAGE_WRITE_DELAY * 2, TimeUnit.MILLISECONDS);
+	}
+
+	@Test
+	public void testValueCacheInvalidation() throws Exception {
+		VirtualScheduler scheduler = new VirtualScheduler();
+		DataStorage ds = openSQLite(scheduler);
+		try {
+			Signature.KeyPair keypair = Signature.KeyPair.random();
+			CryptoBox.Nonce nonce = CryptoBox.Nonce.random();
+
+			// read after write, from the queue
+			Value v = Value.createSignedValue(keypair, nonce, 1, "v1".getBytes());
+			Id id = v.getId();
+			ds.putValue(v);
+			assertArrayEquals("v1".getBytes(), ds.getValue(id).getData());
+
+			// from the db, then from the cache
+			commit(scheduler);
+			assertArrayEquals("v1".getBytes(), ds.getValue(id).getData());
+			assertArrayEquals("v1".getBytes(), ds.getValue(id).getData());
+
+			// the put invalidates the cached value, before and after the commit
+			v = v.update("v2".getBytes());
+			ds.putValue(v);
+			assertArrayEquals("v2".getBytes(), ds.getValue(id).getData());
+			commit(scheduler);
+			assertArrayEquals("v2".getBytes(), ds.getValue(id).getData());
+			assertEquals(2, ds.getValue(id).getSequenceNumber());
+
+			// the remove invalidates the cached value
+			assertTrue(ds.removeValue(id));
+			assertNull(ds.getValue(id));
+
+			// the expire sweep invalidates the cached value
+			v = v.update("v3".getBytes());
+			ds.putValue(v);
+			commit(scheduler);
+			assertArrayEquals("v3".getBytes(), ds.getValue(id).getData());
+
+			scheduler.runFor(Constants.MAX_VALUE_AGE + Constants.STORAGE_EXPIRE_INTERVAL, TimeUnit.MILLISECONDS);
+			assertNull(ds.getValue(id));
+			assertEquals(1, ((SQLiteStorage)ds).getExpiredValues());
+		} finally {
+			ds.close();
+			Clock.useVirtual(null);
+		}
+	}
+
+	@Test
+	public void testPeerSampling() throws Exception {
+		VirtualScheduler scheduler = new VirtualScheduler();
+		DataStorage ds = openSQLite(scheduler);
+		try {
+			Signature.KeyPair kp = Signature.KeyPair.random();
+			Id id = Id.of(kp.publicKey().bytes());
+
+			List<PeerInfo> peers = new ArrayList<>();
+			for (int i = 0; i < 64; i++)
+				peers.add(PeerInfo.create(kp, Id.random(), 8000 + i));
+
+			ds.putPeer(peers);
+			commit(scheduler);
+
+			// every read samples a new subset, not a cached one
+			Set<PeerInfo> seen = new HashSet<>();
+			for (int i = 0; i < 16; i++) {
+				List<PeerInfo> ps = ds.getPeer(id, 8);
+				assertEquals(8, ps.size());
+				assertEquals(8, new HashSet<>(ps).size());
+				assertTrue(peers.containsAll(ps));
+				seen.addAll(ps);
+			}
+
+			assertTrue(seen.size() > 8, "sampled peers: " + seen.size());
+
+			// read after write and remove
+			PeerInfo p = PeerInfo.create(kp, Id.random(), 9000);
+			ds.putPeer(List.of(p));
+			assertEquals(p, ds.getPeer(id, p.getOrigin()));
+			assertEquals(65, ds.getPeer(id, 128).size());
+			commit(scheduler);
+			assertEquals(65, ds.getPeer(id, 128).size());
+
+			assertTrue(ds.removePeer(id, p.getOrigin()));
+			assertNull(ds.getPeer(id, p.getOrigin()));
+			assertEquals(64, ds.getPeer(id, 128).size());
+		} finally {
+			ds.close();
+			Clock.useVirtual(null);
+		}
+	}
+
+	@Test
+	public void testPeerSlotWrap() throws Exception {
+		VirtualScheduler scheduler = new VirtualScheduler();
+		DataStorage ds = openSQLite(scheduler);
+		try {
+			Signature.KeyPair kp = Signature.KeyPair.random();
+			Id id = Id.of(kp.publicKey().bytes());
+
+			List<PeerInfo> peers = new ArrayList<>();
+			for (int i = 0; i < 16; i++)
+				peers.add(PeerInfo.create(kp, Id.random(), 8000 + i));
+
+			ds.putPeer(peers);
+			commit(scheduler);
+
+			// most of the random slots leave less than 12 peers after them,
+			// the rest are taken from the start of the slot index
+			for (int i = 0; i < 64; i++) {
+				List<PeerInfo> ps = ds.getPeer(id, 12);
+				assertEquals(12, ps.size());
+				assertEquals(12, new HashSet<>(ps).size());
+				assertTrue(peers.containsAll(ps));
+			}
+
+			// more than stored, all of them without duplicates
+			List<PeerInfo> ps = ds.getPeer(id, 32);
+			assertEquals(16, ps.size());
+			assertEquals(new HashSet<>(peers), new HashSet<>(ps));
+		} finally {
+			ds.close();
+			Clock.useVirtual(null);
+		}
+	}
+
+	@Test
+	public void testChecksAgainstQueuedWrites() throws Exception {
+		VirtualScheduler scheduler = new VirtualScheduler();
+		DataStorage ds = openSQLite(scheduler);
+		try {
+			Signature.KeyPair keypair = Signature.KeyPair.random();
+			CryptoBox.Nonce nonce = CryptoBox.Nonce.random();
+
+			Value v = Value.createSignedValue(keypair, nonce, 10, "v10".getBytes());
+			Id id = v.getId();
+			assertNull(ds.putValue(v));
+
+			// not committed yet, the reads and the checks see the queued value
+			assertEquals(10, ds.getValue(id).getSequenceNumber());
+
+			Value v9 = Value.createSignedValue(keypair, nonce, 9, "v9".getBytes());
+			assertThrows(SequenceNotMonotonic.class, () -> ds.putValue(v9));
+
+			Value v11 = Value.createSignedValue(keypair, nonce, 11, "v11".getBytes());
+			assertThrows(CasFail.class, () -> ds.putValue(v11, 9));
+
+			Value old = ds.putValue(v11, 10);
+			assertEquals(10, old.getSequenceNumber());
+			assertEquals(11, ds.getValue(id).getSequenceNumber());
+
+			// the latest queued write is committed
+			commit(scheduler);
+			v = ds.getValue(id);
+			assertEquals(11, v.getSequenceNumber());
+			assertArrayEquals("v11".getBytes(), v.getData());
+
+			// and the checks go to the database
+			Value v12 = Value.createSignedValue(keypair, nonce, 12, "v12".getBytes());
+			assertThrows(CasFail.class, () -> ds.putValue(v12, 10));
+			assertThrows(SequenceNotMonotonic.class, () -> ds.putValue(v9));
+			assertEquals(11, ds.putValue(v12, 11).getSequenceNumber());
+			assertEquals(12, ds.getValue(id).getSequenceNumber());
+		} finally {
+			ds.close();
+			Clock.useVirtual(null);
+		}
+	}
+
+	// Puts on another thread, the put returns only when the scheduler committed the queue
+	private void assertAwaitsCommit(VirtualScheduler scheduler, DataStorage ds, Value value,
+			boolean persistent) throws Exception {
+		ExecutorService writer = Executors.newSingleThreadExecutor();
+		try {
+			Future<Value> put = writer.submit(() -> ds.putValue(value, persistent));
+
+			// queued, the commit is scheduled before the write is readable
+			while (ds.getValue(value.getId()) == null)
+				Thread.sleep(1);
+
+			Thread.sleep(100);
+			assertFalse(put.isDone());
+
+			commit(scheduler);
+			assertNull(put.get(5, TimeUnit.SECONDS));
+		} finally {
+			writer.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testDurableWrites() throws Exception {
+		VirtualScheduler scheduler = new VirtualScheduler();
+		DataStorage ds = openSQLite(scheduler, true);
+		try {
+			assertAwaitsCommit(scheduler, ds, Value.createValue("durable".getBytes()), false);
+		} finally {
+			ds.close();
+			Clock.useVirtual(null);
+		}
+	}
+
+	@Test
+	public void testPersistentWrites() throws Exception {
+		VirtualScheduler scheduler = new VirtualScheduler();
+		DataStorage ds = openSQLite(scheduler, false);
+		try {
+			// only the persistent puts wait for the commit
+			Value v = Value.createValue("queued".getBytes());
+			assertNull(ds.putValue(v, false));
+			assertArrayEquals("queued".getBytes(), ds.getValue(v.getId()).getData());
+
+			assertAwaitsCommit(scheduler, ds, Value.createValue("persistent".getBytes()), true);
+			assertArrayEquals("queued".getBytes(), ds.getValue(v.getId()).getData());
+		} finally {
+			ds.close();
+			Clock.useVirtual(null);
+		}
+	}
+
+	/**
+	 * Throughput of the data storage under concurrent readers: one writer keeps
+	 * putting values while the readers keep looking up the peers. Reports the
+	 * putValue and getPeer ops/sec for the different reader counts.
+	 *
+	 * The performance tests below it: the announce storm, many writers put the
+	 * peers, with and without the durable writes. The FIND_VALUE/FIND_PEER
+	 * storage load, most of the lookups go to a few hot keys, with and without
+	 * the hot cache. The peer sampling, the getPeer cost for up to 10k peers
+	 * per id.
+	 */
+	@Disabled("Performance")
+	@ParameterizedTest
+	@ValueSource(classes = { SQLiteStorage.class, MappedStorage.class })
+	public void testConcurrentReadersPerf(Class<? extends DataStorage> clazz) throws Exception {
+		DataStorage ds = openFresh(clazz, false);
+		List<String> results = new ArrayList<>();
+
+		try {
+			List<Id> ids = populate(ds);
+			for (int readers : READERS)
+				results.add(run(ds, ids, readers));
+		} finally {
+			ds.close();
+		}
+
+		System.out.format("%n%s, %,d peer ids x %d peers, 1 writer:%n",
+				clazz.getSimpleName(), PEER_IDS, PEERS_PER_ID);
+		results.forEach(System.out::println);
+	}
+
+	private String runAnnounceStorm(Class<? extends DataStorage> clazz, boolean durableWrites) throws Exception {
+		DataStorage ds = openFresh(clazz, durableWrites);
+
+		AtomicBoolean running = new AtomicBoolean(true);
+		AtomicBoolean measuring = new AtomicBoolean(false);
+		LongAdder puts = new LongAdder();
+		List<Thread> threads = new ArrayList<>();
+
+		for (int i = 0; i < WRITERS; i++) {
+			threads.add(new Thread(() -> {
+				byte[] sig = new byte[64];
+				try {
+					while (running.get()) {
+						ThreadLocalRandom.current().nextBytes(sig);
+						ds.putPeer(PeerInfo.of(Id.random(), Id.random(), 39001, sig.clone()));
+						if (measuring.get())
+							puts.increment();
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}));
+		}
+
+		try {
+			threads.forEach(Thread::start);
+			TimeUnit.SECONDS.sleep(WARMUP_SECONDS);
+			measuring.set(true);
+			TimeUnit.SECONDS.sleep(MEASURE_SECONDS);
+			measuring.set(false);
+			running.set(false);
+			for (Thread t : threads)
+				t.join();
+		} finally {
+			ds.close();
+		}
+
+		return String.format("durable writes: %-5s putPeer %,10d ops/s",
+				durableWrites, puts.sum() / MEASURE_SECONDS);
+	}
+
+	@Disabled("Performance")
+	@ParameterizedTest
+	@ValueSource(classes = { SQLiteStorage.class, MappedStorage.class })
+	public void testAnnounceStormPerf(Class<? extends DataStorage> clazz) throws Exception {
+		List<String> results = new ArrayList<>();
+
+		results.add(runAnnounceStorm(clazz, false));
+		results.add(runAnnounceStorm(clazz, true));
+
+		System.out.format("%n%s, %d writers:%n", clazz.getSimpleName(), WRITERS);
+		results.forEach(System.out::println);
+	}
+
+	private static <T> T pick(List<T> keys) {
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		int hotKeys = Math.max(keys.size() * HOT_KEYS_PERCENT / 100, 1);
+		return rnd.nextInt(100) < HOT_LOOKUPS_PERCENT ?
+				keys.get(rnd.nextInt(hotKeys)) : keys.get(rnd.nextInt(keys.size()));
+	}
+
+	private String runHotReads(int cacheSize) throws Exception {
+		File f = getStorageFile();
+		if (f.exists())
+			f.delete();
+
+		DataStorage ds = SQLiteStorage.open(f, getScheduler(), false, cacheSize);
+		try {
+			List<Id> peerIds = populate(ds);
+			List<Id> valueIds = new ArrayList<>(VALUES);
+			byte[] data = new byte[VALUE_SIZE];
+			for (int i = 0; i < VALUES; i++) {
+				ThreadLocalRandom.current().nextBytes(data);
+				Value v = Value.of(data.clone());
+				ds.putValue(v);
+				valueIds.add(v.getId());
+			}
+
+			AtomicBoolean running = new AtomicBoolean(true);
+			AtomicBoolean measuring = new AtomicBoolean(false);
+			LongAdder lookups = new LongAdder();
+			List<Thread> threads = new ArrayList<>();
+
+			for (int i = 0; i < READERS[READERS.length - 1]; i++) {
+				threads.add(new Thread(() -> {
+					try {
+						while (running.get()) {
+							ds.getValue(pick(valueIds));
+							ds.getPeer(pick(peerIds), MAX_PEERS);
+							if (measuring.get())
+								lookups.add(2);
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}));
+			}
+
+			threads.forEach(Thread::start);
+			TimeUnit.SECONDS.sleep(WARMUP_SECONDS);
+			measuring.set(true);
+			TimeUnit.SECONDS.sleep(MEASURE_SECONDS);
+			measuring.set(false);
+			running.set(false);
+			for (Thread t : threads)
+				t.join();
+
+			return String.format("cache size: %5d lookups %,10d ops/s | %s",
+					cacheSize, lookups.sum() / MEASURE_SECONDS, ds);
+		} finally {
+			ds.close();
+		}
+	}
+
+	@Disabled("Performance")
+	@Test
+	public void testHotReadsPerf() throws Exception {
+		List<String> results = new ArrayList<>();
+
+		results.add(runHotReads(0));
+		results.add(runHotReads(Constants.STORAGE_CACHE_SIZE));
+
+		System.out.format("%nFIND_VALUE/FIND_PEER storage lookups, %d readers, %d%% to %d%% of the keys:%n",
+				READERS[READERS.length - 1], HOT_LOOKUPS_PERCENT, HOT_KEYS_PERCENT);
+		results.forEach(System.out::println);
+	}
+
+	private String runPeerSampling(int peersPerId) throws Exception {
+		File f = getStorageFile();
+		if (f.exists())
+			f.delete();
+
+		// no cache, every lookup samples the stored peers
+		DataStorage ds = SQLiteStorage.open(f, getScheduler(), false, 0);
+		try {
+			List<Id> ids = new ArrayList<>(SAMPLED_IDS);
+			byte[] sig = new byte[64];
+			for (int i = 0; i < SAMPLED_IDS; i++) {
+				Id id = Id.random();
+				List<PeerInfo> peers = new ArrayList<>(peersPerId);
+				for (int j = 0; j < peersPerId; j++) {
+					ThreadLocalRandom.current().nextBytes(sig);
+					peers.add(PeerInfo.of(id, Id.random(), Id.random(), 39001, sig.clone()));
+				}
+
+				ds.putPeer(peers);
+				ids.add(id);
+			}
+
+			AtomicBoolean running = new AtomicBoolean(true);
+			AtomicBoolean measuring = new AtomicBoolean(false);
+			LongAdder lookups = new LongAdder();
+			List<Thread> threads = new ArrayList<>();
+
+			for (int i = 0; i < READERS[READERS.length - 1]; i++) {
+				threads.add(new Thread(() -> {
+					try {
+						while (running.get()) {
+							Id id = ids.get(ThreadLocalRandom.current().nextInt(ids.size()));
+							if (ds.getPeer(id, MAX_PEERS).size() != MAX_PEERS)
+								throw new IllegalStateException("Short sample");
+
+							if (measuring.get())
+								lookups.increment();
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}));
+			}
+
+			threads.forEach(Thread::start);
+			TimeUnit.SECONDS.sleep(WARMUP_SECONDS);
+			measuring.set(true);
+			TimeUnit.SECONDS.sleep(MEASURE_SECONDS);
+			measuring.set(false);
+			running.set(false);
+			for (Thread t : threads)
+				t.join();
+
+			return String.format("peers per id: %6d getPeer %,10d ops/s",
+					peersPerId, lookups.sum() / MEASURE_SECONDS);
+		} finally {
+			ds.close();
+		}
+	}
+
+	@Disabled("Performance")
+	@Test
+	public void testPeerSamplingPerf() throws Exception {
+		List<String> results = new ArrayList<>();
+
+		for (int peersPerId : PEERS_PER_SAMPLED_ID)
+			results.add(runPeerSampling(peersPerId));
+
+		System.out.format("%nFIND_PEER storage lookups, %d readers, %d of the peers:%n",
+				READERS[READERS.length - 1], MAX_PEERS);
+		results.forEach(System.out::println);
+	}
 }
@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package elastos.carrier.kademlia;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+import elastos.carrier.DefaultConfiguration;
+import elastos.carrier.Id;
+import elastos.carrier.NodeInfo;
+import elastos.carrier.utils.AddressUtils;
+
+public class KClosestNodesTests {
+	private static final int ENTRIES = 10_000;
+	private static final int WARMUP_ITERATIONS = 200_000;
+	private static final int ITERATIONS = 1_000_000;
+	private static final int[] WANTS = { Constants.MAX_ENTRIES_PER_BUCKET, Constants.MAX_ENTRIES_PER_BUCKET * 2 };
+
+	private interface Operation {
+		int run(Id target);
+	}
+
+	private static long allocatedBytes() {
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static void measure(String name, Id[] targets, Operation op) {
+		long found = 0;
+		for (int i = 0; i < WARMUP_ITERATIONS; i++)
+			found += op.run(targets[i % targets.length]);
+
+		long bytes = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++)
+			found += op.run(targets[i % targets.length]);
+		long elapsed = System.nanoTime() - start;
+		bytes = allocatedBytes() - bytes;
+
+		System.out.format("%-32s %8.1f bytes/op %8.1f ns/op (%d)%n", name,
+				(double)bytes / ITERATIONS, (double)elapsed / ITERATIONS, found);
+	}
+
+	// The previous selection: the whole buckets into a list, then sort and shave
+	private static List<NodeInfo> sortAndShave(RoutingTable table, Id target, int maxEntries) {
+		List<KBucketEntry> entries = new ArrayList<>(maxEntries + Constants.MAX_ENTRIES_PER_BUCKET);
+		table.snapshot().forEachClosest(target, bucket -> {
+			bucket.stream().filter(KBucketEntry::isEligibleForNodesList).forEach(entries::add);
+			return entries.size() < maxEntries;
+		});
+
+		int overshoot = entries.size() - maxEntries;
+		if (overshoot > 0) {
+			entries.sort(new KBucketEntry.DistanceOrder(target));
+			entries.subList(entries.size() - overshoot, entries.size()).clear();
+		}
+
+		return new ArrayList<>(entries);
+	}
+
+	private static int hosts;
+
+	// every entry on its own address, the same address would be a conflict
+	private static KBucketEntry entry(Id id) {
+		int i = ++hosts;
+		KBucketEntry entry = new KBucketEntry(id,
+				new InetSocketAddress("10." + ((i >> 16) & 0xff) + "." + ((i >> 8) & 0xff) + "." + (i & 0xff), 39001));
+		entry.setReachable(true);
+		return entry;
+	}
+
+	private static List<KBucketEntry> randomEntries(int n) {
+		List<KBucketEntry> entries = new ArrayList<>(n);
+		for (int i = 0; i < n; i++)
+			entries.add(entry(Id.random()));
+
+		return entries;
+	}
+
+	private static RoutingTable table(List<KBucketEntry> entries) {
+		RoutingTable rt = new RoutingTable(null, Id.random());
+		entries.forEach(rt::put);
+		return rt;
+	}
+
+	// the reference selection: sort all candidates by the distance
+	private static List<KBucketEntry> sorted(Collection<KBucketEntry> candidates, Id target, int k) {
+		return candidates.stream()
+				.sorted(new KBucketEntry.DistanceOrder(target))
+				.limit(k)
+				.collect(Collectors.toList());
+	}
+
+	private static List<KBucketEntry> tableEntries(RoutingTable rt) {
+		List<KBucketEntry> entries = new ArrayList<>();
+		rt.snapshot().forEachClosest(Id.random(), bucket -> {
+			entries.addAll(bucket.entries());
+			return true;
+		});
+
+		return entries;
+	}
+
+	private static void assertClosestFirst(List<KBucketEntry> entries, Id target) {
+		for (int i = 1; i < entries.size(); i++)
+			assertTrue(target.threeWayCompare(entries.get(i - 1).getId(), entries.get(i).getId()) <= 0);
+	}
+
+	@Test
+	public void testFillAgainstSort() {
+		RoutingTable rt = table(randomEntries(2000));
+		RoutingTable.Snapshot snapshot = rt.snapshot();
+		List<KBucketEntry> all = tableEntries(rt);
+
+		for (int k : new int[] { 1, 8, 16, 33, 100 }) {
+			for (int i = 0; i < 50; i++) {
+				// the random targets, and the ids in the table
+				Id target = i % 2 == 0 ? Id.random() : all.get(i).getId();
+
+				KClosestNodes kns = new KClosestNodes(null, target, k);
+				kns.fill(snapshot, Collections::emptyList, null);
+
+				assertEquals(sorted(all, target, k), kns.entries());
+				assertTrue(kns.isFull());
+			}
+		}
+	}
+
+	@Test
+	public void testFewerThanK() {
+		List<KBucketEntry> entries = randomEntries(5);
+		RoutingTable rt = table(entries);
+		Id target = Id.random();
+
+		KClosestNodes kns = new KClosestNodes(null, target, 8);
+		kns.fill(rt.snapshot(), Collections::emptyList, null);
+		assertEquals(sorted(entries, target, 8), kns.entries());
+		assertEquals(5, kns.size());
+		assertFalse(kns.isFull());
+
+		// the bootstrap nodes fill up the rest
+		List<KBucketEntry> bootstraps = randomEntries(10);
+		kns.fill(rt.snapshot(), () -> bootstraps, null);
+
+		List<KBucketEntry> candidates = new ArrayList<>(entries);
+		candidates.addAll(bootstraps);
+		assertEquals(sorted(candidates, target, 8), kns.entries());
+		assertTrue(kns.isFull());
+
+		// the empty table
+		kns.fill(new RoutingTable(null, Id.random()).snapshot(), () -> bootstraps, null);
+		assertEquals(sorted(bootstraps, target, 8), kns.entries());
+	}
+
+	@Test
+	public void testBootstrapsOnlyIfNotFull() {
+		RoutingTable rt = table(randomEntries(100));
+		Id target = Id.random();
+
+		KClosestNodes kns = new KClosestNodes(null, target, 8);
+		kns.fill(rt.snapshot(), () -> { throw new AssertionError("not expected"); }, null);
+		assertEquals(sorted(tableEntries(rt), target, 8), kns.entries());
+	}
+
+	@Test
+	public void testFilter() {
+		RoutingTable rt = table(randomEntries(1000));
+		List<KBucketEntry> all = tableEntries(rt);
+
+		Predicate<KBucketEntry> filter = e -> (e.getId().bytes()[Id.BYTES - 1] & 0x01) == 0;
+		List<KBucketEntry> eligible = all.stream().filter(filter).collect(Collectors.toList());
+
+		for (int i = 0; i < 20; i++) {
+			Id target = Id.random();
+			KClosestNodes kns = new KClosestNodes(null, target, 16, filter);
+			kns.fill(rt.snapshot(), Collections::emptyList, null);
+
+			assertEquals(sorted(eligible, target, 16), kns.entries());
+		}
+
+		// the default filter skips the unreachable and the failed entries
+		KBucketEntry unreachable = all.get(0);
+		unreachable.setReachable(false);
+
+		KClosestNodes kns = new KClosestNodes(null, unreachable.getId(), 16);
+		kns.fill(rt.snapshot(), Collections::emptyList, null);
+		assertFalse(kns.entries().contains(unreachable));
+		assertEquals(sorted(all.subList(1, all.size()), unreachable.getId(), 16), kns.entries());
+	}
+
+	@Test
+	public void testIncludeSelf() {
+		List<KBucketEntry> entries = randomEntries(3);
+		RoutingTable rt = table(entries);
+		Id target = Id.random();
+		KBucketEntry self = entry(Id.random());
+
+		KClosestNodes kns = new KClosestNodes(null, target, 8);
+		kns.fill(rt.snapshot(), Collections::emptyList, () -> self);
+
+		List<KBucketEntry> candidates = new ArrayList<>(entries);
+		candidates.add(self);
+		assertEquals(sorted(candidates, target, 8), kns.entries());
+		assertTrue(kns.entries().contains(self));
+
+		// the local node is the last resort, even it's the closest one
+		RoutingTable full = table(randomEntries(100));
+		KBucketEntry closest = entry(target);
+		kns.fill(full.snapshot(), Collections::emptyList, () -> closest);
+		assertFalse(kns.entries().contains(closest));
+		assertEquals(sorted(tableEntries(full), target, 8), kns.entries());
+	}
+
+	@Test
+	public void testTies() {
+		List<KBucketEntry> entries = randomEntries(7);
+		RoutingTable rt = table(entries);
+		Id target = Id.random();
+
+		// the bootstrap nodes with the same ids as the routing table entries,
+		// at the same distances
+		KBucketEntry farthest = sorted(entries, target, 7).get(6);
+		KBucketEntry first = entry(farthest.getId());
+		KBucketEntry second = entry(farthest.getId());
+
+		KClosestNodes kns = new KClosestNodes(null, target, 8);
+		kns.fill(rt.snapshot(), () -> List.of(first, second), null);
+
+		// the heap is full after the first one, the second one doesn't replace
+		// any entry at the same distance
+		assertEquals(8, kns.size());
+		assertClosestFirst(kns.entries(), target);
+		assertTrue(kns.entries().contains(first));
+		assertFalse(kns.entries().contains(second));
+		assertEquals(sorted(entries, target, 6), kns.entries().subList(0, 6));
+
+		// a closer one still replaces the farthest
+		KBucketEntry closest = entry(target);
+		kns.fill(rt.snapshot(), () -> List.of(first, second, closest), null);
+		assertEquals(8, kns.size());
+		assertSame(closest, kns.entries().get(0));
+	}
+
+	/**
+	 * The per-request cost of the closest nodes in the FIND_NODE, FIND_VALUE and
+	 * FIND_PEER responses, as DHT.populateClosestNodes picks them from a routing
+	 * table of 10k entries. Compares the bounded heap selection of KClosestNodes
+	 * against collecting the buckets into a list then sorting and shaving it.
+	 */
+	@Disabled("Performance")
+	@Test
+	public void testPopulateClosestNodesPerf() throws Exception {
+		InetAddress addr = AddressUtils.getDefaultRoute(Inet4Address.class);
+		Node node = new Node(new DefaultConfiguration.Builder().setIPv4Address(addr).build());
+		DHT dht = new DHT(DHT.Type.IPV4, node, new InetSocketAddress(addr, 39001));
+		RoutingTable table = dht.getRoutingTable();
+
+		for (int i = 0; i < ENTRIES; i++) {
+			KBucketEntry entry = new KBucketEntry(Id.random(),
+					new InetSocketAddress("10." + ((i >> 16) & 0xff) + "." + ((i >> 8) & 0xff) + "." + (i & 0xff), 39001));
+			entry.setReachable(true);
+			table.put(entry);
+		}
+
+		Id[] targets = new Id[4096];
+		for (int i = 0; i < targets.length; i++)
+			targets[i] = Id.random();
+
+		System.out.format("%d buckets, %d entries%n", table.size(), table.getNumBucketEntries());
+		for (int want : WANTS) {
+			measure("sort+shave, want " + want, targets, (target) ->
+				sortAndShave(table, target, want).size());
+
+			measure("heap, want " + want, targets, (target) -> {
+				KClosestNodes kns = new KClosestNodes(dht, target, want);
+				kns.fill();
+				return kns.asNodeList().size();
+			});
+		}
+	}
+}
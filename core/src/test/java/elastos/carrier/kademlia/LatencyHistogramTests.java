@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package elastos.carrier.kademlia;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class LatencyHistogramTests {
+	@Test
+	public void testBuckets() {
+		for (long v = 0; v < 1L << 30; v = v < 64 ? v + 1 : v + v / 7) {
+			int bucket = LatencyHistogram.bucketOf(v);
+			long upper = LatencyHistogram.valueOf(bucket);
+
+			assertTrue(v <= upper, "value " + v + " above the bucket " + upper);
+			assertTrue(upper - v <= v / 8, "value " + v + " too far from the bucket " + upper);
+			if (bucket > 0)
+				assertTrue(LatencyHistogram.valueOf(bucket - 1) < v);
+		}
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		assertEquals(0, h.getPercentile(50));
+
+		for (int i = 1; i <= 1000; i++)
+			h.record(TimeUnit.MICROSECONDS.toNanos(i));
+
+		assertEquals(1000, h.getCount());
+
+		long p50 = h.getPercentile(50);
+		long p99 = h.getPercentile(99);
+		assertTrue(p50 >= 500 && p50 <= 500 + 500 / 8, "p50: " + p50);
+		assertTrue(p99 >= 990 && p99 <= 990 + 990 / 8, "p99: " + p99);
+		assertTrue(h.getPercentile(100) >= 1000);
+
+		h.reset();
+		assertEquals(0, h.getCount());
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package elastos.carrier.kademlia;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+
+public class LookupBudgetTests {
+	@Test
+	public void testLimit() {
+		LookupBudget budget = new LookupBudget(4, Runnable::run);
+		List<CompletableFuture<Integer>> operations = new ArrayList<>();
+		List<CompletableFuture<Integer>> results = new ArrayList<>();
+		List<Integer> started = new ArrayList<>();
+
+		for (int i = 0; i < 10; i++) {
+			int n = i;
+			CompletableFuture<Integer> op = new CompletableFuture<>();
+			operations.add(op);
+			results.add(budget.submit(() -> {
+				started.add(n);
+				return op;
+			}));
+		}
+
+		assertEquals(List.of(0, 1, 2, 3), started);
+		assertEquals(4, budget.getRunning());
+		assertEquals(6, budget.getWaiting());
+
+		// the freed slot goes to the first waiting one
+		operations.get(2).complete(2);
+		assertEquals(2, results.get(2).join().intValue());
+		assertEquals(List.of(0, 1, 2, 3, 4), started);
+		assertEquals(4, budget.getRunning());
+
+		operations.get(0).completeExceptionally(new RuntimeException("failed"));
+		assertTrue(results.get(0).isCompletedExceptionally());
+		assertEquals(List.of(0, 1, 2, 3, 4, 5), started);
+
+		for (CompletableFuture<Integer> op : operations)
+			op.complete(0);
+
+		assertEquals(10, started.size());
+		assertEquals(0, budget.getRunning());
+		assertEquals(0, budget.getWaiting());
+		assertFalse(results.stream().anyMatch(r -> !r.isDone()));
+	}
+
+	@Test
+	public void testSynchronousCompletion() {
+		LookupBudget budget = new LookupBudget(1, Runnable::run);
+		CompletableFuture<Integer> first = new CompletableFuture<>();
+		budget.submit(() -> first);
+
+		// all queued behind the first one, then complete inside the drain
+		List<CompletableFuture<Integer>> results = new ArrayList<>();
+		for (int i = 0; i < 100_000; i++) {
+			int n = i;
+			results.add(budget.submit(() -> CompletableFuture.completedFuture(n)));
+		}
+
+		first.complete(-1);
+		for (int i = 0; i < results.size(); i++)
+			assertEquals(i, results.get(i).join().intValue());
+
+		assertEquals(0, budget.getRunning());
+	}
+
+	@Test
+	public void testStartOnExecutor() {
+		Deque<Runnable> executor = new ArrayDeque<>();
+		LookupBudget budget = new LookupBudget(1, executor::addLast);
+		List<String> started = new ArrayList<>();
+
+		CompletableFuture<Integer> first = new CompletableFuture<>();
+		budget.submit(() -> {
+			started.add("first");
+			return first;
+		});
+		CompletableFuture<Integer> second = budget.submit(() -> {
+			started.add("second");
+			return CompletableFuture.completedFuture(2);
+		});
+
+		// the completion frees the slot, but the waiting one doesn't start
+		// on the completing thread
+		first.complete(1);
+		assertEquals(1, started.size());
+		assertEquals(0, budget.getRunning());
+		assertEquals(1, budget.getWaiting());
+
+		while (!executor.isEmpty())
+			executor.pollFirst().run();
+
+		assertEquals(2, started.size());
+		assertEquals(2, second.join().intValue());
+		assertEquals(0, budget.getRunning());
+		assertEquals(0, budget.getWaiting());
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package elastos.carrier.kademlia;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.common.base.Ticker;
+
+import elastos.carrier.Id;
+import elastos.carrier.NodeInfo;
+
+public class LookupCacheTests {
+	private static class ManualTicker extends Ticker {
+		private final AtomicLong nanos = new AtomicLong();
+
+		@Override
+		public long read() {
+			return nanos.get();
+		}
+
+		void advance(long time, TimeUnit unit) {
+			nanos.addAndGet(unit.toNanos(time));
+		}
+	}
+
+	@Test
+	public void testMisses() {
+		ManualTicker ticker = new ManualTicker();
+		LookupCache cache = new LookupCache(30, TimeUnit.SECONDS, ticker);
+		Id id = Id.random();
+
+		assertFalse(cache.isValueMissing(id));
+		cache.valueResult(id, false);
+		assertTrue(cache.isValueMissing(id));
+		assertFalse(cache.isPeerMissing(id));
+
+		cache.peerResult(id, false);
+		assertTrue(cache.isPeerMissing(id));
+		cache.peerResult(id, true);
+		assertFalse(cache.isPeerMissing(id));
+
+		ticker.advance(31, TimeUnit.SECONDS);
+		assertFalse(cache.isValueMissing(id));
+
+		assertEquals(1, cache.getValueHits());
+		assertEquals(1, cache.getPeerHits());
+	}
+
+	@Test
+	public void testNodes() {
+		ManualTicker ticker = new ManualTicker();
+		LookupCache cache = new LookupCache(30, TimeUnit.SECONDS, ticker);
+		Id id = Id.random();
+		Id missing = Id.random();
+		NodeInfo node = new NodeInfo(id, "192.168.1.1", 39001);
+
+		assertNull(cache.getNodes(id));
+		cache.putNodes(id, List.of(node));
+		cache.putNodes(missing, Collections.emptyList());
+
+		// the nodes not found are not cached
+		List<NodeInfo> nodes = cache.getNodes(id);
+		assertEquals(1, nodes.size());
+		assertEquals(node, nodes.get(0));
+		assertNull(cache.getNodes(missing));
+		assertEquals(1, cache.getNodeHits());
+
+		ticker.advance(31, TimeUnit.SECONDS);
+		assertNull(cache.getNodes(id));
+
+		// a later miss drops the found nodes
+		cache.putNodes(id, List.of(node));
+		assertEquals(1, cache.getNodes(id).size());
+		cache.putNodes(id, Collections.emptyList());
+		assertNull(cache.getNodes(id));
+	}
+}
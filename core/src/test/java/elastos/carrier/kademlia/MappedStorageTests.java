@@ -0,0 +1,361 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package elastos.carrier.kademlia;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import elastos.carrier.Id;
+import elastos.carrier.PeerInfo;
+import elastos.carrier.Value;
+import elastos.carrier.utils.ThreadLocals;
+
+public class MappedStorageTests {
+	private static final int SEGMENT_SIZE = 64 * 1024;
+
+	private static ScheduledExecutorService scheduler;
+
+	private File getStorageFile() {
+		return new File(System.getProperty("java.io.tmpdir") + "/carrier.store");
+	}
+
+	@BeforeAll
+	public static void setupScheduler() {
+		scheduler = new ScheduledThreadPoolExecutor(1);
+	}
+
+	@AfterAll
+	public static void shutdownScheduler() {
+		scheduler.shutdown();
+	}
+
+	@BeforeEach
+	public void setup() {
+		File f = getStorageFile();
+		if (f.exists())
+			f.delete();
+	}
+
+	private DataStorage open() throws Exception {
+		return MappedStorage.open(getStorageFile(), scheduler, false, SEGMENT_SIZE);
+	}
+
+	private static Value randomValue(int size) {
+		byte[] data = new byte[size];
+		ThreadLocals.random().nextBytes(data);
+		return Value.of(data);
+	}
+
+	private static PeerInfo randomPeer(Id id) {
+		byte[] sig = new byte[64];
+		ThreadLocals.random().nextBytes(sig);
+		return PeerInfo.of(id, Id.random(), 8000 + ThreadLocals.random().nextInt(1000), sig);
+	}
+
+	@Test
+	public void testReopen() throws Exception {
+		DataStorage ds = open();
+
+		List<Value> values = new ArrayList<>();
+		for (int i = 0; i < 512; i++) {
+			Value v = randomValue(256);
+			ds.putValue(v, i % 2 == 0);
+			values.add(v);
+		}
+
+		Id peerId = Id.random();
+		List<PeerInfo> peers = new ArrayList<>();
+		for (int i = 0; i < 64; i++)
+			peers.add(randomPeer(peerId));
+		ds.putPeer(peers);
+
+		// remove the first 16 values and peers
+		for (int i = 0; i < 16; i++) {
+			assertTrue(ds.removeValue(values.get(i).getId()));
+			assertTrue(ds.removePeer(peerId, peers.get(i).getOrigin()));
+		}
+
+		ds.updateValueLastAnnounce(values.get(16).getId());
+		ds.close();
+
+		ds = open();
+		for (int i = 0; i < values.size(); i++) {
+			Value v = ds.getValue(values.get(i).getId());
+			if (i < 16) {
+				assertNull(v);
+			} else {
+				assertNotNull(v);
+				assertArrayEquals(values.get(i).getData(), v.getData());
+			}
+		}
+
+		List<PeerInfo> ps = ds.getPeer(peerId, 0);
+		assertEquals(48, ps.size());
+		for (int i = 16; i < peers.size(); i++)
+			assertEquals(peers.get(i), ds.getPeer(peerId, peers.get(i).getOrigin()));
+
+		// the even values are persistent, 8 of them removed
+		List<Value> persistent = ds.getPersistentValues(System.currentTimeMillis())
+				.collect(Collectors.toList());
+		assertEquals(256 - 8, persistent.size());
+
+		ds.close();
+	}
+
+	@Test
+	public void testPersistentPages() throws Exception {
+		DataStorage ds = open();
+
+		for (int i = 0; i < 200; i++)
+			ds.putValue(randomValue(64), i % 4 != 0);
+
+		// a few ids with many peers, the pages split them by the node id
+		for (int i = 0; i < 20; i++) {
+			Id peerId = Id.random();
+			for (int j = 0; j < 10; j++)
+				ds.putPeer(randomPeer(peerId), j % 3 != 0);
+		}
+
+		long before = System.currentTimeMillis();
+		List<Value> expectedValues = ds.getPersistentValues(before).collect(Collectors.toList());
+		assertEquals(150, expectedValues.size());
+
+		List<Value> values = new ArrayList<>();
+		Id after = null;
+		while (true) {
+			List<Value> page = ds.getPersistentValues(before, after, 32);
+			if (page.isEmpty())
+				break;
+
+			assertTrue(page.size() <= 32);
+			values.addAll(page);
+			after = page.get(page.size() - 1).getId();
+		}
+		assertEquals(expectedValues, values);
+
+		List<PeerInfo> expectedPeers = ds.getPersistentPeers(before).collect(Collectors.toList());
+		assertEquals(20 * 6, expectedPeers.size());
+
+		List<PeerInfo> peers = new ArrayList<>();
+		PeerInfo last = null;
+		while (true) {
+			List<PeerInfo> page = ds.getPersistentPeers(before, last != null ? last.getId() : null,
+					last != null ? last.getNodeId() : null, 7);
+			if (page.isEmpty())
+				break;
+
+			assertTrue(page.size() <= 7);
+			peers.addAll(page);
+			last = page.get(page.size() - 1);
+		}
+		assertEquals(expectedPeers, peers);
+
+		ds.close();
+	}
+
+	@Test
+	public void testCompaction() throws Exception {
+		DataStorage ds = open();
+
+		List<Value> values = new ArrayList<>();
+		for (int i = 0; i < 16; i++)
+			values.add(randomValue(1024));
+
+		// every round overwrites the same values, the old records are garbage
+		for (int round = 0; round < 64; round++) {
+			for (Value v : values)
+				ds.putValue(v);
+		}
+
+		// the compactions run on the scheduler, wait for them
+		((MappedStorage)ds).compact();
+
+		File f = getStorageFile();
+		// 64 rounds x 16KB = 1MB appended in total, the live records fit in one segment
+		assertTrue(f.length() <= 2 * SEGMENT_SIZE, "storage file size: " + f.length());
+		assertTrue(ds.toString().contains("compactions: "), ds.toString());
+		assertTrue(!ds.toString().contains("compactions: 0"), ds.toString());
+
+		for (Value v : values)
+			assertArrayEquals(v.getData(), ds.getValue(v.getId()).getData());
+
+		ds.close();
+
+		ds = open();
+		for (Value v : values)
+			assertArrayEquals(v.getData(), ds.getValue(v.getId()).getData());
+
+		ds.close();
+	}
+
+	@Test
+	public void testConcurrentCompaction() throws Exception {
+		final DataStorage storage = open();
+
+		List<Value> values = new ArrayList<>();
+		for (int i = 0; i < 64; i++)
+			values.add(randomValue(512));
+
+		Id peerId = Id.random();
+		List<PeerInfo> peers = new ArrayList<>();
+		for (int i = 0; i < 32; i++)
+			peers.add(randomPeer(peerId));
+
+		// overwrites and removes in the old log while the live records are copied
+		AtomicBoolean done = new AtomicBoolean(false);
+		AtomicReference<Exception> error = new AtomicReference<>();
+		Thread writer = new Thread(() -> {
+			try {
+				for (int round = 0; round < 200; round++) {
+					for (int i = 0; i < values.size(); i++) {
+						if (i % 8 == round % 8)
+							storage.removeValue(values.get(i).getId());
+						else
+							storage.putValue(values.get(i), i % 2 == 0);
+					}
+
+					for (int i = 0; i < peers.size(); i++) {
+						if (i % 4 == round % 4)
+							storage.removePeer(peerId, peers.get(i).getOrigin());
+						else
+							storage.putPeer(peers.get(i), i % 2 == 0);
+					}
+				}
+			} catch (Exception e) {
+				error.set(e);
+			} finally {
+				done.set(true);
+			}
+		});
+
+		writer.start();
+		while (!done.get())
+			((MappedStorage)storage).compact();
+		writer.join();
+
+		assertNull(error.get());
+		assertTrue(!storage.toString().contains("compactions: 0"), storage.toString());
+
+		// the last round removed the values i % 8 == 7 and the peers i % 4 == 3
+		assertLastRound(storage, values, peerId, peers);
+		storage.close();
+
+		DataStorage ds = open();
+		assertLastRound(ds, values, peerId, peers);
+		ds.close();
+	}
+
+	private static void assertLastRound(DataStorage ds, List<Value> values, Id peerId, List<PeerInfo> peers)
+			throws Exception {
+		for (int i = 0; i < values.size(); i++) {
+			Value v = ds.getValue(values.get(i).getId());
+			if (i % 8 == 7) {
+				assertNull(v);
+			} else {
+				assertNotNull(v);
+				assertArrayEquals(values.get(i).getData(), v.getData());
+			}
+		}
+
+		for (int i = 0; i < peers.size(); i++) {
+			PeerInfo p = ds.getPeer(peerId, peers.get(i).getOrigin());
+			if (i % 4 == 3)
+				assertNull(p);
+			else
+				assertEquals(peers.get(i), p);
+		}
+	}
+
+	private static int indexOf(byte[] buf, byte[] pattern) {
+		outer:
+		for (int i = 0; i <= buf.length - pattern.length; i++) {
+			for (int j = 0; j < pattern.length; j++) {
+				if (buf[i + j] != pattern[j])
+					continue outer;
+			}
+
+			return i;
+		}
+
+		return -1;
+	}
+
+	@Test
+	public void testTornRecord() throws Exception {
+		DataStorage ds = open();
+
+		List<Value> values = new ArrayList<>();
+		for (int i = 0; i < 32; i++) {
+			Value v = randomValue(128);
+			ds.putValue(v);
+			values.add(v);
+		}
+
+		ds.close();
+
+		// corrupt the last record
+		Value last = values.get(values.size() - 1);
+		try (RandomAccessFile raf = new RandomAccessFile(getStorageFile(), "rw")) {
+			byte[] buf = new byte[(int)raf.length()];
+			raf.readFully(buf);
+			int pos = indexOf(buf, last.getData());
+			assertTrue(pos > 0);
+
+			raf.seek(pos);
+			raf.write(~buf[pos]);
+		}
+
+		ds = open();
+		for (int i = 0; i < values.size() - 1; i++)
+			assertNotNull(ds.getValue(values.get(i).getId()));
+		assertNull(ds.getValue(last.getId()));
+
+		// the next appends replace the torn record
+		Value v = randomValue(128);
+		ds.putValue(v);
+		ds.close();
+
+		ds = open();
+		assertNotNull(ds.getValue(v.getId()));
+		assertEquals(values.size(), ds.getAllValues().count());
+		ds.close();
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package elastos.carrier.kademlia;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import elastos.carrier.DefaultConfiguration;
+import elastos.carrier.crypto.Signature;
+import elastos.carrier.kademlia.exceptions.KadException;
+
+/**
+ * Runs the real nodes, DHTs and tasks in one process on the simulated network.
+ * Every node shares the virtual scheduler as its scheduler, workers and event
+ * loop, so the whole network runs on the calling thread. While it's open the
+ * protocol clock is the virtual clock. The node keys are derived from the
+ * seed too, so a simulation with the same seed builds the same network.
+ */
+public class NetworkSimulator implements AutoCloseable {
+	// the in-memory data storage of a simulated node grows by the small segments
+	private static final int STORAGE_SEGMENT_SIZE = 64 * 1024;
+
+	private final VirtualScheduler scheduler;
+	private final SimulatedNetwork network;
+	private final List<Node> nodes;
+	private final Random keySeeds;
+
+	public NetworkSimulator(long seed) {
+		scheduler = new VirtualScheduler();
+		network = new SimulatedNetwork(scheduler, seed);
+		nodes = new ArrayList<>();
+		keySeeds = new Random(seed);
+
+		Clock.useVirtual(scheduler::nanoTime);
+	}
+
+	public VirtualScheduler getScheduler() {
+		return scheduler;
+	}
+
+	public SimulatedNetwork getNetwork() {
+		return network;
+	}
+
+	public List<Node> getNodes() {
+		return Collections.unmodifiableList(nodes);
+	}
+
+	/**
+	 * Starts a node on a new host of the network.
+	 *
+	 * @param bootstrap the node to join the network through, should be a
+	 *        public one. null for the first node.
+	 */
+	public Node addNode(SimulatedNetwork.Nat nat, Node bootstrap) throws KadException {
+		InetSocketAddress addr = network.addHost(nat);
+
+		DefaultConfiguration.Builder builder = new DefaultConfiguration.Builder()
+				.setAutoIPAddress(false)
+				.setIPv4Address(addr.getAddress())
+				.setListeningPort(addr.getPort())
+				// measure the network, not the cache
+				.setLookupCacheTTL(0);
+		if (bootstrap != null) {
+			InetSocketAddress ba = bootstrap.getDHT(DHT.Type.IPV4).getServer().getAddress();
+			builder.addBootstrap(bootstrap.getId(), network.getExternalAddress(ba));
+		}
+
+		byte[] keySeed = new byte[32];
+		keySeeds.nextBytes(keySeed);
+
+		Node node = new Node(builder.build(), Signature.KeyPair.fromSeed(keySeed));
+		node.setScheduler(scheduler);
+		node.setWorkers(scheduler);
+		node.setBlockingExecutor(scheduler);
+		node.setEventLoop(scheduler);
+		node.setTransport(network);
+		node.setStorage(MappedStorage.open(null, scheduler, false, STORAGE_SEGMENT_SIZE));
+		node.start();
+
+		nodes.add(node);
+		return node;
+	}
+
+	public void runFor(long time, TimeUnit unit) {
+		scheduler.runFor(time, unit);
+	}
+
+	@Override
+	public void close() {
+		for (Node node : nodes)
+			node.stop();
+
+		nodes.clear();
+		Clock.useVirtual(null);
+	}
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package elastos.carrier.kademlia;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+import elastos.carrier.Id;
+import elastos.carrier.LookupOption;
+import elastos.carrier.LookupTuning;
+import elastos.carrier.NodeInfo;
+import elastos.carrier.kademlia.SimulatedNetwork.Nat;
+import elastos.carrier.kademlia.tasks.LookupTask;
+import elastos.carrier.kademlia.tasks.NodeLookup;
+
+/**
+ * The real nodes on the simulated network. The performance test runs at the
+ * scale of a real network: the nodes join one after another, a part of them
+ * behind the NATs. It reports how long the routing tables take to converge,
+ * then runs the random node lookups with the preset tuning of each lookup
+ * option and with the overridden ones, and reports the latency distribution,
+ * the requests and the hops of a lookup. All the times are the virtual ones.
+ * It takes a few minutes and a few GB of heap.
+ */
+public class NetworkSimulatorTests {
+	private static final long SEED = 20230101;
+	private static final int NODES = 10000;
+	private static final int SMALL_NETWORK = 32;
+	// the public nodes the others join through
+	private static final int BOOTSTRAPS = 8;
+	private static final double CONE_NAT_RATIO = 0.2;
+	private static final double SYMMETRIC_NAT_RATIO = 0.1;
+	private static final int MIN_LATENCY = 20; // ms, one way
+	private static final int MAX_LATENCY = 150; // ms, one way
+	private static final double LOSS_RATE = 0.01;
+	private static final int JOIN_INTERVAL = 20; // ms
+
+	// converged when the sampled nodes know this ratio of their closest public nodes
+	private static final double CONVERGED = 0.95;
+	private static final int CONVERGENCE_SAMPLES = 100;
+	private static final int CONVERGENCE_CHECK_INTERVAL = 5; // s
+	private static final int CONVERGENCE_TIMEOUT = 30 * 60; // s
+
+	private static final int LOOKUPS = 1000;
+	private static final int LOOKUP_INTERVAL = 20; // ms
+	private static final int LOOKUP_TIMEOUT = 5 * 60; // s
+	// the overrides compared with the presets: the classic kademlia alpha,
+	// and the wider disjoint paths
+	private static final List<LookupTuning> TUNINGS = Arrays.asList(
+			LookupTuning.of(3, 8, 1), LookupTuning.of(4, 8, 2), LookupTuning.of(8, 8, 3));
+
+	private static Id randomId(Random random) {
+		byte[] bytes = new byte[Id.BYTES];
+		random.nextBytes(bytes);
+		return Id.of(bytes);
+	}
+
+	private static List<Id> closest(Id target, List<Id> ids, int n) {
+		return ids.stream().filter(id -> !id.equals(target))
+				.sorted(target::threeWayCompare).limit(n).collect(Collectors.toList());
+	}
+
+	// the average ratio of the closest public nodes in the routing tables of the samples
+	private static double convergence(List<Node> samples, List<List<Id>> expected) {
+		double sum = 0;
+		for (int i = 0; i < samples.size(); i++) {
+			RoutingTable routingTable = samples.get(i).getDHT(DHT.Type.IPV4).getRoutingTable();
+			List<Id> ids = expected.get(i);
+			long known = ids.stream().filter(id -> routingTable.getEntry(id, false) != null).count();
+			sum += (double)known / ids.size();
+		}
+
+		return sum / samples.size();
+	}
+
+	private static String runLookups(NetworkSimulator sim, List<Id> publicIds, LookupOption option,
+			LookupTuning tuning, Random random) {
+		List<Node> nodes = sim.getNodes();
+		List<Id> targets = new ArrayList<>(LOOKUPS);
+		List<LookupTask> tasks = new ArrayList<>(LOOKUPS);
+
+		for (int i = 0; i < LOOKUPS; i++) {
+			Node origin = nodes.get(random.nextInt(nodes.size()));
+			Id target = randomId(random);
+			targets.add(target);
+			DHT dht = origin.getDHT(DHT.Type.IPV4);
+			LookupTask task = new NodeLookup(dht, target);
+			task.setLookupOption(option, tuning);
+			dht.getTaskManager().add(task);
+			tasks.add(task);
+			sim.runFor(LOOKUP_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+
+		sim.getScheduler().runUntil(() -> tasks.stream().allMatch(t -> t.isFinished()),
+				LOOKUP_TIMEOUT, TimeUnit.SECONDS);
+
+		long[] latencies = new long[LOOKUPS];
+		long requests = 0;
+		long hops = 0;
+		int exact = 0;
+		for (int i = 0; i < LOOKUPS; i++) {
+			LookupTask task = tasks.get(i);
+			latencies[i] = task.isFinished() ? task.getFinishedTime() - task.getStartTime() : Long.MAX_VALUE;
+			requests += task.getNumberOfSentCalls();
+			hops += task.getHops();
+
+			Id target = targets.get(i);
+			Id expected = publicIds.stream().min(target::threeWayCompare).get();
+			if (task.getClosestSet().contains(expected))
+				exact++;
+		}
+
+		Arrays.sort(latencies);
+		return String.format("%12s, alpha %d, beta %d, %d paths: latency p50 %,6d ms, p90 %,6d ms, p99 %,6d ms, max %,6d ms, %5.1f requests, %4.2f hops, %5.1f%% found the closest",
+				option, tuning.alpha(), tuning.beta(), tuning.paths(), latencies[LOOKUPS / 2], latencies[LOOKUPS * 90 / 100], latencies[LOOKUPS * 99 / 100],
+				latencies[LOOKUPS - 1], (double)requests / LOOKUPS, (double)hops / LOOKUPS, exact * 100.0 / LOOKUPS);
+	}
+
+	@Disabled("Performance")
+	@Test
+	public void testLookupPerformance() throws Exception {
+		Random random = new Random(SEED);
+		long start = System.nanoTime();
+
+		try (NetworkSimulator sim = new NetworkSimulator(SEED)) {
+			SimulatedNetwork network = sim.getNetwork();
+			network.setLatency(MIN_LATENCY, MAX_LATENCY, TimeUnit.MILLISECONDS);
+			network.setLossRate(LOSS_RATE);
+
+			List<Node> bootstraps = new ArrayList<>(BOOTSTRAPS);
+			List<Id> publicIds = new ArrayList<>();
+			for (int i = 0; i < NODES; i++) {
+				Nat nat = Nat.NONE;
+				if (i >= BOOTSTRAPS) {
+					double r = random.nextDouble();
+					if (r < SYMMETRIC_NAT_RATIO)
+						nat = Nat.SYMMETRIC;
+					else if (r < SYMMETRIC_NAT_RATIO + CONE_NAT_RATIO)
+						nat = Nat.CONE;
+				}
+
+				Node bootstrap = i == 0 ? null : (i < BOOTSTRAPS ? bootstraps.get(0) : bootstraps.get(random.nextInt(BOOTSTRAPS)));
+				Node node = sim.addNode(nat, bootstrap);
+				if (i < BOOTSTRAPS)
+					bootstraps.add(node);
+				if (nat == Nat.NONE)
+					publicIds.add(node.getId());
+
+				sim.runFor(JOIN_INTERVAL, TimeUnit.MILLISECONDS);
+			}
+
+			long joined = sim.getScheduler().now(TimeUnit.SECONDS);
+
+			List<Node> samples = new ArrayList<>(CONVERGENCE_SAMPLES);
+			List<List<Id>> expected = new ArrayList<>(CONVERGENCE_SAMPLES);
+			for (int i = 0; i < CONVERGENCE_SAMPLES; i++) {
+				Node node = sim.getNodes().get(random.nextInt(NODES));
+				samples.add(node);
+				expected.add(closest(node.getId(), publicIds, Constants.MAX_ENTRIES_PER_BUCKET));
+			}
+
+			List<String> progress = new ArrayList<>();
+			double ratio = convergence(samples, expected);
+			while (ratio < CONVERGED && sim.getScheduler().now(TimeUnit.SECONDS) - joined < CONVERGENCE_TIMEOUT) {
+				sim.runFor(CONVERGENCE_CHECK_INTERVAL, TimeUnit.SECONDS);
+				ratio = convergence(samples, expected);
+				progress.add(String.format("%,5d s: %5.1f%%", sim.getScheduler().now(TimeUnit.SECONDS) - joined, ratio * 100));
+			}
+
+			long converged = sim.getScheduler().now(TimeUnit.SECONDS) - joined;
+			long packets = network.getSentPackets();
+			int sampleEntries = (int)samples.stream().mapToInt(n -> n.getDHT(DHT.Type.IPV4).getRoutingTable().getNumBucketEntries())
+					.average().orElse(0);
+
+			List<String> results = new ArrayList<>();
+			results.add(runLookups(sim, publicIds, LookupOption.OPTIMISTIC, LookupOption.OPTIMISTIC.tuning(), random));
+			results.add(runLookups(sim, publicIds, LookupOption.CONSERVATIVE, LookupOption.CONSERVATIVE.tuning(), random));
+			for (LookupTuning tuning : TUNINGS)
+				results.add(runLookups(sim, publicIds, LookupOption.OPTIMISTIC, tuning, random));
+
+			System.out.format("%nSimulated network: %,d nodes, %.0f%% behind cone NAT, %.0f%% behind symmetric NAT, latency %d-%d ms, loss %.1f%%%n",
+					NODES, CONE_NAT_RATIO * 100, SYMMETRIC_NAT_RATIO * 100, MIN_LATENCY, MAX_LATENCY, LOSS_RATE * 100);
+			System.out.format("Joined in %,d s, routing tables %s %.0f%% of the %d closest public nodes %,d s after, %d entries on average%n",
+					joined, ratio >= CONVERGED ? "know" : "still miss", CONVERGED * 100,
+					Constants.MAX_ENTRIES_PER_BUCKET, converged, sampleEntries);
+			progress.forEach(p -> System.out.println("    " + p));
+			System.out.format("%,d packets until converged, %,d in total, %,d lost, %,d filtered by the NATs%n",
+					packets, network.getSentPackets(), network.getLostPackets(), network.getFilteredPackets());
+			System.out.format("%nfindNode, %,d lookups:%n", LOOKUPS);
+			results.forEach(System.out::println);
+			System.out.format("%nSimulated %,d s in %,d s, %,d jobs%n", sim.getScheduler().now(TimeUnit.SECONDS),
+					TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), sim.getScheduler().executed());
+		}
+	}
+
+	@Test
+	public void testSameSeedSameNetwork() throws Exception {
+		List<Id> ids = new ArrayList<>();
+		try (NetworkSimulator sim = new NetworkSimulator(SEED)) {
+			Node first = sim.addNode(Nat.NONE, null);
+			for (int i = 0; i < 4; i++)
+				sim.addNode(Nat.NONE, first);
+
+			sim.getNodes().forEach(n -> ids.add(n.getId()));
+		}
+
+		try (NetworkSimulator sim = new NetworkSimulator(SEED)) {
+			Node first = sim.addNode(Nat.NONE, null);
+			for (int i = 0; i < 4; i++)
+				sim.addNode(Nat.NONE, first);
+
+			for (int i = 0; i < ids.size(); i++)
+				assertEquals(ids.get(i), sim.getNodes().get(i).getId());
+		}
+	}
+
+	@Test
+	public void testConvergeAndLookup() throws Exception {
+		Random random = new Random(SEED);
+
+		try (NetworkSimulator sim = new NetworkSimulator(SEED)) {
+			sim.getNetwork().setLatency(MIN_LATENCY, MAX_LATENCY, TimeUnit.MILLISECONDS);
+
+			Node bootstrap = sim.addNode(Nat.NONE, null);
+			for (int i = 1; i < SMALL_NETWORK; i++) {
+				sim.addNode(Nat.NONE, bootstrap);
+				sim.runFor(JOIN_INTERVAL, TimeUnit.MILLISECONDS);
+			}
+
+			sim.runFor(2, TimeUnit.MINUTES);
+
+			// everyone knows the closest nodes around it
+			List<Node> nodes = sim.getNodes();
+			List<Id> ids = nodes.stream().map(Node::getId).collect(Collectors.toList());
+			List<List<Id>> expected = nodes.stream()
+					.map(n -> closest(n.getId(), ids, Constants.MAX_ENTRIES_PER_BUCKET))
+					.collect(Collectors.toList());
+			double ratio = convergence(nodes, expected);
+			assertTrue(ratio >= CONVERGED, "converged: " + ratio);
+
+			// every node finds any other one
+			for (int i = 0; i < 16; i++) {
+				Node origin = nodes.get(random.nextInt(nodes.size()));
+				Node target = nodes.get(random.nextInt(nodes.size()));
+				if (target == origin)
+					continue;
+
+				AtomicReference<NodeInfo> found = new AtomicReference<>();
+				LookupTask task = (LookupTask)origin.getDHT(DHT.Type.IPV4).findNode(target.getId(),
+						LookupOption.CONSERVATIVE, found::set);
+
+				sim.getScheduler().runUntil(task::isFinished, LOOKUP_TIMEOUT, TimeUnit.SECONDS);
+				assertTrue(task.isFinished());
+				assertNotNull(found.get());
+				assertEquals(target.getId(), found.get().getId());
+			}
+		}
+	}
+}
@@ -0,0 +1,568 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package elastos.carrier.kademlia;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+import elastos.carrier.Configuration;
+import elastos.carrier.DefaultConfiguration;
+import elastos.carrier.Id;
+import elastos.carrier.Value;
+import elastos.carrier.crypto.CryptoBox;
+import elastos.carrier.crypto.Signature;
+import elastos.carrier.kademlia.messages.FindValueRequest;
+import elastos.carrier.kademlia.messages.Message;
+import elastos.carrier.kademlia.messages.PingRequest;
+import elastos.carrier.utils.AddressUtils;
+
+public class NodeTests {
+	private static final int PORT = 39001;
+	private static final int SENDERS = 32;
+	private static final int WARMUP_SECONDS = 3;
+	private static final int MEASURE_SECONDS = 10;
+	private static final int REQUESTS_PER_SECOND = 5000;
+
+	private static class Sender implements Runnable {
+		private final DatagramChannel channel;
+		private final ByteBuffer packet;
+		private final AtomicBoolean running;
+
+		Sender(Id target, InetSocketAddress targetAddr, AtomicBoolean running) throws Exception {
+			Signature.KeyPair keyPair = Signature.KeyPair.random();
+			Id id = Id.of(keyPair.publicKey().bytes());
+
+			PingRequest ping = new PingRequest();
+			ping.setTxid(ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE));
+
+			byte[] encrypted;
+			try (CryptoContext ctx = new CryptoContext(target, CryptoBox.KeyPair.fromSignatureKeyPair(keyPair))) {
+				encrypted = ctx.encrypt(ping.serialize());
+			}
+
+			packet = ByteBuffer.allocateDirect(Id.BYTES + encrypted.length);
+			packet.put(id.bytes()).put(encrypted).flip();
+
+			channel = DatagramChannel.open();
+			channel.connect(targetAddr);
+			this.running = running;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running.get()) {
+					packet.rewind();
+					channel.write(packet);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				try {
+					channel.close();
+				} catch (IOException ignore) {
+				}
+			}
+		}
+	}
+
+	private static long drained(RPCServer server) {
+		return server.getStats().getTotalReceivedMessages() + server.getStats().getDroppedPackets();
+	}
+
+	private long runReceive(int shards) throws Exception {
+		InetAddress addr = AddressUtils.getDefaultRoute(Inet4Address.class);
+		Configuration config = new DefaultConfiguration.Builder()
+				.setIPv4Address(addr)
+				.setListeningPort(PORT)
+				.setNetworkShards(shards)
+				.build();
+
+		Node node = new Node(config);
+		node.start();
+
+		AtomicBoolean running = new AtomicBoolean(true);
+		List<Thread> threads = new ArrayList<>(SENDERS);
+		try {
+			RPCServer server = node.getDHT(DHT.Type.IPV4).getServer();
+			InetSocketAddress target = new InetSocketAddress(addr, PORT);
+
+			for (int i = 0; i < SENDERS; i++) {
+				Thread t = new Thread(new Sender(node.getId(), target, running));
+				t.setDaemon(true);
+				threads.add(t);
+				t.start();
+			}
+
+			TimeUnit.SECONDS.sleep(WARMUP_SECONDS);
+			long begin = drained(server);
+			TimeUnit.SECONDS.sleep(MEASURE_SECONDS);
+			long end = drained(server);
+
+			System.out.println(server);
+			return (end - begin) / MEASURE_SECONDS;
+		} finally {
+			running.set(false);
+			for (Thread t : threads)
+				t.join();
+
+			node.stop();
+		}
+	}
+
+	private static final int BASE_PORT = 39201;
+	private static final int NODES = 16;
+	private static final int BOOTSTRAP_SECONDS = 10;
+	private static final int VALUES = 512;
+	private static final int VALUE_SIZE = 256;
+
+	private static List<Id> lookups(List<Id> stored) {
+		List<Id> ids = new ArrayList<>(stored);
+		for (int i = 0; i < stored.size() / 3; i++)
+			ids.add(Id.random());
+
+		List<Id> lookups = new ArrayList<>(ids.size() * 2);
+		lookups.addAll(ids);
+		lookups.addAll(ids);
+		Collections.shuffle(lookups);
+		return lookups;
+	}
+
+	private static String runIndependent(Node node, List<Id> lookups) throws Exception {
+		long start = System.nanoTime();
+
+		List<CompletableFuture<Value>> futures = new ArrayList<>(lookups.size());
+		for (Id id : lookups)
+			futures.add(node.findValue(id));
+
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get();
+		long elapsed = System.nanoTime() - start;
+
+		long found = futures.stream().filter(f -> f.join() != null).count();
+		return result("independent", lookups.size(), found, elapsed);
+	}
+
+	private static String runBatch(Node node, List<Id> lookups) throws Exception {
+		long start = System.nanoTime();
+
+		Map<Id, CompletableFuture<Value>> futures = node.findValues(lookups);
+		CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[0])).get();
+		long elapsed = System.nanoTime() - start;
+
+		// the duplicate ids share the result
+		long found = lookups.stream().filter(id -> futures.get(id).join() != null).count();
+		return result("batch", lookups.size(), found, elapsed);
+	}
+
+	private static String result(String name, int lookups, long found, long elapsed) {
+		long millis = TimeUnit.NANOSECONDS.toMillis(elapsed);
+		return String.format("%12s: %,6d lookups, %,6d found in %,7d ms, %,8d ops/s",
+				name, lookups, found, millis, lookups * 1000L / Math.max(millis, 1));
+	}
+
+	private static final int STORAGE_PORT = 39011;
+	private static final int STORAGE_REQUESTS_PER_SECOND = 1000;
+	// every Nth request is a storage request
+	private static final int STORAGE_REQUEST_RATIO = 20;
+	private static final int SLOW_DISK_MILLIS = 10;
+
+	private static final Set<String> STORAGE_METHODS = Set.of("getValue", "putValue", "getPeer", "putPeer");
+
+	// Delays every storage query to simulate a slow disk
+	private static DataStorage slowStorage(DataStorage storage) {
+		InvocationHandler handler = (proxy, method, args) -> {
+			if (STORAGE_METHODS.contains(method.getName()))
+				TimeUnit.MILLISECONDS.sleep(SLOW_DISK_MILLIS);
+
+			try {
+				return method.invoke(storage, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		};
+
+		return (DataStorage)Proxy.newProxyInstance(DataStorage.class.getClassLoader(),
+				new Class<?>[] { DataStorage.class }, handler);
+	}
+
+	private static class Client implements AutoCloseable {
+		private final Id id;
+		private final CryptoContext ctx;
+		private final DatagramChannel channel;
+		private final Map<Integer, Long> pending = new ConcurrentHashMap<>();
+		private final AtomicInteger nextTxid = new AtomicInteger(1);
+
+		final LatencyHistogram pingLatency = new LatencyHistogram();
+		final LatencyHistogram storageLatency = new LatencyHistogram();
+
+		Client(Id target, InetSocketAddress targetAddr) throws Exception {
+			Signature.KeyPair keyPair = Signature.KeyPair.random();
+			id = Id.of(keyPair.publicKey().bytes());
+			ctx = new CryptoContext(target, CryptoBox.KeyPair.fromSignatureKeyPair(keyPair));
+
+			channel = DatagramChannel.open();
+			channel.connect(targetAddr);
+		}
+
+		void send(Message request) throws Exception {
+			int txid = nextTxid.getAndIncrement();
+			request.setTxid(txid);
+
+			byte[] encrypted = ctx.encrypt(request.serialize());
+			ByteBuffer packet = ByteBuffer.allocate(Id.BYTES + encrypted.length);
+			packet.put(id.bytes()).put(encrypted).flip();
+
+			pending.put(txid, System.nanoTime());
+			channel.write(packet);
+		}
+
+		void receive(AtomicBoolean running) throws Exception {
+			ByteBuffer buf = ByteBuffer.allocate(Constants.RECEIVE_BUFFER_SIZE);
+			while (running.get()) {
+				buf.clear();
+				channel.read(buf);
+				buf.flip();
+
+				byte[] encrypted = new byte[buf.remaining() - Id.BYTES];
+				buf.position(Id.BYTES);
+				buf.get(encrypted);
+
+				Message response = Message.parse(ctx.decrypt(encrypted));
+				Long sent = pending.remove(response.getTxid());
+				if (sent == null)
+					continue;
+
+				long latency = System.nanoTime() - sent;
+				if (response.getMethod() == Message.Method.PING)
+					pingLatency.record(latency);
+				else
+					storageLatency.record(latency);
+			}
+		}
+
+		void reset() {
+			pingLatency.reset();
+			storageLatency.reset();
+		}
+
+		@Override
+		public void close() throws Exception {
+			channel.close();
+			ctx.close();
+		}
+	}
+
+	private String runSlowStorage(boolean virtualThreads) throws Exception {
+		InetAddress addr = AddressUtils.getDefaultRoute(Inet4Address.class);
+		Node node = new Node(new DefaultConfiguration.Builder()
+				.setIPv4Address(addr)
+				.setListeningPort(STORAGE_PORT)
+				.setVirtualThreads(virtualThreads)
+				.build());
+
+		node.start();
+		node.setStorage(slowStorage(node.getStorage()));
+
+		AtomicBoolean running = new AtomicBoolean(true);
+		try (Client client = new Client(node.getId(), new InetSocketAddress(addr, STORAGE_PORT))) {
+			Thread receiver = new Thread(() -> {
+				try {
+					client.receive(running);
+				} catch (Exception ignore) {
+					// closed
+				}
+			});
+
+			Thread sender = new Thread(() -> {
+				long interval = TimeUnit.SECONDS.toNanos(1) / STORAGE_REQUESTS_PER_SECOND;
+				long next = System.nanoTime();
+				long n = 0;
+				try {
+					while (running.get()) {
+						if (System.nanoTime() < next) {
+							Thread.onSpinWait();
+							continue;
+						}
+
+						if (n++ % STORAGE_REQUEST_RATIO == 0) {
+							FindValueRequest q = new FindValueRequest(Id.random());
+							q.setWant4(true);
+							client.send(q);
+						} else {
+							client.send(new PingRequest());
+						}
+
+						next += interval;
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			});
+
+			receiver.setDaemon(true);
+			receiver.start();
+			sender.setDaemon(true);
+			sender.start();
+
+			TimeUnit.SECONDS.sleep(WARMUP_SECONDS);
+			client.reset();
+			TimeUnit.SECONDS.sleep(MEASURE_SECONDS);
+
+			String result = String.format("virtual threads: %-5s ping p50 %,8dus p99 %,8dus | find_value p50 %,8dus p99 %,8dus",
+					virtualThreads, client.pingLatency.getPercentile(50), client.pingLatency.getPercentile(99),
+					client.storageLatency.getPercentile(50), client.storageLatency.getPercentile(99));
+
+			// stop sending before closing the client
+			running.set(false);
+			sender.join();
+			return result;
+		} finally {
+			running.set(false);
+			node.stop();
+		}
+	}
+
+	/**
+	 * Load test for the RPC handling latency while the data storage is slow. A
+	 * small part of the requests hit the slow storage, the rest are pings. Shows
+	 * the ping tail latency with the storage calls on the virtual threads and on
+	 * the platform thread pool.
+	 */
+	@Disabled("Performance")
+	@Test
+	public void testSlowStoragePerf() throws Exception {
+		List<String> results = new ArrayList<>();
+
+		results.add(runSlowStorage(false));
+		results.add(runSlowStorage(true));
+
+		System.out.format("%nRequest latency, %,d requests/sec, 1/%d hit the storage with %dms delay:%n",
+				STORAGE_REQUESTS_PER_SECOND, STORAGE_REQUEST_RATIO, SLOW_DISK_MILLIS);
+		results.forEach(System.out::println);
+	}
+
+	/**
+	 * Throughput of the batch lookups against the same number of the independent
+	 * findValue calls. Starts a local network, then one node resolves a list of
+	 * value ids, three quarters of them stored and the rest missing, every id
+	 * asked twice.
+	 */
+	@Disabled("Performance")
+	@Test
+	public void testFindValuesPerf() throws Exception {
+		InetAddress addr = AddressUtils.getDefaultRoute(Inet4Address.class);
+		List<Node> nodes = new ArrayList<>(NODES);
+
+		try {
+			for (int i = 0; i < NODES; i++) {
+				DefaultConfiguration.Builder builder = new DefaultConfiguration.Builder()
+						.setIPv4Address(addr)
+						.setListeningPort(BASE_PORT + i);
+				if (i > 0)
+					builder.addBootstrap(nodes.get(0).getId(), addr, BASE_PORT);
+
+				Node node = new Node(builder.build());
+				node.start();
+				nodes.add(node);
+			}
+
+			TimeUnit.SECONDS.sleep(BOOTSTRAP_SECONDS);
+
+			// stored from the other nodes, separate ids for each run, the values
+			// found by a run are cached in the local storage of the client
+			List<Id> stored1 = new ArrayList<>(VALUES);
+			List<Id> stored2 = new ArrayList<>(VALUES);
+			byte[] data = new byte[VALUE_SIZE];
+			for (int i = 0; i < VALUES * 2; i++) {
+				ThreadLocalRandom.current().nextBytes(data);
+				Value v = Value.of(data.clone());
+				nodes.get(1 + i % (NODES - 1)).storeValue(v).get();
+				(i % 2 == 0 ? stored1 : stored2).add(v.getId());
+			}
+
+			Node client = nodes.get(0);
+			List<String> results = new ArrayList<>();
+			results.add(runIndependent(client, lookups(stored1)));
+			results.add(runBatch(client, lookups(stored2)));
+
+			System.out.format("%nfindValue, %d nodes:%n", NODES);
+			results.forEach(System.out::println);
+		} finally {
+			for (Node node : nodes)
+				node.stop();
+		}
+	}
+
+	/**
+	 * Measures how many inbound packets the RPC server drains per second with the
+	 * different socket sharding settings, and the request handling latency.
+	 */
+	@Disabled("Performance")
+	@Test
+	public void testReceiveShardingPerf() throws Exception {
+		int maxShards = Runtime.getRuntime().availableProcessors();
+		List<String> results = new ArrayList<>();
+
+		for (int shards = 1; shards <= maxShards; shards *= 2) {
+			long pps = runReceive(shards);
+			results.add(String.format("shards: %2d, packets/sec: %,d", shards, pps));
+		}
+
+		System.out.println("\nRPCServer receive throughput:");
+		results.forEach(System.out::println);
+	}
+
+	@Disabled("Performance")
+	@Test
+	public void testTwoNodesPerf() throws Exception {
+		InetAddress addr = AddressUtils.getDefaultRoute(Inet4Address.class);
+		Node node1 = new Node(new DefaultConfiguration.Builder()
+				.setIPv4Address(addr).setListeningPort(PORT).build());
+		Node node2 = new Node(new DefaultConfiguration.Builder()
+				.setIPv4Address(addr).setListeningPort(PORT + 1).build());
+
+		node1.start();
+		node2.start();
+
+		AtomicBoolean running = new AtomicBoolean(true);
+		Thread sender = null;
+		try {
+			RPCServer server1 = node1.getDHT(DHT.Type.IPV4).getServer();
+			RPCServer server2 = node2.getDHT(DHT.Type.IPV4).getServer();
+			InetSocketAddress target = new InetSocketAddress(addr, PORT + 1);
+
+			sender = new Thread(() -> {
+				long queued = 0;
+				while (running.get()) {
+					// keep the send pipeline bounded
+					if (queued - server1.getNumberOfSentMessages() > 1024) {
+						Thread.onSpinWait();
+						continue;
+					}
+
+					PingRequest ping = new PingRequest();
+					ping.setTxid(ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE));
+					ping.setRemote(node2.getId(), target);
+					server1.sendMessage(ping);
+					queued++;
+				}
+			});
+			sender.start();
+
+			TimeUnit.SECONDS.sleep(WARMUP_SECONDS);
+			long sent = server1.getNumberOfSentMessages();
+			long received = drained(server2);
+			TimeUnit.SECONDS.sleep(MEASURE_SECONDS);
+			sent = server1.getNumberOfSentMessages() - sent;
+			received = drained(server2) - received;
+
+			System.out.println(server1);
+			System.out.println(server2);
+			System.out.format("%nTwo nodes loopback: sent %,d messages/sec, received %,d packets/sec%n",
+					sent / MEASURE_SECONDS, received / MEASURE_SECONDS);
+		} finally {
+			running.set(false);
+			if (sender != null)
+				sender.join();
+
+			node1.stop();
+			node2.stop();
+		}
+	}
+
+	@Disabled("Performance")
+	@Test
+	public void testRequestLatencyPerf() throws Exception {
+		InetAddress addr = AddressUtils.getDefaultRoute(Inet4Address.class);
+		Node node1 = new Node(new DefaultConfiguration.Builder()
+				.setIPv4Address(addr).setListeningPort(PORT).build());
+		Node node2 = new Node(new DefaultConfiguration.Builder()
+				.setIPv4Address(addr).setListeningPort(PORT + 1).build());
+
+		node1.start();
+		node2.start();
+
+		AtomicBoolean running = new AtomicBoolean(true);
+		Thread sender = null;
+		try {
+			RPCServer server1 = node1.getDHT(DHT.Type.IPV4).getServer();
+			RPCServer server2 = node2.getDHT(DHT.Type.IPV4).getServer();
+			InetSocketAddress target = new InetSocketAddress(addr, PORT + 1);
+
+			// paced requests, measure the handling time but not the queuing under saturation
+			sender = new Thread(() -> {
+				long interval = TimeUnit.SECONDS.toNanos(1) / REQUESTS_PER_SECOND;
+				long next = System.nanoTime();
+				while (running.get()) {
+					if (System.nanoTime() < next) {
+						Thread.onSpinWait();
+						continue;
+					}
+
+					PingRequest ping = new PingRequest();
+					ping.setTxid(ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE));
+					ping.setRemote(node2.getId(), target);
+					server1.sendMessage(ping);
+					next += interval;
+				}
+			});
+			sender.start();
+
+			TimeUnit.SECONDS.sleep(WARMUP_SECONDS);
+			LatencyHistogram latency = server2.getStats().getRequestLatency();
+			latency.reset();
+			TimeUnit.SECONDS.sleep(MEASURE_SECONDS);
+
+			System.out.println(server2);
+			System.out.format("%nRequest handling latency at %,d requests/sec: p50 %,dus, p99 %,dus (%s)%n",
+					REQUESTS_PER_SECOND, latency.getPercentile(50), latency.getPercentile(99), latency);
+		} finally {
+			running.set(false);
+			if (sender != null)
+				sender.join();
+
+			node1.stop();
+			node2.stop();
+		}
+	}
+}
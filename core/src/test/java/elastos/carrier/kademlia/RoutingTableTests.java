@@ -0,0 +1,436 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package elastos.carrier.kademlia;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+import elastos.carrier.DefaultConfiguration;
+import elastos.carrier.Id;
+import elastos.carrier.Prefix;
+import elastos.carrier.utils.AddressUtils;
+
+public class RoutingTableTests {
+	private static final int ENTRIES = 10_000;
+	private static final int LOOKUPS = 200_000;
+	private static final int ROUNDS = 5;
+	private static final int CLOSEST = Constants.MAX_ENTRIES_PER_BUCKET * 2;
+
+	// The previous structure: a sorted bucket list, copied on every split
+	private static final class CopyOnWriteTable {
+		private final Id localId;
+		private volatile List<KBucket> buckets;
+
+		CopyOnWriteTable(Id localId) {
+			this.localId = localId;
+			this.buckets = new ArrayList<>();
+			buckets.add(new KBucket(new Prefix(), x -> true));
+		}
+
+		private boolean isHomeBucket(Prefix p) {
+			return p.isPrefixOf(localId);
+		}
+
+		int size() {
+			return buckets.size();
+		}
+
+		KBucket bucketOf(Id id) {
+			List<KBucket> bucketsRef = buckets;
+			return bucketsRef.get(indexOf(bucketsRef, id));
+		}
+
+		static int indexOf(List<KBucket> bucketsRef, Id id) {
+			int low = 0;
+			int mid = 0;
+			int high = bucketsRef.size() - 1;
+			int cmp = 0;
+
+			while (low <= high) {
+				mid = (low + high) >>> 1;
+				cmp = id.compareTo(bucketsRef.get(mid).prefix());
+				if (cmp > 0)
+					low = mid + 1;
+				else if (cmp < 0)
+					high = mid - 1;
+				else
+					return mid;
+			}
+
+			return cmp < 0 ? mid - 1 : mid;
+		}
+
+		void put(KBucketEntry entry) {
+			KBucket bucket = bucketOf(entry.getId());
+
+			while (needsSplit(bucket, entry)) {
+				split(bucket);
+				bucket = bucketOf(entry.getId());
+			}
+
+			bucket._put(entry);
+		}
+
+		private boolean needsSplit(KBucket bucket, KBucketEntry newEntry) {
+			if (!bucket.prefix().isSplittable() || !bucket.isFull() ||
+					!newEntry.isReachable() || bucket.exists(newEntry.getId()) ||
+					bucket.needsReplacement())
+				return false;
+
+			return bucket.prefix().splitBranch(true).isPrefixOf(newEntry.getId());
+		}
+
+		private void split(KBucket bucket) {
+			KBucket a = new KBucket(bucket.prefix().splitBranch(false), this::isHomeBucket);
+			KBucket b = new KBucket(bucket.prefix().splitBranch(true), this::isHomeBucket);
+
+			for (KBucketEntry e : bucket.entries())
+				(a.prefix().isPrefixOf(e.getId()) ? a : b)._put(e);
+
+			for (KBucketEntry e : bucket.cacheEntries())
+				(a.prefix().isPrefixOf(e.getId()) ? a : b)._put(e);
+
+			List<KBucket> newBuckets = new ArrayList<>(buckets);
+			newBuckets.remove(bucket);
+			newBuckets.add(a);
+			newBuckets.add(b);
+			Collections.sort(newBuckets);
+			buckets = newBuckets;
+		}
+
+		List<KBucketEntry> closest(Id target, int maxEntries) {
+			List<KBucket> bucketsRef = buckets;
+			List<KBucketEntry> entries = new ArrayList<>(maxEntries + Constants.MAX_ENTRIES_PER_BUCKET);
+
+			int idx = indexOf(bucketsRef, target);
+			bucketsRef.get(idx).stream().filter(KBucketEntry::isEligibleForNodesList).forEach(entries::add);
+
+			int low = idx;
+			int high = idx;
+			while (entries.size() < maxEntries) {
+				KBucket lowBucket = low > 0 ? bucketsRef.get(low - 1) : null;
+				KBucket highBucket = high < bucketsRef.size() - 1 ? bucketsRef.get(high + 1) : null;
+
+				if (lowBucket == null && highBucket == null)
+					break;
+
+				int dir = lowBucket == null ? 1 : highBucket == null ? -1 :
+					target.threeWayCompare(lowBucket.prefix().last(), highBucket.prefix().first());
+				if (dir <= 0) {
+					low--;
+					lowBucket.stream().filter(KBucketEntry::isEligibleForNodesList).forEach(entries::add);
+				}
+				if (dir >= 0) {
+					high++;
+					highBucket.stream().filter(KBucketEntry::isEligibleForNodesList).forEach(entries::add);
+				}
+			}
+
+			entries.sort(new KBucketEntry.DistanceOrder(target));
+			if (entries.size() > maxEntries)
+				entries.subList(maxEntries, entries.size()).clear();
+
+			return entries;
+		}
+	}
+
+	private static List<KBucketEntry> entries(int n) {
+		List<KBucketEntry> entries = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			KBucketEntry entry = new KBucketEntry(Id.random(),
+					new InetSocketAddress("10." + ((i >> 16) & 0xff) + "." + ((i >> 8) & 0xff) + "." + (i & 0xff), 39001));
+			entry.setReachable(true);
+			entries.add(entry);
+		}
+
+		return entries;
+	}
+
+	private static KBucketEntry copy(KBucketEntry entry) {
+		KBucketEntry e = new KBucketEntry(entry.getId(), entry.getAddress());
+		e.setReachable(true);
+		return e;
+	}
+
+	private static List<Id> targets(int n) {
+		List<Id> ids = new ArrayList<>(n);
+		for (int i = 0; i < n; i++)
+			ids.add(Id.random());
+
+		return ids;
+	}
+
+	private static void report(String name, int ops, long elapsed) {
+		System.out.format("%-32s %,10d ops %10.1f ns/op%n", name, ops, (double)elapsed / ops);
+	}
+
+	private static final int K = Constants.MAX_ENTRIES_PER_BUCKET;
+
+	private static int hosts;
+
+	// every entry on its own address, the same address would be a conflict
+	private static KBucketEntry entry(Id id) {
+		int i = ++hosts;
+		KBucketEntry entry = new KBucketEntry(id,
+				new InetSocketAddress("10." + ((i >> 16) & 0xff) + "." + ((i >> 8) & 0xff) + "." + (i & 0xff), 39001));
+		entry.setReachable(true);
+		return entry;
+	}
+
+	// a random id in the low or the high half of the key space
+	private static Id randomId(boolean high) {
+		byte[] bytes = Id.random().bytes();
+		bytes[0] = (byte)(high ? bytes[0] | 0x80 : bytes[0] & 0x7f);
+		return Id.of(bytes);
+	}
+
+	private static RoutingTable filledTable(int n) {
+		RoutingTable rt = new RoutingTable(null, Id.random());
+		for (int i = 0; i < n; i++)
+			rt.put(entry(Id.random()));
+
+		return rt;
+	}
+
+	@Test
+	public void testSplitAndMerge() {
+		RoutingTable rt = new RoutingTable(null, randomId(false));
+
+		List<Id> low = new ArrayList<>();
+		for (int i = 0; i < K; i++) {
+			Id id = randomId(false);
+			low.add(id);
+			rt.put(entry(id));
+		}
+
+		assertEquals(1, rt.size());
+		assertEquals(K, rt.getNumBucketEntries());
+
+		// the full bucket splits for an entry of the high branch
+		Id high = randomId(true);
+		rt.put(entry(high));
+		assertEquals(2, rt.size());
+		assertEquals(0, rt.get(0).prefix().getDepth());
+		assertEquals(K, rt.get(0).size());
+		assertEquals(1, rt.get(1).size());
+		assertTrue(rt.get(0).prefix().isPrefixOf(low.get(0)));
+		assertTrue(rt.get(1).prefix().isPrefixOf(high));
+		assertTrue(rt.get(0).isHomeBucket());
+
+		// K + 1 entries can't be merged
+		rt._mergeBuckets();
+		assertEquals(2, rt.size());
+
+		// merged once all the entries fit into one bucket
+		rt.remove(low.get(0));
+		assertEquals(K, rt.getNumBucketEntries());
+		rt._mergeBuckets();
+		assertEquals(1, rt.size());
+		assertEquals(K, rt.get(0).size());
+		assertEquals(-1, rt.get(0).prefix().getDepth());
+		assertTrue(rt.get(0).exists(high));
+	}
+
+	@Test
+	public void testBucketOfAndGet() {
+		RoutingTable rt = filledTable(2000);
+		assertTrue(rt.size() > 1);
+
+		List<KBucket> buckets = rt.buckets();
+		assertEquals(rt.size(), buckets.size());
+		for (int i = 0; i < rt.size(); i++) {
+			assertSame(buckets.get(i), rt.get(i));
+			if (i > 0)
+				assertTrue(buckets.get(i - 1).compareTo(buckets.get(i)) < 0);
+
+			for (KBucketEntry e : buckets.get(i).entries())
+				assertSame(buckets.get(i), rt.bucketOf(e.getId()));
+		}
+
+		assertThrows(IndexOutOfBoundsException.class, () -> rt.get(-1));
+		assertThrows(IndexOutOfBoundsException.class, () -> rt.get(rt.size()));
+
+		// the buckets cover the key space, every id is in exactly one of them
+		for (int i = 0; i < 1000; i++) {
+			Id id = Id.random();
+			KBucket bucket = rt.bucketOf(id);
+			assertTrue(bucket.prefix().isPrefixOf(id));
+			assertEquals(1, buckets.stream().filter(b -> b.prefix().isPrefixOf(id)).count());
+		}
+	}
+
+	@Test
+	public void testSnapshotIsolation() {
+		RoutingTable rt = new RoutingTable(null, randomId(false));
+		List<Id> low = new ArrayList<>();
+		for (int i = 0; i < K; i++) {
+			Id id = randomId(false);
+			low.add(id);
+			rt.put(entry(id));
+		}
+
+		RoutingTable.Snapshot before = rt.snapshot();
+		KBucket root = before.get(0);
+
+		// the split publishes a new version, the old one is untouched
+		rt.put(entry(randomId(true)));
+		RoutingTable.Snapshot split = rt.snapshot();
+		assertNotSame(before, split);
+		assertEquals(1, before.size());
+		assertSame(root, before.get(0));
+		assertSame(root, before.bucketOf(randomId(true)));
+		assertEquals(2, split.size());
+
+		// the merge as well
+		rt.remove(low.get(0));
+		rt._mergeBuckets();
+		assertEquals(1, rt.size());
+		assertEquals(2, split.size());
+		assertEquals(K - 1, split.get(0).size());
+		assertEquals(1, split.get(1).size());
+		assertEquals(1, before.size());
+		assertSame(root, before.get(0));
+	}
+
+	@Test
+	public void testForEachClosest() {
+		RoutingTable rt = filledTable(2000);
+		RoutingTable.Snapshot snapshot = rt.snapshot();
+
+		List<KBucketEntry> all = new ArrayList<>();
+		rt.buckets().forEach(b -> all.addAll(b.entries()));
+
+		for (int i = 0; i < 100; i++) {
+			Id target = Id.random();
+			KBucketEntry.DistanceOrder order = new KBucketEntry.DistanceOrder(target);
+
+			// the buckets in the visit order, each sorted, must be the brute force sort
+			List<KBucketEntry> visited = new ArrayList<>();
+			List<KBucket> buckets = new ArrayList<>();
+			snapshot.forEachClosest(target, b -> {
+				buckets.add(b);
+				List<KBucketEntry> entries = new ArrayList<>(b.entries());
+				entries.sort(order);
+				visited.addAll(entries);
+				return true;
+			});
+
+			List<KBucketEntry> expected = new ArrayList<>(all);
+			expected.sort(order);
+
+			assertEquals(rt.size(), buckets.size());
+			assertSame(rt.bucketOf(target), buckets.get(0));
+			assertEquals(expected, visited);
+		}
+
+		// stops once the visitor returns false
+		List<KBucket> buckets = new ArrayList<>();
+		snapshot.forEachClosest(Id.random(), b -> {
+			buckets.add(b);
+			return buckets.size() < 3;
+		});
+		assertEquals(3, buckets.size());
+	}
+
+	/**
+	 * The routing table operations on a table of 10k entries: put, bucketOf and
+	 * KClosestNodes.fill. Compares the trie of the routing table against the
+	 * copy-on-write sorted bucket list it replaced, kept here as the baseline.
+	 */
+	@Disabled("Performance")
+	@Test
+	public void testRoutingTablePerf() throws Exception {
+		InetAddress addr = AddressUtils.getDefaultRoute(Inet4Address.class);
+		Node node = new Node(new DefaultConfiguration.Builder().setIPv4Address(addr).build());
+		List<KBucketEntry> entries = entries(ENTRIES);
+		List<Id> targets = targets(LOOKUPS);
+
+		for (int round = 0; round <= ROUNDS; round++) {
+			// the first round warms up
+			boolean warmup = round == 0;
+
+			CopyOnWriteTable list = new CopyOnWriteTable(node.getId());
+			long start = System.nanoTime();
+			for (KBucketEntry entry : entries)
+				list.put(copy(entry));
+			long putList = System.nanoTime() - start;
+
+			DHT dht = new DHT(DHT.Type.IPV4, node, new InetSocketAddress(addr, 39001));
+			RoutingTable trie = dht.getRoutingTable();
+			start = System.nanoTime();
+			for (KBucketEntry entry : entries)
+				trie.put(copy(entry));
+			long putTrie = System.nanoTime() - start;
+
+			// consume the results, the entries in the buckets differ with the timing
+			long found = 0;
+			start = System.nanoTime();
+			for (Id target : targets)
+				found += list.bucketOf(target).size();
+			long bucketOfList = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (Id target : targets)
+				found += trie.bucketOf(target).size();
+			long bucketOfTrie = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (Id target : targets)
+				found += list.closest(target, CLOSEST).size();
+			long fillList = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (Id target : targets) {
+				KClosestNodes kns = new KClosestNodes(dht, target, CLOSEST);
+				kns.fill();
+				found += kns.size();
+			}
+			long fillTrie = System.nanoTime() - start;
+
+			if (warmup)
+				continue;
+
+			System.out.format("Round %d: %d buckets, %d entries, %d found%n", round, trie.size(),
+					trie.getNumBucketEntries(), found);
+			report("put, list", ENTRIES, putList);
+			report("put, trie", ENTRIES, putTrie);
+			report("bucketOf, list", LOOKUPS, bucketOfList);
+			report("bucketOf, trie", LOOKUPS, bucketOfTrie);
+			report("KClosestNodes.fill, list", LOOKUPS, fillList);
+			report("KClosestNodes.fill, trie", LOOKUPS, fillTrie);
+		}
+	}
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package elastos.carrier.kademlia;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-memory network for the simulated nodes. Each host has its own IPv4
+ * address, public or behind a NAT. The packets are delivered on the virtual
+ * scheduler after a random latency, or lost at the given rate. The random
+ * source is seeded, so a simulation is repeatable.
+ */
+public class SimulatedNetwork implements Transport {
+	public static final int PORT = 39001;
+
+	// how long a NAT keeps the mapping to a remote endpoint without outbound packets
+	private static final long NAT_MAPPING_TIMEOUT = TimeUnit.SECONDS.toNanos(60);
+	private static final int NAT_FIRST_PORT = 40000;
+
+	public enum Nat {
+		/** A public address, reachable from everyone */
+		NONE,
+		/** Port restricted cone: one external endpoint, only the remote endpoints it sent to can reach it */
+		CONE,
+		/** Symmetric: an external port for each remote endpoint, only that endpoint can reach it */
+		SYMMETRIC
+	}
+
+	private static final class Host {
+		final Nat nat;
+		final InetAddress internal;
+		final InetAddress external;
+
+		// the remote endpoints that may send to the host, and the last time the host sent to them
+		final Map<InetSocketAddress, Long> permissions = new HashMap<>();
+		// the external ports of the symmetric NAT, and the remote endpoint of each
+		final Map<InetSocketAddress, Integer> ports = new HashMap<>();
+		final Map<Integer, InetSocketAddress> remotes = new HashMap<>();
+		int nextPort = NAT_FIRST_PORT;
+
+		Host(Nat nat, InetAddress internal, InetAddress external) {
+			this.nat = nat;
+			this.internal = internal;
+			this.external = external;
+		}
+	}
+
+	private final VirtualScheduler scheduler;
+	private final Random random;
+
+	private long minLatency;
+	private long maxLatency;
+	private double lossRate;
+
+	private final Map<InetAddress, Host> internalHosts = new HashMap<>();
+	private final Map<InetAddress, Host> externalHosts = new HashMap<>();
+	private final Map<InetSocketAddress, Receiver> bound = new HashMap<>();
+	private int numHosts;
+
+	private long sent;
+	private long delivered;
+	private long lost;
+	private long filtered;
+
+	public SimulatedNetwork(VirtualScheduler scheduler, long seed) {
+		this.scheduler = scheduler;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * The one way latency of every packet, uniformly distributed in the range.
+	 */
+	public void setLatency(long min, long max, TimeUnit unit) {
+		if (min < 0 || max < min)
+			throw new IllegalArgumentException("Invalid latency range");
+
+		this.minLatency = unit.toNanos(min);
+		this.maxLatency = unit.toNanos(max);
+	}
+
+	public void setLossRate(double rate) {
+		if (rate < 0 || rate >= 1)
+			throw new IllegalArgumentException("Invalid loss rate");
+
+		this.lossRate = rate;
+	}
+
+	private static InetAddress address(int prefix, int n) {
+		try {
+			return InetAddress.getByAddress(new byte[] {
+				(byte)prefix, (byte)(n >>> 16), (byte)(n >>> 8), (byte)n });
+		} catch (UnknownHostException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Adds a host to the network.
+	 *
+	 * @return the socket address to bind on the host, a private address if
+	 *         it's behind a NAT.
+	 */
+	public InetSocketAddress addHost(Nat nat) {
+		int n = ++numHosts;
+		InetAddress external = address(20, n);
+		InetAddress internal = nat == Nat.NONE ? external : address(10, n);
+
+		Host host = new Host(nat, internal, external);
+		internalHosts.put(internal, host);
+		externalHosts.put(external, host);
+		return new InetSocketAddress(internal, PORT);
+	}
+
+	/**
+	 * The address the other hosts see for the bound address. For a symmetric
+	 * NAT it's the first mapping, the others differ in the port.
+	 */
+	public InetSocketAddress getExternalAddress(InetSocketAddress addr) {
+		Host host = internalHosts.get(addr.getAddress());
+		if (host == null || host.nat == Nat.NONE)
+			return addr;
+
+		return new InetSocketAddress(host.external, host.nat == Nat.SYMMETRIC ? NAT_FIRST_PORT : addr.getPort());
+	}
+
+	public long getSentPackets() {
+		return sent;
+	}
+
+	public long getDeliveredPackets() {
+		return delivered;
+	}
+
+	public long getLostPackets() {
+		return lost;
+	}
+
+	/**
+	 * The packets dropped by the NATs, from the endpoints without a mapping.
+	 */
+	public long getFilteredPackets() {
+		return filtered;
+	}
+
+	@Override
+	public void bind(InetSocketAddress addr, Receiver receiver) throws IOException {
+		if (!internalHosts.containsKey(addr.getAddress()))
+			throw new BindException("Cannot assign requested address: " + addr);
+
+		if (bound.putIfAbsent(addr, receiver) != null)
+			throw new BindException("Address already in use: " + addr);
+	}
+
+	@Override
+	public void unbind(InetSocketAddress addr) {
+		bound.remove(addr);
+	}
+
+	@Override
+	public int send(InetSocketAddress source, ByteBuffer packet, InetSocketAddress target) throws IOException {
+		int length = packet.remaining();
+		byte[] data = new byte[length];
+		packet.get(data);
+		sent++;
+
+		InetSocketAddress sender = translate(source, target);
+		if (lossRate > 0 && random.nextDouble() < lossRate) {
+			lost++;
+			return length;
+		}
+
+		long latency = minLatency;
+		if (maxLatency > minLatency)
+			latency += (long)(random.nextDouble() * (maxLatency - minLatency));
+
+		scheduler.schedule(() -> deliver(sender, data, target), latency, TimeUnit.NANOSECONDS);
+		return length;
+	}
+
+	// the source address the remote host sees, opens the NAT for the replies
+	private InetSocketAddress translate(InetSocketAddress source, InetSocketAddress target) {
+		Host host = internalHosts.get(source.getAddress());
+		if (host == null || host.nat == Nat.NONE)
+			return source;
+
+		host.permissions.put(target, scheduler.nanoTime());
+		if (host.nat == Nat.CONE)
+			return new InetSocketAddress(host.external, source.getPort());
+
+		Integer port = host.ports.get(target);
+		if (port == null) {
+			port = host.nextPort++;
+			host.ports.put(target, port);
+			host.remotes.put(port, target);
+		}
+
+		return new InetSocketAddress(host.external, port);
+	}
+
+	private void deliver(InetSocketAddress sender, byte[] data, InetSocketAddress target) {
+		InetSocketAddress local = target;
+
+		Host host = externalHosts.get(target.getAddress());
+		if (host != null && host.nat != Nat.NONE) {
+			Long last = host.permissions.get(sender);
+			if (last == null || scheduler.nanoTime() - last > NAT_MAPPING_TIMEOUT ||
+					(host.nat == Nat.SYMMETRIC && !sender.equals(host.remotes.get(target.getPort())))) {
+				filtered++;
+				return;
+			}
+
+			local = new InetSocketAddress(host.internal, PORT);
+		}
+
+		Receiver receiver = bound.get(local);
+		if (receiver == null) {
+			// nobody listens on the address
+			lost++;
+			return;
+		}
+
+		delivered++;
+		receiver.received(ByteBuffer.wrap(data), sender);
+	}
+}
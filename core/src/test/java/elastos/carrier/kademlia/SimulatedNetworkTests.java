@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package elastos.carrier.kademlia;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import elastos.carrier.kademlia.SimulatedNetwork.Nat;
+
+public class SimulatedNetworkTests {
+	private static class Endpoint implements Transport.Receiver {
+		final List<String> packets = new ArrayList<>();
+		final List<InetSocketAddress> senders = new ArrayList<>();
+		final List<Long> times = new ArrayList<>();
+		final VirtualScheduler scheduler;
+
+		Endpoint(VirtualScheduler scheduler) {
+			this.scheduler = scheduler;
+		}
+
+		@Override
+		public void received(ByteBuffer packet, InetSocketAddress sender) {
+			byte[] data = new byte[packet.remaining()];
+			packet.get(data);
+			packets.add(new String(data));
+			senders.add(sender);
+			times.add(scheduler.now(TimeUnit.MILLISECONDS));
+		}
+	}
+
+	private static void send(SimulatedNetwork network, InetSocketAddress from, String data, InetSocketAddress to) throws IOException {
+		network.send(from, ByteBuffer.wrap(data.getBytes()), to);
+	}
+
+	@Test
+	public void testLatency() throws Exception {
+		VirtualScheduler scheduler = new VirtualScheduler();
+		SimulatedNetwork network = new SimulatedNetwork(scheduler, 1);
+		network.setLatency(20, 50, TimeUnit.MILLISECONDS);
+
+		InetSocketAddress a = network.addHost(Nat.NONE);
+		InetSocketAddress b = network.addHost(Nat.NONE);
+		Endpoint ea = new Endpoint(scheduler);
+		Endpoint eb = new Endpoint(scheduler);
+		network.bind(a, ea);
+		network.bind(b, eb);
+		assertThrows(BindException.class, () -> network.bind(a, ea));
+
+		for (int i = 0; i < 100; i++)
+			send(network, a, "ping" + i, b);
+
+		scheduler.runFor(1, TimeUnit.SECONDS);
+		assertEquals(100, eb.packets.size());
+		assertEquals(100, network.getDeliveredPackets());
+		for (int i = 0; i < 100; i++) {
+			assertEquals(a, eb.senders.get(i));
+			long time = eb.times.get(i);
+			assertTrue(time >= 20 && time <= 50);
+		}
+
+		// the same seed, the same packets order
+		VirtualScheduler scheduler2 = new VirtualScheduler();
+		SimulatedNetwork network2 = new SimulatedNetwork(scheduler2, 1);
+		network2.setLatency(20, 50, TimeUnit.MILLISECONDS);
+		network2.addHost(Nat.NONE);
+		network2.addHost(Nat.NONE);
+		Endpoint eb2 = new Endpoint(scheduler2);
+		network2.bind(b, eb2);
+		for (int i = 0; i < 100; i++)
+			send(network2, a, "ping" + i, b);
+
+		scheduler2.runFor(1, TimeUnit.SECONDS);
+		assertEquals(eb.packets, eb2.packets);
+		assertEquals(eb.times, eb2.times);
+	}
+
+	@Test
+	public void testLoss() throws Exception {
+		VirtualScheduler scheduler = new VirtualScheduler();
+		SimulatedNetwork network = new SimulatedNetwork(scheduler, 7);
+		network.setLossRate(0.2);
+
+		InetSocketAddress a = network.addHost(Nat.NONE);
+		InetSocketAddress b = network.addHost(Nat.NONE);
+		Endpoint eb = new Endpoint(scheduler);
+		network.bind(b, eb);
+
+		for (int i = 0; i < 10000; i++)
+			send(network, a, "x", b);
+
+		scheduler.runFor(1, TimeUnit.SECONDS);
+		assertEquals(10000, network.getSentPackets());
+		assertEquals(10000, network.getDeliveredPackets() + network.getLostPackets());
+		assertTrue(network.getLostPackets() > 1800 && network.getLostPackets() < 2200);
+	}
+
+	@Test
+	public void testConeNat() throws Exception {
+		VirtualScheduler scheduler = new VirtualScheduler();
+		SimulatedNetwork network = new SimulatedNetwork(scheduler, 1);
+		network.setLatency(10, 10, TimeUnit.MILLISECONDS);
+
+		InetSocketAddress pub1 = network.addHost(Nat.NONE);
+		InetSocketAddress pub2 = network.addHost(Nat.NONE);
+		InetSocketAddress nat = network.addHost(Nat.CONE);
+		InetSocketAddress ext = network.getExternalAddress(nat);
+		assertNotEquals(nat, ext);
+
+		Endpoint e1 = new Endpoint(scheduler);
+		Endpoint e2 = new Endpoint(scheduler);
+		Endpoint en = new Endpoint(scheduler);
+		network.bind(pub1, e1);
+		network.bind(pub2, e2);
+		network.bind(nat, en);
+
+		// unsolicited
+		send(network, pub1, "hello", ext);
+		scheduler.runFor(1, TimeUnit.SECONDS);
+		assertEquals(0, en.packets.size());
+		assertEquals(1, network.getFilteredPackets());
+
+		// the reply passes, from the other host is still filtered
+		send(network, nat, "request", pub1);
+		scheduler.runFor(1, TimeUnit.SECONDS);
+		assertEquals(List.of(ext), e1.senders);
+
+		send(network, pub1, "response", ext);
+		send(network, pub2, "hello", ext);
+		scheduler.runFor(1, TimeUnit.SECONDS);
+		assertEquals(List.of("response"), en.packets);
+		assertEquals(2, network.getFilteredPackets());
+
+		// the mapping expires
+		scheduler.runFor(2, TimeUnit.MINUTES);
+		send(network, pub1, "late", ext);
+		scheduler.runFor(1, TimeUnit.SECONDS);
+		assertEquals(List.of("response"), en.packets);
+		assertEquals(3, network.getFilteredPackets());
+	}
+
+	@Test
+	public void testSymmetricNat() throws Exception {
+		VirtualScheduler scheduler = new VirtualScheduler();
+		SimulatedNetwork network = new SimulatedNetwork(scheduler, 1);
+
+		InetSocketAddress pub1 = network.addHost(Nat.NONE);
+		InetSocketAddress pub2 = network.addHost(Nat.NONE);
+		InetSocketAddress nat = network.addHost(Nat.SYMMETRIC);
+
+		Endpoint e1 = new Endpoint(scheduler);
+		Endpoint e2 = new Endpoint(scheduler);
+		Endpoint en = new Endpoint(scheduler);
+		network.bind(pub1, e1);
+		network.bind(pub2, e2);
+		network.bind(nat, en);
+
+		send(network, nat, "request", pub1);
+		send(network, nat, "request", pub2);
+		scheduler.runFor(1, TimeUnit.SECONDS);
+
+		// a different external port for each remote
+		InetSocketAddress ext1 = e1.senders.get(0);
+		InetSocketAddress ext2 = e2.senders.get(0);
+		assertEquals(ext1.getAddress(), ext2.getAddress());
+		assertNotEquals(ext1.getPort(), ext2.getPort());
+
+		// only the remote of the mapping can use it
+		send(network, pub2, "wrong", ext1);
+		send(network, pub1, "response", ext1);
+		send(network, pub2, "response", ext2);
+		scheduler.runFor(1, TimeUnit.SECONDS);
+		assertEquals(List.of("response", "response"), en.packets);
+		assertEquals(List.of(pub1, pub2), en.senders);
+		assertEquals(1, network.getFilteredPackets());
+	}
+}
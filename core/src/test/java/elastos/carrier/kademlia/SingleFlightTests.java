@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package elastos.carrier.kademlia;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class SingleFlightTests {
+	@Test
+	public void testCoalesce() {
+		SingleFlight<String> flights = new SingleFlight<>();
+		AtomicInteger executions = new AtomicInteger();
+		CompletableFuture<String> execution = new CompletableFuture<>();
+
+		CompletableFuture<String> f1 = flights.execute("a", () -> {
+			executions.incrementAndGet();
+			return execution;
+		});
+		CompletableFuture<String> f2 = flights.execute("a", () -> {
+			executions.incrementAndGet();
+			return new CompletableFuture<>();
+		});
+		CompletableFuture<String> f3 = flights.execute("b", () -> {
+			executions.incrementAndGet();
+			return CompletableFuture.completedFuture("b");
+		});
+
+		assertEquals(2, executions.get());
+		assertNotSame(f1, f2);
+		assertEquals("b", f3.join());
+		assertEquals(1, flights.getInflight());
+
+		execution.complete("a");
+		assertEquals("a", f1.join());
+		assertEquals("a", f2.join());
+		assertEquals(0, flights.getInflight());
+		assertEquals(2, flights.getStarted());
+		assertEquals(1, flights.getCoalesced());
+
+		// a new call after the completion starts a new execution
+		CompletableFuture<String> f4 = flights.execute("a", () -> {
+			executions.incrementAndGet();
+			return CompletableFuture.completedFuture("a2");
+		});
+		assertEquals("a2", f4.join());
+		assertEquals(3, executions.get());
+	}
+
+	@Test
+	public void testCancel() {
+		SingleFlight<String> flights = new SingleFlight<>();
+		CompletableFuture<String> execution = new CompletableFuture<>();
+
+		CompletableFuture<String> f1 = flights.execute("a", () -> execution);
+		CompletableFuture<String> f2 = flights.execute("a", () -> new CompletableFuture<>());
+
+		// one caller leaves, the other still waits for the execution
+		f1.cancel(false);
+		assertFalse(execution.isDone());
+		assertFalse(f2.isDone());
+
+		// the last caller leaves, the execution is cancelled
+		f2.cancel(false);
+		assertTrue(execution.isCancelled());
+		assertEquals(0, flights.getInflight());
+
+		CompletableFuture<String> f3 = flights.execute("a", () -> CompletableFuture.completedFuture("a"));
+		assertEquals("a", f3.join());
+	}
+
+	@Test
+	public void testFailure() {
+		SingleFlight<String> flights = new SingleFlight<>();
+		CompletableFuture<String> execution = new CompletableFuture<>();
+
+		CompletableFuture<String> f1 = flights.execute("a", () -> execution);
+		CompletableFuture<String> f2 = flights.execute("a", () -> execution);
+		execution.completeExceptionally(new IllegalStateException("failed"));
+
+		assertTrue(f1.isCompletedExceptionally());
+		assertTrue(f2.isCompletedExceptionally());
+		assertEquals(0, flights.getInflight());
+
+		CompletableFuture<String> f3 = flights.execute("b", () -> {
+			throw new IllegalStateException("failed");
+		});
+		assertTrue(f3.isCompletedExceptionally());
+		assertEquals(0, flights.getInflight());
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package elastos.carrier.kademlia;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class TimerWheelTests {
+	private static void advanceFor(TimerWheel wheel, long millis) throws InterruptedException {
+		long end = System.currentTimeMillis() + millis;
+		while (System.currentTimeMillis() < end) {
+			wheel.advance();
+			TimeUnit.MILLISECONDS.sleep(1);
+		}
+
+		wheel.advance();
+	}
+
+	@Test
+	public void testExpire() throws Exception {
+		TimerWheel wheel = new TimerWheel(5, TimeUnit.MILLISECONDS, 8);
+		List<Integer> fired = new ArrayList<>();
+		long start = System.nanoTime();
+		long[] elapsed = new long[3];
+
+		wheel.schedule(() -> { fired.add(1); elapsed[0] = System.nanoTime() - start; }, 10, TimeUnit.MILLISECONDS);
+		// longer than one revolution of the wheel
+		wheel.schedule(() -> { fired.add(2); elapsed[1] = System.nanoTime() - start; }, 100, TimeUnit.MILLISECONDS);
+		wheel.schedule(() -> { fired.add(3); elapsed[2] = System.nanoTime() - start; }, 45, TimeUnit.MILLISECONDS);
+
+		advanceFor(wheel, 30);
+		assertEquals(List.of(1), fired);
+
+		advanceFor(wheel, 120);
+		assertEquals(List.of(1, 3, 2), fired);
+		assertEquals(0, wheel.size());
+
+		assertTrue(elapsed[0] >= TimeUnit.MILLISECONDS.toNanos(10));
+		assertTrue(elapsed[1] >= TimeUnit.MILLISECONDS.toNanos(100));
+		assertTrue(elapsed[2] >= TimeUnit.MILLISECONDS.toNanos(45));
+	}
+
+	@Test
+	public void testCancel() throws Exception {
+		TimerWheel wheel = new TimerWheel(5, TimeUnit.MILLISECONDS, 8);
+		List<Integer> fired = new ArrayList<>();
+
+		TimerWheel.Timeout t1 = wheel.schedule(() -> fired.add(1), 10, TimeUnit.MILLISECONDS);
+		TimerWheel.Timeout t2 = wheel.schedule(() -> fired.add(2), 20, TimeUnit.MILLISECONDS);
+		wheel.advance();
+		assertEquals(2, wheel.size());
+
+		// cancel in the pending queue and in the bucket
+		TimerWheel.Timeout t3 = wheel.schedule(() -> fired.add(3), 10, TimeUnit.MILLISECONDS);
+		t3.cancel();
+		t1.cancel();
+		assertTrue(t1.isCancelled());
+		assertFalse(t2.isCancelled());
+
+		advanceFor(wheel, 50);
+		assertEquals(List.of(2), fired);
+		assertEquals(0, wheel.size());
+	}
+}
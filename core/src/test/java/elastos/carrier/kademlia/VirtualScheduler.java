@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package elastos.carrier.kademlia;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single threaded scheduler on a virtual clock. The jobs run on the thread
+ * that drives the scheduler, in the order of their due time and then of their
+ * submission, and the clock jumps to the due time of the next job. So the
+ * simulated nodes sharing it run deterministically, and an hour of the
+ * simulation takes as long as its jobs do.
+ */
+public class VirtualScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+	private final PriorityQueue<Job<?>> queue;
+	private long now;
+	private long sequence;
+	private long executed;
+	private boolean shutdown;
+
+	private static final Logger log = LoggerFactory.getLogger(VirtualScheduler.class);
+
+	private class Job<V> implements RunnableScheduledFuture<V> {
+		private final Callable<V> callable;
+		private final long period; // > 0 fixed rate, < 0 fixed delay, 0 one-shot
+		private long time;
+		private long seq;
+
+		private boolean done;
+		private boolean cancelled;
+		private V result;
+		private Throwable failure;
+
+		Job(Callable<V> callable, long time, long period) {
+			this.callable = callable;
+			this.time = time;
+			this.period = period;
+			this.seq = sequence++;
+		}
+
+		@Override
+		public void run() {
+			if (done)
+				return;
+
+			try {
+				V v = callable.call();
+				if (!isPeriodic()) {
+					result = v;
+					done = true;
+				} else if (!cancelled) {
+					time = period > 0 ? time + period : now - period;
+					seq = sequence++;
+					queue.add(this);
+				}
+			} catch (Throwable e) {
+				log.error("Simulated job failed", e);
+				failure = e;
+				done = true;
+			}
+		}
+
+		@Override
+		public boolean isPeriodic() {
+			return period != 0;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(time - now, TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed o) {
+			Job<?> other = (Job<?>)o;
+			int c = Long.compare(time, other.time);
+			return c != 0 ? c : Long.compare(seq, other.seq);
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if (done)
+				return false;
+
+			// left in the queue, skipped when due
+			cancelled = true;
+			done = true;
+			return true;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public boolean isDone() {
+			return done;
+		}
+
+		@Override
+		public V get() throws InterruptedException, ExecutionException {
+			if (cancelled)
+				throw new CancellationException();
+			if (!done)
+				// nothing else would run the job while the only thread waits
+				throw new IllegalStateException("Blocking wait on a pending simulated job");
+			if (failure != null)
+				throw new ExecutionException(failure);
+
+			return result;
+		}
+
+		@Override
+		public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException {
+			return get();
+		}
+	}
+
+	public VirtualScheduler() {
+		queue = new PriorityQueue<>();
+	}
+
+	/**
+	 * The elapsed time of the simulation.
+	 */
+	public long now(TimeUnit unit) {
+		return unit.convert(now, TimeUnit.NANOSECONDS);
+	}
+
+	public long nanoTime() {
+		return now;
+	}
+
+	public int pending() {
+		return queue.size();
+	}
+
+	public long executed() {
+		return executed;
+	}
+
+	/**
+	 * Runs the next job, advancing the clock to its due time.
+	 *
+	 * @return false if there is no pending job.
+	 */
+	public boolean runNext() {
+		Job<?> job = queue.poll();
+		if (job == null)
+			return false;
+
+		now = Math.max(now, job.time);
+		executed++;
+		job.run();
+		return true;
+	}
+
+	/**
+	 * Runs the jobs due in the given time, then advances the clock to its end.
+	 */
+	public void runFor(long time, TimeUnit unit) {
+		long end = now + unit.toNanos(time);
+		while (!queue.isEmpty() && queue.peek().time <= end)
+			runNext();
+
+		now = end;
+	}
+
+	/**
+	 * Runs the jobs until the condition holds or the timeout of the virtual time.
+	 *
+	 * @return true if the condition holds.
+	 */
+	public boolean runUntil(BooleanSupplier condition, long timeout, TimeUnit unit) {
+		long end = now + unit.toNanos(timeout);
+		while (!condition.getAsBoolean()) {
+			if (queue.isEmpty() || queue.peek().time > end) {
+				now = Math.max(now, end);
+				return condition.getAsBoolean();
+			}
+
+			runNext();
+		}
+
+		return true;
+	}
+
+	private <V> Job<V> enqueue(Callable<V> callable, long delay, long period) {
+		if (shutdown)
+			throw new RejectedExecutionException("Scheduler is shutdown");
+
+		Job<V> job = new Job<>(callable, now + Math.max(delay, 0), period);
+		queue.add(job);
+		return job;
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		enqueue(Executors.callable(command), 0, 0);
+	}
+
+	@Override
+	public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+		return enqueue(Executors.callable(command), unit.toNanos(delay), 0);
+	}
+
+	@Override
+	public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+		return enqueue(callable, unit.toNanos(delay), 0);
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+		if (period <= 0)
+			throw new IllegalArgumentException("Invalid period");
+
+		return enqueue(Executors.callable(command), unit.toNanos(initialDelay), unit.toNanos(period));
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+		if (delay <= 0)
+			throw new IllegalArgumentException("Invalid delay");
+
+		return enqueue(Executors.callable(command), unit.toNanos(initialDelay), -unit.toNanos(delay));
+	}
+
+	@Override
+	public void shutdown() {
+		shutdown = true;
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		shutdown = true;
+		List<Runnable> jobs = new ArrayList<>(queue);
+		queue.clear();
+		return jobs;
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return shutdown && queue.isEmpty();
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) {
+		return isTerminated();
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package elastos.carrier.kademlia;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class VirtualSchedulerTests {
+	@Test
+	public void testOrder() {
+		VirtualScheduler scheduler = new VirtualScheduler();
+		List<String> ran = new ArrayList<>();
+		List<Long> times = new ArrayList<>();
+
+		scheduler.schedule(() -> ran.add("c"), 30, TimeUnit.MILLISECONDS);
+		scheduler.schedule(() -> ran.add("a"), 10, TimeUnit.MILLISECONDS);
+		scheduler.schedule(() -> ran.add("b1"), 20, TimeUnit.MILLISECONDS);
+		// same due time, in the order of the submission
+		scheduler.schedule(() -> ran.add("b2"), 20, TimeUnit.MILLISECONDS);
+		scheduler.execute(() -> {
+			ran.add("now");
+			times.add(scheduler.now(TimeUnit.MILLISECONDS));
+		});
+
+		scheduler.runFor(25, TimeUnit.MILLISECONDS);
+		assertEquals(List.of("now", "a", "b1", "b2"), ran);
+		assertEquals(List.of(0L), times);
+		assertEquals(25, scheduler.now(TimeUnit.MILLISECONDS));
+
+		scheduler.runFor(1, TimeUnit.HOURS);
+		assertEquals(List.of("now", "a", "b1", "b2", "c"), ran);
+		assertEquals(TimeUnit.HOURS.toMillis(1) + 25, scheduler.now(TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testPeriodic() throws Exception {
+		VirtualScheduler scheduler = new VirtualScheduler();
+		List<Long> rate = new ArrayList<>();
+		List<Long> delay = new ArrayList<>();
+
+		ScheduledFuture<?> f1 = scheduler.scheduleAtFixedRate(() -> {
+			rate.add(scheduler.now(TimeUnit.MILLISECONDS));
+		}, 10, 100, TimeUnit.MILLISECONDS);
+
+		ScheduledFuture<?> f2 = scheduler.scheduleWithFixedDelay(() -> {
+			delay.add(scheduler.now(TimeUnit.MILLISECONDS));
+		}, 0, 150, TimeUnit.MILLISECONDS);
+
+		scheduler.runFor(350, TimeUnit.MILLISECONDS);
+		assertEquals(List.of(10L, 110L, 210L, 310L), rate);
+		assertEquals(List.of(0L, 150L, 300L), delay);
+
+		assertTrue(f1.cancel(false));
+		assertTrue(f1.isCancelled());
+		assertThrows(CancellationException.class, () -> f1.get());
+
+		scheduler.runFor(1, TimeUnit.SECONDS);
+		assertEquals(4, rate.size());
+		assertEquals(10, delay.size());
+		assertFalse(f2.isDone());
+	}
+
+	@Test
+	public void testRunUntil() throws Exception {
+		VirtualScheduler scheduler = new VirtualScheduler();
+		ScheduledFuture<Integer> f = scheduler.schedule(() -> 42, 5, TimeUnit.SECONDS);
+
+		assertFalse(scheduler.runUntil(f::isDone, 1, TimeUnit.SECONDS));
+		assertEquals(1000, scheduler.now(TimeUnit.MILLISECONDS));
+		assertThrows(IllegalStateException.class, () -> f.get());
+
+		assertTrue(scheduler.runUntil(f::isDone, 10, TimeUnit.SECONDS));
+		assertEquals(5000, scheduler.now(TimeUnit.MILLISECONDS));
+		assertEquals(42, f.get().intValue());
+	}
+}
@@ -549,4 +549,39 @@ public class FindNodeTests extends MessageTests {
 		nodes = m.getNodes6();
 		assertArrayEquals(nodes6.toArray(), nodes.toArray());
 	}
+
+	@Test
+	public void testFindNodeResponseTypeAtEnd() throws Exception {
+		Id id = Id.random();
+		int txid = ThreadLocals.random().nextInt();
+		int token = ThreadLocals.random().nextInt();
+
+		List<NodeInfo> nodes4 = new ArrayList<>();
+		nodes4.add(new NodeInfo(Id.random(), "251.251.251.251", 65535));
+		nodes4.add(new NodeInfo(Id.random(), "192.168.1.2", 1232));
+		nodes4.add(new NodeInfo(Id.random(), "192.168.1.3", 1233));
+
+		FindNodeResponse msg = new FindNodeResponse(txid);
+		msg.setId(id);
+		msg.setVersion(VERSION);
+		msg.setNodes4(nodes4);
+		msg.setToken(token);
+
+		byte[] bin = moveTypeToEnd(msg.serialize());
+		printMessage(msg, bin);
+
+		Message pm = Message.parse(bin);
+		pm.setId(id);
+		assertTrue(pm instanceof FindNodeResponse);
+		FindNodeResponse m = (FindNodeResponse)pm;
+
+		assertEquals(Type.RESPONSE, m.getType());
+		assertEquals(Method.FIND_NODE, m.getMethod());
+		assertEquals(id, m.getId());
+		assertEquals(txid, m.getTxid());
+		assertEquals(VERSION_STR, m.getReadableVersion());
+		assertTrue(m.getNodes6().isEmpty());
+		assertEquals(token, m.getToken());
+		assertArrayEquals(nodes4.toArray(), m.getNodes4().toArray());
+	}
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2022 - 2023 trinity-tech.io
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package elastos.carrier.kademlia.messages;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Disabled;
+import org.junit.jupiter.api.Test;
+
+import elastos.carrier.Id;
+import elastos.carrier.NodeInfo;
+import elastos.carrier.PeerInfo;
+import elastos.carrier.Value;
+import elastos.carrier.utils.ThreadLocals;
+
+public class MessageParseTests extends MessageTests {
+	private static final int WARMUP_ITERATIONS = 200_000;
+	private static final int ITERATIONS = 1_000_000;
+
+	private static long allocatedBytes() {
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static void measure(String name, byte[] bin) throws Exception {
+		for (int i = 0; i < WARMUP_ITERATIONS; i++)
+			Message.parse(bin);
+
+		long bytes = allocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++)
+			Message.parse(bin);
+		long elapsed = System.nanoTime() - start;
+		bytes = allocatedBytes() - bytes;
+
+		System.out.format("%-40s %8.1f bytes/op %8.1f ns/op%n", name,
+				(double)bytes / ITERATIONS, (double)elapsed / ITERATIONS);
+	}
+
+	private static List<NodeInfo> randomNodes(int count) {
+		List<NodeInfo> nodes = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+			nodes.add(new NodeInfo(Id.random(), new InetSocketAddress("192.168.1." + (i + 1), 39001 + i)));
+
+		return nodes;
+	}
+
+	private static PeerInfo randomPeer() {
+		byte[] sig = new byte[64];
+		ThreadLocals.random().nextBytes(sig);
+		return PeerInfo.of(Id.random(), Id.random(), 39001, sig);
+	}
+
+	private static Value randomValue() {
+		byte[] data = new byte[512];
+		Arrays.fill(data, (byte)'D');
+		return Value.of(data);
+	}
+
+	private static List<Message> messages() {
+		int txid = 0x12345678;
+		int token = 0x78901234;
+		List<Message> messages = new ArrayList<>();
+
+		messages.add(new PingRequest());
+		messages.add(new PingResponse(txid));
+
+		FindNodeRequest fnq = new FindNodeRequest(Id.random(), true);
+		fnq.setWant4(true);
+		messages.add(fnq);
+		FindNodeResponse fnr = new FindNodeResponse(txid);
+		fnr.setNodes4(randomNodes(8));
+		fnr.setToken(token);
+		messages.add(fnr);
+
+		messages.add(new AnnouncePeerRequest(randomPeer(), token));
+		messages.add(new AnnouncePeerResponse(txid));
+
+		FindPeerRequest fpq = new FindPeerRequest(Id.random());
+		fpq.setWant4(true);
+		messages.add(fpq);
+		FindPeerResponse fpr = new FindPeerResponse(txid);
+		fpr.setPeers(List.of(randomPeer(), randomPeer()));
+		fpr.setNodes4(randomNodes(4));
+		messages.add(fpr);
+
+		messages.add(new StoreValueRequest(randomValue(), token));
+		messages.add(new StoreValueResponse(txid));
+
+		FindValueRequest fvq = new FindValueRequest(Id.random());
+		fvq.setWant4(true);
+		messages.add(fvq);
+		FindValueResponse fvr = new FindValueResponse(txid);
+		fvr.setValue(randomValue());
+		fvr.setNodes4(randomNodes(4));
+		messages.add(fvr);
+
+		messages.add(new ErrorMessage(Message.Method.FIND_VALUE, txid, 203, "Invalid token"));
+
+		for (Message msg : messages) {
+			if (msg.getTxid() == 0)
+				msg.setTxid(txid);
+			msg.setVersion(VERSION);
+		}
+
+		return messages;
+	}
+
+	/**
+	 * Measures Message.parse() for every method, with the type field at the
+	 * beginning (single pass) and at the end (buffered fallback) of the message.
+	 */
+	@Disabled("Performance")
+	@Test
+	public void testParsePerf() throws Exception {
+		for (Message msg : messages()) {
+			String name = msg.getType() + ":" + msg.getMethod();
+			byte[] bin = msg.serialize();
+
+			measure(name + " type first", bin);
+			measure(name + " type at end", moveTypeToEnd(bin));
+		}
+	}
+}
@@ -24,7 +24,9 @@ package elastos.carrier.kademlia.messages;
 
 import java.io.IOException;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
 
 import elastos.carrier.utils.Hex;
@@ -40,4 +42,13 @@ public abstract class MessageTests {
 		System.out.println("  JSON: " + new ObjectMapper().writeValueAsString(new CBORMapper().readTree(bin)));
 		System.out.println();
 	}
+
+	// Re-encode the message with the type field at the end, the field order used by the old nodes
+	protected byte[] moveTypeToEnd(byte[] bin) throws IOException {
+		CBORMapper mapper = new CBORMapper();
+		ObjectNode root = (ObjectNode)mapper.readTree(bin);
+		JsonNode type = root.remove("y");
+		root.set("y", type);
+		return mapper.writeValueAsBytes(root);
+	}
 }
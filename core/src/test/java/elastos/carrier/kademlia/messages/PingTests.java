@@ -106,4 +106,31 @@ public class PingTests extends MessageTests {
 		assertEquals(txid, m.getTxid());
 		assertEquals(0, m.getVersion());
 	}
+
+	@Test
+	public void testParseFromBuffer() throws Exception {
+		Id id = Id.random();
+		int txid = ThreadLocals.random().nextInt();
+
+		PingRequest msg = new PingRequest();
+		msg.setId(id);
+		msg.setTxid(txid);
+		msg.setVersion(VERSION);
+
+		byte[] bin = msg.serialize();
+		byte[] buf = new byte[bin.length + 64];
+		ThreadLocals.random().nextBytes(buf);
+		System.arraycopy(bin, 0, buf, Id.BYTES, bin.length);
+
+		Message pm = Message.parse(buf, Id.BYTES, bin.length);
+		pm.setId(id);
+		assertTrue(pm instanceof PingRequest);
+		PingRequest m = (PingRequest)pm;
+
+		assertEquals(Type.REQUEST, m.getType());
+		assertEquals(Method.PING, m.getMethod());
+		assertEquals(id, m.getId());
+		assertEquals(txid, m.getTxid());
+		assertEquals(VERSION_STR, m.getReadableVersion());
+	}
 }
@@ -1,16 +1,21 @@
 package elastos.carrier.kademlia.tasks;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 import java.util.TreeSet;
 
 import org.junit.jupiter.api.Test;
 
 import elastos.carrier.Id;
 import elastos.carrier.NodeInfo;
+import elastos.carrier.utils.ConcurrentHashSet;
 
 public class ClosestCandidatesTests {
 	@Test
@@ -143,4 +148,149 @@ public class ClosestCandidatesTests {
 		assertEquals(result.first().getId(), cc.head());
 		assertEquals(result.last().getId(), cc.tail());
 	}
+
+	@Test
+	public void testNext() {
+		Id target = Id.random();
+		ClosestCandidates cc = new ClosestCandidates(target, 16);
+
+		List<NodeInfo> nodes = new ArrayList<>();
+		for (int i = 0; i < 8; i++)
+			nodes.add(new NodeInfo(Id.random(), "192.168.1." + (i+1), 12345));
+
+		cc.add(nodes);
+		Collections.sort(nodes, (n1, n2) -> target.threeWayCompare(n1.getId(), n2.getId()));
+
+		// The closest first, every candidate taken once
+		List<CandidateNode> sent = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			CandidateNode cn = cc.next();
+			assertEquals(nodes.get(i), cn);
+			cn.setSent();
+			sent.add(cn);
+		}
+		assertNull(cc.next());
+		assertEquals(8, cc.size());
+
+		// The timed out candidates come back after the never pinged ones, even the farthest
+		cc.requeue(sent.get(0));
+		cc.requeue(sent.get(1));
+		NodeInfo node = new NodeInfo(target.distance(Id.MAX_ID), "192.168.1.100", 12345);
+		cc.add(List.of(node));
+
+		assertEquals(node, cc.next());
+		assertSame(sent.get(0), cc.next());
+		assertSame(sent.get(1), cc.next());
+		assertNull(cc.next());
+
+		// Removed candidates are not requeued
+		cc.remove(sent.get(2).getId());
+		cc.requeue(sent.get(2));
+		assertNull(cc.next());
+	}
+
+	@Test
+	public void testSharedDedup() {
+		Id target = Id.random();
+		ConcurrentHashSet<Object> dedup = new ConcurrentHashSet<>();
+		ClosestCandidates cc1 = new ClosestCandidates(target, 16, dedup);
+		ClosestCandidates cc2 = new ClosestCandidates(target, 16, dedup);
+
+		List<NodeInfo> nodes = new ArrayList<>();
+		for (int i = 0; i < 8; i++)
+			nodes.add(new NodeInfo(Id.random(), "192.168.1." + (i+1), 12345));
+
+		cc1.add(nodes.subList(0, 4), 0, 1);
+		cc2.add(nodes, 1, 2);
+
+		assertEquals(4, cc1.size());
+		assertEquals(4, cc2.size());
+		for (int i = 0; i < 4; i++) {
+			assertEquals(0, cc1.get(nodes.get(i).getId()).getPath());
+			assertNull(cc2.get(nodes.get(i).getId()));
+		}
+		for (int i = 4; i < 8; i++) {
+			assertEquals(1, cc2.get(nodes.get(i).getId()).getPath());
+			assertEquals(2, cc2.get(nodes.get(i).getId()).getHops());
+		}
+	}
+
+	// An id in the same half of the key space as the target, or in the other half
+	private static Id idNear(Id target, boolean far, Random random) {
+		byte[] bytes = target.getBytes();
+		for (int i = 1; i < bytes.length; i++)
+			bytes[i] = (byte)random.nextInt(256);
+
+		if (far)
+			bytes[0] ^= 0x80;
+
+		return Id.of(bytes);
+	}
+
+	@Test
+	public void testTrimOrder() {
+		Random random = new Random(0);
+		Id target = Id.random();
+		ClosestCandidates cc = new ClosestCandidates(target, 4);
+
+		List<NodeInfo> near = new ArrayList<>();
+		for (int i = 0; i < 4; i++)
+			near.add(new NodeInfo(idNear(target, false, random), "192.168.1." + (i+1), 12345));
+
+		cc.add(near);
+
+		// The near candidates timed out once
+		for (int i = 0; i < 4; i++) {
+			CandidateNode cn = cc.next();
+			cn.setSent();
+			cc.requeue(cn);
+		}
+
+		// Over capacity, the pinged ones are dropped first, even they are closer
+		List<NodeInfo> far = new ArrayList<>();
+		for (int i = 0; i < 4; i++)
+			far.add(new NodeInfo(idNear(target, true, random), "192.168.1." + (i+16), 12345));
+
+		cc.add(far);
+
+		assertEquals(4, cc.size());
+		for (NodeInfo node : near)
+			assertNull(cc.get(node.getId()));
+		for (NodeInfo node : far)
+			assertNotNull(cc.get(node.getId()));
+
+		// Then the farthest of the never pinged ones
+		List<NodeInfo> all = new ArrayList<>(far);
+		List<NodeInfo> nodes = new ArrayList<>();
+		for (int i = 0; i < 4; i++)
+			nodes.add(new NodeInfo(idNear(target, true, random), "192.168.1." + (i+32), 12345));
+
+		cc.add(nodes);
+		all.addAll(nodes);
+		Collections.sort(all, (n1, n2) -> target.threeWayCompare(n1.getId(), n2.getId()));
+
+		assertEquals(4, cc.size());
+		for (int i = 0; i < 4; i++)
+			assertNotNull(cc.get(all.get(i).getId()));
+
+		// The candidates in flight are not trimmed
+		List<CandidateNode> inFlight = new ArrayList<>();
+		for (int i = 0; i < 2; i++) {
+			CandidateNode cn = cc.next();
+			cn.setSent();
+			inFlight.add(cn);
+		}
+
+		nodes.clear();
+		for (int i = 0; i < 4; i++)
+			nodes.add(new NodeInfo(idNear(target, false, random), "192.168.1." + (i+48), 12345));
+
+		cc.add(nodes);
+
+		assertEquals(6, cc.size());
+		for (CandidateNode cn : inFlight)
+			assertSame(cn, cc.get(cn.getId()));
+		for (NodeInfo node : nodes)
+			assertNotNull(cc.get(node.getId()));
+	}
 }